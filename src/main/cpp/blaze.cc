@@ -480,6 +480,16 @@ static vector<string> GetServerExeArgs(const blaze_util::Path &jvm_path,
   } else {
     result.push_back("--noidle_server_tasks");
   }
+  if (startup_options.compact_skyframe_graph) {
+    result.push_back("--experimental_compact_skyframe_graph");
+  } else {
+    result.push_back("--noexperimental_compact_skyframe_graph");
+  }
+  if (startup_options.mapped_action_cache) {
+    result.push_back("--experimental_mapped_action_cache");
+  } else {
+    result.push_back("--noexperimental_mapped_action_cache");
+  }
   if (startup_options.oom_more_eagerly) {
     result.push_back("--experimental_oom_more_eagerly");
   } else {
@@ -90,6 +90,8 @@ StartupOptions::StartupOptions(const string &product_name,
       expand_configs_in_place(true),
       digest_function(),
       idle_server_tasks(true),
+      compact_skyframe_graph(false),
+      mapped_action_cache(false),
       original_startup_options_(std::vector<RcStartupFlag>()),
 #if defined(__APPLE__)
       macos_qos_class(QOS_CLASS_DEFAULT),
@@ -132,6 +134,10 @@ StartupOptions::StartupOptions(const string &product_name,
   RegisterNullaryStartupFlag("deep_execroot", &deep_execroot);
   RegisterNullaryStartupFlag("expand_configs_in_place",
                              &expand_configs_in_place);
+  RegisterNullaryStartupFlag("experimental_compact_skyframe_graph",
+                             &compact_skyframe_graph);
+  RegisterNullaryStartupFlag("experimental_mapped_action_cache",
+                             &mapped_action_cache);
   RegisterNullaryStartupFlag("experimental_oom_more_eagerly",
                              &oom_more_eagerly);
   RegisterNullaryStartupFlag("fatal_event_bus_exceptions",
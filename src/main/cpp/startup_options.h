@@ -240,6 +240,12 @@ class StartupOptions {
 
   bool idle_server_tasks;
 
+  // Whether the server stores the Skyframe graph in its compact representation.
+  bool compact_skyframe_graph;
+
+  // Whether the server stores the action cache in memory-mapped files.
+  bool mapped_action_cache;
+
   // The startup options as received from the user and rc files, tagged with
   // their origin. This is populated by ProcessArgs.
   std::vector<RcStartupFlag> original_startup_options_;
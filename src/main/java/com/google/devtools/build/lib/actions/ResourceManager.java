@@ -18,17 +18,28 @@ import static com.google.devtools.build.lib.profiler.AutoProfiler.profiled;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats.Histogram;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats.HistogramSnapshot;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.unix.ProcMeminfoParser;
 import com.google.devtools.build.lib.util.OS;
-import com.google.devtools.build.lib.util.Pair;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -57,6 +68,12 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Resources that are available are acquired and released without locking. Threads that have to
+ * wait are served in the order of their {@linkplain #setPrioritizer priority}, and among equal
+ * priorities in the order in which they started waiting. Requests that don't fit may be overtaken
+ * by later requests that do, but only {@link #MAX_OVERTAKES} times: after that, no later request
+ * is served before them, so that large requests don't starve behind a stream of small ones.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -117,39 +134,112 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_CPU_RATIO = 0.6;
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  /** How often a waiting request may be overtaken by requests that started waiting later. */
+  @VisibleForTesting static final int MAX_OVERTAKES = 50;
 
-  // The total amount of resources on the local host. Must be set by
-  // an explicit call to setAvailableResources(), often using
-  // LocalHostCapacity.getLocalHostCapacity() as an argument.
-  private ResourceSet staticResources = null;
+  /** Resources that are in use. Immutable, so that they can be updated with a single CAS. */
+  private static final class Usage {
+    static final Usage NONE = new Usage(0, 0, 0);
 
-  @VisibleForTesting public ResourceSet availableResources = null;
+    // Used amount of CPU capacity (where 1.0 corresponds to the one fully
+    // occupied CPU core. Corresponds to the CPU resource definition in the
+    // ResourceSet class.
+    final double cpu;
+
+    // Used amount of RAM capacity in MB. Corresponds to the RAM resource
+    // definition in the ResourceSet class.
+    final double ram;
+
+    // Used local test count. Corresponds to the local test count definition in the ResourceSet
+    // class.
+    final int localTestCount;
+
+    Usage(double cpu, double ram, int localTestCount) {
+      this.cpu = cpu;
+      this.ram = ram;
+      this.localTestCount = localTestCount;
+    }
 
-  // Used amount of CPU capacity (where 1.0 corresponds to the one fully
-  // occupied CPU core. Corresponds to the CPU resource definition in the
-  // ResourceSet class.
-  private double usedCpu;
+    boolean isNone() {
+      return cpu == 0.0 && ram == 0.0 && localTestCount == 0;
+    }
 
-  // Used amount of RAM capacity in MB. Corresponds to the RAM resource
-  // definition in the ResourceSet class.
-  private double usedRam;
+    Usage plus(ResourceSet resources) {
+      return new Usage(
+          cpu + resources.getCpuUsage(),
+          ram + resources.getMemoryMb(),
+          localTestCount + resources.getLocalTestCount());
+    }
 
-  // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
-  private int usedLocalTestCount;
+    Usage minus(ResourceSet resources) {
+      double newCpu = cpu - resources.getCpuUsage();
+      double newRam = ram - resources.getMemoryMb();
+      // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
+      // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better solution.
+      double epsilon = 0.0001;
+      if (newCpu < epsilon) {
+        newCpu = 0;
+      }
+      if (newRam < epsilon) {
+        newRam = 0;
+      }
+      return new Usage(newCpu, newRam, localTestCount - resources.getLocalTestCount());
+    }
+  }
+
+  /** A thread waiting for resources. */
+  private static final class Request {
+    final ResourceSet resources;
+    final long priority;
+    final long sequenceNumber;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    // Guarded by the ResourceManager.
+    boolean granted;
+    int overtakes;
+
+    Request(ResourceSet resources, long priority, long sequenceNumber) {
+      this.resources = resources;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private static final Comparator<Request> REQUEST_ORDER =
+      Comparator.<Request>comparingLong(r -> -r.priority).thenComparingLong(r -> r.sequenceNumber);
+
+  // Blocked threads, in the order in which they are served. Guarded by this.
+  private final TreeSet<Request> requests = new TreeSet<>(REQUEST_ORDER);
+  private long nextSequenceNumber;
+
+  // The number of blocked threads. Written while holding the lock, but read without it: resources
+  // are only acquired without the lock if no thread waits, and released resources are only passed
+  // on to waiting threads if there are any.
+  private final AtomicInteger waitCount = new AtomicInteger();
+
+  private final AtomicReference<Usage> usage = new AtomicReference<>(Usage.NONE);
+
+  // The total amount of resources on the local host. Must be set by
+  // an explicit call to setAvailableResources(), often using
+  // LocalHostCapacity.getLocalHostCapacity() as an argument.
+  private volatile ResourceSet staticResources = null;
+
+  @VisibleForTesting public volatile ResourceSet availableResources = null;
 
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
-  private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
+  private volatile int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
   // Determines if local memory estimates are used.
-  private boolean localMemoryEstimate = false;
+  private volatile boolean localMemoryEstimate = false;
 
-  private ResourceManager() {
-    requestList = new LinkedList<>();
-  }
+  // The priority of actions that have to wait for resources.
+  private volatile ToLongFunction<ActionExecutionMetadata> prioritizer = action -> 0;
+
+  // How long actions waited for resources, by mnemonic.
+  private final ConcurrentMap<String, Histogram> waitTimes = new ConcurrentHashMap<>();
+
+  private ResourceManager() {}
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
     return new ResourceManager();
@@ -160,14 +250,18 @@ public class ResourceManager {
    * Note - it does not reset available resources. Use separate call to setAvailableResources().
    */
   public synchronized void resetResourceUsage() {
-    usedCpu = 0;
-    usedRam = 0;
-    usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
-      // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+    usage.set(Usage.NONE);
+    for (Request request : requests) {
+      request.granted = true;
+      request.latch.countDown();
     }
-    requestList.clear();
+    requests.clear();
+    waitCount.set(0);
+  }
+
+  /** Forgets the wait times returned by {@link #getWaitTimes}. */
+  public void resetWaitTimes() {
+    waitTimes.clear();
   }
 
   /**
@@ -199,6 +293,28 @@ public class ResourceManager {
     localMemoryEstimate = value;
   }
 
+  /**
+   * Sets the function that computes the priority of actions that have to wait for resources. The
+   * actions with the highest priority are served first. If null, all actions have the same
+   * priority and are served in the order in which they started waiting.
+   */
+  public void setPrioritizer(@Nullable ToLongFunction<ActionExecutionMetadata> prioritizer) {
+    this.prioritizer = prioritizer != null ? prioritizer : action -> 0;
+  }
+
+  /**
+   * Returns how long the actions that acquired resources since the last {@link #resetWaitTimes}
+   * waited for them, by mnemonic.
+   */
+  public ImmutableSortedMap<String, HistogramSnapshot> getWaitTimes() {
+    ImmutableSortedMap.Builder<String, HistogramSnapshot> result =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, Histogram> entry : waitTimes.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return result.build();
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -211,31 +327,40 @@ public class ResourceManager {
         !threadHasResources(), "acquireResources with existing resource lock during %s", owner);
 
     AutoProfiler p = profiled(owner.describe(), ProfilerTask.ACTION_LOCK);
-    CountDownLatch latch = null;
+    long startNanos = System.nanoTime();
+    Request request = null;
     try {
-      latch = acquire(resources);
-      if (latch != null) {
-        latch.await();
+      request = acquire(owner, resources);
+      if (request != null) {
+        request.latch.await();
       }
     } catch (InterruptedException e) {
+      boolean granted;
       // Synchronize on this to avoid any racing with #processWaitingThreads
       synchronized (this) {
-        if (latch.getCount() == 0) {
-          // Resources already acquired by other side. Release them, but not inside this
-          // synchronized block to avoid deadlock.
-          release(resources);
-        } else {
+        granted = request.granted;
+        if (!granted) {
           // Inform other side that resources shouldn't be acquired.
-          latch.countDown();
+          requests.remove(request);
+          waitCount.decrementAndGet();
         }
       }
+      if (granted) {
+        // Resources already acquired by other side. Release them, but not inside the
+        // synchronized block to avoid deadlock.
+        release(resources);
+      }
       throw e;
     }
 
     threadLocked.set(true);
+    String mnemonic = owner.getMnemonic();
+    waitTimes
+        .computeIfAbsent(mnemonic != null ? mnemonic : "", m -> new Histogram())
+        .record(System.nanoTime() - startNanos);
 
     // Profile acquisition only if it waited for resource to become available.
-    if (latch != null) {
+    if (request != null) {
       p.complete();
     }
 
@@ -254,16 +379,7 @@ public class ResourceManager {
     Preconditions.checkState(
         !threadHasResources(), "tryAcquire with existing resource lock during %s", owner);
 
-    boolean acquired = false;
-
-    synchronized (this) {
-      if (areResourcesAvailable(resources)) {
-        incrementResources(resources);
-        acquired = true;
-      }
-    }
-
-    if (acquired) {
+    if (tryIncrementResources(resources)) {
       threadLocked.set(resources != ResourceSet.ZERO);
       return new ResourceHandle(this, owner, resources);
     }
@@ -271,17 +387,24 @@ public class ResourceManager {
     return null;
   }
 
-  private void incrementResources(ResourceSet resources) {
-    usedCpu += resources.getCpuUsage();
-    usedRam += resources.getMemoryMb();
-    usedLocalTestCount += resources.getLocalTestCount();
+  /** Marks the resources as used if they are available. */
+  private boolean tryIncrementResources(ResourceSet resources) {
+    while (true) {
+      Usage current = usage.get();
+      if (!areResourcesAvailable(resources, current)) {
+        return false;
+      }
+      if (usage.compareAndSet(current, current.plus(resources))) {
+        return true;
+      }
+    }
   }
 
   /**
    * Return true if any resources have been claimed through this manager.
    */
-  public synchronized boolean inUse() {
-    return usedCpu != 0.0 || usedRam != 0.0 || usedLocalTestCount != 0 || !requestList.isEmpty();
+  public boolean inUse() {
+    return !usage.get().isNone() || waitCount.get() != 0;
   }
 
 
@@ -318,33 +441,38 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
-      incrementResources(resources);
+  /**
+   * Marks the resources as used if they are available and no other thread waits, or returns the
+   * request of the current thread, whose latch is counted down once they are acquired.
+   */
+  @Nullable
+  private Request acquire(ActionExecutionMetadata owner, ResourceSet resources) {
+    if (waitCount.get() == 0 && tryIncrementResources(resources)) {
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    long priority = prioritizer.applyAsLong(owner);
+    synchronized (this) {
+      Request request = new Request(resources, priority, nextSequenceNumber++);
+      requests.add(request);
+      // Announce the request before checking the resources again: a concurrent release either
+      // happened before the check, or sees the request and processes it.
+      waitCount.incrementAndGet();
+      processWaitingThreads();
+      return request;
+    }
   }
 
-  private synchronized boolean release(ResourceSet resources) {
-    usedCpu -= resources.getCpuUsage();
-    usedRam -= resources.getMemoryMb();
-    usedLocalTestCount -= resources.getLocalTestCount();
-
-    // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
-    // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better solution.
-    double epsilon = 0.0001;
-    if (usedCpu < epsilon) {
-      usedCpu = 0;
-    }
-    if (usedRam < epsilon) {
-      usedRam = 0;
+  private boolean release(ResourceSet resources) {
+    while (true) {
+      Usage current = usage.get();
+      if (usage.compareAndSet(current, current.minus(resources))) {
+        break;
+      }
     }
-    if (!requestList.isEmpty()) {
-      processWaitingThreads();
+    if (waitCount.get() != 0) {
+      synchronized (this) {
+        processWaitingThreads();
+      }
       return true;
     }
     return false;
@@ -354,30 +482,38 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    List<Request> overtaken = new ArrayList<>();
+    Iterator<Request> iterator = requests.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (request.second.getCount() != 0) {
-        if (areResourcesAvailable(request.first)) {
-          incrementResources(request.first);
-          request.second.countDown();
-          iterator.remove();
+      Request request = iterator.next();
+      if (tryIncrementResources(request.resources)) {
+        request.granted = true;
+        iterator.remove();
+        waitCount.decrementAndGet();
+        request.latch.countDown();
+        for (Request r : overtaken) {
+          r.overtakes++;
         }
+      } else if (request.overtakes >= MAX_OVERTAKES) {
+        // Keep the resources that are released from now on for this request.
+        break;
       } else {
-        // Cancelled by other side.
-        iterator.remove();
+        overtaken.add(request);
       }
     }
   }
 
   // Method will return true if all requested resources are considered to be available.
-  private boolean areResourcesAvailable(ResourceSet resources) {
-    Preconditions.checkNotNull(availableResources);
+  private boolean areResourcesAvailable(ResourceSet resources, Usage usage) {
+    ResourceSet availableResources = Preconditions.checkNotNull(this.availableResources);
     // Comparison below is robust, since any calculation errors will be fixed
     // by the release() method.
-    if (usedCpu == 0.0 && usedRam == 0.0 && usedLocalTestCount == 0) {
+    if (usage.isNone()) {
       return true;
     }
+    double usedCpu = usage.cpu;
+    double usedRam = usage.ram;
+    int usedLocalTestCount = usage.localTestCount;
     // Use only MIN_NECESSARY_???_RATIO of the resource value to check for
     // allocation. This is necessary to account for the fact that most of the
     // requested resource sets use pessimistic estimations. Note that this
@@ -426,12 +562,12 @@ public class ResourceManager {
   }
 
   @VisibleForTesting
-  synchronized int getWaitCount() {
-    return requestList.size();
+  int getWaitCount() {
+    return waitCount.get();
   }
 
   @VisibleForTesting
-  synchronized boolean isAvailable(double ram, double cpu, int localTestCount) {
-    return areResourcesAvailable(ResourceSet.create(ram, cpu, localTestCount));
+  boolean isAvailable(double ram, double cpu, int localTestCount) {
+    return areResourcesAvailable(ResourceSet.create(ram, cpu, localTestCount), usage.get());
   }
 }
@@ -17,6 +17,7 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
 import com.google.devtools.build.lib.clock.Clock;
@@ -38,8 +39,11 @@ import java.util.Collection;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -66,21 +70,28 @@ public class CompactPersistentActionCache implements ActionCache {
   private static final Logger logger =
       Logger.getLogger(CompactPersistentActionCache.class.getName());
 
-  private final class ActionMap extends PersistentMap<Integer, byte[]> {
+  /** A persistent map from key indices to encoded entries. */
+  interface PersistentActionMap extends Map<Integer, byte[]> {
+    /**
+     * Writes all changes to disk.
+     *
+     * @return the size of the files backing the map
+     */
+    long save() throws IOException;
+  }
+
+  /** Decides when an action map writes its journal: at most every SAVE_INTERVAL_SECONDS. */
+  private final class JournalSchedule {
     private final Clock clock;
     private long nextUpdateSecs;
 
-    public ActionMap(Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile)
-        throws IOException {
-      super(VERSION, map, mapFile, journalFile);
+    JournalSchedule(Clock clock) {
       this.clock = clock;
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
       nextUpdateSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
-      load();
     }
 
-    @Override
-    protected boolean updateJournal() {
+    boolean updateJournal() {
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
       long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
       if (SAVE_INTERVAL_SECONDS == 0 || timeSecs > nextUpdateSecs) {
@@ -88,11 +99,28 @@ public class CompactPersistentActionCache implements ActionCache {
         // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
         // that filename index data on disk is always up-to-date when we save action cache
         // data.
-        indexer.flush();
+        indexer().flush();
         return true;
       }
       return false;
     }
+  }
+
+  private final class ActionMap extends PersistentMap<Integer, byte[]>
+      implements PersistentActionMap {
+    private final JournalSchedule journalSchedule;
+
+    public ActionMap(Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile)
+        throws IOException {
+      super(VERSION, map, mapFile, journalFile);
+      this.journalSchedule = new JournalSchedule(clock);
+      load();
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      return journalSchedule.updateJournal();
+    }
 
     @Override
     protected void markAsDirty() {
@@ -150,40 +178,77 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
-  private final PersistentMap<Integer, byte[]> map;
-  private final PersistentStringIndexer indexer;
+  private final PersistentActionMap map;
+  // Loaded on a background thread for a MappedActionMap, see loadMappedIndexer.
+  private final FutureTask<PersistentStringIndexer> indexer;
 
   private final AtomicInteger hits = new AtomicInteger();
   private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
-    Path cacheFile = cacheFile(cacheRoot);
-    Path journalFile = journalFile(cacheRoot);
+    this(cacheRoot, clock, /*mapped=*/ false);
+  }
+
+  /**
+   * @param mapped whether to store entries in a {@link MappedActionMap} rather than in a {@link
+   *     PersistentMap} which is read into memory as a whole. Requires {@code cacheRoot} to be on
+   *     the native file system. The filename index is then loaded in the background, so opening the
+   *     cache doesn't wait for it; the first operation that needs it does.
+   */
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, boolean mapped)
+      throws IOException {
     Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
 
-    try {
-      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
-    } catch (IOException e) {
-      renameCorruptedFiles(cacheRoot);
-      throw new IOException("Failed to load filename index data", e);
+    PersistentStringIndexer loadedIndexer = null;
+    if (!mapped) {
+      try {
+        loadedIndexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+      } catch (IOException e) {
+        renameCorruptedFiles(cacheRoot);
+        throw new IOException("Failed to load filename index data", e);
+      }
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      if (mapped) {
+        JournalSchedule journalSchedule = new JournalSchedule(clock);
+        map =
+            new MappedActionMap(mappedIndexFile(cacheRoot)) {
+              @Override
+              protected boolean updateJournal() {
+                return journalSchedule.updateJournal();
+              }
+            };
+      } else {
+        // we can now use normal hash map as backing map, since dependency checker
+        // will manually purge records from the action cache.
+        map =
+            new ActionMap(
+                new HashMap<>(), clock, cacheFile(cacheRoot), journalFile(cacheRoot));
+      }
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
     }
 
-    // Validate referential integrity between two collections.
-    if (!map.isEmpty()) {
-      String integrityError = validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
-      if (integrityError != null) {
-        renameCorruptedFiles(cacheRoot);
-        throw new IOException("Failed action cache referential integrity check: " + integrityError);
+    if (mapped) {
+      indexer = new FutureTask<>(() -> loadMappedIndexer(cacheRoot, indexFile, clock));
+      Thread loader = new Thread(indexer, "action-cache-filename-index-loader");
+      loader.setDaemon(true);
+      loader.start();
+    } else {
+      PersistentStringIndexer eagerIndexer = loadedIndexer;
+      indexer = new FutureTask<>(() -> eagerIndexer);
+      indexer.run();
+
+      // Validate referential integrity between two collections.
+      if (!map.isEmpty()) {
+        String integrityError = validateIntegrity(eagerIndexer.size(), map.get(VALIDATION_KEY));
+        if (integrityError != null) {
+          renameCorruptedFiles(cacheRoot);
+          throw new IOException(
+              "Failed action cache referential integrity check: " + integrityError);
+        }
       }
     }
 
@@ -197,18 +262,55 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
+  /**
+   * Loads the filename index of a {@link MappedActionMap}. This runs after the constructor has
+   * returned, so a corrupted index can't be reported by throwing from it. Instead the index is
+   * renamed, the entries referring to it are dropped, and the cache starts out empty, which is
+   * what the caller of the constructor does after such a failure.
+   */
+  private PersistentStringIndexer loadMappedIndexer(Path cacheRoot, Path indexFile, Clock clock)
+      throws IOException {
+    String error;
+    try {
+      PersistentStringIndexer loaded =
+          PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+      error = map.isEmpty() ? null : validateIntegrity(loaded.size(), map.get(VALIDATION_KEY));
+      if (error == null) {
+        return loaded;
+      }
+    } catch (IOException e) {
+      error = e.getMessage();
+    }
+    logger.log(
+        Level.WARNING,
+        "Failed to load filename index data: " + error + ". Resetting action cache data");
+    // The files of the map are still mapped, so it is cleared rather than renamed.
+    renameCorruptedFiles(cacheRoot, "filename_*_v" + VERSION + ".*");
+    map.clear();
+    return PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+  }
+
+  /** Returns the filename index, waiting for it if it is still being loaded. */
+  private PersistentStringIndexer indexer() {
+    try {
+      return Uninterruptibles.getUninterruptibly(indexer);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to load filename index data", e.getCause());
+    }
+  }
+
   /**
    * Rename corrupted files so they could be analyzed later. This would also ensure
    * that next initialization attempt will create empty cache.
    */
   private static void renameCorruptedFiles(Path cacheRoot) {
+    renameCorruptedFiles(cacheRoot, "action_*_v" + VERSION + ".*");
+    renameCorruptedFiles(cacheRoot, "filename_*_v" + VERSION + ".*");
+  }
+
+  private static void renameCorruptedFiles(Path cacheRoot, String pattern) {
     try {
-      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("action_*_v" + VERSION + ".*")
-          .glob()) {
-        path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
-      }
-      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("filename_*_v" + VERSION + ".*")
-          .glob()) {
+      for (Path path : UnixGlob.forPath(cacheRoot).addPattern(pattern).glob()) {
         path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
       }
     } catch (IOException e) {
@@ -248,8 +350,17 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
   }
 
+  /**
+   * Returns the index file of a {@link MappedActionMap}. Its data segments are stored next to it,
+   * in files whose names start with the name of the index.
+   */
+  public static Path mappedIndexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_index_v" + VERSION + ".blaze");
+  }
+
   @Override
   public ActionCache.Entry get(String key) {
+    PersistentStringIndexer indexer = indexer();
     int index = indexer.getIndex(key);
     if (index < 0) {
       return null;
@@ -268,6 +379,7 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void put(String key, ActionCache.Entry entry) {
+    PersistentStringIndexer indexer = indexer();
     // Encode record. Note that both methods may create new mappings in the indexer.
     int index = indexer.getOrCreateIndex(key);
     byte[] content = encode(indexer, entry);
@@ -290,24 +402,25 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public synchronized void remove(String key) {
-    map.remove(indexer.getIndex(key));
+    map.remove(indexer().getIndex(key));
   }
 
   @Override
   public synchronized long save() throws IOException {
-    long indexSize = indexer.save();
+    long indexSize = indexer().save();
     long mapSize = map.save();
     return indexSize + mapSize;
   }
 
   @Override
   public void clear() {
-    indexer.clear();
+    indexer().clear();
     map.clear();
   }
 
   @Override
   public synchronized String toString() {
+    PersistentStringIndexer indexer = indexer();
     StringBuilder builder = new StringBuilder();
     // map.size() - 1 to avoid counting the validation key.
     builder.append("Action cache (" + (map.size() - 1) + " records):\n");
@@ -336,6 +449,7 @@ public class CompactPersistentActionCache implements ActionCache {
    */
   @Override
   public synchronized void dump(PrintStream out) {
+    PersistentStringIndexer indexer = indexer();
     out.println("String indexer content:\n");
     out.println(indexer);
     out.println("Action cache (" + map.size() + " records):\n");
@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -33,6 +34,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting digests of files.
@@ -142,6 +144,13 @@ public class DigestUtils {
    */
   private static Cache<CacheKey, byte[]> globalCache = null;
 
+  /**
+   * Cache of file digests that survives server restarts, consulted after {@link #globalCache}.
+   *
+   * <p>This is null when the cache is disabled.
+   */
+  @Nullable private static volatile PersistentDigestCache persistentCache = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -205,6 +214,14 @@ public class DigestUtils {
     return cache.stats();
   }
 
+  /**
+   * Enables or disables the persistent cache of file digests, which is consulted when a digest is
+   * not in the cache enabled by {@link #configureCache(long)}.
+   */
+  public static void configurePersistentCache(@Nullable PersistentDigestCache cache) {
+    persistentCache = cache;
+  }
+
   /**
    * Enable or disable multi-threaded digesting even for large files.
    */
@@ -230,14 +247,31 @@ public class DigestUtils {
 
     // Attempt a cache lookup if the cache is enabled.
     Cache<CacheKey, byte[]> cache = globalCache;
+    PersistentDigestCache persistent = persistentCache;
+    FileStatus status = null;
+    long statMillis = 0;
     CacheKey key = null;
+    if (cache != null || persistent != null) {
+      statMillis = BlazeClock.instance().currentTimeMillis();
+      status = path.stat();
+    }
     if (cache != null) {
-      key = new CacheKey(path, path.stat());
+      key = new CacheKey(path, status);
       digest = cache.getIfPresent(key);
       if (digest != null) {
         return digest;
       }
     }
+    DigestHashFunction digestFunction = path.getFileSystem().getDigestFunction();
+    if (persistent != null) {
+      digest = persistent.get(status, digestFunction);
+      if (digest != null) {
+        if (cache != null) {
+          cache.put(key, digest);
+        }
+        return digest;
+      }
+    }
 
     // Compute digest from the file contents.
     if (fileSize > MULTI_THREADED_DIGEST_MAX_FILE_SIZE && !MULTI_THREADED_DIGEST.get()) {
@@ -254,6 +288,9 @@ public class DigestUtils {
     if (cache != null) {
       cache.put(key, digest);
     }
+    if (persistent != null) {
+      persistent.put(status, digestFunction, digest, statMillis);
+    }
     return digest;
   }
 
@@ -0,0 +1,837 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent map from action cache key indices to encoded entries which, unlike a {@link
+ * com.google.devtools.build.lib.util.PersistentMap}, is never read into memory as a whole.
+ *
+ * <p>Values are stored as records in append-only data segments. An index file holds an
+ * open-addressing hash table that maps every key to the segment and offset of its latest record.
+ * Both are memory-mapped, so opening the map takes constant time and entries are only read when
+ * they are looked up.
+ *
+ * <p>Like the journal of a {@link com.google.devtools.build.lib.util.PersistentMap}, changes are
+ * appended to the active segment as they are made, or whenever {@link #updateJournal} says so, but
+ * the index only refers to them after {@link #save}, which makes them durable and updates their
+ * index slots in place, so its cost is proportional to the number of changes. When the map is
+ * opened, the records written after the last save are replayed up to the first torn one, so a
+ * crashed server loses at most the changes that were not written yet.
+ *
+ * <p>Overwritten and removed records become garbage. Once a sealed segment is mostly garbage, its
+ * live records are copied to the active segment and it is deleted; at most one segment is compacted
+ * per save. New segments grow with the amount of live data, and once there are many segments, the
+ * one with the least live data is rolled into the active segment, so that the number of segments
+ * stays bounded.
+ *
+ * <p>{@link #put} and {@link #remove} always return null rather than reading the previous value.
+ *
+ * <p>This class is not thread-safe. Only works with files on the native file system.
+ */
+class MappedActionMap extends AbstractMap<Integer, byte[]>
+    implements CompactPersistentActionCache.PersistentActionMap {
+
+  private static final int MAGIC = 0x4d41434d;
+  private static final int FORMAT_VERSION = 2;
+
+  // Index file header layout.
+  private static final int HEADER_SIZE = 4096;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CAPACITY = 8;
+  private static final int HEADER_SIZE_FIELD = 12;
+  private static final int HEADER_USED_SLOTS = 16;
+  private static final int HEADER_NEXT_SEGMENT = 20;
+  private static final int HEADER_NUM_SEGMENTS = 24;
+  private static final int HEADER_SEGMENTS = 32;
+
+  // Each segment is described by its sequence number, committed length and number of live bytes.
+  private static final int SEGMENT_ENTRY_SIZE = 16;
+  @VisibleForTesting
+  static final int MAX_SEGMENTS = (HEADER_SIZE - HEADER_SEGMENTS) / SEGMENT_ENTRY_SIZE;
+
+  // Each slot holds a key, the sequence number of the segment holding its record, and the offset
+  // of the record in that segment.
+  private static final int SLOT_SIZE = 12;
+  private static final int EMPTY = 0;
+  private static final int DELETED = -1;
+  private static final int INITIAL_CAPACITY = 1 << 12;
+
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  // Each record holds its key, the length of its value, or TOMBSTONE for a removal, and a CRC32 of
+  // both and the value.
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int TOMBSTONE = -1;
+
+  /** Sealed segments with less than this percentage of live bytes are compacted. */
+  private static final int COMPACTION_THRESHOLD_PERCENT = 50;
+
+  @VisibleForTesting static final long DEFAULT_MAX_SEGMENT_SIZE = 64L << 20;
+
+  /** Segments never grow beyond this size, so that offsets fit in an int. */
+  private static final long MAX_GROWN_SEGMENT_SIZE = 1L << 30;
+
+  /** New segments are at least this fraction of the live data. */
+  private static final int SEGMENTS_PER_LIVE_DATA = MAX_SEGMENTS / 4;
+
+  /**
+   * Beyond this many segments, the segment with the least live data is rolled into the active
+   * segment on every save, so that the segments written before the live data grew are merged.
+   */
+  private static final int MAX_SEGMENTS_BEFORE_ROLLING = MAX_SEGMENTS / 2;
+
+  /** Marks keys removed since the last save in {@link #pending}. */
+  private static final byte[] REMOVED = new byte[0];
+
+  private final Path indexFile;
+  private final long maxSegmentSize;
+
+  /** Changes since the last save, with {@link #REMOVED} for removed keys. */
+  private final Map<Integer, byte[]> pending = new HashMap<>();
+  /** The records of pending changes that have been written to the journal. */
+  private final Map<Integer, Location> journaled = new HashMap<>();
+  /** Pending changes that have not been written to the journal yet, in order. */
+  private final Set<Integer> unjournaled = new LinkedHashSet<>();
+
+  /** Segments in creation order, keyed by sequence number. The last one is active. */
+  private final LinkedHashMap<Integer, Segment> segments = new LinkedHashMap<>();
+
+  private FileChannel indexChannel;
+  private MappedByteBuffer index;
+  private int capacity;
+  private int usedSlots;
+  private int nextSegment;
+  private int size;
+  private String deferredIOFailure = null;
+
+  MappedActionMap(Path indexFile) throws IOException {
+    this(indexFile, DEFAULT_MAX_SEGMENT_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedActionMap(Path indexFile, long maxSegmentSize) throws IOException {
+    this.indexFile = indexFile;
+    this.maxSegmentSize = maxSegmentSize;
+    if (indexFile.exists()) {
+      open();
+    } else {
+      create();
+    }
+  }
+
+  private void open() throws IOException {
+    indexChannel = openChannel(indexFile);
+    if (indexChannel.size() < HEADER_SIZE) {
+      throw new IOException("action cache index is truncated");
+    }
+    ByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if (header.getInt(HEADER_MAGIC) != MAGIC
+        || header.getInt(HEADER_VERSION) != FORMAT_VERSION) {
+      throw new IOException("action cache index has an unexpected format");
+    }
+    capacity = header.getInt(HEADER_CAPACITY);
+    if (capacity <= 0
+        || Integer.bitCount(capacity) != 1
+        || indexChannel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+      throw new IOException("action cache index has an invalid capacity: " + capacity);
+    }
+    index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+    size = index.getInt(HEADER_SIZE_FIELD);
+    usedSlots = index.getInt(HEADER_USED_SLOTS);
+    nextSegment = index.getInt(HEADER_NEXT_SEGMENT);
+    int numSegments = index.getInt(HEADER_NUM_SEGMENTS);
+    if (numSegments <= 0 || numSegments > MAX_SEGMENTS) {
+      throw new IOException("action cache index has an invalid segment count: " + numSegments);
+    }
+    for (int i = 0; i < numSegments; i++) {
+      int pos = HEADER_SEGMENTS + i * SEGMENT_ENTRY_SIZE;
+      int seq = index.getInt(pos);
+      int length = index.getInt(pos + 4);
+      long liveBytes = index.getLong(pos + 8);
+      Path path = segmentFile(seq);
+      if (!path.exists() || path.getFileSize() < length) {
+        throw new IOException("action cache segment " + path + " is missing or truncated");
+      }
+      Segment segment = new Segment(seq, path, length, liveBytes);
+      segment.map();
+      segments.put(seq, segment);
+    }
+    activeSegment().openForAppend();
+    recoverJournal();
+  }
+
+  /**
+   * Replays the journal, i.e. the records written after the last save: those past the committed
+   * end of the active segment and those in segments created since. Replay stops at the first torn
+   * or corrupt record, and the replayed changes are committed right away.
+   */
+  private void recoverJournal() throws IOException {
+    Segment segment = activeSegment();
+    while (true) {
+      replay(segment);
+      Path next = segmentFile(nextSegment);
+      if (!next.exists() || segments.size() >= MAX_SEGMENTS) {
+        break;
+      }
+      segment.seal();
+      segment = new Segment(nextSegment++, next, SEGMENT_HEADER_SIZE, 0);
+      segment.openForAppend();
+      writeSegmentHeader(segment);
+      segments.put(segment.seq, segment);
+    }
+    commit();
+  }
+
+  private void replay(Segment segment) throws IOException {
+    long end = segment.channel.size();
+    if (end <= segment.length) {
+      return;
+    }
+    ByteBuffer journal =
+        segment.channel.map(FileChannel.MapMode.READ_ONLY, segment.length, end - segment.length);
+    int offset = segment.length;
+    while (journal.remaining() >= RECORD_HEADER_SIZE) {
+      int start = journal.position();
+      int key = journal.getInt();
+      int length = journal.getInt();
+      int crc = journal.getInt();
+      if (length < TOMBSTONE || length > journal.remaining()) {
+        break;
+      }
+      byte[] value = length == TOMBSTONE ? REMOVED : new byte[length];
+      journal.get(value);
+      if (checksum(key, length, value) != crc) {
+        break;
+      }
+      if (value == REMOVED ? exists(key) : !exists(key)) {
+        size += value == REMOVED ? -1 : 1;
+      }
+      pending.put(key, value);
+      journaled.put(key, new Location(segment.seq, offset));
+      offset += journal.position() - start;
+    }
+    segment.length = offset;
+    segment.channel.truncate(offset);
+  }
+
+  private void create() throws IOException {
+    capacity = INITIAL_CAPACITY;
+    usedSlots = 0;
+    size = 0;
+    nextSegment = 1;
+    indexChannel = openChannel(indexFile);
+    index = newIndex(indexChannel, capacity);
+    newSegment();
+    writeHeader();
+    index.force();
+  }
+
+  private static MappedByteBuffer newIndex(FileChannel channel, int capacity) throws IOException {
+    channel.truncate(0);
+    MappedByteBuffer buffer =
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    buffer.putInt(HEADER_MAGIC, MAGIC);
+    buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+    buffer.putInt(HEADER_CAPACITY, capacity);
+    return buffer;
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private Path segmentFile(int seq) {
+    return indexFile.getParentDirectory().getChild(indexFile.getBaseName() + "." + seq);
+  }
+
+  private Segment activeSegment() {
+    Segment active = null;
+    for (Segment segment : segments.values()) {
+      active = segment;
+    }
+    return active;
+  }
+
+  private Segment newSegment() throws IOException {
+    if (segments.size() >= MAX_SEGMENTS) {
+      throw new IOException("action cache has too many segments");
+    }
+    int seq = nextSegment++;
+    Segment segment = new Segment(seq, segmentFile(seq), SEGMENT_HEADER_SIZE, 0);
+    segment.openForAppend();
+    segment.channel.truncate(0);
+    writeSegmentHeader(segment);
+    segments.put(seq, segment);
+    return segment;
+  }
+
+  private static void writeSegmentHeader(Segment segment) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+    writeFully(segment.channel, header, 0);
+  }
+
+  /**
+   * Returns the size beyond which the active segment is sealed: the configured maximum, grown with
+   * the amount of live data.
+   */
+  private long segmentSizeLimit() {
+    long liveBytes = 0;
+    for (Segment segment : segments.values()) {
+      liveBytes += segment.liveBytes;
+    }
+    return Math.min(
+        MAX_GROWN_SEGMENT_SIZE, Math.max(maxSegmentSize, liveBytes / SEGMENTS_PER_LIVE_DATA));
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private static int slotPosition(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private int slotKey(int slot) {
+    return index.getInt(slotPosition(slot));
+  }
+
+  private int slotSegment(int slot) {
+    return index.getInt(slotPosition(slot) + 4);
+  }
+
+  private int slotOffset(int slot) {
+    return index.getInt(slotPosition(slot) + 8);
+  }
+
+  private void writeSlot(int slot, int key, int seq, int offset) {
+    int pos = slotPosition(slot);
+    index.putInt(pos, key);
+    index.putInt(pos + 4, seq);
+    index.putInt(pos + 8, offset);
+  }
+
+  /**
+   * Returns the slot holding {@code key} or, if there is none, {@code -1 - slot} where {@code slot}
+   * is the slot into which the key would be inserted.
+   */
+  private int findSlot(int key) {
+    int mask = capacity - 1;
+    int firstDeleted = -1;
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      int seq = slotSegment(slot);
+      if (seq == EMPTY) {
+        return -1 - (firstDeleted >= 0 ? firstDeleted : slot);
+      } else if (seq == DELETED) {
+        if (firstDeleted < 0) {
+          firstDeleted = slot;
+        }
+      } else if (slotKey(slot) == key) {
+        return slot;
+      }
+    }
+  }
+
+  private byte[] readRecord(int seq, int offset) {
+    Segment segment = Preconditions.checkNotNull(segments.get(seq), "unknown segment %s", seq);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset + 4);
+    byte[] data = new byte[buffer.getInt()];
+    buffer.position(offset + RECORD_HEADER_SIZE);
+    buffer.get(data);
+    return data;
+  }
+
+  private int recordSize(int seq, int offset) {
+    int length = segments.get(seq).buffer.getInt(offset + 4);
+    return RECORD_HEADER_SIZE + (length == TOMBSTONE ? 0 : length);
+  }
+
+  private static int checksum(int key, int length, byte[] value) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(8).putInt(key).putInt(length).array());
+    crc.update(value);
+    return (int) crc.getValue();
+  }
+
+  @Override
+  @Nullable
+  public byte[] get(Object key) {
+    if (!(key instanceof Integer)) {
+      return null;
+    }
+    byte[] value = pending.get(key);
+    if (value != null) {
+      return value == REMOVED ? null : value;
+    }
+    int slot = findSlot((Integer) key);
+    return slot >= 0 ? readRecord(slotSegment(slot), slotOffset(slot)) : null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof Integer && exists((Integer) key);
+  }
+
+  /** Returns whether the map has a value for {@code key}, without reading it. */
+  private boolean exists(int key) {
+    byte[] value = pending.get(key);
+    if (value != null) {
+      return value != REMOVED;
+    }
+    return findSlot(key) >= 0;
+  }
+
+  /** Unlike {@link Map#put}, always returns null. */
+  @Override
+  @Nullable
+  public byte[] put(Integer key, byte[] value) {
+    Preconditions.checkNotNull(value);
+    if (!exists(key)) {
+      size++;
+    }
+    change(key, value);
+    return null;
+  }
+
+  /** Unlike {@link Map#remove}, always returns null. */
+  @Override
+  @Nullable
+  public byte[] remove(Object key) {
+    if (containsKey(key)) {
+      size--;
+      change((Integer) key, REMOVED);
+    }
+    return null;
+  }
+
+  private void change(int key, byte[] value) {
+    pending.put(key, value);
+    journaled.remove(key);
+    unjournaled.add(key);
+    if (updateJournal()) {
+      writeJournal();
+    }
+  }
+
+  /**
+   * Determines if changes should be written to the journal now. The default implementation always
+   * returns true, but subclasses may override it to write the journal less often, like {@link
+   * com.google.devtools.build.lib.util.PersistentMap#updateJournal}.
+   */
+  protected boolean updateJournal() {
+    return true;
+  }
+
+  /**
+   * Appends the changes that are not in the journal yet to the active segment. Failures are
+   * reported by the next {@link #save}.
+   */
+  private void writeJournal() {
+    try {
+      for (Iterator<Integer> it = unjournaled.iterator(); it.hasNext(); ) {
+        int key = it.next();
+        journaled.put(key, append(key, pending.get(key)));
+        it.remove();
+      }
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during journal append";
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    pending.clear();
+    journaled.clear();
+    unjournaled.clear();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.close();
+        segment.path.delete();
+      }
+      segments.clear();
+      indexChannel.close();
+      indexFile.delete();
+      create();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to clear action cache", e);
+    }
+  }
+
+  /**
+   * Writes all changes since the last save to the journal, makes them durable, updates the index
+   * and compacts at most one sealed segment.
+   *
+   * @return the total size of the index and data files
+   */
+  @Override
+  public long save() throws IOException {
+    if (deferredIOFailure != null) {
+      try {
+        throw new IOException(deferredIOFailure);
+      } finally {
+        deferredIOFailure = null;
+      }
+    }
+    commit();
+    compactOneSegment();
+
+    long total = indexChannel.size();
+    for (Segment segment : segments.values()) {
+      total += segment.length;
+    }
+    return total;
+  }
+
+  private void commit() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    for (int key : unjournaled) {
+      journaled.put(key, append(key, pending.get(key)));
+    }
+    unjournaled.clear();
+    commitAppends();
+    for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+      if (entry.getValue() == REMOVED) {
+        removeSlot(entry.getKey());
+      } else {
+        updateSlot(entry.getKey(), journaled.get(entry.getKey()));
+      }
+    }
+    pending.clear();
+    journaled.clear();
+    commitIndex();
+  }
+
+  /** Appends a record for {@code value}, or a tombstone if it is {@link #REMOVED}. */
+  private Location append(int key, byte[] value) throws IOException {
+    Segment active = activeSegment();
+    // Rather than fail once all segments are in use, keeps appending to the active segment until
+    // the next save rolls a segment into it.
+    if (active.length >= maxSegmentSize
+        && active.length >= segmentSizeLimit()
+        && segments.size() < MAX_SEGMENTS) {
+      active.seal();
+      active = newSegment();
+    }
+    if ((long) active.length + RECORD_HEADER_SIZE + value.length > Integer.MAX_VALUE) {
+      throw new IOException("action cache segment " + active.path + " is full");
+    }
+    int length = value == REMOVED ? TOMBSTONE : value.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + value.length);
+    record.putInt(key).putInt(length).putInt(checksum(key, length, value)).put(value).flip();
+    int offset = active.length;
+    writeFully(active.channel, record, offset);
+    active.length += RECORD_HEADER_SIZE + value.length;
+    return new Location(active.seq, offset);
+  }
+
+  /** Makes appended records durable and readable before any index slot refers to them. */
+  private void commitAppends() throws IOException {
+    Segment active = activeSegment();
+    active.channel.force(false);
+    active.map();
+    writeHeader();
+  }
+
+  private void commitIndex() {
+    writeHeader();
+    index.force();
+  }
+
+  private void updateSlot(int key, Location location) throws IOException {
+    segments.get(location.seq).liveBytes += recordSize(location.seq, location.offset);
+    int slot = findSlot(key);
+    if (slot >= 0) {
+      release(slot);
+    } else {
+      slot = -1 - slot;
+      if (slotSegment(slot) == EMPTY) {
+        if ((usedSlots + 1) * 3L >= capacity * 2L) {
+          rehash();
+          slot = -1 - findSlot(key);
+        }
+        usedSlots++;
+      }
+    }
+    writeSlot(slot, key, location.seq, location.offset);
+  }
+
+  private void removeSlot(int key) {
+    int slot = findSlot(key);
+    if (slot >= 0) {
+      release(slot);
+      writeSlot(slot, key, DELETED, 0);
+    }
+  }
+
+  /** Accounts for the record referenced by {@code slot} becoming garbage. */
+  private void release(int slot) {
+    int seq = slotSegment(slot);
+    segments.get(seq).liveBytes -= recordSize(seq, slotOffset(slot));
+  }
+
+  /**
+   * Moves all live slots into a new, larger index file. Also drops deleted slots, which would
+   * otherwise make lookups of absent keys slower over time.
+   */
+  private void rehash() throws IOException {
+    int newCapacity = capacity;
+    while ((size + 1) * 3L >= newCapacity) {
+      newCapacity *= 2;
+    }
+    Path tempFile = indexFile.getParentDirectory().getChild(indexFile.getBaseName() + ".tmp");
+    FileChannel newChannel = openChannel(tempFile);
+    MappedByteBuffer oldIndex = index;
+    int oldCapacity = capacity;
+    index = newIndex(newChannel, newCapacity);
+    capacity = newCapacity;
+    usedSlots = 0;
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int pos = slotPosition(slot);
+      int seq = oldIndex.getInt(pos + 4);
+      if (seq != EMPTY && seq != DELETED) {
+        int key = oldIndex.getInt(pos);
+        writeSlot(-1 - findSlot(key), key, seq, oldIndex.getInt(pos + 8));
+        usedSlots++;
+      }
+    }
+    commitIndex();
+    tempFile.renameTo(indexFile);
+    indexChannel.close();
+    indexChannel = newChannel;
+  }
+
+  /**
+   * Copies the live records of the sealed segment with the most garbage to the active segment and
+   * deletes it, if it is mostly garbage. If no segment is, but there are more than {@link
+   * #MAX_SEGMENTS_BEFORE_ROLLING}, rolls the sealed segment with the least live data into the
+   * active segment instead.
+   */
+  private void compactOneSegment() throws IOException {
+    Segment active = activeSegment();
+    Segment victim = null;
+    Segment smallest = null;
+    for (Segment segment : segments.values()) {
+      if (segment == active) {
+        continue;
+      }
+      if (segment.liveBytes * 100
+              < (segment.length - SEGMENT_HEADER_SIZE) * (long) COMPACTION_THRESHOLD_PERCENT
+          && (victim == null
+              || segment.liveBytes * victim.length < victim.liveBytes * segment.length)) {
+        victim = segment;
+      }
+      if (smallest == null || segment.liveBytes < smallest.liveBytes) {
+        smallest = segment;
+      }
+    }
+    if (victim == null && segments.size() > MAX_SEGMENTS_BEFORE_ROLLING) {
+      victim = smallest;
+    }
+    if (victim == null) {
+      return;
+    }
+    List<Integer> keys = new ArrayList<>();
+    List<Location> locations = new ArrayList<>();
+    int offset = SEGMENT_HEADER_SIZE;
+    while (offset < victim.length) {
+      int key = victim.buffer.getInt(offset);
+      int slot = findSlot(key);
+      if (slot >= 0 && slotSegment(slot) == victim.seq && slotOffset(slot) == offset) {
+        keys.add(key);
+        locations.add(append(key, readRecord(victim.seq, offset)));
+      }
+      offset += recordSize(victim.seq, offset);
+    }
+    commitAppends();
+    for (int i = 0; i < keys.size(); i++) {
+      updateSlot(keys.get(i), locations.get(i));
+    }
+    segments.remove(victim.seq);
+    commitIndex();
+    victim.close();
+    victim.path.delete();
+  }
+
+  private void writeHeader() {
+    index.putInt(HEADER_SIZE_FIELD, size - pendingSizeDelta());
+    index.putInt(HEADER_USED_SLOTS, usedSlots);
+    index.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+    index.putInt(HEADER_NUM_SEGMENTS, segments.size());
+    int pos = HEADER_SEGMENTS;
+    for (Segment segment : segments.values()) {
+      index.putInt(pos, segment.seq);
+      index.putInt(pos + 4, segment.length);
+      index.putLong(pos + 8, segment.liveBytes);
+      pos += SEGMENT_ENTRY_SIZE;
+    }
+  }
+
+  /** Returns the difference in size between the pending changes and the index. */
+  private int pendingSizeDelta() {
+    int delta = 0;
+    for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+      boolean inIndex = findSlot(entry.getKey()) >= 0;
+      boolean inPending = entry.getValue() != REMOVED;
+      delta += (inPending ? 1 : 0) - (inIndex ? 1 : 0);
+    }
+    return delta;
+  }
+
+  @VisibleForTesting
+  int numSegments() {
+    return segments.size();
+  }
+
+  @Override
+  public Set<Map.Entry<Integer, byte[]>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, byte[]>>() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<Map.Entry<Integer, byte[]>> iterator() {
+        return new EntryIterator();
+      }
+    };
+  }
+
+  /** Iterates over the index, then over the pending entries which are not in the index. */
+  private final class EntryIterator extends AbstractIterator<Map.Entry<Integer, byte[]>> {
+    private int slot = 0;
+    private final Iterator<Map.Entry<Integer, byte[]>> pendingIterator =
+        pending.entrySet().iterator();
+
+    @Override
+    protected Map.Entry<Integer, byte[]> computeNext() {
+      while (slot < capacity) {
+        int current = slot++;
+        int seq = slotSegment(current);
+        if (seq == EMPTY || seq == DELETED) {
+          continue;
+        }
+        int key = slotKey(current);
+        byte[] value = pending.get(key);
+        if (value == null) {
+          value = readRecord(seq, slotOffset(current));
+        }
+        if (value != REMOVED) {
+          return new SimpleImmutableEntry<>(key, value);
+        }
+      }
+      while (pendingIterator.hasNext()) {
+        Map.Entry<Integer, byte[]> entry = pendingIterator.next();
+        if (entry.getValue() != REMOVED && findSlot(entry.getKey()) < 0) {
+          return new SimpleImmutableEntry<>(entry);
+        }
+      }
+      return endOfData();
+    }
+  }
+
+  private static final class Location {
+    private final int seq;
+    private final int offset;
+
+    private Location(int seq, int offset) {
+      this.seq = seq;
+      this.offset = offset;
+    }
+  }
+
+  private static final class Segment {
+    private final int seq;
+    private final Path path;
+    private int length;
+    private long liveBytes;
+    /** Read-only mapping of the committed part of the segment. */
+    private MappedByteBuffer buffer;
+    /** Open while this is the active segment. */
+    @Nullable private FileChannel channel;
+
+    private Segment(int seq, Path path, int length, long liveBytes) {
+      this.seq = seq;
+      this.path = path;
+      this.length = length;
+      this.liveBytes = liveBytes;
+    }
+
+    private void openForAppend() throws IOException {
+      channel = openChannel(path);
+    }
+
+    private void map() throws IOException {
+      try (FileChannel readChannel =
+          FileChannel.open(path.getPathFile().toPath(), StandardOpenOption.READ)) {
+        buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      }
+    }
+
+    private void seal() throws IOException {
+      channel.force(false);
+      map();
+      close();
+    }
+
+    private void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,381 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A cache of file digests in a memory-mapped file, which survives server restarts and may be
+ * shared by the servers of all output bases of the machine.
+ *
+ * <p>Entries are keyed by the device, inode, size, modification time and change time of the file,
+ * so that they stay valid when a file is moved to another path. The file is a fixed-size
+ * set-associative table: the key selects a bucket of a few slots, and when the bucket is full, a
+ * random slot is overwritten. Every slot carries a checksum of its contents, so slots that are
+ * being written by another thread or process read as empty. Hence there is no locking between
+ * servers, and there is nothing to save: an entry is visible as soon as it is put.
+ *
+ * <p>The file is only mapped when the cache is first used. Files whose status doesn't have a
+ * device id are not cached.
+ *
+ * <p>An entry is only put if the file was last modified at least {@link #RACY_MARGIN_MILLIS}
+ * before it was stat-ed. Otherwise, a modification right after the stat might not change the
+ * timestamps, since they have a limited resolution, and the digest would be wrong forever rather
+ * than until the next server restart.
+ */
+public final class PersistentDigestCache implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(PersistentDigestCache.class.getName());
+
+  private static final int MAGIC = 0x50444743;
+  private static final int FORMAT_VERSION = 1;
+
+  // Header layout.
+  private static final int HEADER_SIZE = 4096;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CAPACITY = 8;
+
+  // Slot layout: a checksum of the rest of the slot, the key, and the digest.
+  private static final int SLOT_SIZE = 96;
+  private static final int SLOT_CHECKSUM = 0;
+  private static final int SLOT_DEVICE = 8;
+  private static final int SLOT_INODE = 16;
+  private static final int SLOT_SIZE_FIELD = 24;
+  private static final int SLOT_MTIME = 32;
+  private static final int SLOT_CTIME = 40;
+  private static final int SLOT_DIGEST_FUNCTION = 48;
+  private static final int SLOT_DIGEST_LENGTH = 52;
+  private static final int SLOT_DIGEST = 56;
+  private static final int MAX_DIGEST_LENGTH = SLOT_SIZE - SLOT_DIGEST;
+
+  private static final int BUCKET_SIZE = 4;
+
+  @VisibleForTesting static final int DEFAULT_CAPACITY = 1 << 19;
+
+  @VisibleForTesting static final long RACY_MARGIN_MILLIS = 1000;
+
+  private static final HashFunction CHECKSUM = Hashing.murmur3_128();
+
+  private final Path file;
+  private final int capacityForNewFile;
+
+  /** The mapped file, or null before the first use. */
+  @Nullable private volatile MappedByteBuffer table;
+
+  private int capacity;
+  private boolean failed;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder puts = new LongAdder();
+  private final LongAdder racyFiles = new LongAdder();
+
+  public PersistentDigestCache(Path file) {
+    this(file, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a cache in the given file. The capacity is only used if the file doesn't exist yet;
+   * otherwise, the capacity of the existing file is kept.
+   */
+  @VisibleForTesting
+  PersistentDigestCache(Path file, int capacity) {
+    this.file = file;
+    this.capacityForNewFile = capacity;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the digest of the file with the given status computed with the given function, or
+   * null if it is not cached.
+   */
+  @Nullable
+  public byte[] get(FileStatus status, DigestHashFunction digestFunction) throws IOException {
+    long device = status.getDeviceId();
+    if (device == -1) {
+      return null;
+    }
+    ByteBuffer table = table();
+    if (table == null) {
+      return null;
+    }
+    byte[] expected = slot(status, device, digestFunction, null);
+    byte[] slot = new byte[SLOT_SIZE];
+    int bucket = bucket(expected);
+    for (int i = 0; i < BUCKET_SIZE; i++) {
+      read(table, bucket + i, slot);
+      if (isValid(slot) && hasKey(slot, expected)) {
+        hits.increment();
+        int length = ByteBuffer.wrap(slot).getInt(SLOT_DIGEST_LENGTH);
+        return Arrays.copyOfRange(slot, SLOT_DIGEST, SLOT_DIGEST + length);
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Caches the digest of the file with the given status.
+   *
+   * @param statMillis the time at which the status was obtained, before the digest was computed
+   */
+  public void put(
+      FileStatus status, DigestHashFunction digestFunction, byte[] digest, long statMillis)
+      throws IOException {
+    long device = status.getDeviceId();
+    if (device == -1 || digest.length > MAX_DIGEST_LENGTH) {
+      return;
+    }
+    long lastChange = Math.max(status.getLastModifiedTime(), status.getLastChangeTime());
+    if (statMillis - lastChange < RACY_MARGIN_MILLIS) {
+      racyFiles.increment();
+      return;
+    }
+    ByteBuffer table = table();
+    if (table == null) {
+      return;
+    }
+    byte[] entry = slot(status, device, digestFunction, digest);
+    int bucket = bucket(entry);
+    // Replace an outdated entry of the same file, or an empty slot, or a random one.
+    int target = -1;
+    byte[] slot = new byte[SLOT_SIZE];
+    for (int i = 0; i < BUCKET_SIZE && target == -1; i++) {
+      read(table, bucket + i, slot);
+      if (!isValid(slot) || isSameFile(slot, entry)) {
+        target = bucket + i;
+      }
+    }
+    if (target == -1) {
+      target = bucket + ThreadLocalRandom.current().nextInt(BUCKET_SIZE);
+    }
+    ByteBuffer destination = table.duplicate();
+    destination.position(HEADER_SIZE + target * SLOT_SIZE);
+    destination.put(entry);
+    puts.increment();
+  }
+
+  /** Returns a slot for the given key, with the given digest and its checksum if not null. */
+  private static byte[] slot(
+      FileStatus status,
+      long device,
+      DigestHashFunction digestFunction,
+      @Nullable byte[] digest)
+      throws IOException {
+    byte[] slot = new byte[SLOT_SIZE];
+    ByteBuffer buffer = ByteBuffer.wrap(slot);
+    buffer.putLong(SLOT_DEVICE, device);
+    buffer.putLong(SLOT_INODE, status.getNodeId());
+    buffer.putLong(SLOT_SIZE_FIELD, status.getSize());
+    buffer.putLong(SLOT_MTIME, status.getLastModifiedTime());
+    buffer.putLong(SLOT_CTIME, status.getLastChangeTime());
+    buffer.putInt(SLOT_DIGEST_FUNCTION, digestFunction.toString().hashCode());
+    if (digest != null) {
+      buffer.putInt(SLOT_DIGEST_LENGTH, digest.length);
+      System.arraycopy(digest, 0, slot, SLOT_DIGEST, digest.length);
+      buffer.putLong(SLOT_CHECKSUM, checksum(slot));
+    }
+    return slot;
+  }
+
+  private static long checksum(byte[] slot) {
+    return CHECKSUM.hashBytes(slot, SLOT_DEVICE, SLOT_SIZE - SLOT_DEVICE).asLong();
+  }
+
+  private static boolean isValid(byte[] slot) {
+    return ByteBuffer.wrap(slot).getLong(SLOT_CHECKSUM) == checksum(slot);
+  }
+
+  /** Returns whether the slots have the same key. */
+  private static boolean hasKey(byte[] slot, byte[] key) {
+    for (int i = SLOT_DEVICE; i < SLOT_DIGEST_LENGTH; i++) {
+      if (slot[i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether the slots are for the same device, inode and digest function. */
+  private static boolean isSameFile(byte[] slot, byte[] key) {
+    ByteBuffer a = ByteBuffer.wrap(slot);
+    ByteBuffer b = ByteBuffer.wrap(key);
+    return a.getLong(SLOT_DEVICE) == b.getLong(SLOT_DEVICE)
+        && a.getLong(SLOT_INODE) == b.getLong(SLOT_INODE)
+        && a.getInt(SLOT_DIGEST_FUNCTION) == b.getInt(SLOT_DIGEST_FUNCTION);
+  }
+
+  /** Returns the first slot of the bucket of a file, which only depends on its device and inode. */
+  private int bucket(byte[] key) {
+    ByteBuffer buffer = ByteBuffer.wrap(key);
+    long hash =
+        Hashing.murmur3_128()
+            .newHasher()
+            .putLong(buffer.getLong(SLOT_DEVICE))
+            .putLong(buffer.getLong(SLOT_INODE))
+            .hash()
+            .asLong();
+    return (int) (hash & (capacity / BUCKET_SIZE - 1)) * BUCKET_SIZE;
+  }
+
+  private static void read(ByteBuffer table, int slot, byte[] destination) {
+    ByteBuffer source = table.duplicate();
+    source.position(HEADER_SIZE + slot * SLOT_SIZE);
+    source.get(destination);
+  }
+
+  /** Returns the mapped file, which is opened or created on the first call. */
+  @Nullable
+  private MappedByteBuffer table() {
+    MappedByteBuffer result = table;
+    if (result != null) {
+      return result;
+    }
+    synchronized (this) {
+      if (table == null && !failed) {
+        try {
+          table = open();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to open the persistent digest cache " + file, e);
+          failed = true;
+        }
+      }
+      return table;
+    }
+  }
+
+  private MappedByteBuffer open() throws IOException {
+    if (file.exists()) {
+      MappedByteBuffer mapped = mapFile();
+      if (mapped != null) {
+        return mapped;
+      }
+      logger.warning("Replacing the persistent digest cache " + file + " of another format");
+      file.delete();
+    }
+    // Create the file under a temporary name so that others never see it without its header.
+    file.getParentDirectory().createDirectoryAndParents();
+    Path temp = file.getParentDirectory().getChild(file.getBaseName() + "." + UUID.randomUUID());
+    try {
+      try (FileChannel channel =
+          FileChannel.open(
+              temp.getPathFile().toPath(),
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_CAPACITY + 4);
+        header.putInt(HEADER_MAGIC, MAGIC);
+        header.putInt(HEADER_VERSION, FORMAT_VERSION);
+        header.putInt(HEADER_CAPACITY, capacityForNewFile);
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        // The table is a sparse file, so only the slots that were written take up space.
+        long size = HEADER_SIZE + (long) capacityForNewFile * SLOT_SIZE;
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+      // Publish the file without replacing one that another server created in the meantime,
+      // which would leave that server with a mapping of an orphaned inode. A rename with
+      // ATOMIC_MOVE replaces the target on Unix even without REPLACE_EXISTING, so link instead:
+      // it fails atomically if the file exists.
+      try {
+        java.nio.file.Files.createLink(file.getPathFile().toPath(), temp.getPathFile().toPath());
+      } catch (FileAlreadyExistsException e) {
+        // Another server won the race; map its file.
+      }
+    } finally {
+      temp.delete();
+    }
+    MappedByteBuffer mapped = mapFile();
+    if (mapped == null) {
+      throw new IOException("persistent digest cache was replaced concurrently");
+    }
+    return mapped;
+  }
+
+  /** Maps {@link #file}, or returns null if it has an unexpected format. */
+  @Nullable
+  private MappedByteBuffer mapFile() throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file.getPathFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return map(channel);
+    }
+  }
+
+  /** Maps the file, or returns null if it has an unexpected format. */
+  @Nullable
+  private MappedByteBuffer map(FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    int capacity = header.getInt(HEADER_CAPACITY);
+    if (header.getInt(HEADER_MAGIC) != MAGIC
+        || header.getInt(HEADER_VERSION) != FORMAT_VERSION
+        || capacity < BUCKET_SIZE
+        || Integer.bitCount(capacity) != 1
+        || channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+      return null;
+    }
+    this.capacity = capacity;
+    return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getPuts() {
+    return puts.sum();
+  }
+
+  /** Returns how many digests weren't put because the file was modified too recently. */
+  public long getRacyFiles() {
+    return racyFiles.sum();
+  }
+
+  /** Forgets the mapping. Entries stay in the file for the next cache opened on it. */
+  @Override
+  public synchronized void close() {
+    table = null;
+    failed = true;
+  }
+}
@@ -797,7 +797,9 @@ public class CoreOptions extends FragmentOptions implements Cloneable {
       documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
       metadataTags = OptionMetadataTag.EXPERIMENTAL,
       effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS, OptionEffectTag.EXECUTION},
-      help = "Whether to make direct file system calls to create symlink trees")
+      help =
+          "Whether to make direct file system calls to create runfiles trees instead of running "
+              + "build-runfiles. Only the entries of an existing tree that changed are updated.")
   public boolean inprocessSymlinkCreation;
 
   @Option(
@@ -89,6 +89,8 @@ import java.util.stream.Collectors;
 public class BazelRepositoryModule extends BlazeModule {
   // Default location (relative to output user root) of the repository cache.
   public static final String DEFAULT_CACHE_LOCATION = "cache/repos/v1";
+  // Location (relative to the output base) of the ranges of unfinished downloads.
+  private static final String PARTIAL_DOWNLOADS_LOCATION = "partial_downloads";
 
   // A map of repository handlers that can be looked up by rule class name.
   private final ImmutableMap<String, RepositoryFunction> repositoryHandlers;
@@ -280,6 +282,9 @@ public class BazelRepositoryModule extends BlazeModule {
             .handle(Event.warn("Ingoring request to scale http timeouts by a non-positive factor"));
         httpDownloader.setTimeoutScaling(1.0f);
       }
+      httpDownloader.setConnectionsPerFile(repoOptions.httpConnectionsPerFile);
+      httpDownloader.setPartialDownloadsDir(
+          env.getOutputBase().getRelative(PARTIAL_DOWNLOADS_LOCATION));
 
       if (repoOptions.repositoryOverrides != null) {
         // To get the usual latest-wins semantics, we need a mutable map, as the builder
@@ -19,6 +19,7 @@ import static com.google.devtools.build.lib.bazel.repository.StripPrefixedPath.m
 import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -33,8 +34,21 @@ import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 /**
  * Common code for unarchiving a compressed TAR file.
+ *
+ * <p>Extraction is a pipeline: one thread decompresses the archive, the calling thread reads the
+ * entries from the decompressed stream and creates directories and links, and a pool of threads
+ * writes the contents of regular files. Files larger than {@link #MAX_PARALLEL_FILE_SIZE} are
+ * written by the calling thread, so that the memory used by the pipeline stays bounded.
  */
 public abstract class CompressedTarFunction implements Decompressor {
+  private static final int READ_AHEAD_CHUNK_SIZE = 256 * 1024;
+  private static final int READ_AHEAD_CHUNKS = 32;
+  private static final int MAX_PARALLEL_FILE_SIZE = 4 * 1024 * 1024;
+  private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+  private static final int WRITER_THREADS =
+      Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+
   protected abstract InputStream getDecompressorStream(DecompressorDescriptor descriptor)
       throws IOException;
 
@@ -48,7 +62,15 @@ public abstract class CompressedTarFunction implements Decompressor {
     boolean foundPrefix = false;
     Set<String> availablePrefixes = new HashSet<>();
 
-    try (InputStream decompressorStream = getDecompressorStream(descriptor)) {
+    ExtendedEventHandler eventHandler = descriptor.eventHandler();
+    long startTime = System.nanoTime();
+    long lastProgressTime = startTime;
+    long bytesExtracted = 0;
+
+    try (InputStream decompressorStream =
+            new ReadAheadInputStream(
+                getDecompressorStream(descriptor), READ_AHEAD_CHUNK_SIZE, READ_AHEAD_CHUNKS);
+        ParallelFileWriter writer = new ParallelFileWriter(WRITER_THREADS, MAX_BUFFERED_BYTES)) {
       TarArchiveInputStream tarStream = new TarArchiveInputStream(decompressorStream);
       TarArchiveEntry entry;
       while ((entry = tarStream.getNextTarEntry()) != null) {
@@ -68,6 +90,8 @@ public abstract class CompressedTarFunction implements Decompressor {
         }
 
         Path filePath = descriptor.repositoryPath().getRelative(entryPath.getPathFragment());
+        // An archive may contain the same path more than once; the last entry wins.
+        writer.await(filePath);
         FileSystemUtils.createDirectoryAndParents(filePath.getParentDirectory());
         if (entry.isDirectory()) {
           FileSystemUtils.createDirectoryAndParents(filePath);
@@ -82,6 +106,7 @@ public abstract class CompressedTarFunction implements Decompressor {
               FileSystemUtils.ensureSymbolicLink(filePath, targetName);
             } else {
               Path targetPath = descriptor.repositoryPath().getRelative(targetName);
+              writer.await(targetPath);
               if (filePath.equals(targetPath)) {
                 // The behavior here is semantically different, depending on whether the underlying
                 // filesystem is case-sensitive or case-insensitive. However, it is effectively the
@@ -100,21 +125,41 @@ public abstract class CompressedTarFunction implements Decompressor {
               }
             }
           } else {
-            try (OutputStream out = filePath.getOutputStream()) {
-              ByteStreams.copy(tarStream, out);
-            }
-            filePath.chmod(entry.getMode());
-
             // This can only be done on real files, not links, or it will skip the reader to
             // the next "real" file to try to find the mod time info.
             Date lastModified = entry.getLastModifiedDate();
-            filePath.setLastModifiedTime(lastModified.getTime());
+            if (entry.getSize() <= MAX_PARALLEL_FILE_SIZE) {
+              writer.write(
+                  filePath,
+                  tarStream,
+                  (int) entry.getSize(),
+                  entry.getMode(),
+                  lastModified.getTime());
+            } else {
+              try (OutputStream out = filePath.getOutputStream()) {
+                ByteStreams.copy(tarStream, out);
+              }
+              filePath.chmod(entry.getMode());
+              filePath.setLastModifiedTime(lastModified.getTime());
+            }
+            bytesExtracted += entry.getSize();
           }
         }
         if (Thread.interrupted()) {
           throw new InterruptedException();
         }
+        long now = System.nanoTime();
+        if (eventHandler != null && now - lastProgressTime >= PROGRESS_INTERVAL_NANOS) {
+          eventHandler.post(
+              new DecompressionProgressEvent(
+                  descriptor.archivePath(),
+                  descriptor.repositoryPath(),
+                  bytesExtracted,
+                  now - startTime));
+          lastProgressTime = now;
+        }
       }
+      writer.awaitAll();
 
       if (prefix.isPresent() && !foundPrefix) {
         throw new CouldNotFindPrefixException(prefix.get(), availablePrefixes);
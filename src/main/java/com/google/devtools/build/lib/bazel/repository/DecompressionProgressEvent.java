@@ -0,0 +1,71 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.Path;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Postable event reporting on progress made extracting an archive into a repository: the number of
+ * bytes extracted so far and the rate at which they were extracted.
+ */
+public class DecompressionProgressEvent implements ExtendedEventHandler.FetchProgress {
+  private final Path archivePath;
+  private final Path repositoryPath;
+  private final long bytesExtracted;
+  private final long elapsedNanos;
+
+  public DecompressionProgressEvent(
+      Path archivePath, Path repositoryPath, long bytesExtracted, long elapsedNanos) {
+    this.archivePath = archivePath;
+    this.repositoryPath = repositoryPath;
+    this.bytesExtracted = bytesExtracted;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /** Same as the identifier of the other events about extracting into the repository. */
+  @Override
+  public String getResourceIdentifier() {
+    return repositoryPath.toString();
+  }
+
+  public long getBytesExtracted() {
+    return bytesExtracted;
+  }
+
+  @Override
+  public boolean isFinished() {
+    return false;
+  }
+
+  @Override
+  public String getProgress() {
+    NumberFormat formatter = NumberFormat.getIntegerInstance(Locale.ENGLISH);
+    formatter.setGroupingUsed(true);
+    StringBuilder progress =
+        new StringBuilder("Extracting ")
+            .append(archivePath)
+            .append(": ")
+            .append(formatter.format(bytesExtracted))
+            .append("b");
+    if (elapsedNanos > 0) {
+      double mebibytesPerSecond = bytesExtracted / (elapsedNanos / 1e9) / (1 << 20);
+      progress.append(" (").append(formatter.format(mebibytesPerSecond)).append(" MiB/s)");
+    }
+    return progress.toString();
+  }
+}
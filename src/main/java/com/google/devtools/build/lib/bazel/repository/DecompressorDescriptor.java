@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.bazel.repository;
 
 import com.google.common.base.Optional;
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.rules.repository.RepositoryFunction.RepositoryFunctionException;
 import com.google.devtools.build.lib.vfs.Path;
 import java.util.Objects;
@@ -33,10 +34,12 @@ public class DecompressorDescriptor {
   private final Optional<String> prefix;
   private final boolean executable;
   private final Decompressor decompressor;
+  @Nullable private final ExtendedEventHandler eventHandler;
 
   private DecompressorDescriptor(
       String targetKind, String targetName, Path archivePath, Path repositoryPath,
-      @Nullable String prefix, boolean executable, Decompressor decompressor) {
+      @Nullable String prefix, boolean executable, Decompressor decompressor,
+      @Nullable ExtendedEventHandler eventHandler) {
     this.targetKind = targetKind;
     this.targetName = targetName;
     this.archivePath = archivePath;
@@ -44,6 +47,7 @@ public class DecompressorDescriptor {
     this.prefix = Optional.fromNullable(prefix);
     this.executable = executable;
     this.decompressor = decompressor;
+    this.eventHandler = eventHandler;
   }
 
   public String targetKind() {
@@ -74,6 +78,12 @@ public class DecompressorDescriptor {
     return decompressor;
   }
 
+  /** The handler to post progress events to while decompressing, if any. */
+  @Nullable
+  public ExtendedEventHandler eventHandler() {
+    return eventHandler;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (this == other) {
@@ -115,6 +125,7 @@ public class DecompressorDescriptor {
     private String prefix;
     private boolean executable;
     private Decompressor decompressor;
+    private ExtendedEventHandler eventHandler;
 
     private Builder() {
     }
@@ -124,7 +135,14 @@ public class DecompressorDescriptor {
         decompressor = DecompressorValue.getDecompressor(archivePath);
       }
       return new DecompressorDescriptor(
-          targetKind, targetName, archivePath, repositoryPath, prefix, executable, decompressor);
+          targetKind,
+          targetName,
+          archivePath,
+          repositoryPath,
+          prefix,
+          executable,
+          decompressor,
+          eventHandler);
     }
 
     public Builder setTargetKind(String targetKind) {
@@ -161,5 +179,10 @@ public class DecompressorDescriptor {
       this.decompressor = decompressor;
       return this;
     }
+
+    public Builder setEventHandler(ExtendedEventHandler eventHandler) {
+      this.eventHandler = eventHandler;
+      return this;
+    }
   }
 }
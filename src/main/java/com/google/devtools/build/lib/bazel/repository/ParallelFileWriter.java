@@ -0,0 +1,125 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the files of an archive on a pool of threads while the archive is being read.
+ *
+ * <p>The contents of each file are read into memory by the thread that reads the archive and
+ * written by one of the pool's threads. The total size of the contents read but not yet written is
+ * bounded; reading blocks when it is reached. Callers must {@link #await} the pending write of a
+ * path before they touch that path otherwise, e.g. to replace it or to link to it.
+ *
+ * <p>Not thread-safe: all methods must be called by the thread reading the archive.
+ */
+final class ParallelFileWriter implements AutoCloseable {
+
+  private final ExecutorService executor;
+  private final Semaphore bufferedBytes;
+  private final int maxBufferedBytes;
+  private final Map<Path, Future<?>> pendingWrites = new HashMap<>();
+
+  ParallelFileWriter(int threads, int maxBufferedBytes) {
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("archive-writer-%d").setDaemon(true).build());
+    this.bufferedBytes = new Semaphore(maxBufferedBytes);
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Reads the {@code size} bytes of a file from {@code in} and schedules writing them to {@code
+   * path}, with the given mode and modification time.
+   */
+  void write(Path path, InputStream in, int size, int mode, long lastModifiedTime)
+      throws IOException, InterruptedException {
+    int reserved = Math.min(size, maxBufferedBytes);
+    bufferedBytes.acquire(reserved);
+    byte[] content;
+    try {
+      content = ByteStreams.toByteArray(in);
+    } catch (IOException e) {
+      bufferedBytes.release(reserved);
+      throw e;
+    }
+    pendingWrites.put(
+        path,
+        executor.submit(
+            () -> {
+              try {
+                try (OutputStream out = path.getOutputStream()) {
+                  out.write(content);
+                }
+                path.chmod(mode);
+                path.setLastModifiedTime(lastModifiedTime);
+              } finally {
+                bufferedBytes.release(reserved);
+              }
+              return null;
+            }));
+  }
+
+  /** Waits for the pending write of {@code path}, if any. */
+  void await(Path path) throws IOException, InterruptedException {
+    Future<?> write = pendingWrites.remove(path);
+    if (write != null) {
+      getUnchecked(write);
+    }
+  }
+
+  /** Waits for all pending writes. */
+  void awaitAll() throws IOException, InterruptedException {
+    for (Future<?> write : pendingWrites.values()) {
+      getUnchecked(write);
+    }
+    pendingWrites.clear();
+  }
+
+  private static void getUnchecked(Future<?> write) throws IOException, InterruptedException {
+    try {
+      write.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Cancels the pending writes and waits for the ones in progress. */
+  @Override
+  public void close() throws InterruptedException {
+    executor.shutdownNow();
+    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+      // Writes in progress are not interruptible but always finish eventually.
+    }
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads its underlying stream ahead of its consumer on a separate thread.
+ *
+ * <p>Used to decompress an archive while the previously decompressed bytes are being unpacked, so
+ * that decompression and writing files proceed in parallel. At most {@code maxChunks} chunks of
+ * {@code chunkSize} bytes are read ahead.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+  private static final byte[] EOF = new byte[0];
+
+  private final InputStream in;
+  private final BlockingQueue<byte[]> chunks;
+  private final Thread reader;
+
+  // Written by the reader thread before it queues EOF.
+  private volatile IOException failure;
+
+  private byte[] chunk = new byte[0];
+  private int position;
+  private boolean eof;
+
+  ReadAheadInputStream(InputStream in, int chunkSize, int maxChunks) {
+    this.in = in;
+    this.chunks = new ArrayBlockingQueue<>(maxChunks);
+    this.reader = new Thread(() -> readAhead(chunkSize), "read-ahead");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readAhead(int chunkSize) {
+    try {
+      while (true) {
+        byte[] chunk = new byte[chunkSize];
+        int length = ByteStreams.read(in, chunk, 0, chunkSize);
+        if (length > 0) {
+          chunks.put(length == chunkSize ? chunk : Arrays.copyOf(chunk, length));
+        }
+        if (length < chunkSize) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      // The stream was closed.
+      return;
+    }
+    try {
+      chunks.put(EOF);
+    } catch (InterruptedException e) {
+      // The stream was closed.
+    }
+  }
+
+  /** Makes sure that there are bytes left in the current chunk; returns false at end of stream. */
+  private boolean fill() throws IOException {
+    while (position == chunk.length) {
+      if (eof) {
+        return false;
+      }
+      try {
+        chunk = chunks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      position = 0;
+      if (chunk == EOF) {
+        eof = true;
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return chunk[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int length = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, length);
+    position += length;
+    return length;
+  }
+
+  @Override
+  public int available() {
+    return chunk.length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.interrupt();
+    // Wait for the reader to stop before closing the stream it reads from.
+    boolean interrupted = false;
+    while (reader.isAlive()) {
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    in.close();
+  }
+}
@@ -77,6 +77,18 @@ public class RepositoryOptions extends OptionsBase {
       help = "Scale all timeouts related to http downloads by the given factor")
   public double httpTimeoutScaling;
 
+  @Option(
+      name = "experimental_http_connections_per_file",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If greater than 1, files are downloaded over up to that many connections at once, "
+              + "each fetching a byte range of at least 4MB of the file, from servers that "
+              + "support range requests. Interrupted downloads then resume where they stopped, "
+              + "even after a restart.")
+  public int httpConnectionsPerFile;
+
   @Option(
     name = "override_repository",
     defaultValue = "null",
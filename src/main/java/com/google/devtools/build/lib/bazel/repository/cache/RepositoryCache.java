@@ -21,16 +21,29 @@ import com.google.common.base.Strings;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import javax.annotation.Nullable;
 
-/** The cache implementation to store download artifacts from external repositories.
- *  TODO(jingwen): Implement file locking for concurrent cache accesses.
+/**
+ * The cache implementation to store download artifacts from external repositories.
+ *
+ * <p>The cache may be used concurrently by the threads of a server and by several servers. Within
+ * a server, lookups and insertions of different entries proceed in parallel, and only insertions
+ * into the same entry exclude each other and the lookups of that entry. Across servers, insertions
+ * into an entry are serialized with an advisory lock on a file in the entry's directory, where the
+ * file system supports it. Files only ever appear in an entry by being renamed into place, so a
+ * lookup never sees a partially written file.
  */
 public class RepositoryCache {
 
@@ -85,11 +98,16 @@ public class RepositoryCache {
   public static final String DEFAULT_CACHE_FILENAME = "file";
   public static final String TMP_PREFIX = "tmp-";
   public static final String ID_PREFIX = "id-";
+  public static final String LOCK_FILENAME = "lock";
+
+  private static final int LOCK_STRIPES = 64;
 
   @Nullable private Path repositoryCachePath;
   @Nullable private Path contentAddressablePath;
   private boolean useHardlinks;
 
+  private final Striped<ReadWriteLock> entryLocks = Striped.readWriteLock(LOCK_STRIPES);
+
   public void setRepositoryCachePath(@Nullable Path repositoryCachePath) {
     this.repositoryCachePath = repositoryCachePath;
     this.contentAddressablePath = (repositoryCachePath != null)
@@ -133,7 +151,7 @@ public class RepositoryCache {
         .exists();
   }
 
-  public synchronized Path get(String cacheKey, Path targetPath, KeyType keyType)
+  public Path get(String cacheKey, Path targetPath, KeyType keyType)
       throws IOException, InterruptedException {
     return get(cacheKey, targetPath, keyType, null);
   }
@@ -143,7 +161,8 @@ public class RepositoryCache {
    *
    * <p>We're using hardlinking instead of symlinking because symlinking require weird checks to
    * verify that the symlink still points to an existing artifact. e.g. cleaning up the central
-   * cache but not the workspace cache.
+   * cache but not the workspace cache. If hardlinks are enabled but the target cannot be linked
+   * to the cache, e.g. because it is on another file system, the value is copied.
    *
    * @param cacheKey The string key to cache the value by.
    * @param targetPath The path where the cache value should be copied to.
@@ -155,15 +174,23 @@ public class RepositoryCache {
    * @throws IOException
    */
   @Nullable
-  public synchronized Path get(
-      String cacheKey, Path targetPath, KeyType keyType, String canonicalId)
+  public Path get(String cacheKey, Path targetPath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
-    if (Thread.interrupted()) {
-      throw new InterruptedException();
-    }
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
+    Lock lock = entryLocks.get(cacheKey).readLock();
+    lock.lockInterruptibly();
+    try {
+      return getLocked(cacheKey, targetPath, keyType, canonicalId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Nullable
+  private Path getLocked(String cacheKey, Path targetPath, KeyType keyType, String canonicalId)
+      throws IOException, InterruptedException {
     if (!exists(cacheKey, keyType)) {
       return null;
     }
@@ -186,9 +213,7 @@ public class RepositoryCache {
     }
 
     FileSystemUtils.createDirectoryAndParents(targetPath.getParentDirectory());
-    if (useHardlinks) {
-      FileSystemUtils.createHardLink(targetPath, cacheValue);
-    } else {
+    if (!useHardlinks || !tryCreateHardLink(targetPath, cacheValue)) {
       FileSystemUtils.copyFile(cacheValue, targetPath);
     }
 
@@ -201,13 +226,13 @@ public class RepositoryCache {
     return targetPath;
   }
 
-  public synchronized void put(String cacheKey, Path sourcePath, KeyType keyType)
+  public void put(String cacheKey, Path sourcePath, KeyType keyType)
       throws IOException, InterruptedException {
     put(cacheKey, sourcePath, keyType, null);
   }
 
   /**
-   * Copies a value from a specified path into the cache.
+   * Copies a value from a specified path into the cache, unless the cache already has it.
    *
    * @param cacheKey The string key to cache the value by.
    * @param sourcePath The path of the value to be cached.
@@ -216,13 +241,8 @@ public class RepositoryCache {
    *     restricted cache lookups later.
    * @throws IOException
    */
-  public synchronized void put(
-      String cacheKey, Path sourcePath, KeyType keyType, String canonicalId)
+  public void put(String cacheKey, Path sourcePath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
-    // Check for interrupts while waiting for the monitor of this synchronized method
-    if (Thread.interrupted()) {
-      throw new InterruptedException();
-    }
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
@@ -230,21 +250,37 @@ public class RepositoryCache {
 
     Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
     Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
-    Path tmpName = cacheEntry.getRelative(TMP_PREFIX + UUID.randomUUID());
-    FileSystemUtils.createDirectoryAndParents(cacheEntry);
-    FileSystemUtils.copyFile(sourcePath, tmpName);
-    FileSystemUtils.moveFile(tmpName, cacheValue);
+    Lock lock = entryLocks.get(cacheKey).writeLock();
+    lock.lockInterruptibly();
+    try {
+      FileSystemUtils.createDirectoryAndParents(cacheEntry);
+      try (FileChannel ignored = lockEntry(cacheEntry)) {
+        // Another server may have inserted the value while we were waiting for the lock.
+        if (!cacheValue.exists() || !getChecksum(keyType, cacheValue).equalsIgnoreCase(cacheKey)) {
+          Path tmpName = cacheEntry.getRelative(TMP_PREFIX + UUID.randomUUID());
+          FileSystemUtils.copyFile(sourcePath, tmpName);
+          FileSystemUtils.moveFile(tmpName, cacheValue);
+        }
 
-    if (!Strings.isNullOrEmpty(canonicalId)) {
-      byte[] canonicalIdBytes = canonicalId.getBytes(UTF_8);
-      String idHash = keyType.newHasher().putBytes(canonicalIdBytes).hash().toString();
-      OutputStream idStream = cacheEntry.getRelative(ID_PREFIX + idHash).getOutputStream();
-      idStream.write(canonicalIdBytes);
-      idStream.close();
+        if (!Strings.isNullOrEmpty(canonicalId)) {
+          byte[] canonicalIdBytes = canonicalId.getBytes(UTF_8);
+          String idHash = keyType.newHasher().putBytes(canonicalIdBytes).hash().toString();
+          Path idFile = cacheEntry.getRelative(ID_PREFIX + idHash);
+          if (!idFile.exists()) {
+            Path tmpName = cacheEntry.getRelative(TMP_PREFIX + UUID.randomUUID());
+            try (OutputStream idStream = tmpName.getOutputStream()) {
+              idStream.write(canonicalIdBytes);
+            }
+            tmpName.renameTo(idFile);
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
-  public synchronized String put(Path sourcePath, KeyType keyType)
+  public String put(Path sourcePath, KeyType keyType)
       throws IOException, InterruptedException {
     return put(sourcePath, keyType, null);
   }
@@ -259,13 +295,56 @@ public class RepositoryCache {
    * @throws IOException
    * @return The key for the cached entry.
    */
-  public synchronized String put(Path sourcePath, KeyType keyType, String canonicalId)
+  public String put(Path sourcePath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
     String cacheKey = getChecksum(keyType, sourcePath);
     put(cacheKey, sourcePath, keyType, canonicalId);
     return cacheKey;
   }
 
+  /**
+   * Takes the lock that serializes insertions into {@code cacheEntry} across processes, blocking
+   * until it is available. The lock is released when the returned channel is closed. Returns null
+   * if the lock cannot be taken, e.g. because the file system does not support locking; insertions
+   * are then only serialized within this process.
+   */
+  @Nullable
+  private static FileChannel lockEntry(Path cacheEntry) throws InterruptedException {
+    FileChannel channel;
+    try {
+      channel =
+          FileChannel.open(
+              cacheEntry.getChild(LOCK_FILENAME).getPathFile().toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      return null;
+    }
+    try {
+      channel.lock();
+      return channel;
+    } catch (FileLockInterruptionException e) {
+      throw new InterruptedException();
+    } catch (IOException e) {
+      try {
+        channel.close();
+      } catch (IOException closeException) {
+        // Nothing else to do; the lock file is left unlocked.
+      }
+      return null;
+    }
+  }
+
+  private static boolean tryCreateHardLink(Path linkPath, Path originalPath) {
+    try {
+      linkPath.delete();
+      FileSystemUtils.createHardLink(linkPath, originalPath);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private void ensureCacheDirectoryExists(KeyType keyType) throws IOException {
     Path directoryPath = keyType.getCachePath(contentAddressablePath);
     if (!directoryPath.exists()) {
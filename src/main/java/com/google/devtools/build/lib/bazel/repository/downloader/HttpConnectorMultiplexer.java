@@ -66,12 +66,9 @@ final class HttpConnectorMultiplexer {
 
   private static final int MAX_THREADS_PER_CONNECT = 2;
   private static final long FAILOVER_DELAY_MS = 2000;
+  static final String USER_AGENT = "Bazel/" + BlazeVersionInfo.instance().getReleaseName();
   private static final ImmutableMap<String, String> REQUEST_HEADERS =
-      ImmutableMap.of(
-          "Accept-Encoding",
-          "gzip",
-          "User-Agent",
-          "Bazel/" + BlazeVersionInfo.instance().getReleaseName());
+      ImmutableMap.of("Accept-Encoding", "gzip", "User-Agent", USER_AGENT);
 
   private final EventHandler eventHandler;
   private final HttpConnector connector;
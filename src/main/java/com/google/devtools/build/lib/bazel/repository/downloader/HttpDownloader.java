@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCacheHitEvent;
@@ -45,7 +46,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * Bazel file downloader.
@@ -58,9 +64,17 @@ public class HttpDownloader {
   private static final int MAX_PARALLEL_DOWNLOADS = 8;
   private static final Semaphore semaphore = new Semaphore(MAX_PARALLEL_DOWNLOADS, true);
 
+  // Connections used by downloads in ranges, shared by all downloads. The executor lives as long
+  // as the server: its threads are daemons, which don't keep the server from exiting, and they exit
+  // after a minute without work, so an idle server holds none.
+  private static final int MAX_PARALLEL_RANGES = 16;
+  private static final ExecutorService rangeExecutor = createRangeExecutor();
+
   protected final RepositoryCache repositoryCache;
   private List<Path> distdir = ImmutableList.of();
   private float timeoutScaling = 1.0f;
+  private int connectionsPerFile = 1;
+  @Nullable private Path partialDownloadsDir;
 
   public HttpDownloader(RepositoryCache repositoryCache) {
     this.repositoryCache = repositoryCache;
@@ -74,6 +88,44 @@ public class HttpDownloader {
     this.timeoutScaling = timeoutScaling;
   }
 
+  /**
+   * Sets the number of connections over which a file is downloaded, each fetching a range of it. If
+   * greater than 1, files are downloaded with {@link RangeDownloader} from servers that support
+   * range requests.
+   */
+  public void setConnectionsPerFile(int connectionsPerFile) {
+    this.connectionsPerFile = connectionsPerFile;
+  }
+
+  /**
+   * Sets the directory in which {@link RangeDownloader} keeps the ranges of unfinished downloads.
+   * It must be outside of the directories of the repositories, as these are deleted before every
+   * fetch. Files are not downloaded in ranges unless it is set.
+   *
+   * <p>The first time a directory is set, the ranges in it that were not used for a while are
+   * deleted.
+   */
+  public void setPartialDownloadsDir(@Nullable Path partialDownloadsDir) {
+    if (partialDownloadsDir != null && !partialDownloadsDir.equals(this.partialDownloadsDir)) {
+      RangeDownloader.deleteStalePartialDownloads(
+          partialDownloadsDir, System.currentTimeMillis());
+    }
+    this.partialDownloadsDir = partialDownloadsDir;
+  }
+
+  private static ExecutorService createRangeExecutor() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            MAX_PARALLEL_RANGES,
+            MAX_PARALLEL_RANGES,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("http-range-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   /**
    * Downloads file to disk and returns path.
    *
@@ -215,6 +267,16 @@ public class HttpDownloader {
     HttpStream.Factory httpStreamFactory = new HttpStream.Factory(progressInputStreamFactory);
     HttpConnectorMultiplexer multiplexer =
         new HttpConnectorMultiplexer(eventHandler, connector, httpStreamFactory, clock, sleeper);
+    RangeDownloader rangeDownloader =
+        new RangeDownloader(
+            connector,
+            rangeExecutor,
+            locale,
+            eventHandler,
+            clock,
+            connectionsPerFile,
+            RangeDownloader.MIN_SEGMENT_SIZE,
+            partialDownloadsDir);
 
     // Iterate over urls and download the file falling back to the next url if previous failed,
     // while reporting progress to the CLI.
@@ -225,16 +287,23 @@ public class HttpDownloader {
     for (URL url : urls) {
       semaphore.acquire();
 
-      try (HttpStream payload =
-              multiplexer.connect(Collections.singletonList(url), checksum, authHeaders);
-          OutputStream out = destination.getOutputStream()) {
-        try {
-          ByteStreams.copy(payload, out);
-        } catch (SocketTimeoutException e) {
-          // SocketTimeoutExceptions are InterruptedIOExceptions; however they do not signify
-          // an external interruption, but simply a failed download due to some server timing
-          // out. So rethrow them as ordinary IOExceptions.
-          throw new IOException(e);
+      try {
+        if (connectionsPerFile <= 1
+            || partialDownloadsDir == null
+            || !HttpUtils.isHttp(url)
+            || !rangeDownloader.download(url, checksum, authHeaders, destination)) {
+          try (HttpStream payload =
+                  multiplexer.connect(Collections.singletonList(url), checksum, authHeaders);
+              OutputStream out = destination.getOutputStream()) {
+            try {
+              ByteStreams.copy(payload, out);
+            } catch (SocketTimeoutException e) {
+              // SocketTimeoutExceptions are InterruptedIOExceptions; however they do not signify
+              // an external interruption, but simply a failed download due to some server timing
+              // out. So rethrow them as ordinary IOExceptions.
+              throw new IOException(e);
+            }
+          }
         }
         success = true;
         break;
@@ -254,6 +323,13 @@ public class HttpDownloader {
       }
     }
 
+    if (success && partialDownloadsDir != null) {
+      // Mirrors that failed before may have left ranges behind.
+      for (URL url : urls) {
+        rangeDownloader.deletePartialDownload(url, destination);
+      }
+    }
+
     if (!success) {
       final IOException exception =
           new IOException(
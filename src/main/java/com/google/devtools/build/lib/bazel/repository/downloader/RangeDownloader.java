@@ -0,0 +1,449 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Downloads a file over several connections at once, each of which fetches a byte range of it.
+ *
+ * <p>The ranges are written to files in a directory named after the URL and the destination, and
+ * are only concatenated into the destination once they are all complete. That directory is outside
+ * the destination's repository, which is deleted before each fetch. If the download fails, or
+ * Bazel is shut down, the next download of the same URL to the same destination resumes each range
+ * where it stopped, as long as the server reports the same size and validator (ETag or
+ * Last-Modified) for the file. The ranges are deleted once the download succeeds or can't be
+ * resumed, and by {@link #deleteStalePartialDownloads} once no download used them for {@link
+ * #MAX_PARTIAL_DOWNLOAD_AGE}.
+ *
+ * <p>Instances are thread safe and can be reused.
+ */
+@ThreadSafe
+final class RangeDownloader {
+  private static final Logger logger = Logger.getLogger(RangeDownloader.class.getName());
+
+  static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+  static final Duration MAX_PARTIAL_DOWNLOAD_AGE = Duration.ofDays(7);
+
+  private static final String MANIFEST = "manifest";
+  private static final int MAX_RESUMES = 3;
+  private static final long PROGRESS_INTERVAL_MS = 200;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+  // Ranges are offsets into the file as stored on the server, so it must not be re-encoded.
+  private static final ImmutableMap<String, String> REQUEST_HEADERS =
+      ImmutableMap.of(
+          "Accept-Encoding", "identity", "User-Agent", HttpConnectorMultiplexer.USER_AGENT);
+
+  private final HttpConnector connector;
+  private final ExecutorService executor;
+  private final Locale locale;
+  private final ExtendedEventHandler eventHandler;
+  private final Clock clock;
+  private final int connections;
+  private final long minSegmentSize;
+  private final Path partialDownloadsDir;
+
+  /**
+   * @param executor runs the downloads of the ranges; it is shared by all downloads, so that it
+   *     bounds the number of connections that Bazel opens at once
+   * @param connections the maximum number of ranges that a file is split into
+   * @param minSegmentSize the minimum size of a range, except for the last one
+   * @param partialDownloadsDir the directory under which the ranges of unfinished downloads are
+   *     kept
+   */
+  RangeDownloader(
+      HttpConnector connector,
+      ExecutorService executor,
+      Locale locale,
+      ExtendedEventHandler eventHandler,
+      Clock clock,
+      int connections,
+      long minSegmentSize,
+      Path partialDownloadsDir) {
+    this.connector = connector;
+    this.executor = executor;
+    this.locale = locale;
+    this.eventHandler = eventHandler;
+    this.clock = clock;
+    this.connections = connections;
+    this.minSegmentSize = minSegmentSize;
+    this.partialDownloadsDir = partialDownloadsDir;
+  }
+
+  /**
+   * Downloads {@code url} to {@code destination} in ranges.
+   *
+   * @return false if the server does not support range requests, in which case nothing was
+   *     downloaded and the caller should fall back to a regular download
+   * @throws IOException if the download failed; what was downloaded so far is kept for the next
+   *     attempt unless the checksum did not match
+   */
+  boolean download(
+      URL url,
+      Optional<Checksum> checksum,
+      Map<URI, Map<String, String>> authHeaders,
+      Path destination)
+      throws IOException, InterruptedException {
+    Function<URL, ImmutableMap<String, String>> headers =
+        HttpConnectorMultiplexer.getHeaderFunction(REQUEST_HEADERS, authHeaders);
+
+    // Ask for the first byte to learn whether ranges are supported and how large the file is.
+    long size;
+    String validator;
+    HttpURLConnection probe =
+        (HttpURLConnection)
+            connector.connect(
+                url, withExtraHeaders(headers, ImmutableMap.of("Range", "bytes=0-0")));
+    try {
+      Matcher range = getContentRange(probe);
+      if (range == null || !range.group(1).equals("0") || range.group(3).equals("*")) {
+        return false;
+      }
+      size = Long.parseLong(range.group(3));
+      validator =
+          Strings.nullToEmpty(
+              probe.getHeaderField("ETag") != null
+                  ? probe.getHeaderField("ETag")
+                  : probe.getHeaderField("Last-Modified"));
+    } finally {
+      // Don't read the body of a server that ignored the range.
+      probe.disconnect();
+    }
+
+    int segments = (int) Math.max(1, Math.min(connections, size / minSegmentSize));
+    Path partialDir = getPartialDir(url, destination);
+    String manifest = String.format("%s\n%d\n%s\n%d\n", url, size, validator, segments);
+    // Without a validator or a checksum, a change of the file on the server can't be detected.
+    boolean resumable = !validator.isEmpty() || checksum.isPresent();
+    Path manifestFile = partialDir.getRelative(MANIFEST);
+    if (!resumable
+        || !manifestFile.exists()
+        || !FileSystemUtils.readContent(manifestFile, UTF_8).equals(manifest)) {
+      partialDir.deleteTree();
+      partialDir.createDirectoryAndParents();
+      FileSystemUtils.writeContent(manifestFile, UTF_8, manifest);
+    } else {
+      // The age of the manifest tells deleteStalePartialDownloads when the ranges were last used.
+      manifestFile.setLastModifiedTime(clock.currentTimeMillis());
+    }
+
+    try {
+      downloadSegments(url, headers, validator, size, segments, partialDir);
+      concatenate(partialDir, segments, checksum, destination);
+    } catch (IOException e) {
+      if (!resumable || e instanceof UnrecoverableHttpException) {
+        // The next attempt would start over anyway.
+        partialDir.deleteTree();
+      }
+      throw e;
+    }
+    partialDir.deleteTree();
+    eventHandler.post(new DownloadProgressEvent(url, url, size, true));
+    return true;
+  }
+
+  /** Downloads the missing parts of all ranges to their files in {@code partialDir}. */
+  private void downloadSegments(
+      URL url,
+      Function<URL, ImmutableMap<String, String>> headers,
+      String validator,
+      long size,
+      int segments,
+      Path partialDir)
+      throws IOException, InterruptedException {
+    long segmentSize = (size + segments - 1) / segments;
+    Function<URL, ImmutableMap<String, String>> segmentHeaders =
+        validator.isEmpty()
+            ? headers
+            : withExtraHeaders(headers, ImmutableMap.of("If-Range", validator));
+    Progress progress = new Progress(url);
+    List<Future<?>> futures = new ArrayList<>(segments);
+    Set<HttpURLConnection> openConnections = ConcurrentHashMap.newKeySet();
+    AtomicBoolean aborted = new AtomicBoolean();
+    CountDownLatch done = new CountDownLatch(segments);
+    for (int i = 0; i < segments; i++) {
+      Path file = partialDir.getRelative("segment-" + i);
+      long start = i * segmentSize;
+      long end = Math.min(size, start + segmentSize) - 1;
+      if (file.exists()) {
+        progress.add(file.getFileSize());
+      }
+      futures.add(
+          executor.submit(
+              () -> {
+                try {
+                  downloadSegment(
+                      url, segmentHeaders, file, start, end, progress, openConnections, aborted);
+                } finally {
+                  done.countDown();
+                }
+                return null;
+              }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      // Stop the other ranges if one failed; their reads fail once their socket is closed.
+      aborted.set(true);
+      for (HttpURLConnection connection : openConnections) {
+        connection.disconnect();
+      }
+      // Leave the segment files alone before returning, they may be resumed right away.
+      Uninterruptibles.awaitUninterruptibly(done);
+    }
+  }
+
+  /**
+   * Returns the directory in which the ranges of a download of {@code url} to {@code destination}
+   * are kept. Concurrent downloads of the same URL for different repositories use different
+   * directories.
+   */
+  Path getPartialDir(URL url, Path destination) {
+    return partialDownloadsDir.getRelative(
+        Hashing.sha256()
+            .newHasher()
+            .putString(url.toString(), UTF_8)
+            .putByte((byte) 0)
+            .putString(destination.getPathString(), UTF_8)
+            .hash()
+            .toString());
+  }
+
+  /**
+   * Deletes the ranges under {@code partialDownloadsDir} that no download used for {@link
+   * #MAX_PARTIAL_DOWNLOAD_AGE}, e.g. because the repository was removed or its URL changed. Must
+   * not run concurrently with downloads. Failures are logged and otherwise ignored.
+   */
+  static void deleteStalePartialDownloads(Path partialDownloadsDir, long nowMillis) {
+    if (!partialDownloadsDir.isDirectory()) {
+      return;
+    }
+    try {
+      for (Path partialDir : partialDownloadsDir.getDirectoryEntries()) {
+        Path manifestFile = partialDir.getRelative(MANIFEST);
+        if (!manifestFile.exists()
+            || nowMillis - manifestFile.getLastModifiedTime()
+                > MAX_PARTIAL_DOWNLOAD_AGE.toMillis()) {
+          partialDir.deleteTree();
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete stale partial downloads", e);
+    }
+  }
+
+  /** Deletes the ranges of a download of {@code url} to {@code destination}, if there are any. */
+  void deletePartialDownload(URL url, Path destination) throws IOException {
+    getPartialDir(url, destination).deleteTree();
+  }
+
+  /** Appends the bytes from {@code start} to {@code end} not yet in {@code file} to it. */
+  private void downloadSegment(
+      URL url,
+      Function<URL, ImmutableMap<String, String>> headers,
+      Path file,
+      long start,
+      long end,
+      Progress progress,
+      Set<HttpURLConnection> openConnections,
+      AtomicBoolean aborted)
+      throws IOException {
+    List<IOException> failures = new ArrayList<>();
+    while (!aborted.get()) {
+      long offset = start + (file.exists() ? file.getFileSize() : 0);
+      if (offset > end) {
+        return;
+      }
+      HttpURLConnection connection =
+          (HttpURLConnection)
+              connector.connect(
+                  url,
+                  withExtraHeaders(
+                      headers,
+                      ImmutableMap.of("Range", String.format("bytes=%d-%d", offset, end))));
+      openConnections.add(connection);
+      if (aborted.get()) {
+        // The download was aborted before the connection could be disconnected.
+        connection.disconnect();
+      }
+      try (InputStream in = new InterruptibleInputStream(connection.getInputStream());
+          OutputStream out = file.getOutputStream(/*append=*/ true)) {
+        Matcher range = getContentRange(connection);
+        if (range == null || Long.parseLong(range.group(1)) != offset) {
+          throw new UnrecoverableHttpException(
+              String.format(
+                  "Tried to download %s from offset %,d but the file changed on the server or it "
+                      + "stopped supporting range requests",
+                  url, offset));
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = end - offset + 1;
+        while (remaining > 0) {
+          int amount = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (amount == -1) {
+            throw new IOException(
+                String.format("Connection closed with %,d bytes of the range left", remaining));
+          }
+          out.write(buffer, 0, amount);
+          remaining -= amount;
+          progress.add(amount);
+        }
+        return;
+      } catch (IOException e) {
+        if (e instanceof UnrecoverableHttpException
+            || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))
+            || aborted.get()) {
+          throw e;
+        }
+        failures.add(e);
+        if (failures.size() > MAX_RESUMES) {
+          IOException error = new IOException(e.getMessage(), e);
+          for (IOException failure : failures.subList(0, failures.size() - 1)) {
+            error.addSuppressed(failure);
+          }
+          throw error;
+        }
+        eventHandler.handle(
+            Event.progress(String.format("Lost connection for %s due to %s", url, e)));
+      } finally {
+        openConnections.remove(connection);
+      }
+    }
+  }
+
+  /** Writes the segments to {@code destination}, verifying the checksum of the whole. */
+  private static void concatenate(
+      Path partialDir, int segments, Optional<Checksum> checksum, Path destination)
+      throws IOException {
+    Hasher hasher = checksum.isPresent() ? checksum.get().getKeyType().newHasher() : null;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (OutputStream out = destination.getOutputStream()) {
+      for (int i = 0; i < segments; i++) {
+        try (InputStream in = partialDir.getRelative("segment-" + i).getInputStream()) {
+          int amount;
+          while ((amount = in.read(buffer)) != -1) {
+            out.write(buffer, 0, amount);
+            if (hasher != null) {
+              hasher.putBytes(buffer, 0, amount);
+            }
+          }
+        }
+      }
+    }
+    if (hasher != null) {
+      HashCode actual = hasher.hash();
+      if (!actual.equals(checksum.get().getHashCode())) {
+        // Retrying would only download the same bytes again, so the caller deletes the ranges.
+        destination.delete();
+        throw new UnrecoverableHttpException(
+            String.format("Checksum was %s but wanted %s", actual, checksum.get().getHashCode()));
+      }
+    }
+  }
+
+  @Nullable
+  private static Matcher getContentRange(HttpURLConnection connection) throws IOException {
+    if (connection.getResponseCode() != 206) {
+      return null;
+    }
+    Matcher range =
+        CONTENT_RANGE.matcher(Strings.nullToEmpty(connection.getHeaderField("Content-Range")));
+    return range.matches() ? range : null;
+  }
+
+  private static Function<URL, ImmutableMap<String, String>> withExtraHeaders(
+      Function<URL, ImmutableMap<String, String>> headers, Map<String, String> extraHeaders) {
+    return url -> {
+      Map<String, String> result = new HashMap<>(headers.apply(url));
+      result.putAll(extraHeaders);
+      return ImmutableMap.copyOf(result);
+    };
+  }
+
+  /** Reports the number of bytes downloaded over all connections. */
+  private class Progress {
+    private final URL url;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong nextEvent;
+
+    Progress(URL url) {
+      this.url = url;
+      this.nextEvent = new AtomicLong(clock.currentTimeMillis() + PROGRESS_INTERVAL_MS);
+      eventHandler.post(new DownloadProgressEvent(url, url, 0, false));
+    }
+
+    void add(long amount) {
+      long total = bytesRead.addAndGet(amount);
+      long now = clock.currentTimeMillis();
+      long next = nextEvent.get();
+      if (now < next || !nextEvent.compareAndSet(next, now + PROGRESS_INTERVAL_MS)) {
+        return;
+      }
+      eventHandler.post(new DownloadProgressEvent(url, url, total, false));
+      eventHandler.handle(
+          Event.progress(String.format(locale, "Downloading %s: %,d bytes", url, total)));
+    }
+  }
+}
@@ -724,6 +724,7 @@ public class SkylarkRepositoryContext
             .setArchivePath(archivePath.getPath())
             .setRepositoryPath(outputPath.getPath())
             .setPrefix(stripPrefix)
+            .setEventHandler(env.getListener())
             .build());
     env.getListener().post(new ExtractProgress(outputPath.getPath().toString()));
   }
@@ -818,6 +819,7 @@ public class SkylarkRepositoryContext
               .setArchivePath(downloadedPath)
               .setRepositoryPath(outputPath.getPath())
               .setPrefix(stripPrefix)
+              .setEventHandler(env.getListener())
               .build());
       env.getListener().post(new ExtractProgress(outputPath.getPath().toString()));
     }
@@ -22,14 +22,17 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.protobuf.CodedOutputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A simple {@link BuildEventTransport} that writes a varint delimited binary representation of
  * {@link BuildEvent} protocol buffers to a file.
  */
 public final class BinaryFormatFileTransport extends FileTransport {
+  // Only used by the writer thread, which always writes to the same stream.
+  private CodedOutputStream codedOut;
+
   public BinaryFormatFileTransport(
       BufferedOutputStream outputStream,
       BuildEventProtocolOptions options,
@@ -44,16 +47,13 @@ public final class BinaryFormatFileTransport extends FileTransport {
   }
 
   @Override
-  protected byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent) {
-    final int size = buildEvent.getSerializedSize();
-    ByteArrayOutputStream bos =
-        new ByteArrayOutputStream(CodedOutputStream.computeUInt32SizeNoTag(size) + size);
-    try {
-      buildEvent.writeDelimitedTo(bos);
-    } catch (IOException e) {
-      throw new RuntimeException(
-          "Unexpected error serializing protobuf to in memory outputstream.", e);
+  protected void writeEvent(BuildEventStreamProtos.BuildEvent buildEvent, OutputStream out)
+      throws IOException {
+    if (codedOut == null) {
+      codedOut = CodedOutputStream.newInstance(out);
     }
-    return bos.toByteArray();
+    codedOut.writeUInt32NoTag(buildEvent.getSerializedSize());
+    buildEvent.writeTo(codedOut);
+    codedOut.flush();
   }
 }
@@ -17,8 +17,8 @@ package com.google.devtools.build.lib.buildeventstream.transports;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Throwables;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -36,17 +36,22 @@ import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.concurrent.ThreadSafe;
@@ -54,12 +59,24 @@ import javax.annotation.concurrent.ThreadSafe;
 /**
  * Non-blocking file transport.
  *
- * <p>Implementors of this class need to implement {@code #sendBuildEvent(BuildEvent)} which
- * serializes the build event and writes it to a file.
+ * <p>Implementors of this class need to implement {@link #writeEvent} which serializes the build
+ * event directly into the file's stream.
+ *
+ * <p>Events are queued until their referenced files are uploaded and a writer thread writes them
+ * in order. The queue is bounded: when the writer falls behind by {@link
+ * SequentialWriter#QUEUE_CAPACITY} events, {@link #sendBuildEvent} blocks until it catches up.
+ * Once the writer has exited, e.g. because writing to the file failed, events are dropped without
+ * blocking.
  */
-abstract class FileTransport implements BuildEventTransport {
+public abstract class FileTransport implements BuildEventTransport {
   private static final Logger logger = Logger.getLogger(FileTransport.class.getName());
 
+  /**
+   * The transports whose writers have not exited yet. A command waits for the transports of the
+   * previous one to be closed, so these all belong to the current command.
+   */
+  private static final Set<FileTransport> openTransports = ConcurrentHashMap.newKeySet();
+
   private final BuildEventProtocolOptions options;
   private final BuildEventArtifactUploader uploader;
   private final SequentialWriter writer;
@@ -78,8 +95,43 @@ abstract class FileTransport implements BuildEventTransport {
     this.uploader = uploader;
     this.options = options;
     this.writer =
-        new SequentialWriter(outputStream, this::serializeEvent, uploader, timeoutExecutor);
+        new SequentialWriter(
+            outputStream,
+            this::writeEvent,
+            uploader,
+            timeoutExecutor,
+            SequentialWriter.QUEUE_CAPACITY);
     this.namer = namer;
+    openTransports.add(this);
+    writer.closeFuture.addListener(
+        () -> openTransports.remove(this), MoreExecutors.directExecutor());
+  }
+
+  /** Returns the number of bytes that the open transports have written to their files so far. */
+  public static long getOpenTransportsBytesWritten() {
+    long bytesWritten = 0;
+    for (FileTransport transport : openTransports) {
+      bytesWritten += transport.writer.getBytesWritten();
+    }
+    return bytesWritten;
+  }
+
+  /**
+   * Returns the largest number of events that waited to be written by one of the open transports,
+   * or -1 if there is no open transport.
+   */
+  public static int getOpenTransportsMaxQueueDepth() {
+    int maxQueueDepth = -1;
+    for (FileTransport transport : openTransports) {
+      maxQueueDepth = Math.max(maxQueueDepth, transport.writer.getMaxQueueDepth());
+    }
+    return maxQueueDepth;
+  }
+
+  /** Serializes a build event into the stream of the file. */
+  @FunctionalInterface
+  interface EventWriter {
+    void write(BuildEventStreamProtos.BuildEvent buildEvent, OutputStream out) throws IOException;
   }
 
   @ThreadSafe
@@ -93,35 +145,90 @@ abstract class FileTransport implements BuildEventTransport {
     private static final Duration FLUSH_INTERVAL =
         Duration.ofMillis(
             Long.parseLong(System.getProperty("EXPERIMENTAL_BEP_FILE_FLUSH_MILLIS", "250")));
+    /** The number of events that may wait to be written before producers are blocked. */
+    static final int QUEUE_CAPACITY =
+        Integer.parseInt(System.getProperty("EXPERIMENTAL_BEP_FILE_QUEUE_CAPACITY", "10000"));
 
     private final Thread writerThread;
-    private final BufferedOutputStream out;
-    private final Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc;
+    private final CountingOutputStream out;
+    private final EventWriter eventWriter;
     private final BuildEventArtifactUploader uploader;
     private final AtomicBoolean isClosed = new AtomicBoolean();
     private final SettableFuture<Void> closeFuture = SettableFuture.create();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    // Set when the writer stops taking events from the queue, either because it was closed or
+    // because it failed. Producers then no longer wait for room in the queue.
+    private volatile boolean writerExited;
+    private int eventsWritten;
 
     @VisibleForTesting
     final BlockingQueue<ListenableFuture<BuildEventStreamProtos.BuildEvent>> pendingWrites =
         new LinkedBlockingDeque<>();
+    // Bounds the number of events that are queued or being written; CLOSE_EVENT_FUTURE does not
+    // take a permit.
+    private final int queueCapacity;
+    private final Semaphore queuePermits;
 
     private ScheduledExecutorService timeoutExecutor;
 
     SequentialWriter(
         BufferedOutputStream outputStream,
-        Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc,
+        EventWriter eventWriter,
         BuildEventArtifactUploader uploader,
-        ScheduledExecutorService timeoutExecutor) {
+        ScheduledExecutorService timeoutExecutor,
+        int queueCapacity) {
       checkNotNull(uploader);
 
-      this.out = checkNotNull(outputStream);
+      this.out = new CountingOutputStream(checkNotNull(outputStream));
       this.writerThread = new Thread(this, "bep-local-writer");
-      this.serializeFunc = checkNotNull(serializeFunc);
+      this.eventWriter = checkNotNull(eventWriter);
       this.uploader = checkNotNull(uploader);
       this.timeoutExecutor = checkNotNull(timeoutExecutor);
+      this.queueCapacity = queueCapacity;
+      this.queuePermits = new Semaphore(queueCapacity);
       writerThread.start();
     }
 
+    /**
+     * Queues an event to be written, waiting for room in the queue if the writer is behind.
+     * Returns false if the writer exited or the thread was interrupted before the event could be
+     * queued.
+     */
+    boolean enqueue(ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF) {
+      if (writerExited) {
+        return false;
+      }
+      try {
+        queuePermits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      if (writerExited) {
+        // Pass the permit on, so that the next producer that waits for one returns as well.
+        queuePermits.release();
+        return false;
+      }
+      if (!pendingWrites.add(buildEventF)) {
+        queuePermits.release();
+        return false;
+      }
+      // Counts the event that the writer is waiting for, which is no longer in pendingWrites.
+      maxQueueDepth.accumulateAndGet(
+          queueCapacity - queuePermits.availablePermits(), Math::max);
+      return true;
+    }
+
+    /** Returns the largest number of events that were waiting to be written. */
+    int getMaxQueueDepth() {
+      return maxQueueDepth.get();
+    }
+
+    /** Returns the number of bytes written to the file so far. */
+    long getBytesWritten() {
+      return out.getCount();
+    }
+
     @Override
     public void run() {
       ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF;
@@ -131,8 +238,10 @@ abstract class FileTransport implements BuildEventTransport {
             != CLOSE_EVENT_FUTURE) {
           if (buildEventF != null) {
             BuildEventStreamProtos.BuildEvent buildEvent = buildEventF.get();
-            byte[] serialized = serializeFunc.apply(buildEvent);
-            out.write(serialized);
+            eventWriter.write(buildEvent, out);
+            eventsWritten++;
+            // The event that is waiting for its upload still counts towards the capacity.
+            queuePermits.release();
           }
           Instant now = Instant.now();
           if (buildEventF == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
@@ -147,6 +256,9 @@ abstract class FileTransport implements BuildEventTransport {
       } catch (IOException | InterruptedException | CancellationException e) {
         exitFailure(e);
       } finally {
+        writerExited = true;
+        // Wakes up a producer that waits for room in the queue, which passes the permit on.
+        queuePermits.release();
         try {
           try {
             out.flush();
@@ -158,6 +270,10 @@ abstract class FileTransport implements BuildEventTransport {
         } catch (IOException e) {
           logger.log(Level.SEVERE, "Failed to close BEP file output stream.", e);
         }
+        logger.info(
+            String.format(
+                "Wrote %d BEP events (%d bytes) to file; at most %d events were queued",
+                eventsWritten, getBytesWritten(), getMaxQueueDepth()));
         closeFuture.set(null);
       }
     }
@@ -228,12 +344,20 @@ abstract class FileTransport implements BuildEventTransport {
     if (writer.isClosed.get()) {
       return;
     }
-    if (!writer.pendingWrites.add(asStreamProto(event, namer))) {
+    if (!writer.enqueue(asStreamProto(event, namer))) {
       logger.log(Level.SEVERE, "Failed to add BEP event to the write queue");
     }
   }
 
-  protected abstract byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent);
+  /** Upper bound on the size of the buffers that subclasses reuse across events. */
+  static final int MAX_RETAINED_CHARS = 1 << 20;
+
+  /**
+   * Writes the serialized form of {@code buildEvent} to {@code out}, without buffering the whole
+   * event. Only called from the writer thread, always with the same stream.
+   */
+  protected abstract void writeEvent(BuildEventStreamProtos.BuildEvent buildEvent, OutputStream out)
+      throws IOException;
 
   @Override
   public ListenableFuture<Void> close() {
@@ -14,7 +14,6 @@
 
 package com.google.devtools.build.lib.buildeventstream.transports;
 
-import com.google.common.base.Charsets;
 import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
 import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
@@ -23,12 +22,21 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A simple {@link BuildEventTransport} that writes the JSON representation of the protocol-buffer
  * representation of the events to a file.
  */
 public final class JsonFormatFileTransport extends FileTransport {
+  private static final JsonFormat.Printer PRINTER =
+      JsonFormat.printer().omittingInsignificantWhitespace();
+
+  // Only used by the writer thread.
+  private final StringBuilder json = new StringBuilder();
+  private final Utf8Encoder encoder = new Utf8Encoder();
+
   public JsonFormatFileTransport(
       BufferedOutputStream outputStream,
       BuildEventProtocolOptions options,
@@ -43,17 +51,24 @@ public final class JsonFormatFileTransport extends FileTransport {
   }
 
   @Override
-  protected byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent) {
-    String protoJsonRepresentation;
+  protected void writeEvent(BuildEventStreamProtos.BuildEvent buildEvent, OutputStream out)
+      throws IOException {
+    json.setLength(0);
     try {
-      protoJsonRepresentation =
-          JsonFormat.printer().omittingInsignificantWhitespace().print(buildEvent) + "\n";
+      PRINTER.appendTo(buildEvent, json);
+      json.append('\n');
     } catch (InvalidProtocolBufferException e) {
       // We don't expect any unknown Any fields in our protocol buffer. Nevertheless, handle
       // the exception gracefully and, at least, return valid JSON with an id field.
-      protoJsonRepresentation =
-          "{\"id\" : \"unknown\", \"exception\" : \"InvalidProtocolBufferException\"}\n";
+      json.setLength(0);
+      json.append(
+          "{\"id\" : \"unknown\", \"exception\" : \"InvalidProtocolBufferException\"}\n");
+    }
+    encoder.write(json, out);
+    // Don't hold on to the memory of an exceptionally large event.
+    if (json.length() > MAX_RETAINED_CHARS) {
+      json.setLength(0);
+      json.trimToSize();
     }
-    return protoJsonRepresentation.getBytes(Charsets.UTF_8);
   }
 }
@@ -14,7 +14,6 @@
 
 package com.google.devtools.build.lib.buildeventstream.transports;
 
-import com.google.common.base.Charsets;
 import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
 import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
@@ -22,6 +21,8 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.protobuf.TextFormat;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A simple {@link BuildEventTransport} that writes the text representation of the protocol-buffer
@@ -30,6 +31,10 @@ import java.io.BufferedOutputStream;
  * <p>This class is used for debugging.
  */
 public final class TextFormatFileTransport extends FileTransport {
+  // Only used by the writer thread.
+  private final StringBuilder text = new StringBuilder();
+  private final Utf8Encoder encoder = new Utf8Encoder();
+
   public TextFormatFileTransport(
       BufferedOutputStream outputStream,
       BuildEventProtocolOptions options,
@@ -44,8 +49,17 @@ public final class TextFormatFileTransport extends FileTransport {
   }
 
   @Override
-  protected byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent) {
-    String protoTextRepresentation = TextFormat.printToString(buildEvent);
-    return ("event {\n" + protoTextRepresentation + "}\n\n").getBytes(Charsets.UTF_8);
+  protected void writeEvent(BuildEventStreamProtos.BuildEvent buildEvent, OutputStream out)
+      throws IOException {
+    text.setLength(0);
+    text.append("event {\n");
+    TextFormat.print(buildEvent, text);
+    text.append("}\n\n");
+    encoder.write(text, out);
+    // Don't hold on to the memory of an exceptionally large event.
+    if (text.length() > MAX_RETAINED_CHARS) {
+      text.setLength(0);
+      text.trimToSize();
+    }
   }
 }
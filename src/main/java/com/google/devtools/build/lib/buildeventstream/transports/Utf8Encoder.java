@@ -0,0 +1,57 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes characters to an {@link OutputStream} as UTF-8 through a reused buffer, without creating
+ * a {@link String} or a byte array for every write.
+ *
+ * <p>Unlike an {@link java.io.OutputStreamWriter}, it never flushes the underlying stream. It is
+ * not thread-safe.
+ */
+final class Utf8Encoder {
+  private final CharsetEncoder encoder =
+      UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+  void write(CharSequence chars, OutputStream out) throws IOException {
+    CharBuffer in = CharBuffer.wrap(chars);
+    encoder.reset();
+    while (encoder.encode(in, buffer, true).isOverflow()) {
+      drain(out);
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      drain(out);
+    }
+    drain(out);
+  }
+
+  private void drain(OutputStream out) throws IOException {
+    out.write(buffer.array(), 0, buffer.position());
+    buffer.clear();
+  }
+}
@@ -370,20 +370,30 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
    *   <li>Catches any {@link Throwable} thrown by {@code runnable.run()}, and if it is the most
    *       severe {@link Throwable} seen by this {@link AbstractQueueVisitor}, assigns it to {@link
    *       #unhandled}, and sets {@link #jobsMustBeStopped} if necessary,
+   *   <li>Records its queue wait and run time in {@link QueueVisitorStats}, if enabled,
    *   <li>And, lastly, calls {@link #decrementRemainingTasks}.
    * </ul>
    */
   protected final class WrappedRunnable implements Runnable, Comparable<WrappedRunnable> {
     private final Runnable originalRunnable;
     private volatile boolean ran;
+    private final boolean recordStats;
+    private final long enqueueTimeNanos;
 
     private WrappedRunnable(Runnable originalRunnable) {
       this.originalRunnable = originalRunnable;
+      this.recordStats = QueueVisitorStats.instance().isEnabled();
+      this.enqueueTimeNanos = recordStats ? System.nanoTime() : 0;
     }
 
     @Override
     public void run() {
       ran = true;
+      long startTimeNanos = 0;
+      if (recordStats) {
+        QueueVisitorStats.instance().initThread();
+        startTimeNanos = System.nanoTime();
+      }
       Thread thread = null;
       boolean addedJob = false;
       try {
@@ -404,6 +414,10 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
           if (thread != null && addedJob) {
             removeJob(thread);
           }
+          if (recordStats) {
+            QueueVisitorStats.instance()
+                .recordTask(enqueueTimeNanos, startTimeNanos, System.nanoTime());
+          }
         } finally {
           decrementRemainingTasks();
         }
@@ -0,0 +1,265 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.collect.ImmutableList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograms of the tasks run by all {@link AbstractQueueVisitor}s, including {@link
+ * ForkJoinQuiescingExecutor}s: how long each task waited in the queue of the executor, how long it
+ * ran, and how long it was blocked on monitors or waiting on locks and conditions while running.
+ *
+ * <p>Every task is recorded, nothing is sampled. All counters are striped {@link LongAdder}s, so
+ * that worker threads do not contend on them. Recording is off unless {@link #enable} was called.
+ *
+ * <p>The lock wait of a thread is read from the JVM, which tracks it with millisecond resolution.
+ * To keep the overhead per task low, it is only read after tasks that ran for at least a
+ * millisecond, and the lock wait of shorter tasks is attributed to the next such task of the same
+ * thread. The total lock wait is exact, its distribution is approximate.
+ */
+public final class QueueVisitorStats {
+
+  private static final QueueVisitorStats instance = new QueueVisitorStats();
+
+  private static final long LOCK_WAIT_MIN_RUN_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private volatile boolean enabled = false;
+  private volatile boolean lockWaitEnabled = false;
+
+  private final Histogram queueWait = new Histogram();
+  private final Histogram runTime = new Histogram();
+  private final Histogram lockWait = new Histogram();
+
+  /** The blocked and waited time of each thread, in milliseconds, when it was last read. */
+  private final ThreadLocal<long[]> lastLockWaitMillis =
+      ThreadLocal.withInitial(() -> new long[] {currentThreadLockWaitMillis()});
+
+  private QueueVisitorStats() {}
+
+  public static QueueVisitorStats instance() {
+    return instance;
+  }
+
+  /** Starts recording tasks. Enables thread contention monitoring in the JVM, if supported. */
+  public void enable() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean.isThreadContentionMonitoringSupported()) {
+      threadMXBean.setThreadContentionMonitoringEnabled(true);
+      lockWaitEnabled = true;
+    }
+    enabled = true;
+  }
+
+  /** Stops recording tasks. Recorded tasks are kept until {@link #reset}. */
+  public void disable() {
+    enabled = false;
+    if (lockWaitEnabled) {
+      lockWaitEnabled = false;
+      ManagementFactory.getThreadMXBean().setThreadContentionMonitoringEnabled(false);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Forgets all recorded tasks. */
+  public void reset() {
+    queueWait.reset();
+    runTime.reset();
+    lockWait.reset();
+  }
+
+  /**
+   * Records a task. Must be called by the thread that ran the task, with the times returned by
+   * {@link System#nanoTime} when the task was enqueued, started and finished.
+   */
+  void recordTask(long enqueueTimeNanos, long startTimeNanos, long endTimeNanos) {
+    long runTimeNanos = endTimeNanos - startTimeNanos;
+    queueWait.record(startTimeNanos - enqueueTimeNanos);
+    runTime.record(runTimeNanos);
+    if (lockWaitEnabled && runTimeNanos >= LOCK_WAIT_MIN_RUN_TIME_NANOS) {
+      long[] last = lastLockWaitMillis.get();
+      long current = currentThreadLockWaitMillis();
+      lockWait.record(TimeUnit.MILLISECONDS.toNanos(current - last[0]));
+      last[0] = current;
+    }
+  }
+
+  /** Starts tracking the lock wait of the current thread, if it is not tracked yet. */
+  void initThread() {
+    if (lockWaitEnabled) {
+      lastLockWaitMillis.get();
+    }
+  }
+
+  private static long currentThreadLockWaitMillis() {
+    ThreadInfo info =
+        ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId());
+    if (info == null || info.getBlockedTime() < 0 || info.getWaitedTime() < 0) {
+      // Contention monitoring was disabled concurrently.
+      return 0;
+    }
+    return info.getBlockedTime() + info.getWaitedTime();
+  }
+
+  /** Returns the tasks recorded since the last {@link #reset}. */
+  public Snapshot snapshot() {
+    return new Snapshot(queueWait.snapshot(), runTime.snapshot(), lockWait.snapshot());
+  }
+
+  /** The recorded tasks at some point in time. */
+  public static final class Snapshot {
+    private final HistogramSnapshot queueWait;
+    private final HistogramSnapshot runTime;
+    private final HistogramSnapshot lockWait;
+
+    private Snapshot(
+        HistogramSnapshot queueWait, HistogramSnapshot runTime, HistogramSnapshot lockWait) {
+      this.queueWait = queueWait;
+      this.runTime = runTime;
+      this.lockWait = lockWait;
+    }
+
+    /** Time from enqueueing a task until it started to run. */
+    public HistogramSnapshot getQueueWait() {
+      return queueWait;
+    }
+
+    /** Time tasks spent running. */
+    public HistogramSnapshot getRunTime() {
+      return runTime;
+    }
+
+    /** Time running tasks spent blocked on monitors or waiting on locks and conditions. */
+    public HistogramSnapshot getLockWait() {
+      return lockWait;
+    }
+  }
+
+  /**
+   * A histogram of durations in nanoseconds. Bucket {@code i} counts the durations {@code d} with
+   * {@code 2^i <= max(d, 1) < 2^(i+1)}.
+   */
+  public static final class Histogram {
+    private static final int NUM_BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    public void record(long nanos) {
+      // Clocks may jump, never record negative durations.
+      nanos = Math.max(nanos, 0);
+      buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+      sumNanos.add(nanos);
+    }
+
+    public void reset() {
+      for (LongAdder bucket : buckets) {
+        bucket.reset();
+      }
+      sumNanos.reset();
+    }
+
+    public HistogramSnapshot snapshot() {
+      int numBuckets = NUM_BUCKETS;
+      long[] counts = new long[NUM_BUCKETS];
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        counts[i] = buckets[i].sum();
+      }
+      while (numBuckets > 0 && counts[numBuckets - 1] == 0) {
+        numBuckets--;
+      }
+      ImmutableList.Builder<Long> bucketCounts = ImmutableList.builder();
+      long total = 0;
+      for (int i = 0; i < numBuckets; i++) {
+        bucketCounts.add(counts[i]);
+        total += counts[i];
+      }
+      return new HistogramSnapshot(total, sumNanos.sum(), bucketCounts.build());
+    }
+  }
+
+  /** An immutable copy of a histogram of durations. */
+  public static final class HistogramSnapshot {
+    private final long count;
+    private final long sumNanos;
+    private final ImmutableList<Long> bucketCounts;
+
+    private HistogramSnapshot(long count, long sumNanos, ImmutableList<Long> bucketCounts) {
+      this.count = count;
+      this.sumNanos = sumNanos;
+      this.bucketCounts = bucketCounts;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSumNanos() {
+      return sumNanos;
+    }
+
+    /**
+     * Returns the number of durations in each bucket. Bucket {@code i} counts the durations {@code
+     * d} with {@code 2^i <= max(d, 1) < 2^(i+1)} nanoseconds. Empty trailing buckets are omitted.
+     */
+    public ImmutableList<Long> getBucketCounts() {
+      return bucketCounts;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, that is the exclusive upper bound of the
+     * bucket that contains it, or 0 if the histogram is empty.
+     */
+    public long getPercentileUpperBoundNanos(double percentile) {
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.size(); i++) {
+        seen += bucketCounts.get(i);
+        if (seen >= rank && seen > 0) {
+          return i == 62 ? Long.MAX_VALUE : 1L << (i + 1);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "count=%d, total=%dms, p50<%dus, p90<%dus, p99<%dus, max<%dus",
+          count,
+          TimeUnit.NANOSECONDS.toMillis(sumNanos),
+          ceilMicros(getPercentileUpperBoundNanos(50)),
+          ceilMicros(getPercentileUpperBoundNanos(90)),
+          ceilMicros(getPercentileUpperBoundNanos(99)),
+          ceilMicros(getPercentileUpperBoundNanos(100)));
+    }
+
+    private static long ceilMicros(long nanos) {
+      return nanos / 1000 + (nanos % 1000 == 0 ? 0 : 1);
+    }
+  }
+}
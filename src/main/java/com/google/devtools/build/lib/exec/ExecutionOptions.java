@@ -368,6 +368,18 @@ public class ExecutionOptions extends OptionsBase {
   )
   public boolean localMemoryEstimate;
 
+  @Option(
+      name = "experimental_prioritize_local_actions_by_duration",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set, actions that wait for local resources are started in the order of how long they "
+              + "took to execute in a previous build of this server, longest first, so that long "
+              + "actions on the critical path don't queue behind short ones. Has no effect unless "
+              + "--experimental_enable_critical_path_profiling is set.")
+  public boolean prioritizeLocalActionsByDuration;
+
   @Option(
       name = "local_test_jobs",
       defaultValue = "auto",
@@ -409,6 +421,19 @@ public class ExecutionOptions extends OptionsBase {
               + "number of file digests to be cached.")
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+      name = "experimental_persistent_file_digest_cache",
+      defaultValue = "null",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set, file digests are also cached in the given file, keyed by the device, inode, "
+              + "size and timestamps of the files, so that they survive server restarts. The file "
+              + "may be shared by the servers of several workspaces. Relative paths are resolved "
+              + "against the working directory. Only supported by the native Unix file system.")
+  public PathFragment persistentFileDigestCache;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
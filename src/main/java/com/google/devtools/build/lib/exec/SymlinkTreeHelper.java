@@ -34,10 +34,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Helper class responsible for the symlink tree creation. Used to generate runfiles and fileset
@@ -69,23 +67,19 @@ public final class SymlinkTreeHelper {
     return symlinkTreeRoot;
   }
 
-  /** Creates a symlink tree using direct system calls. */
-  public void createSymlinksDirectly(Path symlinkTreeRoot, Map<PathFragment, Artifact> symlinks)
-      throws IOException {
+  /**
+   * Creates a symlink tree using direct system calls. Entries of an existing tree are only touched
+   * if they differ from the given ones; this is done in parallel for large trees.
+   */
+  public SymlinkTreeMaterializer.Stats createSymlinksDirectly(
+      Path symlinkTreeRoot, Map<PathFragment, Artifact> symlinks)
+      throws IOException, InterruptedException {
     Preconditions.checkState(!filesetTree);
-    Set<Path> dirs = new HashSet<>();
+    Map<PathFragment, PathFragment> entries = new HashMap<>();
     for (Map.Entry<PathFragment, Artifact> e : symlinks.entrySet()) {
-      Path symlinkPath = symlinkTreeRoot.getRelative(e.getKey());
-      Path parentDirectory = symlinkPath.getParentDirectory();
-      if (dirs.add(parentDirectory)) {
-        parentDirectory.createDirectoryAndParents();
-      }
-      if (e.getValue() == null) {
-        FileSystemUtils.createEmptyFile(symlinkPath);
-      } else {
-        symlinkPath.createSymbolicLink(e.getValue().getPath().asFragment());
-      }
+      entries.put(e.getKey(), e.getValue() == null ? null : e.getValue().getPath().asFragment());
     }
+    return SymlinkTreeMaterializer.materialize(symlinkTreeRoot, entries);
   }
 
   /**
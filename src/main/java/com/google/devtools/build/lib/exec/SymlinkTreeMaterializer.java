@@ -0,0 +1,266 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Brings a symlink tree on disk up to date with the entries it should contain, touching only the
+ * entries that differ.
+ *
+ * <p>The existing tree is listed first. Entries that are no longer wanted or that are in the way of
+ * wanted ones are deleted, and missing directories are created. Then the wanted entries are
+ * checked and created or replaced in batches on a shared pool, which bounds the number of
+ * concurrent file system operations across all the trees being updated.
+ */
+public final class SymlinkTreeMaterializer {
+
+  private static final int THREAD_COUNT =
+      Math.max(4, Runtime.getRuntime().availableProcessors());
+
+  /** The number of entries that are checked or deleted by one task of the pool. */
+  @VisibleForTesting static final int BATCH_SIZE = 1000;
+
+  private static final ExecutorService EXECUTOR =
+      Executors.newFixedThreadPool(
+          THREAD_COUNT,
+          new ThreadFactoryBuilder().setNameFormat("symlink-tree-%d").setDaemon(true).build());
+
+  /** The number of entries of a tree that were touched, or not, by an update. */
+  public static final class Stats {
+    private final int created;
+    private final int replaced;
+    private final int deleted;
+    private final int unchanged;
+
+    private Stats(int created, int replaced, int deleted, int unchanged) {
+      this.created = created;
+      this.replaced = replaced;
+      this.deleted = deleted;
+      this.unchanged = unchanged;
+    }
+
+    /** Returns the number of entries that didn't exist. */
+    public int getCreated() {
+      return created;
+    }
+
+    /** Returns the number of entries that existed with another target or type. */
+    public int getReplaced() {
+      return replaced;
+    }
+
+    /** Returns the number of entries that were deleted, counting deleted directories as one. */
+    public int getDeleted() {
+      return deleted;
+    }
+
+    /** Returns the number of entries that were already up to date. */
+    public int getUnchanged() {
+      return unchanged;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d created, %d replaced, %d deleted, %d unchanged",
+          created, replaced, deleted, unchanged);
+    }
+  }
+
+  private interface EntryVisitor<T> {
+    void visit(T entry) throws IOException;
+  }
+
+  private SymlinkTreeMaterializer() {}
+
+  /**
+   * Updates the tree below {@code root} so that it contains exactly the given entries.
+   *
+   * @param entries the symlink targets by path relative to {@code root}, or null for entries that
+   *     are empty files
+   */
+  static Stats materialize(Path root, Map<PathFragment, PathFragment> entries)
+      throws IOException, InterruptedException {
+    Map<PathFragment, Dirent.Type> existing = new HashMap<>();
+    if (root.isDirectory(Symlinks.NOFOLLOW)) {
+      list(root, PathFragment.EMPTY_FRAGMENT, existing);
+    } else {
+      if (root.exists(Symlinks.NOFOLLOW)) {
+        root.delete();
+      }
+      root.createDirectoryAndParents();
+    }
+
+    Set<PathFragment> directories = new HashSet<>();
+    for (PathFragment entry : entries.keySet()) {
+      for (PathFragment dir = entry.getParentDirectory();
+          !dir.isEmpty() && directories.add(dir);
+          dir = dir.getParentDirectory()) {}
+    }
+
+    // Delete the stale entries, i.e. the unwanted ones and those of the wrong kind. Below a stale
+    // directory, only the directory itself is deleted.
+    Set<PathFragment> stale = new HashSet<>();
+    for (Map.Entry<PathFragment, Dirent.Type> e : existing.entrySet()) {
+      boolean wanted =
+          directories.contains(e.getKey())
+              ? e.getValue() == Dirent.Type.DIRECTORY
+              : entries.containsKey(e.getKey())
+                  && (e.getValue() == Dirent.Type.FILE || e.getValue() == Dirent.Type.SYMLINK);
+      if (!wanted) {
+        stale.add(e.getKey());
+      }
+    }
+    List<PathFragment> toDelete = new ArrayList<>();
+    for (PathFragment path : stale) {
+      if (!hasStaleAncestor(path, stale)) {
+        toDelete.add(path);
+      }
+    }
+    existing.keySet().removeIf(path -> stale.contains(path) || hasStaleAncestor(path, stale));
+    forEachInBatches(toDelete, path -> root.getRelative(path).deleteTree());
+
+    // Create the missing directories, parents first.
+    List<PathFragment> missingDirectories = new ArrayList<>();
+    for (PathFragment dir : directories) {
+      if (!existing.containsKey(dir)) {
+        missingDirectories.add(dir);
+      }
+    }
+    missingDirectories.sort(Comparator.comparingInt(PathFragment::segmentCount));
+    for (PathFragment dir : missingDirectories) {
+      root.getRelative(dir).createDirectory();
+    }
+
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger replaced = new AtomicInteger();
+    AtomicInteger unchanged = new AtomicInteger();
+    forEachInBatches(
+        new ArrayList<>(entries.entrySet()),
+        e -> {
+          Path path = root.getRelative(e.getKey());
+          PathFragment target = e.getValue();
+          Dirent.Type type = existing.get(e.getKey());
+          if (type == null) {
+            create(path, target);
+            created.incrementAndGet();
+          } else if (isUpToDate(path, type, target)) {
+            unchanged.incrementAndGet();
+          } else {
+            path.delete();
+            create(path, target);
+            replaced.incrementAndGet();
+          }
+        });
+    return new Stats(created.get(), replaced.get(), toDelete.size(), unchanged.get());
+  }
+
+  private static void list(Path dir, PathFragment relative, Map<PathFragment, Dirent.Type> result)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      PathFragment child = relative.getRelative(dirent.getName());
+      result.put(child, dirent.getType());
+      if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        list(dir.getChild(dirent.getName()), child, result);
+      }
+    }
+  }
+
+  private static boolean hasStaleAncestor(PathFragment path, Set<PathFragment> stale) {
+    for (PathFragment dir = path.getParentDirectory();
+        !dir.isEmpty();
+        dir = dir.getParentDirectory()) {
+      if (stale.contains(dir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isUpToDate(Path path, Dirent.Type type, @Nullable PathFragment target)
+      throws IOException {
+    if (target == null) {
+      return type == Dirent.Type.FILE && path.getFileSize(Symlinks.NOFOLLOW) == 0;
+    }
+    return type == Dirent.Type.SYMLINK && path.readSymbolicLink().equals(target);
+  }
+
+  private static void create(Path path, @Nullable PathFragment target) throws IOException {
+    if (target == null) {
+      FileSystemUtils.createEmptyFile(path);
+    } else {
+      path.createSymbolicLink(target);
+    }
+  }
+
+  /**
+   * Visits the entries on the pool, in batches of {@link #BATCH_SIZE}, or on the calling thread if
+   * there is only one batch. Fails with the first failure, after cancelling the remaining batches.
+   */
+  private static <T> void forEachInBatches(List<T> entries, EntryVisitor<T> visitor)
+      throws IOException, InterruptedException {
+    if (entries.size() <= BATCH_SIZE) {
+      for (T entry : entries) {
+        visitor.visit(entry);
+      }
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<>();
+    for (List<T> batch : Lists.partition(entries, BATCH_SIZE)) {
+      futures.add(
+          EXECUTOR.submit(
+              () -> {
+                for (T entry : batch) {
+                  visitor.visit(entry);
+                }
+                return null;
+              }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -105,11 +105,8 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
           if (inputManifest == null) {
             // If we don't have an input manifest, then create a file containing a fingerprint of
             // the runfiles object.
-            Fingerprint fp = new Fingerprint();
-            action.getRunfiles().fingerprint(fp);
-            String hexDigest = fp.hexDigestAndReset();
             try {
-              FileSystemUtils.writeContentAsLatin1(outputManifest, hexDigest);
+              FileSystemUtils.writeContentAsLatin1(outputManifest, runfilesFingerprint(action));
             } catch (IOException e) {
               throw new EnvironmentalExecException(
                   "Failed to link output manifest '" + outputManifest.getPathString() + "'", e);
@@ -129,19 +126,39 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
           createSymlinkTreeHelper(action, actionExecutionContext).copyManifest();
         } else if (action.getInputManifest() == null
             || (action.inprocessSymlinkCreation() && !action.isFilesetTree())) {
+          Path inputManifest =
+              action.getInputManifest() == null
+                  ? null
+                  : actionExecutionContext.getInputPath(action.getInputManifest());
+          Path outputManifest = actionExecutionContext.getInputPath(action.getOutputManifest());
           try {
-            createSymlinkTreeHelper(action, actionExecutionContext)
-                .createSymlinksDirectly(
-                    action.getOutputManifest().getPath().getParentDirectory(),
-                    action
-                        .getRunfiles()
-                        .getRunfilesInputs(
-                            actionExecutionContext.getEventHandler(),
-                            action.getOwner().getLocation(),
-                            actionExecutionContext.getPathResolver()));
+            // The output manifest is written last, so that a tree whose update didn't complete is
+            // never mistaken for an up-to-date one.
+            outputManifest.delete();
+            SymlinkTreeMaterializer.Stats stats =
+                createSymlinkTreeHelper(action, actionExecutionContext)
+                    .createSymlinksDirectly(
+                        outputManifest.getParentDirectory(),
+                        action
+                            .getRunfiles()
+                            .getRunfilesInputs(
+                                actionExecutionContext.getEventHandler(),
+                                action.getOwner().getLocation(),
+                                actionExecutionContext.getPathResolver()));
+            logger.info("Updated " + outputManifest.getParentDirectory() + ": " + stats);
           } catch (IOException e) {
             throw new EnvironmentalExecException(e).toActionExecutionException(action);
           }
+          try {
+            if (inputManifest == null) {
+              FileSystemUtils.writeContentAsLatin1(outputManifest, runfilesFingerprint(action));
+            } else {
+              FileSystemUtils.copyFile(inputManifest, outputManifest);
+            }
+          } catch (IOException e) {
+            throw new EnvironmentalExecException(
+                "Failed to create output manifest '" + outputManifest.getPathString() + "'", e);
+          }
         } else {
           Map<String, String> resolvedEnv = new LinkedHashMap<>();
           action.getEnvironment().resolve(resolvedEnv, actionExecutionContext.getClientEnv());
@@ -159,6 +176,13 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
     }
   }
 
+  /** Returns a fingerprint of the runfiles, which stands in for a missing input manifest. */
+  private static String runfilesFingerprint(SymlinkTreeAction action) {
+    Fingerprint fp = new Fingerprint();
+    action.getRunfiles().fingerprint(fp);
+    return fp.hexDigestAndReset();
+  }
+
   private static SymlinkTreeHelper createSymlinkTreeHelper(
       SymlinkTreeAction action, ActionExecutionContext actionExecutionContext) {
     return new SymlinkTreeHelper(
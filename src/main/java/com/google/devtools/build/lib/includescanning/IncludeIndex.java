@@ -0,0 +1,429 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.includescanning.IncludeParser.GrepIncludesFileType;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent index of the inclusions parsed out of files, keyed by the digest of their contents,
+ * so that files don't have to be parsed again after a server restart.
+ *
+ * <p>The index is a directory of append-only segment files. Each open index appends the entries
+ * it learns to a segment of its own, which it holds a lock on, so the directory may be shared by
+ * the servers of several workspaces without any coordination beyond file locks. When an index is
+ * opened, the segments of live servers are memory-mapped and the entries of all of them are
+ * indexed in memory by key, which only takes a scan of the record headers. The segments of
+ * servers that are gone are compacted into the new segment and deleted, so the number of segments
+ * stays bounded by the number of servers that ever ran concurrently. Entries appended by other
+ * servers after the index was opened are not seen. Segments are only created and scanned under a
+ * lock on a file in the directory, so that nobody sees a segment before its owner has locked it.
+ *
+ * <p>The total size of the segments is bounded. Compaction keeps the most recent entries, the
+ * newest segments first and the last records of each segment, up to half of the space that the
+ * segments of live servers leave; the rest of the space is for the entries learnt later. When the
+ * own segment is full, new entries are dropped until the next server restart.
+ *
+ * <p>Entries are keyed by a fingerprint of the file digest, the digest function and the kind of
+ * parser, and list the inclusions in the order in which they appear, before any hints are applied.
+ * Only works with files on the native file system.
+ */
+final class IncludeIndex implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(IncludeIndex.class.getName());
+
+  private static final int MAGIC = 0x49494458;
+  private static final int FORMAT_VERSION = 1;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".idx";
+  private static final String LOCK_FILE = "lock";
+
+  @VisibleForTesting static final long DEFAULT_MAX_SIZE_BYTES = 1L << 30;
+
+  // Each record is a SHA-256 fingerprint, the length of the entry and the entry.
+  private static final int KEY_SIZE = 32;
+  private static final int RECORD_HEADER_SIZE = KEY_SIZE + 4;
+
+  /** The number of bits of a location that hold the offset of a record in its segment. */
+  private static final int OFFSET_BITS = 40;
+
+  private final Path directory;
+  private final Path ownPath;
+  private final FileChannel ownChannel;
+  private final FileLock ownLock;
+  private final long maxSizeBytes;
+  private final long maxOwnSize;
+  private long ownSize;
+  private boolean full;
+
+  /**
+   * The segments, by number. The own segment has number 0; its buffer only maps the records
+   * compacted into it when the index was opened, later ones are read from {@link #ownChannel}.
+   */
+  private final List<ByteBuffer> segments = new ArrayList<>();
+
+  /** The location of every entry, as the number of its segment and the offset of its record. */
+  private final ConcurrentMap<HashCode, Long> locations = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  IncludeIndex(Path directory) throws IOException {
+    this(directory, DEFAULT_MAX_SIZE_BYTES);
+  }
+
+  IncludeIndex(Path directory, long maxSizeBytes) throws IOException {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+    directory.createDirectoryAndParents();
+    // File locks are held by the process, so indices of this server have to take turns too.
+    synchronized (IncludeIndex.class) {
+      try (FileChannel lockChannel =
+              FileChannel.open(
+                  directory.getChild(LOCK_FILE).getPathFile().toPath(),
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE);
+          FileLock directoryLock = lockChannel.lock()) {
+        ownPath = directory.getChild(UUID.randomUUID() + SEGMENT_SUFFIX);
+        ownChannel =
+            FileChannel.open(
+                ownPath.getPathFile().toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ownLock = ownChannel.lock();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(header);
+        ownSize = SEGMENT_HEADER_SIZE;
+        segments.add(null);
+        long liveSize = 0;
+        List<DeadSegment> deadSegments = new ArrayList<>();
+        for (Path segment : directory.getDirectoryEntries()) {
+          if (segment.getBaseName().endsWith(SEGMENT_SUFFIX) && !segment.equals(ownPath)) {
+            try {
+              liveSize += openSegment(segment, deadSegments);
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to open include index segment " + segment, e);
+            }
+          }
+        }
+        maxOwnSize = Math.max(SEGMENT_HEADER_SIZE, maxSizeBytes - liveSize);
+        deadSegments.sort((a, b) -> Long.compare(b.lastModified, a.lastModified));
+        long budget = maxOwnSize / 2;
+        for (DeadSegment segment : deadSegments) {
+          compact(segment.buffer, budget - ownSize);
+          segment.path.delete();
+        }
+        segments.set(0, ownChannel.map(FileChannel.MapMode.READ_ONLY, 0, ownSize));
+      }
+    }
+  }
+
+  /** A segment that no server holds, which is compacted into the own segment. */
+  private static final class DeadSegment {
+    final Path path;
+    final ByteBuffer buffer;
+    final long lastModified;
+
+    DeadSegment(Path path, ByteBuffer buffer, long lastModified) {
+      this.path = path;
+      this.buffer = buffer;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * Indexes the entries of another segment and returns its size. If no server holds the segment,
+   * it is added to the dead segments instead and its size doesn't count.
+   */
+  private long openSegment(Path segment, List<DeadSegment> deadSegments) throws IOException {
+    long lastModified = segment.getLastModifiedTime();
+    try (FileChannel channel =
+        FileChannel.open(
+            segment.getPathFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // The segment of another index of this server.
+        lock = null;
+      }
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("segment is too large: " + size);
+      }
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (lock == null) {
+        segments.add(buffer);
+        indexRecords(buffer, segments.size() - 1);
+        return size;
+      }
+      // Nobody can take the segment over while the directory is locked, so the lock on the segment
+      // itself can go.
+      lock.release();
+      deadSegments.add(new DeadSegment(segment, buffer, lastModified));
+      return 0;
+    }
+  }
+
+  /** Adds the location of all complete records of a segment that aren't indexed yet. */
+  private void indexRecords(ByteBuffer segment, int number) {
+    if (!hasValidHeader(segment)) {
+      return;
+    }
+    int offset = SEGMENT_HEADER_SIZE;
+    while (segment.limit() - offset >= RECORD_HEADER_SIZE) {
+      int length = segment.getInt(offset + KEY_SIZE);
+      if (length < 0 || segment.limit() - offset - RECORD_HEADER_SIZE < length) {
+        // The server was killed while it appended this record.
+        break;
+      }
+      locations.putIfAbsent(readKey(segment, offset), location(number, offset));
+      offset += RECORD_HEADER_SIZE + length;
+    }
+  }
+
+  /**
+   * Appends the last complete records of a segment that aren't indexed yet to the own segment, as
+   * many as fit in the given number of bytes.
+   */
+  private void compact(ByteBuffer segment, long budget) throws IOException {
+    if (!hasValidHeader(segment) || budget <= 0) {
+      return;
+    }
+    List<Integer> offsets = new ArrayList<>();
+    int offset = SEGMENT_HEADER_SIZE;
+    while (segment.limit() - offset >= RECORD_HEADER_SIZE) {
+      int length = segment.getInt(offset + KEY_SIZE);
+      if (length < 0 || segment.limit() - offset - RECORD_HEADER_SIZE < length) {
+        break;
+      }
+      offsets.add(offset);
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    int end = offset;
+    int first = 0;
+    while (first < offsets.size() && end - offsets.get(first) > budget) {
+      first++;
+    }
+    for (int i = first; i < offsets.size(); i++) {
+      int start = offsets.get(i);
+      HashCode key = readKey(segment, start);
+      if (!locations.containsKey(key)) {
+        ByteBuffer record = segment.duplicate();
+        record.position(start).limit(i + 1 < offsets.size() ? offsets.get(i + 1) : end);
+        append(key, record);
+      }
+    }
+  }
+
+  private static boolean hasValidHeader(ByteBuffer segment) {
+    return segment.limit() >= SEGMENT_HEADER_SIZE
+        && segment.getInt(0) == MAGIC
+        && segment.getInt(4) == FORMAT_VERSION;
+  }
+
+  private static HashCode readKey(ByteBuffer segment, int offset) {
+    byte[] key = new byte[KEY_SIZE];
+    for (int i = 0; i < KEY_SIZE; i++) {
+      key[i] = segment.get(offset + i);
+    }
+    return HashCode.fromBytes(key);
+  }
+
+  private static long location(int segment, long offset) {
+    return ((long) segment << OFFSET_BITS) | offset;
+  }
+
+  /**
+   * Returns the inclusions of the file with the given digest, or null if it was never parsed by
+   * the given kind of parser.
+   */
+  @Nullable
+  List<Inclusion> get(
+      byte[] digest, DigestHashFunction digestFunction, GrepIncludesFileType fileType) {
+    Long location = locations.get(key(digest, digestFunction, fileType));
+    if (location == null) {
+      misses.increment();
+      return null;
+    }
+    int segment = (int) (location >>> OFFSET_BITS);
+    long offset = location & ((1L << OFFSET_BITS) - 1);
+    try {
+      List<Inclusion> inclusions = readEntry(segment, offset);
+      hits.increment();
+      return inclusions;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read include index entry of " + ownPath, e);
+      misses.increment();
+      return null;
+    }
+  }
+
+  /** Records the inclusions of the file with the given digest. */
+  void put(
+      byte[] digest,
+      DigestHashFunction digestFunction,
+      GrepIncludesFileType fileType,
+      List<Inclusion> inclusions) {
+    HashCode key = key(digest, digestFunction, fileType);
+    if (locations.containsKey(key)) {
+      return;
+    }
+    List<byte[]> paths = new ArrayList<>(inclusions.size());
+    int length = 4;
+    for (Inclusion inclusion : inclusions) {
+      byte[] path = inclusion.getPathString().getBytes(UTF_8);
+      paths.add(path);
+      length += 5 + path.length;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+    record.put(key.asBytes()).putInt(length).putInt(inclusions.size());
+    for (int i = 0; i < inclusions.size(); i++) {
+      record.put((byte) inclusions.get(i).kind.ordinal());
+      record.putInt(paths.get(i).length).put(paths.get(i));
+    }
+    record.flip();
+    try {
+      append(key, record);
+    } catch (IOException e) {
+      // The file is just parsed again the next time.
+      logger.log(Level.WARNING, "Failed to append to include index segment " + ownPath, e);
+    }
+  }
+
+  private synchronized void append(HashCode key, ByteBuffer record) throws IOException {
+    if (locations.containsKey(key)) {
+      return;
+    }
+    long offset = ownSize;
+    int size = record.remaining();
+    if (ownSize + size > maxOwnSize) {
+      if (!full) {
+        full = true;
+        logger.info("Include index segment " + ownPath + " is full, dropping new entries");
+      }
+      return;
+    }
+    writeFully(record);
+    ownSize += size;
+    locations.put(key, location(0, offset));
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      ownChannel.write(buffer);
+    }
+  }
+
+  private List<Inclusion> readEntry(int segment, long offset) throws IOException {
+    ByteBuffer entry;
+    if (segment == 0 && offset >= segments.get(0).limit()) {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      readFully(header, offset + KEY_SIZE);
+      entry = ByteBuffer.allocate(header.getInt(0));
+      readFully(entry, offset + RECORD_HEADER_SIZE);
+      entry.flip();
+    } else {
+      entry = segments.get(segment).duplicate();
+      entry.position((int) offset + RECORD_HEADER_SIZE);
+    }
+    int size = entry.getInt();
+    Kind[] kinds = Kind.values();
+    List<Inclusion> inclusions = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      int kind = entry.get();
+      if (kind < 0 || kind >= kinds.length) {
+        throw new IOException("invalid inclusion kind " + kind);
+      }
+      byte[] path = new byte[entry.getInt()];
+      entry.get(path);
+      inclusions.add(new Inclusion(new String(path, UTF_8), kinds[kind]));
+    }
+    return inclusions;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (ownChannel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("include index segment " + ownPath + " is truncated");
+      }
+    }
+  }
+
+  private static HashCode key(
+      byte[] digest, DigestHashFunction digestFunction, GrepIncludesFileType fileType) {
+    return HashCode.fromBytes(
+        new Fingerprint(DigestHashFunction.SHA256)
+            .addString(digestFunction.toString())
+            .addString(fileType.getFileType())
+            .addBytes(digest)
+            .digestAndReset());
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  @VisibleForTesting
+  int getSegmentCount() {
+    return segments.size();
+  }
+
+  Path getDirectory() {
+    return directory;
+  }
+
+  long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Releases the own segment, which the next index opened on the directory compacts. */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      ownLock.release();
+    } finally {
+      ownChannel.close();
+    }
+  }
+}
@@ -33,6 +33,7 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
@@ -58,6 +59,9 @@ import com.google.devtools.build.skyframe.ValueOrException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -561,16 +565,31 @@ class IncludeParser {
     }
   }
 
+  /**
+   * Files at least this large are memory-mapped rather than read into the heap. Mapping a file
+   * costs more than reading a small one, and every mapping counts against the process limit until
+   * its buffer is collected.
+   */
+  private static final int MIN_MAPPED_FILE_SIZE = 64 * 1024;
+
   /** The externally-scoped immutable hints helper that is shared by all scanners. */
   private final Hints hints;
 
+  /** The persistent index of the inclusions of parsed files, or null to always parse them. */
+  @Nullable private final IncludeIndex index;
+
   /**
    * Constructs a new FileParser.
    *
    * @param hints regexps for converting computed includes into simple strings
    */
   public IncludeParser(Hints hints) {
+    this(hints, /*index=*/ null);
+  }
+
+  IncludeParser(Hints hints, @Nullable IncludeIndex index) {
     this.hints = hints;
+    this.index = index;
   }
 
   /**
@@ -581,17 +600,17 @@ class IncludeParser {
    * @param pos the starting position
    * @return the resulting position after skipping whitespace and comments.
    */
-  protected static int skipWhitespace(byte[] chars, int pos, int end) {
+  protected static int skipWhitespace(ByteBuffer chars, int pos, int end) {
     while (pos < end) {
-      if (Character.isWhitespace(chars[pos] & 0xff)) {
+      if (Character.isWhitespace(chars.get(pos) & 0xff)) {
         pos++;
-      } else if (chars[pos] == '\\' && pos + 1 < end && chars[pos + 1] == '\n') {
+      } else if (chars.get(pos) == '\\' && pos + 1 < end && chars.get(pos + 1) == '\n') {
         pos++;
-      } else if (chars[pos] == '/' && pos + 1 < end && chars[pos + 1] == '*') {
+      } else if (chars.get(pos) == '/' && pos + 1 < end && chars.get(pos + 1) == '*') {
         pos += 2;
         while (pos < end - 1) {
-          if (chars[pos++] == '*') {
-            if (chars[pos] == '/') {
+          if (chars.get(pos++) == '*') {
+            if (chars.get(pos) == '/') {
               pos++;
               break;  // proper comment end
             }
@@ -616,12 +635,12 @@ class IncludeParser {
    *
    * <p>This code runs on every line that starts with " *# *", so it should be as fast as possible.
    */
-  private static int skipThroughHasInclude(byte[] chars, int pos, int end) {
+  private static int skipThroughHasInclude(ByteBuffer chars, int pos, int end) {
     int lastPos = end - NECESSARY_HAS_INCLUDE_LENGTH;
     while (pos <= lastPos) {
       int curPos = 0;
       while (curPos < HAS_INCLUDE_LENGTH
-          && (chars[pos + curPos] & 0xff) == HAS_INCLUDE.charAt(curPos)) {
+          && (chars.get(pos + curPos) & 0xff) == HAS_INCLUDE.charAt(curPos)) {
         curPos++;
       }
       if (curPos == HAS_INCLUDE_LENGTH) {
@@ -643,14 +662,14 @@ class IncludeParser {
    * @param expected the expected token
    * @return the resulting position if found, otherwise -1
    */
-  protected static int expect(byte[] chars, int pos, int end, String expected) {
+  protected static int expect(ByteBuffer chars, int pos, int end, String expected) {
     int si = 0;
     int expectedLen = expected.length();
     while (pos < end) {
       if (si == expectedLen) {
         return pos;
       }
-      if ((chars[pos++] & 0xff) != expected.charAt(si++)) {
+      if ((chars.get(pos++) & 0xff) != expected.charAt(si++)) {
         return -1;
       }
     }
@@ -665,9 +684,9 @@ class IncludeParser {
    * @param echar the character to find
    * @return the resulting position of echar if found, otherwise -1
    */
-  private static int indexOf(byte[] chars, int pos, int end, char echar) {
+  private static int indexOf(ByteBuffer chars, int pos, int end, char echar) {
     while (pos < end) {
-      if (chars[pos] == echar) {
+      if (chars.get(pos) == echar) {
         return pos;
       }
       pos++;
@@ -722,18 +741,18 @@ class IncludeParser {
 
   @VisibleForTesting
   Inclusion extractInclusion(String line) {
-    return extractInclusion(line.getBytes(ISO_8859_1), 0, line.length());
+    return extractInclusion(ByteBuffer.wrap(line.getBytes(ISO_8859_1)), 0, line.length());
   }
 
   /**
    * Extracts a new, unresolved an Inclusion from a line of source.
    *
-   * @param chars the char array containing the line chars to parse
+   * @param chars the buffer containing the line chars to parse
    * @param lineBegin the position of the first character in the line
    * @param lineEnd the position of the character after the last
    * @return the inclusion object if possible, null if none
    */
-  private Inclusion extractInclusion(byte[] chars, int lineBegin, int lineEnd) {
+  private Inclusion extractInclusion(ByteBuffer chars, int lineBegin, int lineEnd) {
     // expect WS#WS(include|include_next|__has_include\(_next\)?)WS\(?("name"|<name>|<name>)\)?
     IncludesKeywordData data = expectIncludeKeyword(chars, lineBegin, lineEnd);
     int pos = data.pos;
@@ -752,7 +771,7 @@ class IncludeParser {
       return null;
     }
     if (data.hasParens) {
-      if (chars[pos] != '(') {
+      if (chars.get(pos) != '(') {
         return null;
       }
       pos++;
@@ -760,17 +779,17 @@ class IncludeParser {
         return null;
       }
     }
-    if (chars[pos] == '"' || chars[pos] == '<') {
-      char qchar = (char) (chars[pos++] & 0xff);
+    if (chars.get(pos) == '"' || chars.get(pos) == '<') {
+      char qchar = (char) (chars.get(pos++) & 0xff);
       int spos = pos;
       pos = indexOf(chars, pos + 1, lineEnd, qchar == '<' ? '>' : '"');
       if (pos < 0) {
         return null;
       }
-      if (chars[spos] == '/') {
+      if (chars.get(spos) == '/') {
         return null;  // disallow absolute paths
       }
-      String name = new String(chars, spos, pos - spos);
+      String name = decode(chars, spos, pos);
       if (name.contains("\n")) {  // strip any \+NL pairs within name
         name = BS_NL_PAT.matcher(name).replaceAll("");
       }
@@ -780,8 +799,17 @@ class IncludeParser {
         return new Inclusion(name, qchar == '"' ? Kind.QUOTE : Kind.ANGLE);
       }
     } else {
-      return createOtherInclusion(new String(chars, pos, lineEnd - pos));
+      return createOtherInclusion(decode(chars, pos, lineEnd));
+    }
+  }
+
+  /** Decodes the characters from {@code begin} to {@code end} in the platform's charset. */
+  private static String decode(ByteBuffer chars, int begin, int end) {
+    byte[] bytes = new byte[end - begin];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = chars.get(begin + i);
     }
+    return new String(bytes);
   }
 
   /**
@@ -792,18 +820,29 @@ class IncludeParser {
    */
   @VisibleForTesting
   List<Inclusion> extractInclusions(byte[] chars) {
+    return extractInclusions(ByteBuffer.wrap(chars));
+  }
+
+  /**
+   * Extracts all inclusions from the characters of a file, which are read with absolute gets so
+   * that the buffer may be a memory-mapped file.
+   *
+   * @param chars the file contents to parse & extract inclusions from
+   * @return a new set of inclusions, normalized to the cache
+   */
+  List<Inclusion> extractInclusions(ByteBuffer chars) {
     List<Inclusion> inclusions = new ArrayList<>();
     int lineBegin = 0;  // the first char of each line
-    int end = chars.length;  // the file end
+    int end = chars.limit();  // the file end
     while (lineBegin < end) {
       int lineEnd = lineBegin;   // the char after the last non-\n in each line
       // skip to the next \n or after end of buffer, ignoring continuations
       while (lineEnd < end) {
-        if (chars[lineEnd] == '\n') {
+        if (chars.get(lineEnd) == '\n') {
           break;
-        } else if (chars[lineEnd] == '\\') {
+        } else if (chars.get(lineEnd) == '\\') {
           lineEnd++;
-          if (chars[lineEnd] == '\n') {
+          if (lineEnd < end && chars.get(lineEnd) == '\n') {
             lineEnd++;
           }
         } else {
@@ -865,9 +904,7 @@ class IncludeParser {
     } else {
       try (SilentCloseable c =
           Profiler.instance().profile(ProfilerTask.SCANNER, file.getExecPathString())) {
-        inclusions =
-            extractInclusions(
-                FileSystemUtils.readContent(actionExecutionContext.getInputPath(file)));
+        inclusions = extractInclusionsLocally(file, actionExecutionContext);
       } catch (IOException e) {
         if (remoteIncludeScanner != null && grepIncludes != null) {
           logger.log(
@@ -926,9 +963,7 @@ class IncludeParser {
       try (SilentCloseable c =
           Profiler.instance().profile(ProfilerTask.SCANNER, file.getExecPathString())) {
         inclusions =
-            Futures.immediateFuture(
-                extractInclusions(
-                    FileSystemUtils.readContent(actionExecutionContext.getInputPath(file))));
+            Futures.immediateFuture(extractInclusionsLocally(file, actionExecutionContext));
       } catch (IOException e) {
         if (remoteIncludeScanner != null) {
           logger.log(
@@ -962,6 +997,57 @@ class IncludeParser {
     return inclusions;
   }
 
+  /**
+   * Extracts the inclusions of a file on the local machine, from the index if it has the
+   * inclusions of a file with the same digest.
+   */
+  private List<Inclusion> extractInclusionsLocally(
+      Artifact file, ActionExecutionContext actionExecutionContext) throws IOException {
+    Path path = actionExecutionContext.getInputPath(file);
+    byte[] digest = null;
+    if (index != null) {
+      FileArtifactValue metadata = actionExecutionContext.getMetadataProvider().getMetadata(file);
+      digest = metadata != null ? metadata.getDigest() : null;
+    }
+    if (digest != null) {
+      List<Inclusion> inclusions =
+          index.get(digest, path.getFileSystem().getDigestFunction(), getFileType());
+      if (inclusions != null) {
+        return inclusions;
+      }
+    }
+    List<Inclusion> inclusions = extractInclusions(readContents(path));
+    if (digest != null) {
+      index.put(digest, path.getFileSystem().getDigestFunction(), getFileType(), inclusions);
+    }
+    return inclusions;
+  }
+
+  /**
+   * Returns the contents of a file. Large files on the native file system are memory-mapped
+   * instead of being copied into the heap.
+   */
+  @VisibleForTesting
+  static ByteBuffer readContents(Path path) throws IOException {
+    try (ReadableByteChannel channel = path.createReadableByteChannel()) {
+      if (!(channel instanceof FileChannel)) {
+        return ByteBuffer.wrap(FileSystemUtils.readContent(path));
+      }
+      FileChannel fileChannel = (FileChannel) channel;
+      long size = fileChannel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to be scanned for inclusions");
+      }
+      if (size >= MIN_MAPPED_FILE_SIZE) {
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      ByteBuffer contents = ByteBuffer.allocate((int) size);
+      while (contents.hasRemaining() && fileChannel.read(contents) >= 0) {}
+      contents.flip();
+      return contents;
+    }
+  }
+
   /**
    * Returns type of the scanned file.
    *
@@ -1006,7 +1092,7 @@ class IncludeParser {
    * include keyword or -1 if keyword was not found, along with information to aid future parsing.
    * Can be overridden by subclasses.
    */
-  protected IncludesKeywordData expectIncludeKeyword(byte[] chars, int position, int end) {
+  protected IncludesKeywordData expectIncludeKeyword(ByteBuffer chars, int position, int end) {
     int pos = expect(chars, skipWhitespace(chars, position, end), end, "#");
     if (pos > 0) {
       int npos = skipWhitespace(chars, pos, end);
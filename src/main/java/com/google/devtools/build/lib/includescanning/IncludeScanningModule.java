@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.runtime.WorkspaceBuilder;
 import com.google.devtools.build.lib.skyframe.MutableSupplier;
 import com.google.devtools.build.lib.vfs.IORuntimeException;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
@@ -61,7 +62,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Module that provides implementations of {@link CppIncludeExtractionContext},
@@ -77,15 +80,23 @@ public class IncludeScanningModule extends BlazeModule {
       new MutableSupplier<>();
   private final MutableSupplier<ArtifactFactory> artifactFactory = new MutableSupplier<>();
 
+  /** The include index, which is kept open across commands as long as its directory is used. */
+  @Nullable private IncludeIndex includeIndex;
+
   protected PathFragment getIncludeHintsFilename() {
     return INCLUDE_HINTS_FILENAME;
   }
 
   @Override
   @ThreadHostile
-  public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
+  public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder)
+      throws ExecutorInitException {
+    IncludeScanningOptions options = request.getOptions(IncludeScanningOptions.class);
+    updateIncludeIndex(
+        env, options.includeIndex, options.includeIndexMaxSizeMb * 1024 * 1024);
     builder.addActionContextProvider(
-        new IncludeScanningActionContextProvider(env, request, spawnIncludeScannerSupplier));
+        new IncludeScanningActionContextProvider(
+            env, request, spawnIncludeScannerSupplier, includeIndex));
     builder
         .addStrategyByContext(CppIncludeExtractionContext.class, "")
         .addStrategyByContext(SwigIncludeScanningContext.class, "")
@@ -99,6 +110,41 @@ public class IncludeScanningModule extends BlazeModule {
         : ImmutableList.<Class<? extends OptionsBase>>of();
   }
 
+  private void updateIncludeIndex(
+      CommandEnvironment env, @Nullable PathFragment dir, long maxSizeBytes)
+      throws ExecutorInitException {
+    Path path = dir != null ? env.getWorkingDirectory().getRelative(dir) : null;
+    if (includeIndex != null
+        && includeIndex.getDirectory().equals(path)
+        && includeIndex.getMaxSizeBytes() == maxSizeBytes) {
+      return;
+    }
+    closeIncludeIndex();
+    if (path != null) {
+      try {
+        includeIndex = new IncludeIndex(path, maxSizeBytes);
+      } catch (IOException e) {
+        throw new ExecutorInitException("could not open the include index in " + path, e);
+      }
+    }
+  }
+
+  private void closeIncludeIndex() {
+    if (includeIndex != null) {
+      try {
+        includeIndex.close();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Failed to close the include index", e);
+      }
+      includeIndex = null;
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    closeIncludeIndex();
+  }
+
   @Override
   public void beforeCommand(CommandEnvironment env) {
     artifactFactory.set(env.getSkyframeBuildView().getArtifactFactory());
@@ -227,13 +273,18 @@ public class IncludeScanningModule extends BlazeModule {
     private final Supplier<SpawnIncludeScanner> spawnScannerSupplier;
     private IncludeScannerSupplierImpl includeScannerSupplier;
     private ExecutorService includePool;
+    @Nullable private final IncludeIndex includeIndex;
+    private long includeIndexHits;
+    private long includeIndexMisses;
 
     public IncludeScanningActionContextProvider(
         CommandEnvironment env,
         BuildRequest buildRequest,
-        MutableSupplier<SpawnIncludeScanner> spawnScannerSupplier) {
+        MutableSupplier<SpawnIncludeScanner> spawnScannerSupplier,
+        @Nullable IncludeIndex includeIndex) {
       this.env = env;
       this.buildRequest = buildRequest;
+      this.includeIndex = includeIndex;
 
       IncludeScanningOptions options = buildRequest.getOptions(IncludeScanningOptions.class);
       spawnScannerSupplier.set(
@@ -261,6 +312,10 @@ public class IncludeScanningModule extends BlazeModule {
         ActionGraph actionGraph,
         Supplier<ArtifactsToOwnerLabels> topLevelArtifactsToAccountingGroups)
         throws ExecutorInitException, InterruptedException {
+      if (includeIndex != null) {
+        includeIndexHits = includeIndex.getHits();
+        includeIndexMisses = includeIndex.getMisses();
+      }
       try {
         includeScannerSupplier.init(
             new IncludeParser(
@@ -269,12 +324,24 @@ public class IncludeScanningModule extends BlazeModule {
                         env.getSkyframeExecutor()
                             .evaluateSkyKeyForExecutionSetup(
                                 env.getReporter(), IncludeHintsFunction.INCLUDE_HINTS_KEY),
-                    env.getSkyframeBuildView().getArtifactFactory())));
+                    env.getSkyframeBuildView().getArtifactFactory()),
+                includeIndex));
       } catch (ExecException e) {
         throw new ExecutorInitException("could not initialize include hints", e);
       }
     }
 
+    @Override
+    public void executionPhaseEnding() {
+      if (includeIndex != null) {
+        log.info(
+            String.format(
+                "Include index: %d hits, %d misses",
+                includeIndex.getHits() - includeIndexHits,
+                includeIndex.getMisses() - includeIndexMisses));
+      }
+    }
+
     @Override
     public void executorCreated(Iterable<ActionContext> usedContexts) throws ExecutorInitException {
       IncludeScanningOptions options = buildRequest.getOptions(IncludeScanningOptions.class);
@@ -14,7 +14,9 @@
 package com.google.devtools.build.lib.includescanning;
 
 import com.google.devtools.build.lib.actions.LocalHostCapacity;
+import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.util.ResourceConverter;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -112,4 +114,35 @@ public class IncludeScanningOptions extends OptionsBase {
       defaultValue = "false",
       help = "Switches to a new implementation of include scanning based on futures.")
   public boolean useAsyncIncludeScanner;
+
+  @Option(
+      name = "experimental_include_index",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.EXECUTION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      defaultValue = "null",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help =
+          "A path to a directory where the inclusions parsed out of C++ files are stored by the "
+              + "digest of the files, so that they are not parsed again after a server restart. "
+              + "The directory may be shared by the servers of several workspaces. If it does not "
+              + "exist, it will be created.")
+  public PathFragment includeIndex;
+
+  @Option(
+      name = "experimental_include_index_max_size_mb",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.EXECUTION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      defaultValue = "1024",
+      help =
+          "The maximum size of the --experimental_include_index directory in megabytes. When a "
+              + "server starts, the most recent entries of the servers that are gone are kept up "
+              + "to half of this size. When the index is full, new entries are dropped until the "
+              + "next server restart.")
+  public long includeIndexMaxSizeMb;
 }
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.includescanning;
 
 import com.google.common.base.CharMatcher;
 import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import java.nio.ByteBuffer;
 
 /** Parses swig files and extracts their includes (%include / %extern / %import). */
 class SwigIncludeParser extends IncludeParser {
@@ -24,18 +25,18 @@ class SwigIncludeParser extends IncludeParser {
     super(/* hints= */ null);
   }
 
-  private static int skipParentheses(byte[] chars, int pos, int end) {
+  private static int skipParentheses(ByteBuffer chars, int pos, int end) {
     // TODO(bazel-team): In theory this could be multiline, but the include scanner currently works
     // on a single line.
     int openedParentheses = 1;
-    if (pos >= end || chars[pos] != '(') {
+    if (pos >= end || chars.get(pos) != '(') {
       return pos;
     }
     pos++;
     while (openedParentheses > 0 && pos < end) {
-      if (chars[pos] == '(') {
+      if (chars.get(pos) == '(') {
         openedParentheses++;
-      } else if (chars[pos] == ')') {
+      } else if (chars.get(pos) == ')') {
         openedParentheses--;
       }
       pos++;
@@ -50,7 +51,7 @@ class SwigIncludeParser extends IncludeParser {
   }
 
   @Override
-  protected IncludesKeywordData expectIncludeKeyword(byte[] chars, int pos, int end) {
+  protected IncludesKeywordData expectIncludeKeyword(ByteBuffer chars, int pos, int end) {
     int start = skipWhitespace(chars, pos, end);
     if ((pos = expect(chars, start, end, "%include")) == -1
         && (pos = expect(chars, start, end, "%extern")) == -1
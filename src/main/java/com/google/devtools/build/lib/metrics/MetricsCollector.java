@@ -16,17 +16,26 @@ package com.google.devtools.build.lib.metrics;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ActionSummary;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.BuildEventFileMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.MemoryMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.PackageMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.QueueVisitorMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.QueueVisitorMetrics.DurationHistogram;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ResourceWaitMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ResourceWaitMetrics.MnemonicWaitTime;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TargetMetrics;
+import com.google.devtools.build.lib.buildeventstream.transports.FileTransport;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats;
 import com.google.devtools.build.lib.metrics.MetricsModule.Options;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 class MetricsCollector {
@@ -77,6 +86,21 @@ class MetricsCollector {
     metrics.setMemoryMetrics(createMemoryMetrics());
     metrics.setTargetMetrics(createTargetMetrics());
     metrics.setPackageMetrics(createPackageMetrics());
+    if (QueueVisitorStats.instance().isEnabled()) {
+      metrics.setQueueVisitorMetrics(createQueueVisitorMetrics());
+    }
+    Map<String, QueueVisitorStats.HistogramSnapshot> waitTimes =
+        ResourceManager.instance().getWaitTimes();
+    if (!waitTimes.isEmpty()) {
+      metrics.setResourceWaitMetrics(createResourceWaitMetrics(waitTimes));
+    }
+    int maxQueueDepth = FileTransport.getOpenTransportsMaxQueueDepth();
+    if (maxQueueDepth >= 0) {
+      metrics.setBuildEventFileMetrics(
+          BuildEventFileMetrics.newBuilder()
+              .setBytesWritten(FileTransport.getOpenTransportsBytesWritten())
+              .setMaxQueueDepth(maxQueueDepth));
+    }
     return metrics.build();
   }
 
@@ -107,4 +131,34 @@ class MetricsCollector {
   private PackageMetrics createPackageMetrics() {
     return PackageMetrics.newBuilder().setPackagesLoaded(packagesLoaded).build();
   }
+
+  private static QueueVisitorMetrics createQueueVisitorMetrics() {
+    QueueVisitorStats.Snapshot snapshot = QueueVisitorStats.instance().snapshot();
+    return QueueVisitorMetrics.newBuilder()
+        .setQueueWait(createDurationHistogram(snapshot.getQueueWait()))
+        .setRunTime(createDurationHistogram(snapshot.getRunTime()))
+        .setLockWait(createDurationHistogram(snapshot.getLockWait()))
+        .build();
+  }
+
+  private static ResourceWaitMetrics createResourceWaitMetrics(
+      Map<String, QueueVisitorStats.HistogramSnapshot> waitTimes) {
+    ResourceWaitMetrics.Builder resourceWaitMetrics = ResourceWaitMetrics.newBuilder();
+    for (Map.Entry<String, QueueVisitorStats.HistogramSnapshot> entry : waitTimes.entrySet()) {
+      resourceWaitMetrics.addWaitTimes(
+          MnemonicWaitTime.newBuilder()
+              .setMnemonic(entry.getKey())
+              .setWaitTime(createDurationHistogram(entry.getValue())));
+    }
+    return resourceWaitMetrics.build();
+  }
+
+  private static DurationHistogram createDurationHistogram(
+      QueueVisitorStats.HistogramSnapshot histogram) {
+    return DurationHistogram.newBuilder()
+        .setCount(histogram.getCount())
+        .setSumNanos(histogram.getSumNanos())
+        .addAllBucketCounts(histogram.getBucketCounts())
+        .build();
+  }
 }
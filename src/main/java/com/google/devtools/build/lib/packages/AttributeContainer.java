@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.packages;
 
+import com.google.common.annotations.VisibleForTesting;
+import java.util.Arrays;
 import javax.annotation.Nullable;
 
 /**
@@ -26,13 +28,19 @@ import javax.annotation.Nullable;
  * <p>This class provides the lowest-level access to attribute information. It is *not* intended to
  * be a robust public interface, but rather just an input to {@link AttributeMap} instances. Use
  * those instances for all domain-level attribute access.
+ *
+ * <p>Most attributes of most rules keep the default value of their {@link Attribute}, so only the
+ * values that differ from it are stored; the others are read from the rule class.
  */
 public final class AttributeContainer {
 
   private final RuleClass ruleClass;
 
-  // Attribute values, keyed by attribute index:
-  private final Object[] attributeValues;
+  // Holds the indices of the attributes whose value differs from the attribute's default value.
+  // The first byte gives the length of the list; storedIndices[i] is the attribute index plus one
+  // of the value in storedValues[i - 1]. Both arrays may be padded at the end.
+  private byte[] storedIndices;
+  private Object[] storedValues;
 
   // Holds a list of attribute indices.
   // The first byte gives the length of the list.
@@ -51,11 +59,13 @@ public final class AttributeContainer {
       throw new AssertionError("can't pack " + n + " rule indices into bytes");
     }
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[n];
+    this.storedIndices = EMPTY_STATE;
+    this.storedValues = EMPTY_VALUES;
     this.state = EMPTY_STATE;
   }
 
   private static final byte[] EMPTY_STATE = {0};
+  private static final Object[] EMPTY_VALUES = {};
 
   /**
    * Returns an attribute value by name, or null on no match.
@@ -63,7 +73,7 @@ public final class AttributeContainer {
   @Nullable
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -129,8 +139,59 @@ public final class AttributeContainer {
     state = newState;
   }
 
+  /** Returns the position of the attribute's value in storedValues[], or -1 if it isn't stored. */
+  private int storedPosition(int index) {
+    int n = 0xff & storedIndices[0];
+    for (int i = 1; i <= n; ++i) {
+      if ((0xff & storedIndices[i]) == index + 1) {
+        return i - 1;
+      }
+    }
+    return -1;
+  }
+
+  private void storeValue(int index, Object value) {
+    int position = storedPosition(index);
+    if (position >= 0) {
+      storedValues[position] = value;
+      return;
+    }
+    int n = 0xff & storedIndices[0];
+    if (n == storedValues.length) {
+      // Grow both arrays by four values at a time.
+      storedValues = Arrays.copyOf(storedValues, n + 4);
+      storedIndices = Arrays.copyOf(storedIndices, n + 5);
+    }
+    storedValues[n] = value;
+    storedIndices[n + 1] = (byte) (index + 1);
+    storedIndices[0] = (byte) (n + 1);
+  }
+
+  private void removeValue(int index) {
+    int position = storedPosition(index);
+    if (position < 0) {
+      return;
+    }
+    // Move the last stored value into the hole.
+    int last = (0xff & storedIndices[0]) - 1;
+    storedValues[position] = storedValues[last];
+    storedIndices[position + 1] = storedIndices[last + 1];
+    storedValues[last] = null;
+    storedIndices[last + 1] = 0;
+    storedIndices[0] = (byte) last;
+  }
+
+  /** Returns the number of attribute values that differ from their default value. */
+  @VisibleForTesting
+  int getStoredValueCount() {
+    return 0xff & storedIndices[0];
+  }
+
   Object getAttributeValue(int index) {
-    return attributeValues[index];
+    int position = storedPosition(index);
+    return position >= 0
+        ? storedValues[position]
+        : ruleClass.getAttribute(index).getDefaultValueUnchecked();
   }
 
   void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
@@ -139,7 +200,12 @@ public final class AttributeContainer {
     if (!explicit && getExplicit(index)) {
       throw new IllegalArgumentException("attribute " + name + " already explicitly set");
     }
-    attributeValues[index] = value;
+    // Late-bound and computed defaults are stored in the attribute like plain default values.
+    if (value == ruleClass.getAttribute(index).getDefaultValueUnchecked()) {
+      removeValue(index);
+    } else {
+      storeValue(index, value);
+    }
     if (explicit) {
       setExplicit(index);
     }
@@ -33,6 +33,7 @@ import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.ImmutableSortedKeyMap;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -860,7 +861,15 @@ public class Package {
      */
     private Map<String, OutputFile> outputFilePrefixes = new HashMap<>();
 
-    private final Interner<ImmutableList<?>> listInterner = new ThreadCompatibleInterner<>();
+    /**
+     * Interns the list values of attributes across all packages, so that loaded packages share
+     * equal values such as tags, visibility and dependency lists.
+     */
+    private static final Interner<ImmutableList<?>> ATTRIBUTE_LIST_INTERNER =
+        BlazeInterners.newWeakInterner();
+
+    private final Interner<ImmutableList<?>> listInterner =
+        new ThreadCompatibleInterner<>(ATTRIBUTE_LIST_INTERNER);
 
     private final Map<Location, String> generatorNameByLocation = new HashMap<>();
 
@@ -868,9 +877,18 @@ public class Package {
       return generatorNameByLocation;
     }
 
+    /**
+     * An interner for the values of one package, which asks the thread-safe {@code sharedInterner}
+     * only for the first occurrence of a value in the package.
+     */
     @ThreadCompatible
     private static class ThreadCompatibleInterner<T> implements Interner<T> {
       private final Map<T, T> interns = new HashMap<>();
+      private final Interner<T> sharedInterner;
+
+      ThreadCompatibleInterner(Interner<T> sharedInterner) {
+        this.sharedInterner = sharedInterner;
+      }
 
       @Override
       public T intern(T sample) {
@@ -878,8 +896,9 @@ public class Package {
         if (t != null) {
           return t;
         }
-        interns.put(sample, sample);
-        return sample;
+        t = sharedInterner.intern(sample);
+        interns.put(t, t);
+        return t;
       }
     }
 
@@ -151,6 +151,19 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public boolean checkOutputFiles;
 
+  @Option(
+    name = "experimental_native_batch_stat",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "When checking source files without diff information, and output files for which no "
+            + "output service provides a batch stat, for modifications, stat the files of each "
+            + "directory in a single native call instead of one at a time. Only has an effect "
+            + "on Unix file systems."
+  )
+  public boolean nativeBatchStat;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
@@ -34,6 +34,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.lang.ref.WeakReference;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -44,16 +45,19 @@ import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
 
 /**
  * Blaze internal profiler. Provides facility to report various Blaze tasks and store them
@@ -62,7 +66,7 @@ import java.util.zip.GZIPOutputStream;
  * <p>Implemented as singleton so any caller should use Profiler.instance() to obtain reference.
  *
  * <p>Internally, profiler uses two data structures - ThreadLocal task stack to track nested tasks
- * and single ConcurrentLinkedQueue to gather all completed tasks.
+ * and per-thread bounded ring buffers to hand completed tasks to the writer thread.
  *
  * <p>Also, due to the nature of the provided functionality (instrumentation of all Blaze
  * components), build.lib.profiler package will be used by almost every other Blaze package, so
@@ -148,6 +152,9 @@ public final class Profiler {
 
   private static final long ACTION_COUNT_BUCKET_MS = 200;
 
+  /** Default number of completed tasks each thread buffers for the profile writer. */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
   /** File format enum. */
   public enum Format {
     BINARY_BAZEL_FORMAT,
@@ -155,6 +162,14 @@ public final class Profiler {
     JSON_TRACE_FILE_COMPRESSED_FORMAT;
   }
 
+  /** What to do with completed tasks when the profile writer falls behind. */
+  public enum OverflowPolicy {
+    /** Wait until the writer has made room in the buffer of the current thread. */
+    BLOCK,
+    /** Drop the task, and report the number of dropped tasks when the profile is finished. */
+    DROP;
+  }
+
   /** A task that was very slow. */
   public static final class SlowTask implements Comparable<SlowTask> {
     final long durationNanos;
@@ -520,6 +535,45 @@ public final class Profiler {
       boolean slimProfile,
       boolean enableActionCountProfile)
       throws IOException {
+    start(
+        profiledTasks,
+        stream,
+        format,
+        productName,
+        outputBase,
+        buildID,
+        recordAllDurations,
+        clock,
+        execStartTimeNanos,
+        enabledCpuUsageProfiling,
+        slimProfile,
+        enableActionCountProfile,
+        DEFAULT_BUFFER_SIZE,
+        OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Enable profiling, see above.
+   *
+   * @param bufferSize the number of completed tasks each thread can buffer before they are written
+   * @param overflowPolicy what to do with completed tasks when a thread's buffer is full
+   */
+  public synchronized void start(
+      ImmutableSet<ProfilerTask> profiledTasks,
+      OutputStream stream,
+      Format format,
+      String productName,
+      String outputBase,
+      UUID buildID,
+      boolean recordAllDurations,
+      Clock clock,
+      long execStartTimeNanos,
+      boolean enabledCpuUsageProfiling,
+      boolean slimProfile,
+      boolean enableActionCountProfile,
+      int bufferSize,
+      OverflowPolicy overflowPolicy)
+      throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     initHistograms();
 
@@ -546,6 +600,8 @@ public final class Profiler {
         case BINARY_BAZEL_FORMAT:
           writer =
               new BinaryFormatWriter(
+                  bufferSize,
+                  overflowPolicy,
                   stream,
                   execStartTimeNanos,
                   String.format(
@@ -554,11 +610,20 @@ public final class Profiler {
           break;
         case JSON_TRACE_FILE_FORMAT:
           writer =
-              new JsonTraceFileWriter(stream, execStartTimeNanos, slimProfile, outputBase, buildID);
+              new JsonTraceFileWriter(
+                  bufferSize,
+                  overflowPolicy,
+                  stream,
+                  execStartTimeNanos,
+                  slimProfile,
+                  outputBase,
+                  buildID);
           break;
         case JSON_TRACE_FILE_COMPRESSED_FORMAT:
           writer =
               new JsonTraceFileWriter(
+                  bufferSize,
+                  overflowPolicy,
                   new GZIPOutputStream(stream),
                   execStartTimeNanos,
                   slimProfile,
@@ -641,6 +706,12 @@ public final class Profiler {
     FileWriter writer = writerRef.getAndSet(null);
     if (writer != null) {
       writer.shutdown();
+      if (writer.getDroppedTasks() > 0) {
+        logger.warning(
+            "Dropped "
+                + writer.getDroppedTasks()
+                + " tasks from the profile because the profile writer could not keep up");
+      }
       writer = null;
     }
     taskStack = null;
@@ -783,6 +854,16 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Returns the number of per-thread buffers of the profile writer that are not retired yet, or 0
+   * if the profiler is not writing a profile.
+   */
+  @VisibleForTesting
+  int getProfileBufferCount() {
+    FileWriter writer = writerRef.get();
+    return writer == null ? 0 : writer.getBufferCount();
+  }
+
   /** Used to log "events" - tasks with zero duration. */
   @VisibleForTesting
   void logEvent(ProfilerTask type, String description) {
@@ -905,19 +986,83 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Writes completed tasks to the profile on a dedicated thread.
+   *
+   * <p>Every thread that completes tasks gets its own {@link SingleProducerRingBuffer}, so that
+   * enqueueing a task never contends with other threads. The writer thread drains the buffers one
+   * after the other, and retires the buffers of threads that are gone once they are empty. If a
+   * buffer is full, the {@link OverflowPolicy} decides whether the thread waits for the writer or
+   * drops the task, which bounds the memory used by pending tasks. Neither side polls: the writer
+   * parks until a thread enqueues a task, and a thread waiting for room parks until the writer
+   * takes a task from its buffer.
+   */
   private abstract static class FileWriter implements Runnable {
-    protected final BlockingQueue<TaskData> queue;
+    /** The buffer of the tasks of one thread. */
+    private static final class ThreadBuffer {
+      final SingleProducerRingBuffer<TaskData> tasks;
+      /** The thread that fills the buffer, weakly so that the buffer doesn't keep it around. */
+      final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+      /** Whether the owner is parked until the writer makes room in the buffer. */
+      volatile boolean ownerWaiting = false;
+
+      ThreadBuffer(int size) {
+        this.tasks = new SingleProducerRingBuffer<>(size);
+      }
+
+      boolean isOwnerGone() {
+        Thread thread = owner.get();
+        return thread == null || !thread.isAlive();
+      }
+    }
+
+    private final int bufferSize;
+    private final OverflowPolicy overflowPolicy;
+    /** Buffers of threads that started enqueueing tasks since the writer thread last looked. */
+    private final Queue<ThreadBuffer> newBuffers = new ConcurrentLinkedQueue<>();
+    /** The buffers that the writer thread drains. Only accessed by the writer thread. */
+    private final List<ThreadBuffer> buffers = new ArrayList<>();
+    private final ThreadLocal<ThreadBuffer> threadBuffer =
+        ThreadLocal.withInitial(this::newBuffer);
+    private final AtomicLong droppedTasks = new AtomicLong();
+    private final AtomicInteger bufferCount = new AtomicInteger();
+    private volatile boolean shuttingDown = false;
+    /** Whether the writer thread is parked until a task is enqueued. */
+    private volatile boolean writerWaiting = false;
+    /** Whether the writer thread has stopped taking tasks. */
+    private volatile boolean writerGone = false;
+    /** Index into {@link #buffers} of the buffer currently being drained by the writer thread. */
+    private int currentBuffer = 0;
+
     protected final Thread thread;
     protected IOException savedException;
 
-    FileWriter() {
-      this.queue = new LinkedBlockingDeque<>();
-      this.thread = new Thread(this, "profile-writer-thread");
+    FileWriter(int bufferSize, OverflowPolicy overflowPolicy) {
+      this.bufferSize = bufferSize;
+      this.overflowPolicy = overflowPolicy;
+      this.thread =
+          new Thread(
+              () -> {
+                try {
+                  run();
+                } finally {
+                  writerFinished();
+                }
+              },
+              "profile-writer-thread");
+    }
+
+    private ThreadBuffer newBuffer() {
+      ThreadBuffer buffer = new ThreadBuffer(bufferSize);
+      bufferCount.incrementAndGet();
+      newBuffers.add(buffer);
+      return buffer;
     }
 
     public void shutdown() throws IOException {
-      // Add poison pill to queue and then wait for writer thread to shut down.
-      queue.add(POISON_PILL);
+      // Tell the writer thread to finish once all buffers are empty, and wait for it.
+      shuttingDown = true;
+      LockSupport.unpark(thread);
       try {
         thread.join();
       } catch (InterruptedException e) {
@@ -933,8 +1078,117 @@ public final class Profiler {
       thread.start();
     }
 
-    public void enqueue(TaskData data) {
-      queue.add(data);
+    /**
+     * Hands {@code data} to the writer thread.
+     *
+     * @return false if the task was dropped
+     */
+    public boolean enqueue(TaskData data) {
+      ThreadBuffer buffer = threadBuffer.get();
+      while (!buffer.tasks.offer(data)) {
+        if (overflowPolicy == OverflowPolicy.DROP || shuttingDown || writerGone) {
+          droppedTasks.incrementAndGet();
+          return false;
+        }
+        // Announce the wait before checking again, so that the writer either sees the flag when it
+        // takes a task or the check sees the room it made.
+        buffer.ownerWaiting = true;
+        LockSupport.unpark(thread);
+        if (buffer.tasks.size() == buffer.tasks.capacity() && !writerGone) {
+          LockSupport.park(this);
+        }
+        buffer.ownerWaiting = false;
+      }
+      // The offer above and this check pair with the writer setting the flag and then looking at
+      // the buffers, so that the writer never sleeps while there is a task to write.
+      if (writerWaiting) {
+        LockSupport.unpark(thread);
+      }
+      return true;
+    }
+
+    long getDroppedTasks() {
+      return droppedTasks.get();
+    }
+
+    /** Returns the number of buffers of threads that are alive or whose tasks are not written. */
+    int getBufferCount() {
+      return bufferCount.get();
+    }
+
+    /**
+     * Returns the next task to write, waiting until there is one, or {@link #POISON_PILL} once the
+     * writer has been shut down and all buffers are empty. Must only be called by the writer
+     * thread.
+     */
+    protected TaskData take() throws InterruptedException {
+      while (true) {
+        boolean done = shuttingDown;
+        TaskData data = poll();
+        if (data != null) {
+          return data;
+        }
+        if (done) {
+          // All buffers were empty after the shutdown started.
+          return POISON_PILL;
+        }
+        writerWaiting = true;
+        data = poll();
+        if (data == null && !shuttingDown) {
+          LockSupport.park(this);
+        }
+        writerWaiting = false;
+        if (data != null) {
+          return data;
+        }
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    }
+
+    /** Returns the next task of any buffer, or null if they are all empty. */
+    @Nullable
+    private TaskData poll() {
+      for (ThreadBuffer buffer = newBuffers.poll(); buffer != null; buffer = newBuffers.poll()) {
+        buffers.add(buffer);
+      }
+      // Keep draining the current buffer, then move on to the next one.
+      for (int i = buffers.size(); i > 0; i--) {
+        if (currentBuffer >= buffers.size()) {
+          currentBuffer = 0;
+        }
+        ThreadBuffer buffer = buffers.get(currentBuffer);
+        // Check the owner first: once it is gone, it can't add tasks after the poll below.
+        boolean ownerGone = buffer.isOwnerGone();
+        TaskData data = buffer.tasks.poll();
+        if (data != null) {
+          if (buffer.ownerWaiting) {
+            LockSupport.unpark(buffer.owner.get());
+          }
+          return data;
+        }
+        if (ownerGone) {
+          buffers.remove(currentBuffer);
+          bufferCount.decrementAndGet();
+        } else {
+          currentBuffer++;
+        }
+      }
+      return null;
+    }
+
+    /** Wakes up the threads waiting for room in their buffers, which the writer won't make. */
+    private void writerFinished() {
+      writerGone = true;
+      for (ThreadBuffer buffer = newBuffers.poll(); buffer != null; buffer = newBuffers.poll()) {
+        buffers.add(buffer);
+      }
+      for (ThreadBuffer buffer : buffers) {
+        if (buffer.ownerWaiting) {
+          LockSupport.unpark(buffer.owner.get());
+        }
+      }
     }
   }
 
@@ -944,7 +1198,13 @@ public final class Profiler {
     private final long profileStartTime;
     private final String comment;
 
-    BinaryFormatWriter(OutputStream outStream, long profileStartTime, String comment) {
+    BinaryFormatWriter(
+        int bufferSize,
+        OverflowPolicy overflowPolicy,
+        OutputStream outStream,
+        long profileStartTime,
+        String comment) {
+      super(bufferSize, overflowPolicy);
       // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
       // the write() method. Values for buffer sizes were chosen by running small amount of tests
       // and identifying point of diminishing returns - but I have not really tried to optimize
@@ -989,7 +1249,7 @@ public final class Profiler {
           ByteBuffer sink = ByteBuffer.allocate(1024);
           ObjectDescriber describer = new ObjectDescriber();
           TaskData data;
-          while ((data = queue.take()) != POISON_PILL) {
+          while ((data = take()) != POISON_PILL) {
             ((Buffer) sink).clear();
 
             VarInt.putVarLong(data.threadId, sink);
@@ -1029,7 +1289,7 @@ public final class Profiler {
         } catch (IOException e) {
           this.savedException = e;
           if (!receivedPoisonPill) {
-            while (queue.take() != POISON_PILL) {
+            while (take() != POISON_PILL) {
               // We keep emptying the queue, but we can't write anything.
             }
           }
@@ -1058,11 +1318,14 @@ public final class Profiler {
     private static final long SLIM_PROFILE_MAXIMAL_DURATION_NS = Duration.ofMillis(250).toNanos();
 
     JsonTraceFileWriter(
+        int bufferSize,
+        OverflowPolicy overflowPolicy,
         OutputStream outStream,
         long profileStartTimeNanos,
         boolean slimProfile,
         String outputBase,
         UUID buildID) {
+      super(bufferSize, overflowPolicy);
       this.outStream = outStream;
       this.profileStartTimeNanos = profileStartTimeNanos;
       this.slimProfile = slimProfile;
@@ -1071,19 +1334,20 @@ public final class Profiler {
     }
 
     @Override
-    public void enqueue(TaskData data) {
+    public boolean enqueue(TaskData data) {
       if (!metadataPosted.get().booleanValue()) {
-        metadataPosted.set(Boolean.TRUE);
         // Create a TaskData object that is special-cased below.
-        queue.add(
-            new TaskData(
-                /* id= */ 0,
-                /* startTimeNanos= */ -1,
-                /* parent= */ null,
-                ProfilerTask.THREAD_NAME,
-                Thread.currentThread().getName()));
+        boolean posted =
+            super.enqueue(
+                new TaskData(
+                    /* id= */ 0,
+                    /* startTimeNanos= */ -1,
+                    /* parent= */ null,
+                    ProfilerTask.THREAD_NAME,
+                    Thread.currentThread().getName()));
+        metadataPosted.set(posted);
       }
-      queue.add(data);
+      return super.enqueue(data);
     }
 
     private static final class MergedEvent {
@@ -1218,7 +1482,7 @@ public final class Profiler {
 
           HashMap<Long, MergedEvent> eventsPerThread = new HashMap<>();
           int eventCount = 0;
-          while ((data = queue.take()) != POISON_PILL) {
+          while ((data = take()) != POISON_PILL) {
             eventCount++;
             if (data.type == ProfilerTask.THREAD_NAME) {
               writer.setIndent("  ");
@@ -1291,7 +1555,7 @@ public final class Profiler {
         } catch (IOException e) {
           this.savedException = e;
           if (!receivedPoisonPill) {
-            while (queue.take() != POISON_PILL) {
+            while (take() != POISON_PILL) {
               // We keep emptying the queue, but we can't write anything.
             }
           }
@@ -92,6 +92,7 @@ public enum ProfilerTask {
   REMOTE_CACHE_CHECK("remote action cache check", 0x9999CC),
   REMOTE_DOWNLOAD("remote output download", 0x9999CC),
   REMOTE_NETWORK("remote network", 0x9999CC),
+  QUEUE_VISITOR_STATS("queue visitor task statistics", 0x000066),
   UNKNOWN("Unknown event",  0x339966);
 
   // Size of the ProfilerTask value space.
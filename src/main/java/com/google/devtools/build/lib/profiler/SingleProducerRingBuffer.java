@@ -0,0 +1,93 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * <p>Neither {@link #offer} nor {@link #poll} ever block or allocate. Elements become visible to
+ * the consumer in the order in which they were offered. The indices are written with volatile
+ * semantics, so that a thread that parks after finding the buffer empty or full can rely on the
+ * other side seeing a flag that it set before checking.
+ */
+final class SingleProducerRingBuffer<T> {
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+
+  /** Index of the next element to poll. Only written by the consumer. */
+  private final AtomicLong head = new AtomicLong();
+
+  /** Index of the next element to offer. Only written by the producer. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Creates a buffer for at least {@code minCapacity} elements. */
+  SingleProducerRingBuffer(int minCapacity) {
+    Preconditions.checkArgument(minCapacity > 0, "capacity must be positive: %s", minCapacity);
+    Preconditions.checkArgument(minCapacity <= 1 << 30, "capacity too large: %s", minCapacity);
+    int capacity = Integer.highestOneBit(minCapacity);
+    if (capacity < minCapacity) {
+      capacity <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Adds {@code element} to the buffer. Must only be called by the producer thread.
+   *
+   * @return false if the buffer is full
+   */
+  boolean offer(T element) {
+    long t = tail.get();
+    if (t - head.get() > mask) {
+      return false;
+    }
+    slots.lazySet((int) t & mask, element);
+    // The consumer sees the element before it sees the new tail.
+    tail.set(t + 1);
+    return true;
+  }
+
+  /**
+   * Removes and returns the oldest element, or returns null if the buffer is empty. Must only be
+   * called by the consumer thread.
+   */
+  @Nullable
+  T poll() {
+    long h = head.get();
+    if (h >= tail.get()) {
+      return null;
+    }
+    int index = (int) h & mask;
+    T element = slots.get(index);
+    slots.lazySet(index, null);
+    head.set(h + 1);
+    return element;
+  }
+
+  int size() {
+    // Read head first, so that the result is never negative.
+    long h = head.get();
+    return (int) (tail.get() - h);
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+}
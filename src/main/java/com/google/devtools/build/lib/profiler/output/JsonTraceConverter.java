@@ -0,0 +1,60 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.output;
+
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a profile in the binary Bazel format into the JSON trace format, which can be loaded
+ * into chrome://tracing.
+ */
+public final class JsonTraceConverter {
+
+  private JsonTraceConverter() {}
+
+  /** Writes all tasks of {@code info} to {@code out}. Does not close {@code out}. */
+  public static void write(ProfileInfo info, Writer out) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject();
+    writer.name("otherData");
+    writer.beginObject();
+    writer.name("comment").value(info.comment);
+    writer.endObject();
+    writer.name("traceEvents");
+    writer.beginArray();
+    for (ProfileInfo.Task task : info.allTasksById) {
+      if (task.isFake()) {
+        continue;
+      }
+      writer.beginObject();
+      writer.name("cat").value(task.type.description);
+      writer.name("name").value(task.getDescription());
+      writer.name("ph").value(task.durationNanos == 0 ? "i" : "X");
+      writer.name("ts").value(TimeUnit.NANOSECONDS.toMicros(task.startTime));
+      if (task.durationNanos != 0) {
+        writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(task.durationNanos));
+      }
+      writer.name("pid").value(1);
+      writer.name("tid").value(task.threadId);
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the digests of chunks that are known to be stored in the remote cache, so that
+ * uploading a new version of a large file only asks the remote cache about chunks that changed.
+ *
+ * <p>The index is bounded and may be out of date, e.g. if the remote cache evicted a chunk. Such
+ * chunks are detected when the remote cache fails to splice them, and must then be {@linkplain
+ * #invalidateAll invalidated}.
+ *
+ * <p>The index also remembers whether the remote cache implements splicing at all.
+ */
+final class ChunkIndex {
+
+  private final Cache<Digest, Boolean> chunks;
+  private volatile boolean spliceSupported = true;
+
+  /** Creates an index holding at most {@code maxSize} chunk digests. */
+  ChunkIndex(long maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive: %s", maxSize);
+    this.chunks = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  boolean contains(Digest digest) {
+    return chunks.getIfPresent(digest) != null;
+  }
+
+  void addAll(Iterable<Digest> digests) {
+    for (Digest digest : digests) {
+      chunks.put(digest, Boolean.TRUE);
+    }
+  }
+
+  void invalidateAll(Iterable<Digest> digests) {
+    chunks.invalidateAll(digests);
+  }
+
+  /** Returns false once the remote cache has rejected a splice as unimplemented. */
+  boolean isSpliceSupported() {
+    return spliceSupported;
+  }
+
+  void setSpliceUnsupported() {
+    spliceSupported = false;
+  }
+}
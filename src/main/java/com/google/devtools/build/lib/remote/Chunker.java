@@ -277,6 +277,28 @@ public final class Chunker {
       return this;
     }
 
+    /** Sets the input to the {@code size} bytes of {@code file} that start at {@code offset}. */
+    public Builder setInput(long size, Path file, long offset) {
+      checkState(inputStream == null);
+      this.size = size;
+      inputStream =
+          () -> {
+            try {
+              InputStream in = file.getInputStream();
+              try {
+                ByteStreams.skipFully(in, offset);
+              } catch (IOException e) {
+                in.close();
+                throw e;
+              }
+              return in;
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          };
+      return this;
+    }
+
     public Builder setInput(long size, ActionInput actionInput, Path execRoot) {
       checkState(inputStream == null);
       this.size = size;
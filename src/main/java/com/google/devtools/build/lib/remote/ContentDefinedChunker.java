@@ -0,0 +1,153 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits data into chunks whose boundaries depend on the content, using the FastCDC algorithm.
+ *
+ * <p>A boundary is placed where a rolling gear hash over the last 64 bytes matches a mask, so an
+ * insertion or deletion in a blob only changes the chunks around it, and the other chunks keep
+ * their digests. To make chunk sizes cluster around the average, a stricter mask is used before
+ * the average size is reached and a looser one after it. Chunks are never smaller than the minimum
+ * size, except for the last one, and never larger than the maximum size.
+ */
+final class ContentDefinedChunker {
+
+  static final int DEFAULT_AVERAGE_CHUNK_SIZE = 512 * 1024;
+
+  /** Random values for the gear hash, from a fixed seed so that all clients agree on chunks. */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x4661737443444300L);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  /** A chunk of a blob. */
+  static final class Chunk {
+    private final long offset;
+    private final Digest digest;
+
+    Chunk(long offset, Digest digest) {
+      this.offset = offset;
+      this.digest = digest;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    Digest getDigest() {
+      return digest;
+    }
+  }
+
+  private final DigestUtil digestUtil;
+  private final int minSize;
+  private final int averageSize;
+  private final int maxSize;
+  private final long strictMask;
+  private final long looseMask;
+
+  /**
+   * Creates a chunker for chunks of {@code averageSize} bytes on average, which must be a power of
+   * two. Chunks are at least a quarter and at most four times as large.
+   */
+  ContentDefinedChunker(DigestUtil digestUtil, int averageSize) {
+    checkArgument(
+        averageSize >= 256 && Integer.bitCount(averageSize) == 1,
+        "averageSize must be a power of two of at least 256: %s",
+        averageSize);
+    this.digestUtil = digestUtil;
+    this.minSize = averageSize / 4;
+    this.averageSize = averageSize;
+    this.maxSize = averageSize * 4;
+    int bits = Integer.numberOfTrailingZeros(averageSize);
+    // The hash is shifted left by one bit per byte, so its high bits depend on the most bytes.
+    this.strictMask = -1L << (64 - (bits + 2));
+    this.looseMask = -1L << (64 - (bits - 2));
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /** Reads {@code in} until its end and returns its chunks. Does not close {@code in}. */
+  ImmutableList<Chunk> chunk(InputStream in) throws IOException {
+    ImmutableList.Builder<Chunk> chunks = ImmutableList.builder();
+    // Holds at least one chunk of maximum size, unless the end of the input was reached.
+    byte[] buffer = new byte[2 * maxSize];
+    int start = 0;
+    int end = 0;
+    boolean eof = false;
+    long offset = 0;
+    while (true) {
+      if (!eof && end - start < maxSize) {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+          int read = in.read(buffer, end, buffer.length - end);
+          if (read == -1) {
+            eof = true;
+            break;
+          }
+          end += read;
+        }
+      }
+      if (start == end) {
+        return chunks.build();
+      }
+      int length = cutPoint(buffer, start, end - start);
+      chunks.add(new Chunk(offset, digestUtil.compute(buffer, start, length)));
+      start += length;
+      offset += length;
+    }
+  }
+
+  /** Returns the length of the chunk that starts at {@code buffer[start]}. */
+  int cutPoint(byte[] buffer, int start, int available) {
+    if (available <= minSize) {
+      return available;
+    }
+    int end = Math.min(available, maxSize);
+    int normal = Math.min(end, averageSize);
+    long hash = 0;
+    int i = minSize;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[buffer[start + i] & 0xFF];
+      if ((hash & strictMask) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < end; i++) {
+      hash = (hash << 1) + GEAR[buffer[start + i] & 0xFF];
+      if ((hash & looseMask) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+}
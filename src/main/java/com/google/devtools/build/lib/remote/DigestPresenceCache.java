@@ -0,0 +1,177 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the digests that the remote cache recently reported as present, so that the inputs
+ * shared by many actions, such as toolchains, are not looked up for every action. Concurrent
+ * lookups of the same digest share a single call to the remote cache.
+ *
+ * <p>The remote cache may evict blobs at any time, so entries expire after a time to live. Digests
+ * that remote execution or a download reports as missing must be {@linkplain #invalidateAll
+ * invalidated}. Since a stale entry means that a blob is not uploaded, this cache must only be used
+ * for inputs of remote execution, which fails and is retried if an input is missing, and never for
+ * outputs, which other clients would then find referenced by an action result but missing.
+ */
+@ThreadSafe
+final class DigestPresenceCache {
+
+  private final Cache<Digest, Boolean> present;
+  /** Lookups in flight, completing with whether the digest is missing. */
+  private final ConcurrentMap<Digest, ListenableFuture<Boolean>> pendingLookups =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong lookedUpDigests = new AtomicLong();
+  private final AtomicLong savedDigests = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most {@code maxSize} digests, each for at most {@code timeToLive}.
+   */
+  DigestPresenceCache(long maxSize, Duration timeToLive) {
+    this(maxSize, timeToLive, Ticker.systemTicker());
+  }
+
+  DigestPresenceCache(long maxSize, Duration timeToLive, Ticker ticker) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive: %s", maxSize);
+    this.present =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+  }
+
+  /**
+   * Returns the digests of {@code digests} that are missing from the remote cache. Only the digests
+   * that are neither known to be present nor being looked up by another caller are passed to
+   * {@code finder}.
+   */
+  ListenableFuture<ImmutableSet<Digest>> findMissingDigests(
+      Iterable<Digest> digests, MissingDigestsFinder finder) {
+    Map<Digest, SettableFuture<Boolean>> ownLookups = new LinkedHashMap<>();
+    Map<Digest, ListenableFuture<Boolean>> sharedLookups = new LinkedHashMap<>();
+    long saved = 0;
+    for (Digest digest : digests) {
+      if (ownLookups.containsKey(digest) || sharedLookups.containsKey(digest)) {
+        continue;
+      }
+      if (present.getIfPresent(digest) != null) {
+        saved++;
+        continue;
+      }
+      SettableFuture<Boolean> lookup = SettableFuture.create();
+      ListenableFuture<Boolean> pendingLookup = pendingLookups.putIfAbsent(digest, lookup);
+      if (pendingLookup == null) {
+        ownLookups.put(digest, lookup);
+      } else {
+        sharedLookups.put(digest, pendingLookup);
+        saved++;
+      }
+    }
+    savedDigests.addAndGet(saved);
+    lookedUpDigests.addAndGet(ownLookups.size());
+
+    ListenableFuture<ImmutableSet<Digest>> missingDigests =
+        ownLookups.isEmpty()
+            ? Futures.immediateFuture(ImmutableSet.of())
+            : finder.findMissingDigests(ImmutableList.copyOf(ownLookups.keySet()));
+    missingDigests.addListener(
+        () -> completeLookups(ownLookups, missingDigests), MoreExecutors.directExecutor());
+    if (sharedLookups.isEmpty()) {
+      return missingDigests;
+    }
+    return Futures.whenAllSucceed(
+            Iterables.concat(ImmutableList.of(missingDigests), sharedLookups.values()))
+        .call(
+            () -> {
+              ImmutableSet.Builder<Digest> result = ImmutableSet.builder();
+              result.addAll(Futures.getDone(missingDigests));
+              for (Map.Entry<Digest, ListenableFuture<Boolean>> e : sharedLookups.entrySet()) {
+                if (Futures.getDone(e.getValue())) {
+                  result.add(e.getKey());
+                }
+              }
+              return result.build();
+            },
+            MoreExecutors.directExecutor());
+  }
+
+  private void completeLookups(
+      Map<Digest, SettableFuture<Boolean>> lookups,
+      ListenableFuture<ImmutableSet<Digest>> missingDigestsFuture) {
+    ImmutableSet<Digest> missingDigests;
+    try {
+      missingDigests = Futures.getDone(missingDigestsFuture);
+    } catch (ExecutionException | CancellationException e) {
+      // Callers sharing the lookups fail as well, and the next caller looks them up again.
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      for (Map.Entry<Digest, SettableFuture<Boolean>> lookup : lookups.entrySet()) {
+        pendingLookups.remove(lookup.getKey(), lookup.getValue());
+        lookup.getValue().setException(cause);
+      }
+      return;
+    }
+    for (Map.Entry<Digest, SettableFuture<Boolean>> lookup : lookups.entrySet()) {
+      boolean missing = missingDigests.contains(lookup.getKey());
+      // Record the digest before the lookup is removed, so that it is always found in one of them.
+      if (!missing) {
+        present.put(lookup.getKey(), Boolean.TRUE);
+      }
+      pendingLookups.remove(lookup.getKey(), lookup.getValue());
+      lookup.getValue().set(missing);
+    }
+  }
+
+  void invalidateAll(Iterable<Digest> digests) {
+    present.invalidateAll(digests);
+  }
+
+  /** Returns the number of digests that were looked up in the remote cache. */
+  long getLookedUpDigests() {
+    return lookedUpDigests.get();
+  }
+
+  /**
+   * Returns the number of digests that were not looked up in the remote cache, because they were
+   * known to be present or were being looked up already.
+   */
+  long getSavedDigests() {
+    return savedDigests.get();
+  }
+}
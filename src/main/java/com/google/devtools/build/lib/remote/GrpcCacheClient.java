@@ -34,6 +34,7 @@ import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ascii;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
@@ -44,11 +45,15 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.ContentDefinedChunker.Chunk;
 import com.google.devtools.build.lib.remote.RemoteRetrier.ProgressiveBackoff;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
+import com.google.devtools.build.lib.remote.splice.RemoteSplice.SpliceBlobRequest;
+import com.google.devtools.build.lib.remote.splice.SpliceGrpc;
+import com.google.devtools.build.lib.remote.splice.SpliceGrpc.SpliceFutureStub;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.TracingMetadataUtils;
 import com.google.devtools.build.lib.remote.util.Utils;
@@ -61,9 +66,12 @@ import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -80,6 +88,8 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
   private final RemoteRetrier retrier;
   private final ByteStreamUploader uploader;
   private final int maxMissingBlobsDigestsPerMessage;
+  @Nullable private final ChunkIndex chunkIndex;
+  @Nullable private final ContentDefinedChunker chunker;
 
   private AtomicBoolean closed = new AtomicBoolean();
 
@@ -91,12 +101,41 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
       RemoteRetrier retrier,
       DigestUtil digestUtil,
       ByteStreamUploader uploader) {
+    this(
+        channel,
+        credentials,
+        options,
+        retrier,
+        digestUtil,
+        uploader,
+        /* chunkIndex= */ null);
+  }
+
+  /**
+   * Creates a client that uploads files of at least {@code
+   * --experimental_remote_cache_chunking_threshold} bytes in content-defined chunks, if {@code
+   * chunkIndex} is not null and the remote cache implements the {@code Splice} service.
+   */
+  GrpcCacheClient(
+      ReferenceCountedChannel channel,
+      CallCredentials credentials,
+      RemoteOptions options,
+      RemoteRetrier retrier,
+      DigestUtil digestUtil,
+      ByteStreamUploader uploader,
+      @Nullable ChunkIndex chunkIndex) {
     this.credentials = credentials;
     this.channel = channel;
     this.options = options;
     this.digestUtil = digestUtil;
     this.retrier = retrier;
     this.uploader = uploader;
+    this.chunkIndex = chunkIndex;
+    this.chunker =
+        chunkIndex == null
+            ? null
+            : new ContentDefinedChunker(
+                digestUtil, ContentDefinedChunker.DEFAULT_AVERAGE_CHUNK_SIZE);
     maxMissingBlobsDigestsPerMessage = computeMaxMissingBlobsDigestsPerMessage();
     Preconditions.checkState(
         maxMissingBlobsDigestsPerMessage > 0, "Error: gRPC message size too small.");
@@ -127,6 +166,14 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
         .withDeadlineAfter(options.remoteTimeout, TimeUnit.SECONDS);
   }
 
+  private SpliceFutureStub spliceFutureStub() {
+    return SpliceGrpc.newFutureStub(channel)
+        .withInterceptors(TracingMetadataUtils.attachMetadataFromContextInterceptor())
+        .withInterceptors(TracingMetadataUtils.newCacheHeadersInterceptor(options))
+        .withCallCredentials(credentials)
+        .withDeadlineAfter(options.remoteTimeout, TimeUnit.SECONDS);
+  }
+
   private ByteStreamStub bsAsyncStub() {
     return ByteStreamGrpc.newStub(channel)
         .withInterceptors(TracingMetadataUtils.attachMetadataFromContextInterceptor())
@@ -374,12 +421,112 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
 
   @Override
   public ListenableFuture<Void> uploadFile(Digest digest, Path path) {
+    if (chunkIndex != null
+        && chunkIndex.isSpliceSupported()
+        && digest.getSizeBytes() >= options.remoteCacheChunkingThreshold) {
+      return uploadFileInChunks(digest, path);
+    }
+    return uploadWholeFile(digest, path);
+  }
+
+  private ListenableFuture<Void> uploadWholeFile(Digest digest, Path path) {
     return uploader.uploadBlobAsync(
         HashCode.fromString(digest.getHash()),
         Chunker.builder().setInput(digest.getSizeBytes(), path).build(),
         /* forceUpload= */ true);
   }
 
+  /**
+   * Uploads the content-defined chunks of a file that are missing from the remote cache, and asks
+   * the remote cache to splice all chunks into the file. Falls back to uploading the whole file if
+   * the remote cache is missing chunks that the {@link ChunkIndex} believed to be present, or if it
+   * does not implement splicing, in which case the {@link ChunkIndex} remembers not to try again.
+   */
+  private ListenableFuture<Void> uploadFileInChunks(Digest digest, Path path) {
+    ImmutableList<Chunk> chunks;
+    try (InputStream in = path.getInputStream()) {
+      chunks = chunker.chunk(in);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    if (chunks.size() > maxMissingBlobsDigestsPerMessage) {
+      // The splice request would exceed the maximum message size.
+      return uploadWholeFile(digest, path);
+    }
+    List<Digest> chunkDigests = new ArrayList<>(chunks.size());
+    List<Digest> unknownChunkDigests = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      chunkDigests.add(chunk.getDigest());
+      if (!chunkIndex.contains(chunk.getDigest())) {
+        unknownChunkDigests.add(chunk.getDigest());
+      }
+    }
+
+    Context ctx = Context.current();
+    ListenableFuture<Void> uploadChunks =
+        Futures.transformAsync(
+            findMissingDigests(unknownChunkDigests),
+            missingDigests -> {
+              List<ListenableFuture<Void>> uploads = new ArrayList<>();
+              Set<Digest> uploaded = new HashSet<>();
+              for (Chunk chunk : chunks) {
+                Digest chunkDigest = chunk.getDigest();
+                if (missingDigests.contains(chunkDigest) && uploaded.add(chunkDigest)) {
+                  uploads.add(
+                      uploader.uploadBlobAsync(
+                          HashCode.fromString(chunkDigest.getHash()),
+                          Chunker.builder()
+                              .setInput(chunkDigest.getSizeBytes(), path, chunk.getOffset())
+                              .build(),
+                          /* forceUpload= */ false));
+                }
+              }
+              return Futures.whenAllSucceed(uploads)
+                  .call(() -> null, MoreExecutors.directExecutor());
+            },
+            ctx.fixedContextExecutor(MoreExecutors.directExecutor()));
+    ListenableFuture<Void> splice =
+        Futures.transformAsync(
+            uploadChunks,
+            (unused) -> {
+              chunkIndex.addAll(chunkDigests);
+              return spliceBlob(digest, chunkDigests);
+            },
+            ctx.fixedContextExecutor(MoreExecutors.directExecutor()));
+    return Futures.catchingAsync(
+        splice,
+        StatusRuntimeException.class,
+        (e) -> {
+          Code code = e.getStatus().getCode();
+          if (code == Code.UNIMPLEMENTED) {
+            chunkIndex.setSpliceUnsupported();
+            return uploadWholeFile(digest, path);
+          }
+          if (code == Code.NOT_FOUND
+              || code == Code.FAILED_PRECONDITION
+              || code == Code.INVALID_ARGUMENT) {
+            chunkIndex.invalidateAll(chunkDigests);
+            return uploadWholeFile(digest, path);
+          }
+          return Futures.immediateFailedFuture(new IOException(e));
+        },
+        ctx.fixedContextExecutor(MoreExecutors.directExecutor()));
+  }
+
+  private ListenableFuture<Void> spliceBlob(Digest digest, List<Digest> chunkDigests) {
+    SpliceBlobRequest request =
+        SpliceBlobRequest.newBuilder()
+            .setInstanceName(options.remoteInstanceName)
+            .setBlobDigest(digest)
+            .addAllChunkDigests(chunkDigests)
+            .build();
+    Context ctx = Context.current();
+    return Futures.transform(
+        retrier.executeAsync(() -> ctx.call(() -> spliceFutureStub().spliceBlob(request))),
+        (response) -> null,
+        MoreExecutors.directExecutor());
+  }
+
   @Override
   public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
     return uploader.uploadBlobAsync(
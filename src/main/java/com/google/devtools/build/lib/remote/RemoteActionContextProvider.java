@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.exec.AbstractSpawnStrategy;
 import com.google.devtools.build.lib.exec.ActionContextProvider;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.SpawnRunner;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
@@ -49,6 +50,7 @@ final class RemoteActionContextProvider extends ActionContextProvider {
   @Nullable private final ListeningScheduledExecutorService retryScheduler;
   private final DigestUtil digestUtil;
   @Nullable private final Path logDir;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
   private final AtomicReference<SpawnRunner> fallbackRunner = new AtomicReference<>();
   private ImmutableSet<ActionInput> filesToDownload = ImmutableSet.of();
 
@@ -58,22 +60,31 @@ final class RemoteActionContextProvider extends ActionContextProvider {
       @Nullable GrpcRemoteExecutor executor,
       @Nullable ListeningScheduledExecutorService retryScheduler,
       DigestUtil digestUtil,
-      @Nullable Path logDir) {
+      @Nullable Path logDir,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.env = Preconditions.checkNotNull(env, "env");
     this.cache = Preconditions.checkNotNull(cache, "cache");
     this.executor = executor;
     this.retryScheduler = retryScheduler;
     this.digestUtil = digestUtil;
     this.logDir = logDir;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   public static RemoteActionContextProvider createForRemoteCaching(
       CommandEnvironment env,
       RemoteCache cache,
       ListeningScheduledExecutorService retryScheduler,
-      DigestUtil digestUtil) {
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     return new RemoteActionContextProvider(
-        env, cache, /*executor=*/ null, retryScheduler, digestUtil, /*logDir=*/ null);
+        env,
+        cache,
+        /*executor=*/ null,
+        retryScheduler,
+        digestUtil,
+        /*logDir=*/ null,
+        merkleTreeCache);
   }
 
   public static RemoteActionContextProvider createForRemoteExecution(
@@ -82,9 +93,10 @@ final class RemoteActionContextProvider extends ActionContextProvider {
       GrpcRemoteExecutor executor,
       ListeningScheduledExecutorService retryScheduler,
       DigestUtil digestUtil,
-      Path logDir) {
+      Path logDir,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     return new RemoteActionContextProvider(
-        env, cache, executor, retryScheduler, digestUtil, logDir);
+        env, cache, executor, retryScheduler, digestUtil, logDir, merkleTreeCache);
   }
 
   @Override
@@ -105,7 +117,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               commandId,
               env.getReporter(),
               digestUtil,
-              filesToDownload);
+              filesToDownload,
+              merkleTreeCache);
       return ImmutableList.of(spawnCache);
     } else {
       RemoteSpawnRunner spawnRunner =
@@ -123,7 +136,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               retryScheduler,
               digestUtil,
               logDir,
-              filesToDownload);
+              filesToDownload,
+              merkleTreeCache);
       return ImmutableList.of(new RemoteSpawnStrategy(env.getExecRoot(), spawnRunner));
     }
   }
@@ -18,11 +18,13 @@ import com.google.auth.Credentials;
 import com.google.common.base.Ascii;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheIndex;
 import com.google.devtools.build.lib.remote.http.HttpCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -32,6 +34,8 @@ import io.grpc.ClientInterceptor;
 import io.netty.channel.unix.DomainSocketAddress;
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.annotation.Nullable;
 
 /**
@@ -40,6 +44,14 @@ import javax.annotation.Nullable;
  */
 public final class RemoteCacheClientFactory {
 
+  /** Runs the background evictions of all size bounded disk caches. */
+  private static final ExecutorService DISK_CACHE_EVICTION_EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("disk-cache-eviction-%d")
+              .setDaemon(true)
+              .build());
+
   private RemoteCacheClientFactory() {}
 
   public static RemoteCacheClient createDiskAndRemoteClient(
@@ -51,7 +63,12 @@ public final class RemoteCacheClientFactory {
       RemoteOptions options)
       throws IOException {
     DiskCacheClient diskCacheClient =
-        createDiskCache(workingDirectory, diskCachePath, remoteVerifyDownloads, digestUtil);
+        createDiskCache(
+            workingDirectory,
+            diskCachePath,
+            remoteVerifyDownloads,
+            options.diskCacheMaxSizeMb,
+            digestUtil);
     return new DiskAndRemoteCacheClient(diskCacheClient, remoteCacheClient, options);
   }
 
@@ -81,7 +98,11 @@ public final class RemoteCacheClientFactory {
     }
     if (isDiskCache(options)) {
       return createDiskCache(
-          workingDirectory, options.diskCache, options.remoteVerifyDownloads, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options.remoteVerifyDownloads,
+          options.diskCacheMaxSizeMb,
+          digestUtil);
     }
     throw new IllegalArgumentException(
         "Unrecognized RemoteOptions configuration: remote Http cache URL and/or local disk cache"
@@ -135,6 +156,7 @@ public final class RemoteCacheClientFactory {
       Path workingDirectory,
       PathFragment diskCachePath,
       boolean verifyDownloads,
+      long maxSizeMb,
       DigestUtil digestUtil)
       throws IOException {
     Path cacheDir =
@@ -142,7 +164,11 @@ public final class RemoteCacheClientFactory {
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
-    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil);
+    DiskCacheIndex index = null;
+    if (maxSizeMb > 0) {
+      index = DiskCacheIndex.load(cacheDir, maxSizeMb * 1024 * 1024, DISK_CACHE_EVICTION_EXECUTOR);
+    }
+    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil, index);
   }
 
   private static RemoteCacheClient createDiskAndHttpCache(
@@ -18,9 +18,14 @@ import static java.lang.String.format;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree.PathOrBytes;
@@ -36,13 +41,30 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
 
 /** A {@link RemoteCache} with additional functionality needed for remote execution. */
 public class RemoteExecutionCache extends RemoteCache {
 
+  @Nullable private final DigestPresenceCache presenceCache;
+
   public RemoteExecutionCache(
       RemoteCacheClient protocolImpl, RemoteOptions options, DigestUtil digestUtil) {
+    this(protocolImpl, options, digestUtil, /* presenceCache= */ null);
+  }
+
+  /**
+   * Creates a cache that uses {@code presenceCache}, if not null, to skip looking up inputs that are
+   * known to be present in {@link #ensureInputsPresent}. Uploads of outputs always ask the remote
+   * cache.
+   */
+  RemoteExecutionCache(
+      RemoteCacheClient protocolImpl,
+      RemoteOptions options,
+      DigestUtil digestUtil,
+      @Nullable DigestPresenceCache presenceCache) {
     super(protocolImpl, options, digestUtil);
+    this.presenceCache = presenceCache;
   }
 
   private void uploadMissing(Map<Digest, Path> files, Map<Digest, ByteString> blobs)
@@ -91,7 +113,10 @@ public class RemoteExecutionCache extends RemoteCache {
     Iterable<Digest> allDigests =
         Iterables.concat(merkleTree.getAllDigests(), additionalInputs.keySet());
     ImmutableSet<Digest> missingDigests =
-        Utils.getFromFuture(cacheProtocol.findMissingDigests(allDigests));
+        Utils.getFromFuture(
+            presenceCache != null
+                ? presenceCache.findMissingDigests(allDigests, cacheProtocol)
+                : cacheProtocol.findMissingDigests(allDigests));
     Map<Digest, Path> filesToUpload = new HashMap<>();
     Map<Digest, ByteString> blobsToUpload = new HashMap<>();
     for (Digest missingDigest : missingDigests) {
@@ -125,4 +150,49 @@ public class RemoteExecutionCache extends RemoteCache {
 
     uploadMissing(filesToUpload, blobsToUpload);
   }
+
+  @Override
+  public ListenableFuture<byte[]> downloadBlob(Digest digest) {
+    return invalidatePresenceIfNotFound(digest, super.downloadBlob(digest));
+  }
+
+  @Override
+  public ListenableFuture<Void> downloadFile(Path path, Digest digest) throws IOException {
+    return invalidatePresenceIfNotFound(digest, super.downloadFile(path, digest));
+  }
+
+  /** Forgets that {@code digest} is present if {@code download} finds that it is missing. */
+  private <T> ListenableFuture<T> invalidatePresenceIfNotFound(
+      Digest digest, ListenableFuture<T> download) {
+    if (presenceCache == null) {
+      return download;
+    }
+    Futures.addCallback(
+        download,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(T result) {}
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (t instanceof CacheNotFoundException) {
+              presenceCache.invalidateAll(ImmutableList.of(digest));
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return download;
+  }
+
+  /**
+   * Forgets that the inputs of an action are present in the remote cache, because remote execution
+   * reported some of them as missing. The next {@link #ensureInputsPresent} looks them up again.
+   */
+  public void invalidateInputsPresence(
+      MerkleTree merkleTree, Map<Digest, Message> additionalInputs) {
+    if (presenceCache != null) {
+      presenceCache.invalidateAll(
+          Iterables.concat(merkleTree.getAllDigests(), additionalInputs.keySet()));
+    }
+  }
 }
@@ -44,6 +44,7 @@ import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.logging.LoggingInterceptor;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -69,10 +70,12 @@ import io.grpc.CallCredentials;
 import io.grpc.ClientInterceptor;
 import io.grpc.Context;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -88,6 +91,14 @@ public final class RemoteModule extends BlazeModule {
   private RemoteActionInputFetcher actionInputFetcher;
   private RemoteOutputsMode remoteOutputsMode;
   private RemoteOutputService remoteOutputService;
+  /** Created for every command, see {@link MerkleTreeCache}. */
+  @Nullable private MerkleTreeCache merkleTreeCache;
+  /** Kept across commands, so that builds know which chunks previous builds have uploaded. */
+  @Nullable private ChunkIndex chunkIndex;
+  @Nullable private String chunkIndexKey;
+  /** Kept across commands, so that builds know which inputs previous builds have looked up. */
+  @Nullable private DigestPresenceCache presenceCache;
+  @Nullable private String presenceCacheKey;
 
   private final BuildEventArtifactUploaderFactoryDelegate
       buildEventArtifactUploaderFactoryDelegate = new BuildEventArtifactUploaderFactoryDelegate();
@@ -125,6 +136,8 @@ public final class RemoteModule extends BlazeModule {
     DigestHashFunction hashFn = env.getRuntime().getFileSystem().getDigestFunction();
     DigestUtil digestUtil = new DigestUtil(hashFn);
 
+    updateMerkleTreeCache(remoteOptions);
+
     boolean enableDiskCache = RemoteCacheClientFactory.isDiskCache(remoteOptions);
     boolean enableHttpCache = RemoteCacheClientFactory.isHttpCache(remoteOptions);
     boolean enableGrpcCache = GrpcCacheClient.isRemoteCacheOptions(remoteOptions);
@@ -141,6 +154,17 @@ public final class RemoteModule extends BlazeModule {
           ExitCode.COMMAND_LINE_ERROR);
     }
 
+    if ((enableGrpcCache || enableRemoteExecution)
+        && digestUtil.getDigestFunction() == DigestFunction.Value.UNKNOWN) {
+      // Servers would reject or misinterpret the digests, as the protocol has no name for them.
+      throw new AbruptExitException(
+          String.format(
+              "The remote execution API does not support --digest_function=%s, which cannot be "
+                  + "used with gRPC based remote caching or execution",
+              hashFn),
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+
     env.getEventBus().register(this);
     String invocationId = env.getCommandId().toString();
     String buildRequestId = env.getBuildRequestId();
@@ -161,7 +185,7 @@ public final class RemoteModule extends BlazeModule {
         RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteCaching(
-                env, remoteCache, /* retryScheduler= */ null, digestUtil);
+                env, remoteCache, /* retryScheduler= */ null, digestUtil, merkleTreeCache);
         return;
       }
 
@@ -249,7 +273,8 @@ public final class RemoteModule extends BlazeModule {
               remoteOptions,
               retrier,
               digestUtil,
-              uploader.retain());
+              uploader.retain(),
+              getChunkIndex(remoteOptions, cacheChannel.authority()));
       uploader.release();
       Context requestContext =
           TracingMetadataUtils.contextWithMetadata(buildRequestId, invocationId, "bes-upload");
@@ -276,10 +301,20 @@ public final class RemoteModule extends BlazeModule {
                 remoteOptions);
         execChannel.release();
         RemoteExecutionCache remoteCache =
-            new RemoteExecutionCache(cacheClient, remoteOptions, digestUtil);
+            new RemoteExecutionCache(
+                cacheClient,
+                remoteOptions,
+                digestUtil,
+                getPresenceCache(remoteOptions, cacheChannel.authority()));
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteExecution(
-                env, remoteCache, remoteExecutor, retryScheduler, digestUtil, logDir);
+                env,
+                remoteCache,
+                remoteExecutor,
+                retryScheduler,
+                digestUtil,
+                logDir,
+                merkleTreeCache);
         Context repoContext =
             TracingMetadataUtils.contextWithMetadata(
                 buildRequestId, invocationId, "repository_rule");
@@ -306,7 +341,7 @@ public final class RemoteModule extends BlazeModule {
         RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteCaching(
-                env, remoteCache, retryScheduler, digestUtil);
+                env, remoteCache, retryScheduler, digestUtil, merkleTreeCache);
       }
     } catch (IOException e) {
       env.getReporter().handle(Event.error(e.getMessage()));
@@ -421,6 +456,84 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  private void updateMerkleTreeCache(RemoteOptions remoteOptions) throws AbruptExitException {
+    if (remoteOptions.remoteMerkleTreeCacheSizeMb <= 0) {
+      throw new AbruptExitException(
+          "--experimental_remote_merkle_tree_cache_size_mb must be positive",
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+    // The trees of NestedSet nodes depend on the metadata of their files, so they are only reused
+    // within a command.
+    merkleTreeCache =
+        remoteOptions.remoteMerkleTreeCache
+            ? new MerkleTreeCache(remoteOptions.remoteMerkleTreeCacheSizeMb << 20)
+            : null;
+  }
+
+  /**
+   * Returns the chunk index of the remote cache if files should be uploaded in chunks, creating a
+   * new one when the remote cache changed, or null otherwise.
+   */
+  @Nullable
+  private ChunkIndex getChunkIndex(RemoteOptions remoteOptions, String cacheAuthority)
+      throws AbruptExitException {
+    if (!remoteOptions.remoteCacheChunking) {
+      return null;
+    }
+    if (remoteOptions.remoteCacheChunkIndexSize <= 0) {
+      throw new AbruptExitException(
+          "--experimental_remote_cache_chunk_index_size must be positive",
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+    String key =
+        String.format(
+            "%s/%s/%d",
+            cacheAuthority,
+            remoteOptions.remoteInstanceName,
+            remoteOptions.remoteCacheChunkIndexSize);
+    if (chunkIndex == null || !key.equals(chunkIndexKey)) {
+      chunkIndex = new ChunkIndex(remoteOptions.remoteCacheChunkIndexSize);
+      chunkIndexKey = key;
+    }
+    return chunkIndex;
+  }
+
+  /**
+   * Returns the cache of digests known to be present in the remote cache if it is enabled,
+   * creating a new one when the remote cache or the options changed, or null otherwise.
+   */
+  @Nullable
+  private DigestPresenceCache getPresenceCache(RemoteOptions remoteOptions, String cacheAuthority)
+      throws AbruptExitException {
+    if (!remoteOptions.remotePresenceCache) {
+      presenceCache = null;
+      presenceCacheKey = null;
+      return null;
+    }
+    if (remoteOptions.remotePresenceCacheSize <= 0
+        || remoteOptions.remotePresenceCacheTtlSeconds <= 0) {
+      throw new AbruptExitException(
+          "--experimental_remote_presence_cache_size and --experimental_remote_presence_cache_ttl "
+              + "must be positive",
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+    String key =
+        String.format(
+            "%s/%s/%d/%d",
+            cacheAuthority,
+            remoteOptions.remoteInstanceName,
+            remoteOptions.remotePresenceCacheSize,
+            remoteOptions.remotePresenceCacheTtlSeconds);
+    if (presenceCache == null || !key.equals(presenceCacheKey)) {
+      presenceCache =
+          new DigestPresenceCache(
+              remoteOptions.remotePresenceCacheSize,
+              Duration.ofSeconds(remoteOptions.remotePresenceCacheTtlSeconds));
+      presenceCacheKey = key;
+    }
+    return presenceCache;
+  }
+
   @Override
   public void afterCommand() throws AbruptExitException {
     IOException failure = null;
@@ -438,9 +551,17 @@ public final class RemoteModule extends BlazeModule {
       failure = e;
     }
 
+    if (presenceCache != null && actionContextProvider != null) {
+      logger.info(
+          String.format(
+              "Remote presence cache: %d digests looked up, %d lookups saved",
+              presenceCache.getLookedUpDigests(), presenceCache.getSavedDigests()));
+    }
+
     buildEventArtifactUploaderFactoryDelegate.reset();
     repositoryRemoteExecutorFactoryDelegate.reset();
     actionContextProvider = null;
+    merkleTreeCache = null;
     actionInputFetcher = null;
     remoteOutputsMode = null;
     remoteOutputService = null;
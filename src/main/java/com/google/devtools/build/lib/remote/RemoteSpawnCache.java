@@ -48,6 +48,7 @@ import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -91,6 +92,8 @@ final class RemoteSpawnCache implements SpawnCache {
    */
   private final ImmutableSet<ActionInput> filesToDownload;
 
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+
   RemoteSpawnCache(
       Path execRoot,
       RemoteOptions options,
@@ -99,7 +102,8 @@ final class RemoteSpawnCache implements SpawnCache {
       String commandId,
       @Nullable Reporter cmdlineReporter,
       DigestUtil digestUtil,
-      ImmutableSet<ActionInput> filesToDownload) {
+      ImmutableSet<ActionInput> filesToDownload,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.options = options;
     this.remoteCache = remoteCache;
@@ -108,6 +112,7 @@ final class RemoteSpawnCache implements SpawnCache {
     this.commandId = commandId;
     this.digestUtil = digestUtil;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -122,7 +127,15 @@ final class RemoteSpawnCache implements SpawnCache {
 
     SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping(true);
     MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+        merkleTreeCache != null
+            ? merkleTreeCache.build(
+                spawn.getResourceOwner().getInputs(),
+                inputMap,
+                context.getArtifactExpander(),
+                context.getMetadataProvider(),
+                execRoot,
+                digestUtil)
+            : MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
     Digest merkleTreeRoot = merkleTree.getRootDigest();
 
     // Get the remote platform properties.
@@ -61,6 +61,7 @@ import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -153,6 +154,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
    */
   private final ImmutableSet<ActionInput> filesToDownload;
 
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
@@ -170,7 +173,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
       ListeningScheduledExecutorService retryService,
       DigestUtil digestUtil,
       Path logDir,
-      ImmutableSet<ActionInput> filesToDownload) {
+      ImmutableSet<ActionInput> filesToDownload,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.remoteOptions = remoteOptions;
     this.executionOptions = executionOptions;
@@ -185,6 +189,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
     this.digestUtil = digestUtil;
     this.logDir = logDir;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -204,7 +209,15 @@ public class RemoteSpawnRunner implements SpawnRunner {
     RemoteOutputsMode remoteOutputsMode = remoteOptions.remoteOutputsMode;
     SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping(true);
     final MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+        merkleTreeCache != null
+            ? merkleTreeCache.build(
+                spawn.getResourceOwner().getInputs(),
+                inputMap,
+                context.getArtifactExpander(),
+                context.getMetadataProvider(),
+                execRoot,
+                digestUtil)
+            : MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
     maybeWriteParamFilesLocally(spawn);
 
     // Get the remote platform properties.
@@ -280,15 +293,21 @@ public class RemoteSpawnRunner implements SpawnRunner {
               ExecuteRequest request = requestBuilder.build();
 
               // Upload the command and all the inputs into the remote cache.
+              Map<Digest, Message> additionalInputs = Maps.newHashMapWithExpectedSize(2);
+              additionalInputs.put(actionKey.getDigest(), action);
+              additionalInputs.put(commandHash, command);
               try (SilentCloseable c = prof.profile(UPLOAD_TIME, "upload missing inputs")) {
-                Map<Digest, Message> additionalInputs = Maps.newHashMapWithExpectedSize(2);
-                additionalInputs.put(actionKey.getDigest(), action);
-                additionalInputs.put(commandHash, command);
                 remoteCache.ensureInputsPresent(merkleTree, additionalInputs);
               }
               ExecuteResponse reply;
               try (SilentCloseable c = prof.profile(REMOTE_EXECUTION, "execute remotely")) {
                 reply = remoteExecutor.executeRemotely(request);
+              } catch (IOException | RuntimeException e) {
+                if (retriableExecErrors(e)) {
+                  // The remote cache evicted inputs that were believed to be present.
+                  remoteCache.invalidateInputsPresence(merkleTree, additionalInputs);
+                }
+                throw e;
               }
 
               FileOutErr outErr = context.getFileOutErr();
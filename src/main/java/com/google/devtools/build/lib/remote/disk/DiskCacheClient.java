@@ -27,25 +27,47 @@ import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.Utils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /** A on-disk store for the remote action cache. */
 public class DiskCacheClient implements RemoteCacheClient {
 
+  private static final Logger logger = Logger.getLogger(DiskCacheClient.class.getName());
+
   private static final String ACTION_KEY_PREFIX = "ac_";
 
   private final Path root;
   private final boolean verifyDownloads;
   private final DigestUtil digestUtil;
+  @Nullable private final DiskCacheIndex index;
 
   public DiskCacheClient(Path root, boolean verifyDownloads, DigestUtil digestUtil) {
+    this(root, verifyDownloads, digestUtil, /* index= */ null);
+  }
+
+  /**
+   * Creates a disk cache whose size is bounded by the given {@link DiskCacheIndex}. If {@code
+   * index} is {@code null}, the cache grows without bounds.
+   */
+  public DiskCacheClient(
+      Path root, boolean verifyDownloads, DigestUtil digestUtil, @Nullable DiskCacheIndex index) {
     this.root = root;
     this.verifyDownloads = verifyDownloads;
     this.digestUtil = digestUtil;
+    this.index = index;
+  }
+
+  /** Returns the index bounding the size of this cache, or {@code null} if it is unbounded. */
+  @Nullable
+  public DiskCacheIndex getIndex() {
+    return index;
   }
 
   /** Returns {@code true} if the provided {@code key} is stored in the CAS. */
@@ -59,21 +81,37 @@ public class DiskCacheClient implements RemoteCacheClient {
   }
 
   public void captureFile(Path src, Digest digest, boolean isActionCache) throws IOException {
-    Path target = toPath(digest.getHash(), isActionCache);
-    src.renameTo(target);
+    if (index != null) {
+      index.insert(getDiskKey(digest.getHash(), isActionCache), src, src.getFileSize());
+      return;
+    }
+    src.renameTo(toPath(digest.getHash(), isActionCache));
   }
 
   private ListenableFuture<Void> download(Digest digest, OutputStream out, boolean isActionCache) {
-    Path p = toPath(digest.getHash(), isActionCache);
-    if (!p.exists()) {
-      return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
-    } else {
-      try (InputStream in = p.getInputStream()) {
-        ByteStreams.copy(in, out);
-        return Futures.immediateFuture(null);
-      } catch (IOException e) {
-        return Futures.immediateFailedFuture(e);
+    String key = getDiskKey(digest.getHash(), isActionCache);
+    Path p = root.getChild(key);
+    InputStream in;
+    try {
+      in = p.getInputStream();
+    } catch (FileNotFoundException e) {
+      if (index != null) {
+        index.recordMiss(key);
       }
+      return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    // Opening the file rather than checking for its existence first means that a concurrent
+    // eviction can't delete the file between the check and the read.
+    if (index != null) {
+      index.recordHit(key);
+    }
+    try (InputStream closeable = in) {
+      ByteStreams.copy(closeable, out);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
     }
   }
 
@@ -113,7 +151,24 @@ public class DiskCacheClient implements RemoteCacheClient {
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    if (index != null) {
+      try {
+        index.save();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to save the disk cache index", e);
+      }
+      logger.info(
+          String.format(
+              "Disk cache: %d hits, %d misses, %d entries (%d bytes) evicted, %d of %d bytes used",
+              index.getHits(),
+              index.getMisses(),
+              index.getEvictedEntries(),
+              index.getEvictedBytes(),
+              index.getTotalSizeBytes(),
+              index.getMaxSizeBytes()));
+    }
+  }
 
   @Override
   public ListenableFuture<Void> uploadFile(Digest digest, Path file) {
@@ -153,16 +208,25 @@ public class DiskCacheClient implements RemoteCacheClient {
   private void saveFile(String key, InputStream in) throws IOException {
     Path target = toPath(key, /* actionResult= */ false);
     if (target.exists()) {
+      if (index != null) {
+        // Keep the entry from being evicted as if it hadn't been used.
+        index.touch(key);
+      }
       return;
     }
 
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
     Path temp = toPath(UUID.randomUUID().toString(), /* actionResult= */ false);
+    long size;
     try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
+      size = ByteStreams.copy(in, out);
     }
     // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
     // crashes (the OS may reorder the writes and the rename).
-    temp.renameTo(target);
+    if (index != null) {
+      index.insert(key, temp, size);
+    } else {
+      temp.renameTo(target);
+    }
   }
 }
@@ -0,0 +1,462 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Tracks the size and recency of every entry of a {@link DiskCacheClient} so that the cache can be
+ * kept below a maximum size.
+ *
+ * <p>Entries are kept in least-recently-used order. Whenever an insertion pushes the total size
+ * over the limit, an eviction pass is scheduled on the provided executor which deletes the least
+ * recently used entries until the cache is back at {@link #LOW_WATER_MARK_PERCENT} of the limit.
+ * Readers and writers of the cache never wait for evictions: an entry is removed from the index
+ * and marked as being deleted under the lock, but its file is deleted outside of it. An insertion
+ * under a key that is being deleted is dropped, so that the eviction never deletes the new file.
+ *
+ * <p>Every change to the index is appended to a journal file in the cache directory, which is
+ * replayed by the next instance, and compacted on {@link #save} once it has grown much larger than
+ * the index. While an instance is in use, a marker file is kept next to the journal. If the marker
+ * is found on {@link #load}, because the previous instance was not saved, or the journal is
+ * missing or unreadable, the index is rebuilt by scanning the cache directory, in which case the
+ * recency information is approximated by the files' modification times.
+ */
+@ThreadSafe
+public final class DiskCacheIndex {
+
+  private static final Logger logger = Logger.getLogger(DiskCacheIndex.class.getName());
+
+  /** Name of the file, inside the cache directory, that holds the journal of the index. */
+  @VisibleForTesting static final String JOURNAL_FILE_NAME = ".lru_journal";
+
+  /** Name of the file, inside the cache directory, that marks the journal as being written. */
+  @VisibleForTesting static final String DIRTY_MARKER_FILE_NAME = ".lru_journal_dirty";
+
+  private static final int JOURNAL_FORMAT_VERSION = 2;
+
+  private static final byte PUT_RECORD = 1;
+  private static final byte REMOVE_RECORD = 2;
+
+  /**
+   * The journal is compacted on {@link #save} when it holds more than this many records in addition
+   * to twice the number of entries.
+   */
+  private static final long MIN_RECORDS_BEFORE_COMPACTION = 10_000;
+
+  /** Evictions remove entries until the cache is at this percentage of the maximum size. */
+  @VisibleForTesting static final int LOW_WATER_MARK_PERCENT = 90;
+
+  private final Path root;
+  private final long maxSizeBytes;
+  private final long lowWaterMarkBytes;
+  private final Executor evictionExecutor;
+
+  private final Object lock = new Object();
+
+  /** Maps the disk key of every entry to its size in bytes, in least-recently-used order. */
+  @GuardedBy("lock")
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<>(
+          /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+
+  @GuardedBy("lock")
+  private long totalSizeBytes;
+
+  /** The keys of the entries whose files are being deleted by an eviction. */
+  @GuardedBy("lock")
+  private final Set<String> tombstones = new HashSet<>();
+
+  /** Set by {@link #save}, after which evictions stop and the journal is no longer written. */
+  @GuardedBy("lock")
+  private boolean saved;
+
+  @GuardedBy("lock")
+  @Nullable
+  private DataOutputStream journal;
+
+  /** The number of records in the journal file. */
+  @GuardedBy("lock")
+  private long journalRecords;
+
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictedEntries = new AtomicLong();
+  private final AtomicLong evictedBytes = new AtomicLong();
+
+  private DiskCacheIndex(Path root, long maxSizeBytes, Executor evictionExecutor) {
+    Preconditions.checkArgument(maxSizeBytes > 0, "maxSizeBytes must be positive");
+    this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.lowWaterMarkBytes = maxSizeBytes / 100 * LOW_WATER_MARK_PERCENT;
+    this.evictionExecutor = evictionExecutor;
+  }
+
+  /**
+   * Returns an index for the cache in {@code root}, either replayed from the journal of a
+   * previously saved index or rebuilt from the contents of the directory.
+   */
+  public static DiskCacheIndex load(Path root, long maxSizeBytes, Executor evictionExecutor)
+      throws IOException {
+    DiskCacheIndex index = new DiskCacheIndex(root, maxSizeBytes, evictionExecutor);
+    Path journalFile = root.getChild(JOURNAL_FILE_NAME);
+    Path dirtyMarker = root.getChild(DIRTY_MARKER_FILE_NAME);
+    boolean loaded = false;
+    if (journalFile.exists() && !dirtyMarker.exists()) {
+      try {
+        index.replay(journalFile);
+        loaded = true;
+      } catch (IOException e) {
+        logger.log(
+            Level.WARNING,
+            "Failed to read disk cache journal " + journalFile + ", rebuilding the index",
+            e);
+      }
+    }
+    if (!loaded) {
+      index.rebuild();
+    }
+    synchronized (index.lock) {
+      if (!loaded) {
+        index.compact();
+      }
+      // A crash before the next save leaves the marker behind, so that the journal, which may be
+      // missing the latest changes, is not trusted.
+      FileSystemUtils.createEmptyFile(dirtyMarker);
+      index.journal =
+          new DataOutputStream(
+              new BufferedOutputStream(journalFile.getOutputStream(/* append= */ true)));
+    }
+    index.maybeScheduleEviction();
+    return index;
+  }
+
+  /** Records that {@code key} has been read from the cache. */
+  public void recordHit(String key) {
+    hits.incrementAndGet();
+    touch(key);
+  }
+
+  /** Marks {@code key} as the most recently used entry. */
+  public void touch(String key) {
+    synchronized (lock) {
+      // A lookup in an access-ordered map moves the entry to the most recently used position.
+      Long sizeBytes = entries.get(key);
+      if (sizeBytes != null) {
+        appendPut(key, sizeBytes);
+      }
+    }
+  }
+
+  /** Records that {@code key} was requested but not present in the cache. */
+  public void recordMiss(String key) {
+    misses.incrementAndGet();
+    synchronized (lock) {
+      Long previous = entries.remove(key);
+      if (previous != null) {
+        totalSizeBytes -= previous;
+        appendRemove(key);
+      }
+    }
+  }
+
+  /**
+   * Moves {@code file}, of {@code sizeBytes}, into the cache under {@code key}. The move and the
+   * update of the index are atomic with respect to evictions. If the file of an older entry under
+   * the same key is being deleted by an eviction, {@code file} is deleted instead.
+   */
+  public void insert(String key, Path file, long sizeBytes) throws IOException {
+    synchronized (lock) {
+      if (tombstones.contains(key)) {
+        file.delete();
+        return;
+      }
+      file.renameTo(root.getChild(key));
+      Long previous = entries.put(key, sizeBytes);
+      totalSizeBytes += sizeBytes - (previous == null ? 0 : previous);
+      appendPut(key, sizeBytes);
+    }
+    maybeScheduleEviction();
+  }
+
+  private void maybeScheduleEviction() {
+    if (getTotalSizeBytes() > maxSizeBytes && evictionScheduled.compareAndSet(false, true)) {
+      evictionExecutor.execute(this::evict);
+    }
+  }
+
+  private void evict() {
+    try {
+      while (true) {
+        String key;
+        long sizeBytes;
+        synchronized (lock) {
+          if (saved || totalSizeBytes <= lowWaterMarkBytes || entries.isEmpty()) {
+            break;
+          }
+          Map.Entry<String, Long> eldest = entries.entrySet().iterator().next();
+          key = eldest.getKey();
+          sizeBytes = eldest.getValue();
+          entries.remove(key);
+          totalSizeBytes -= sizeBytes;
+          tombstones.add(key);
+          appendRemove(key);
+        }
+        // A concurrent reader either already has the file open, or observes a miss.
+        try {
+          root.getChild(key).delete();
+          evictedEntries.incrementAndGet();
+          evictedBytes.addAndGet(sizeBytes);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to evict " + key + " from disk cache", e);
+        } finally {
+          synchronized (lock) {
+            tombstones.remove(key);
+            lock.notifyAll();
+          }
+        }
+      }
+    } finally {
+      evictionScheduled.set(false);
+    }
+    // Entries may have been added while we were deleting files.
+    synchronized (lock) {
+      if (saved) {
+        return;
+      }
+    }
+    maybeScheduleEviction();
+  }
+
+  private void rebuild() throws IOException {
+    List<Dirent> dirents = new ArrayList<>(root.readdir(Symlinks.NOFOLLOW));
+    List<RebuiltEntry> rebuilt = new ArrayList<>(dirents.size());
+    for (Dirent dirent : dirents) {
+      if (dirent.getType() != Dirent.Type.FILE || !isCacheEntry(dirent.getName())) {
+        continue;
+      }
+      FileStatus stat = root.getChild(dirent.getName()).statIfFound(Symlinks.NOFOLLOW);
+      if (stat != null) {
+        rebuilt.add(new RebuiltEntry(dirent.getName(), stat.getSize(), stat.getLastModifiedTime()));
+      }
+    }
+    rebuilt.sort((a, b) -> Long.compare(a.lastModifiedTime, b.lastModifiedTime));
+    synchronized (lock) {
+      for (RebuiltEntry entry : rebuilt) {
+        entries.put(entry.key, entry.sizeBytes);
+        totalSizeBytes += entry.sizeBytes;
+      }
+    }
+  }
+
+  private static boolean isCacheEntry(String name) {
+    // Skip the journal and its marker. Temporary files are named by a UUID and therefore contain
+    // dashes, which never occur in hex encoded digests.
+    return !name.startsWith(".") && name.indexOf('-') < 0;
+  }
+
+  private void replay(Path journalFile) throws IOException {
+    try (InputStream in = journalFile.getInputStream();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+      int version = data.readInt();
+      if (version != JOURNAL_FORMAT_VERSION) {
+        throw new IOException("Unsupported disk cache journal version " + version);
+      }
+      LinkedHashMap<String, Long> replayed =
+          new LinkedHashMap<>(
+              /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+      long replayedSize = 0;
+      long records = 0;
+      int op;
+      while ((op = data.read()) != -1) {
+        String key = data.readUTF();
+        if (op == PUT_RECORD) {
+          long sizeBytes = data.readLong();
+          Long previous = replayed.put(key, sizeBytes);
+          replayedSize += sizeBytes - (previous == null ? 0 : previous);
+        } else if (op == REMOVE_RECORD) {
+          Long previous = replayed.remove(key);
+          replayedSize -= previous == null ? 0 : previous;
+        } else {
+          throw new IOException("Unknown disk cache journal record " + op);
+        }
+        records++;
+      }
+      synchronized (lock) {
+        entries.putAll(replayed);
+        totalSizeBytes += replayedSize;
+        journalRecords = records;
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private void appendPut(String key, long sizeBytes) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.writeByte(PUT_RECORD);
+      journal.writeUTF(key);
+      journal.writeLong(sizeBytes);
+      journalRecords++;
+    } catch (IOException e) {
+      journalFailed(e);
+    }
+  }
+
+  @GuardedBy("lock")
+  private void appendRemove(String key) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.writeByte(REMOVE_RECORD);
+      journal.writeUTF(key);
+      journalRecords++;
+    } catch (IOException e) {
+      journalFailed(e);
+    }
+  }
+
+  @GuardedBy("lock")
+  private void journalFailed(IOException e) {
+    logger.log(Level.WARNING, "Failed to write the disk cache journal", e);
+    try {
+      journal.close();
+    } catch (IOException closeException) {
+      e.addSuppressed(closeException);
+    }
+    // Stop writing the journal. The marker is kept, so that the next instance rebuilds the index.
+    journal = null;
+  }
+
+  /** Replaces the journal by one that only holds the current entries. */
+  @GuardedBy("lock")
+  private void compact() throws IOException {
+    Path temp = root.getChild(JOURNAL_FILE_NAME + "-" + UUID.randomUUID());
+    try (OutputStream out = temp.getOutputStream();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+      data.writeInt(JOURNAL_FORMAT_VERSION);
+      for (Map.Entry<String, Long> entry : entries.entrySet()) {
+        data.writeByte(PUT_RECORD);
+        data.writeUTF(entry.getKey());
+        data.writeLong(entry.getValue());
+      }
+    }
+    temp.renameTo(root.getChild(JOURNAL_FILE_NAME));
+    journalRecords = entries.size();
+  }
+
+  /**
+   * Stops evictions, waiting for the deletion of a file that is in progress, and persists the
+   * index, from where it is picked up by the next call to {@link #load}. The index must not be
+   * used afterwards.
+   */
+  public void save() throws IOException {
+    synchronized (lock) {
+      if (saved) {
+        return;
+      }
+      saved = true;
+      boolean interrupted = false;
+      while (!tombstones.isEmpty()) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (journal == null) {
+        return;
+      }
+      journal.close();
+      journal = null;
+      if (journalRecords > 2L * entries.size() + MIN_RECORDS_BEFORE_COMPACTION) {
+        compact();
+      }
+      root.getChild(DIRTY_MARKER_FILE_NAME).delete();
+    }
+  }
+  public long getTotalSizeBytes() {
+    synchronized (lock) {
+      return totalSizeBytes;
+    }
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictedEntries() {
+    return evictedEntries.get();
+  }
+
+  public long getEvictedBytes() {
+    return evictedBytes.get();
+  }
+
+  private static final class RebuiltEntry {
+    private final String key;
+    private final long sizeBytes;
+    private final long lastModifiedTime;
+
+    private RebuiltEntry(String key, long sizeBytes, long lastModifiedTime) {
+      this.key = key;
+      this.sizeBytes = sizeBytes;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+}
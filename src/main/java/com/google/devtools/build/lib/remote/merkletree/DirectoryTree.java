@@ -26,6 +26,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Intermediate tree representation of a list of lexicographically sorted list of files. Each node
@@ -196,6 +198,51 @@ final class DirectoryTree {
     visitor.visitDirectory(dirname, files, dirs);
   }
 
+  /**
+   * Like {@link #visit(Visitor)}, but visits the subdirectories of a directory in parallel on
+   * {@code pool}. The visitor must be thread-safe. A directory is still visited after all of its
+   * subdirectories.
+   */
+  void visitInParallel(Visitor visitor, ForkJoinPool pool) {
+    Preconditions.checkNotNull(visitor, "visitor");
+    pool.invoke(new VisitAction(visitor, PathFragment.EMPTY_FRAGMENT));
+  }
+
+  private final class VisitAction extends RecursiveAction {
+    private final Visitor visitor;
+    private final PathFragment dirname;
+
+    VisitAction(Visitor visitor, PathFragment dirname) {
+      this.visitor = visitor;
+      this.dirname = dirname;
+    }
+
+    @Override
+    protected void compute() {
+      DirectoryNode dir = tree.get(dirname);
+      if (dir == null) {
+        return;
+      }
+
+      List<FileNode> files = new ArrayList<>(dir.children.size());
+      List<DirectoryNode> dirs = new ArrayList<>();
+      List<VisitAction> subdirActions = new ArrayList<>();
+      for (Node child : dir.children) {
+        if (child instanceof FileNode) {
+          files.add((FileNode) child);
+        } else if (child instanceof DirectoryNode) {
+          dirs.add((DirectoryNode) child);
+          subdirActions.add(new VisitAction(visitor, dirname.getRelative(child.pathSegment)));
+        } else {
+          throw new IllegalStateException(
+              String.format("Node type '%s' is not supported", child.getClass().getSimpleName()));
+        }
+      }
+      invokeAll(subdirActions);
+      visitor.visitDirectory(dirname, files, dirs);
+    }
+  }
+
   @Override
   public String toString() {
     Map<PathFragment, StringBuilder> m = new HashMap<>();
@@ -18,7 +18,7 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.actions.ActionInput;
@@ -30,14 +30,50 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
 import javax.annotation.Nullable;
 
 /** A merkle tree representation as defined by the remote execution api. */
 public class MerkleTree {
 
+  /**
+   * Trees with at least this many directories are built on a {@link PoolHolder#POOL}. Smaller trees
+   * are not worth the overhead of handing work to other threads.
+   */
+  private static final int MIN_DIRECTORIES_FOR_PARALLEL_BUILD = 64;
+
+  /**
+   * Holds the pool that large trees are built on. Building a tree is CPU bound, so the pool has at
+   * most one thread per core, and it is not shared with unrelated work, so that a build does not
+   * compete with, or wait for, other users of the common pool.
+   */
+  private static final class PoolHolder {
+    private static final ForkJoinPool POOL =
+        new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(),
+            pool -> {
+              ForkJoinWorkerThread thread =
+                  ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+              thread.setName("merkle-tree-builder-" + thread.getPoolIndex());
+              thread.setDaemon(true);
+              return thread;
+            },
+            /* handler= */ null,
+            /* asyncMode= */ false);
+  }
+
   /** A path or contents */
   public static class PathOrBytes {
 
@@ -65,17 +101,63 @@ public class MerkleTree {
     }
   }
 
+  /**
+   * A directory of a merkle tree. Nodes are immutable, so a subtree that is unchanged by {@link
+   * #merge} or {@link #remove} is shared by the resulting tree instead of being copied.
+   */
+  static final class Node {
+    private final Directory directory;
+    private final Digest digest;
+    /** The contents of the files of {@link #directory}, in the same order. */
+    private final List<PathOrBytes> fileContents;
+    /** The subdirectories of {@link #directory}, in the same order. */
+    private final List<Node> subdirectories;
+
+    private Node(
+        Directory directory,
+        Digest digest,
+        List<PathOrBytes> fileContents,
+        List<Node> subdirectories) {
+      this.directory = directory;
+      this.digest = digest;
+      this.fileContents = fileContents;
+      this.subdirectories = subdirectories;
+    }
+
+    Directory getDirectory() {
+      return directory;
+    }
+
+    boolean isEmpty() {
+      return subdirectories.isEmpty() && fileContents.isEmpty();
+    }
+  }
+
   private final Map<Digest, Directory> digestDirectoryMap;
   private final Map<Digest, PathOrBytes> digestFileMap;
   private final Digest rootDigest;
 
-  private MerkleTree(
-      Map<Digest, Directory> digestDirectoryMap,
-      Map<Digest, PathOrBytes> digestFileMap,
-      Digest rootDigest) {
-    this.digestDirectoryMap = digestDirectoryMap;
-    this.digestFileMap = digestFileMap;
-    this.rootDigest = rootDigest;
+  /** Creates the merkle tree with the given root. */
+  MerkleTree(Node root) {
+    this.digestDirectoryMap = new HashMap<>();
+    this.digestFileMap = new HashMap<>();
+    this.rootDigest = root.digest;
+    if (!root.isEmpty()) {
+      addAll(root);
+    }
+  }
+
+  private void addAll(Node node) {
+    if (digestDirectoryMap.putIfAbsent(node.digest, node.directory) != null) {
+      // Directories with the same digest have the same contents.
+      return;
+    }
+    for (int i = 0; i < node.fileContents.size(); i++) {
+      digestFileMap.put(node.directory.getFiles(i).getDigest(), node.fileContents.get(i));
+    }
+    for (Node subdirectory : node.subdirectories) {
+      addAll(subdirectory);
+    }
   }
 
   /** Returns the digest of the merkle tree's root. */
@@ -119,40 +201,190 @@ public class MerkleTree {
       DigestUtil digestUtil)
       throws IOException {
     try (SilentCloseable c = Profiler.instance().profile("MerkleTree.build")) {
-      DirectoryTree tree =
-          DirectoryTreeBuilder.fromActionInputs(inputs, metadataProvider, execRoot, digestUtil);
-      return build(tree, digestUtil);
+      return new MerkleTree(
+          buildNode(inputs, metadataProvider, execRoot, digestUtil, /* newNodes= */ node -> {}));
     }
   }
 
-  private static MerkleTree build(DirectoryTree tree, DigestUtil digestUtil) {
+  /**
+   * Returns the root of the merkle tree of {@code inputs}, see {@link #build}. Every node of the
+   * tree is passed to {@code newNodes}, possibly from several threads at once.
+   */
+  static Node buildNode(
+      SortedMap<PathFragment, ActionInput> inputs,
+      MetadataProvider metadataProvider,
+      Path execRoot,
+      DigestUtil digestUtil,
+      Consumer<Node> newNodes)
+      throws IOException {
+    DirectoryTree tree =
+        DirectoryTreeBuilder.fromActionInputs(inputs, metadataProvider, execRoot, digestUtil);
+    return buildNode(tree, digestUtil, newNodes);
+  }
+
+  private static Node buildNode(
+      DirectoryTree tree, DigestUtil digestUtil, Consumer<Node> newNodes) {
     Preconditions.checkNotNull(tree);
     if (tree.isEmpty()) {
-      return new MerkleTree(ImmutableMap.of(), ImmutableMap.of(), digestUtil.compute(new byte[0]));
+      return emptyNode(digestUtil);
     }
-    Map<Digest, Directory> digestDirectoryMap =
-        Maps.newHashMapWithExpectedSize(tree.numDirectories());
-    Map<Digest, PathOrBytes> digestPathMap = Maps.newHashMapWithExpectedSize(tree.numFiles());
-    Map<PathFragment, Digest> m = new HashMap<>();
-    tree.visit(
+    boolean parallel = tree.numDirectories() >= MIN_DIRECTORIES_FOR_PARALLEL_BUILD;
+    Map<PathFragment, Node> m =
+        parallel
+            ? new ConcurrentHashMap<>(tree.numDirectories())
+            : Maps.newHashMapWithExpectedSize(tree.numDirectories());
+    DirectoryTree.Visitor visitor =
         (dirname, files, dirs) -> {
-          Directory.Builder b = Directory.newBuilder();
-          for (DirectoryTree.FileNode file : files) {
-            b.addFiles(buildProto(file));
-            digestPathMap.put(file.getDigest(), toPathOrBytes(file));
-          }
+          List<Node> subdirectories = new ArrayList<>(dirs.size());
+          List<Digest> dirDigests = new ArrayList<>(dirs.size());
           for (DirectoryTree.DirectoryNode dir : dirs) {
             PathFragment subDirname = dirname.getRelative(dir.getPathSegment());
-            Digest protoDirDigest =
+            Node subdirectory =
                 Preconditions.checkNotNull(m.remove(subDirname), "protoDirDigest was null");
-            b.addDirectories(buildProto(dir, protoDirDigest));
+            subdirectories.add(subdirectory);
+            dirDigests.add(subdirectory.digest);
+          }
+          List<PathOrBytes> fileContents = new ArrayList<>(files.size());
+          for (DirectoryTree.FileNode file : files) {
+            fileContents.add(toPathOrBytes(file));
           }
-          Directory protoDir = b.build();
-          Digest protoDirDigest = digestUtil.compute(protoDir);
-          digestDirectoryMap.put(protoDirDigest, protoDir);
-          m.put(dirname, protoDirDigest);
-        });
-    return new MerkleTree(digestDirectoryMap, digestPathMap, m.get(PathFragment.EMPTY_FRAGMENT));
+          Directory protoDir = buildProto(files, dirs, dirDigests);
+          Node node =
+              new Node(protoDir, digestUtil.compute(protoDir), fileContents, subdirectories);
+          newNodes.accept(node);
+          m.put(dirname, node);
+        };
+    if (parallel) {
+      tree.visitInParallel(visitor, PoolHolder.POOL);
+    } else {
+      tree.visit(visitor);
+    }
+    return m.get(PathFragment.EMPTY_FRAGMENT);
+  }
+
+  static Node emptyNode(DigestUtil digestUtil) {
+    Directory directory = Directory.getDefaultInstance();
+    return new Node(
+        directory, digestUtil.compute(directory), ImmutableList.of(), ImmutableList.of());
+  }
+
+  /**
+   * Returns the root of the union of the trees with the given roots. If several trees contain a
+   * file with the same path, the file of the later tree wins. Only the directories that are present
+   * in more than one tree are rebuilt, and each of them is passed to {@code newNodes}.
+   */
+  static Node merge(List<Node> roots, DigestUtil digestUtil, Consumer<Node> newNodes) {
+    List<Node> nonEmpty = new ArrayList<>(roots.size());
+    for (Node root : roots) {
+      if (!root.isEmpty()
+          && (nonEmpty.isEmpty() || !Iterables.getLast(nonEmpty).digest.equals(root.digest))) {
+        nonEmpty.add(root);
+      }
+    }
+    if (nonEmpty.isEmpty()) {
+      return roots.isEmpty() ? emptyNode(digestUtil) : roots.get(0);
+    }
+    if (nonEmpty.size() == 1) {
+      return nonEmpty.get(0);
+    }
+    SortedMap<String, FileNode> files = new TreeMap<>();
+    Map<String, PathOrBytes> fileContents = new HashMap<>();
+    SortedMap<String, List<Node>> dirs = new TreeMap<>();
+    for (Node root : nonEmpty) {
+      for (int i = 0; i < root.fileContents.size(); i++) {
+        FileNode file = root.directory.getFiles(i);
+        files.put(file.getName(), file);
+        fileContents.put(file.getName(), root.fileContents.get(i));
+      }
+      for (int i = 0; i < root.subdirectories.size(); i++) {
+        dirs.computeIfAbsent(root.directory.getDirectories(i).getName(), k -> new ArrayList<>())
+            .add(root.subdirectories.get(i));
+      }
+    }
+    Directory.Builder b = Directory.newBuilder();
+    List<PathOrBytes> mergedFileContents = new ArrayList<>(files.size());
+    for (FileNode file : files.values()) {
+      b.addFiles(file);
+      mergedFileContents.add(fileContents.get(file.getName()));
+    }
+    List<Node> mergedSubdirectories = new ArrayList<>(dirs.size());
+    for (Map.Entry<String, List<Node>> e : dirs.entrySet()) {
+      Node subdirectory = merge(e.getValue(), digestUtil, newNodes);
+      b.addDirectories(
+          DirectoryNode.newBuilder().setName(e.getKey()).setDigest(subdirectory.digest));
+      mergedSubdirectories.add(subdirectory);
+    }
+    Directory protoDir = b.build();
+    Node node =
+        new Node(
+            protoDir, digestUtil.compute(protoDir), mergedFileContents, mergedSubdirectories);
+    newNodes.accept(node);
+    return node;
+  }
+
+  /**
+   * Returns the root of the tree with the given root, without the files and directories at {@code
+   * paths}. Directories that become empty are removed as well, and only the directories on the way
+   * to a removed path are rebuilt.
+   */
+  static Node remove(Node root, Collection<PathFragment> paths, DigestUtil digestUtil) {
+    if (paths.isEmpty() || root.isEmpty()) {
+      return root;
+    }
+    Set<String> removed = new HashSet<>();
+    Map<String, List<PathFragment>> removedBelow = new HashMap<>();
+    for (PathFragment path : paths) {
+      String first = path.getSegment(0);
+      if (path.segmentCount() == 1) {
+        removed.add(first);
+      } else {
+        removedBelow
+            .computeIfAbsent(first, k -> new ArrayList<>())
+            .add(path.subFragment(1, path.segmentCount()));
+      }
+    }
+    Directory.Builder b = Directory.newBuilder();
+    List<PathOrBytes> fileContents = new ArrayList<>(root.fileContents.size());
+    for (int i = 0; i < root.fileContents.size(); i++) {
+      FileNode file = root.directory.getFiles(i);
+      if (!removed.contains(file.getName())) {
+        b.addFiles(file);
+        fileContents.add(root.fileContents.get(i));
+      }
+    }
+    List<Node> subdirectories = new ArrayList<>(root.subdirectories.size());
+    for (int i = 0; i < root.subdirectories.size(); i++) {
+      String name = root.directory.getDirectories(i).getName();
+      if (removed.contains(name)) {
+        continue;
+      }
+      Node subdirectory = root.subdirectories.get(i);
+      List<PathFragment> below = removedBelow.get(name);
+      if (below != null) {
+        subdirectory = remove(subdirectory, below, digestUtil);
+        if (subdirectory.isEmpty()) {
+          continue;
+        }
+      }
+      b.addDirectories(DirectoryNode.newBuilder().setName(name).setDigest(subdirectory.digest));
+      subdirectories.add(subdirectory);
+    }
+    Directory protoDir = b.build();
+    return new Node(protoDir, digestUtil.compute(protoDir), fileContents, subdirectories);
+  }
+
+  private static Directory buildProto(
+      List<DirectoryTree.FileNode> files,
+      List<DirectoryTree.DirectoryNode> dirs,
+      List<Digest> dirDigests) {
+    Directory.Builder b = Directory.newBuilder();
+    for (DirectoryTree.FileNode file : files) {
+      b.addFiles(buildProto(file));
+    }
+    for (int i = 0; i < dirs.size(); i++) {
+      b.addDirectories(buildProto(dirs.get(i), dirDigests.get(i)));
+    }
+    return b.build();
   }
 
   private static FileNode buildProto(DirectoryTree.FileNode file) {
@@ -0,0 +1,242 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import build.bazel.remote.execution.v2.Directory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * Memoizes the merkle trees of the nodes of actions' input {@link NestedSet}s during a command.
+ *
+ * <p>The inputs of many actions share large {@link NestedSet} nodes, e.g. toolchains, SDKs or the
+ * transitive sources of a library. The merkle tree of a node is cached under the node's identity,
+ * so the files of a node that has been seen before, by any action, are neither looked up, sorted,
+ * nor hashed again: the tree of an action's inputs is the {@link MerkleTree#merge merge} of the
+ * trees of its nodes, which only rebuilds the directories that several nodes have in common. The
+ * inputs of a spawn that are not inputs of its action, e.g. runfiles, are built as usual and
+ * merged in.
+ *
+ * <p>A node's tree depends on the metadata of its files, which only stays the same during a single
+ * build, so a new cache has to be created for every command. The cache is bounded by the estimated
+ * size of the directories that it holds, and must only be used with a single {@link DigestUtil}.
+ */
+public final class MerkleTreeCache {
+
+  /**
+   * Estimated bytes held by a directory, or by a file, in addition to its serialized directory: the
+   * digest, the contents and the object headers.
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  /** The root of a cached tree and the estimated size of the directories built for it. */
+  private static final class CachedNode {
+    private final MerkleTree.Node root;
+    private final long sizeBytes;
+
+    private CachedNode(MerkleTree.Node root, long sizeBytes) {
+      this.root = root;
+      this.sizeBytes = sizeBytes;
+    }
+  }
+
+  private final Cache<Object[], CachedNode> nodes;
+
+  /** Creates a cache holding directories of about {@code maxSizeBytes} bytes. */
+  public MerkleTreeCache(long maxSizeBytes) {
+    Preconditions.checkArgument(
+        maxSizeBytes > 0, "maxSizeBytes must be positive: %s", maxSizeBytes);
+    // NestedSet nodes are compared by identity, as arrays are.
+    this.nodes =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxSizeBytes)
+            .weigher(
+                (Object[] key, CachedNode value) ->
+                    (int) Math.min(Integer.MAX_VALUE, value.sizeBytes))
+            .build();
+  }
+
+  /**
+   * Constructs the merkle tree of a spawn's inputs.
+   *
+   * @param inputMap the inputs of the spawn, as returned by {@link
+   *     com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionContext#getInputMapping}
+   * @param artifactExpander expands the tree artifacts and middlemen among the inputs of the
+   *     spawn's action
+   * @see MerkleTree#build
+   */
+  public MerkleTree build(
+      NestedSet<Artifact> actionInputs,
+      SortedMap<PathFragment, ActionInput> inputMap,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot,
+      DigestUtil digestUtil)
+      throws IOException {
+    try (SilentCloseable c = Profiler.instance().profile("MerkleTree.build")) {
+      Builder builder = new Builder(artifactExpander, metadataProvider, execRoot, digestUtil);
+      MerkleTree.Node actionRoot = builder.getOrBuild(actionInputs.getChildrenUnsafe());
+      if (actionRoot == null) {
+        return MerkleTree.build(inputMap, metadataProvider, execRoot, digestUtil);
+      }
+
+      // The spawn's inputs differ from its action's: they may lack filesets and runfiles
+      // manifests, and they contain runfiles, filesets and inputs such as param files.
+      Map<PathFragment, ActionInput> removed = new HashMap<>();
+      for (ActionInput input :
+          ActionInputHelper.expandArtifacts(actionInputs, artifactExpander)) {
+        if (!isFileset(input)) {
+          removed.put(input.getExecPath(), input);
+        }
+      }
+      SortedMap<PathFragment, ActionInput> added = new TreeMap<>();
+      for (Map.Entry<PathFragment, ActionInput> e : inputMap.entrySet()) {
+        if (!Objects.equals(removed.remove(e.getKey()), e.getValue())) {
+          added.put(e.getKey(), e.getValue());
+        }
+      }
+      MerkleTree.Node root = MerkleTree.remove(actionRoot, removed.keySet(), digestUtil);
+      if (!added.isEmpty()) {
+        MerkleTree.Node addedRoot =
+            MerkleTree.buildNode(
+                added, metadataProvider, execRoot, digestUtil, /* newNodes= */ node -> {});
+        List<MerkleTree.Node> roots = new ArrayList<>(2);
+        roots.add(root);
+        roots.add(addedRoot);
+        root = MerkleTree.merge(roots, digestUtil, /* newNodes= */ node -> {});
+      }
+      return new MerkleTree(root);
+    }
+  }
+
+  private static boolean isFileset(ActionInput input) {
+    return input instanceof Artifact && ((Artifact) input).isFileset();
+  }
+
+  /** Builds the trees of the nodes of a NestedSet, using the same metadata for all of them. */
+  private final class Builder {
+    private final ArtifactExpander artifactExpander;
+    private final MetadataProvider metadataProvider;
+    private final Path execRoot;
+    private final DigestUtil digestUtil;
+
+    private Builder(
+        ArtifactExpander artifactExpander,
+        MetadataProvider metadataProvider,
+        Path execRoot,
+        DigestUtil digestUtil) {
+      this.artifactExpander = artifactExpander;
+      this.metadataProvider = metadataProvider;
+      this.execRoot = execRoot;
+      this.digestUtil = digestUtil;
+    }
+
+    /**
+     * Returns the root of the tree of the given NestedSet children, or null if the metadata of one
+     * of the files is not available.
+     */
+    @Nullable
+    private MerkleTree.Node getOrBuild(Object children) throws IOException {
+      if (!(children instanceof Object[])) {
+        List<Object> leaves = new ArrayList<>(1);
+        leaves.add(children);
+        return buildLeaves(leaves, /* newNodes= */ node -> {});
+      }
+      Object[] array = (Object[]) children;
+      CachedNode cached = nodes.getIfPresent(array);
+      if (cached != null) {
+        return cached.root;
+      }
+      List<Object> leaves = new ArrayList<>(array.length);
+      List<MerkleTree.Node> roots = new ArrayList<>(array.length);
+      for (Object child : array) {
+        if (child instanceof Object[]) {
+          MerkleTree.Node root = getOrBuild(child);
+          if (root == null) {
+            return null;
+          }
+          roots.add(root);
+        } else {
+          leaves.add(child);
+        }
+      }
+      LongAdder sizeBytes = new LongAdder();
+      MerkleTree.Node leavesRoot = buildLeaves(leaves, node -> sizeBytes.add(sizeOf(node)));
+      if (leavesRoot == null) {
+        return null;
+      }
+      roots.add(leavesRoot);
+      MerkleTree.Node root =
+          MerkleTree.merge(roots, digestUtil, node -> sizeBytes.add(sizeOf(node)));
+      nodes.put(array, new CachedNode(root, sizeBytes.sum() + ENTRY_OVERHEAD_BYTES));
+      return root;
+    }
+
+    @Nullable
+    private MerkleTree.Node buildLeaves(List<Object> leaves, Consumer<MerkleTree.Node> newNodes)
+        throws IOException {
+      @SuppressWarnings("unchecked") // NestedSet<Artifact> leaves are artifacts.
+      List<Artifact> artifacts = (List<Artifact>) (List<?>) leaves;
+      SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
+      for (ActionInput input : ActionInputHelper.expandArtifacts(artifacts, artifactExpander)) {
+        if (isFileset(input)) {
+          continue;
+        }
+        if (!(input instanceof VirtualActionInput)
+            && metadataProvider.getMetadata(input) == null) {
+          return null;
+        }
+        inputs.put(input.getExecPath(), input);
+      }
+      return MerkleTree.buildNode(inputs, metadataProvider, execRoot, digestUtil, newNodes);
+    }
+  }
+
+  private static long sizeOf(MerkleTree.Node node) {
+    Directory directory = node.getDirectory();
+    return directory.getSerializedSize()
+        + (1L + directory.getFilesCount() + directory.getDirectoriesCount())
+            * ENTRY_OVERHEAD_BYTES;
+  }
+
+  @VisibleForTesting
+  long size() {
+    return nodes.size();
+  }
+}
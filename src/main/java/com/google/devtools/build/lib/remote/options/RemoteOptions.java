@@ -220,6 +220,18 @@ public final class RemoteOptions extends OptionsBase {
               + "If the directory does not exist, it will be created.")
   public PathFragment diskCache;
 
+  @Option(
+      name = "experimental_disk_cache_max_size_mb",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to a positive value, the size of the --disk_cache directory is kept below this "
+              + "many megabytes by evicting the least recently used entries in the background. "
+              + "The sizes and access order of the entries are persisted in the cache directory. "
+              + "0 means that the disk cache grows without bounds.")
+  public long diskCacheMaxSizeMb;
+
   @Option(
       name = "experimental_guard_against_concurrent_changes",
       defaultValue = "false",
@@ -405,6 +417,91 @@ public final class RemoteOptions extends OptionsBase {
               + " discard the remotely cached values if they don't match the expected value.")
   public boolean remoteVerifyDownloads;
 
+  @Option(
+      name = "experimental_remote_merkle_tree_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to true, the merkle trees of the nested sets that make up the inputs of "
+              + "actions are cached in memory during a build, so that the files shared by many "
+              + "actions, such as toolchains, are only sorted and hashed into directories once.")
+  public boolean remoteMerkleTreeCache;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache_size_mb",
+      defaultValue = "100",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The approximate maximum size in megabytes of the directories kept by "
+              + "--experimental_remote_merkle_tree_cache. Least recently used trees are evicted "
+              + "first.")
+  public long remoteMerkleTreeCacheSizeMb;
+
+  @Option(
+      name = "experimental_remote_cache_chunking",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If enabled, and the gRPC remote cache implements Bazel's Splice service, large files "
+              + "are split into content-defined chunks, and only the chunks that are missing from "
+              + "the remote cache are uploaded. The remote cache then splices the chunks into the "
+              + "file.")
+  public boolean remoteCacheChunking;
+
+  @Option(
+      name = "experimental_remote_cache_chunking_threshold",
+      defaultValue = "8388608",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The minimum size in bytes of files that are uploaded in chunks by "
+              + "--experimental_remote_cache_chunking.")
+  public long remoteCacheChunkingThreshold;
+
+  @Option(
+      name = "experimental_remote_cache_chunk_index_size",
+      defaultValue = "200000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The maximum number of chunk digests that --experimental_remote_cache_chunking "
+              + "remembers to be in the remote cache across builds. Each chunk is 512 KiB on "
+              + "average, so the default covers about 100 GiB of files.")
+  public long remoteCacheChunkIndexSize;
+
+  @Option(
+      name = "experimental_remote_presence_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to true, the inputs of remotely executed actions that the remote cache "
+              + "reported as present are remembered across actions and builds, and are not "
+              + "looked up again until they expire. Concurrent lookups of the same input share a "
+              + "single call. Outputs are always looked up before they are uploaded.")
+  public boolean remotePresenceCache;
+
+  @Option(
+      name = "experimental_remote_presence_cache_size",
+      defaultValue = "1000000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help = "The maximum number of digests kept by --experimental_remote_presence_cache.")
+  public long remotePresenceCacheSize;
+
+  @Option(
+      name = "experimental_remote_presence_cache_ttl",
+      defaultValue = "600",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The time in seconds for which --experimental_remote_presence_cache assumes that a "
+              + "digest stays present in the remote cache.")
+  public int remotePresenceCacheTtlSeconds;
+
   // The below options are not configurable by users, only tests.
   // This is part of the effort to reduce the overall number of flags.
 
@@ -56,6 +56,11 @@ public class DigestUtil {
     return buildDigest(hashFn.getHashFunction().hashBytes(blob).toString(), blob.length);
   }
 
+  public Digest compute(byte[] blob, int offset, int length) {
+    return buildDigest(
+        hashFn.getHashFunction().hashBytes(blob, offset, length).toString(), length);
+  }
+
   public Digest compute(Path file) throws IOException {
     return compute(file, file.getFileSize());
   }
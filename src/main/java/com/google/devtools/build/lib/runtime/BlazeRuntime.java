@@ -41,6 +41,7 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
 import com.google.devtools.build.lib.buildtool.buildevent.ProfilerStartedEvent;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.OutputFilter;
@@ -295,6 +296,12 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
       CommandEnvironment env,
       long execStartTimeNanos,
       long waitTimeInMs) {
+    QueueVisitorStats.instance().reset();
+    if (options.collectQueueVisitorStats) {
+      QueueVisitorStats.instance().enable();
+    } else {
+      QueueVisitorStats.instance().disable();
+    }
     OutputStream out = null;
     boolean recordFullProfilerData = options.recordFullProfilerData;
     ImmutableSet.Builder<ProfilerTask> profiledTasksBuilder = ImmutableSet.builder();
@@ -379,7 +386,9 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
             execStartTimeNanos,
             options.enableCpuUsageProfiling,
             options.enableJsonProfileDiet,
-            options.enableActionCountProfile);
+            options.enableActionCountProfile,
+            options.profileBufferSize,
+            options.profileOverflowPolicy);
         // Instead of logEvent() we're calling the low level function to pass the timings we took in
         // the launcher. We're setting the INIT phase marker so that it follows immediately the
         // LAUNCH phase.
@@ -671,6 +680,7 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
       }
     }
 
+    logQueueVisitorStats();
     try {
       Profiler.instance().stop();
       MemoryProfiler.instance().stop();
@@ -684,6 +694,24 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
     return finalCommandResult;
   }
 
+  /** Stops collecting {@link QueueVisitorStats}, and writes the histograms to the profile. */
+  private static void logQueueVisitorStats() {
+    QueueVisitorStats stats = QueueVisitorStats.instance();
+    if (!stats.isEnabled()) {
+      return;
+    }
+    stats.disable();
+    QueueVisitorStats.Snapshot snapshot = stats.snapshot();
+    long now = Profiler.nanoTimeMaybe();
+    Profiler profiler = Profiler.instance();
+    profiler.logEventAtTime(
+        now, ProfilerTask.QUEUE_VISITOR_STATS, "Queue wait: " + snapshot.getQueueWait());
+    profiler.logEventAtTime(
+        now, ProfilerTask.QUEUE_VISITOR_STATS, "Run time: " + snapshot.getRunTime());
+    profiler.logEventAtTime(
+        now, ProfilerTask.QUEUE_VISITOR_STATS, "Lock wait: " + snapshot.getLockWait());
+  }
+
   /**
    * Returns the path to the Blaze server INFO log.
    *
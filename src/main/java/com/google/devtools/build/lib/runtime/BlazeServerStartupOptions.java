@@ -465,6 +465,34 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + " actually encounter a condition that triggers them.")
   public boolean unlimitCoredumps;
 
+  @Option(
+      name = "experimental_compact_skyframe_graph",
+      defaultValue = "false", // NOTE: only for documentation, value is set and used by the client.
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {
+        OptionEffectTag.LOSES_INCREMENTAL_STATE,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS,
+      },
+      help =
+          "If true, done Skyframe nodes store their dependency edges as arrays of interned ids "
+              + "rather than as lists of keys. This reduces the heap used by large graphs at the "
+              + "cost of some CPU when the edges are read, e.g. during invalidation.")
+  public boolean compactSkyframeGraph;
+
+  @Option(
+      name = "experimental_mapped_action_cache",
+      defaultValue = "false", // NOTE: only for documentation, value is set and used by the client.
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {
+        OptionEffectTag.LOSES_INCREMENTAL_STATE,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS,
+      },
+      help =
+          "If true, the action cache is stored in memory-mapped, append-only files which are "
+              + "read lazily, instead of being read into memory as a whole when the server "
+              + "starts. Entries of the other format are not carried over when switching.")
+  public boolean mappedActionCache;
+
   @Option(
       name = "macos_qos_class",
       defaultValue = "default", // Only for documentation; value is set and used by the client.
@@ -14,16 +14,20 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.ActionResultReceivedEvent;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ProfilerStartedEvent;
 import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats.HistogramSnapshot;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
@@ -37,6 +41,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -46,11 +51,22 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger logger = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
+  /** The number of actions whose execution time is remembered across builds. */
+  private static final int MAX_REMEMBERED_ACTION_DURATIONS = 200_000;
+
+  /**
+   * Execution wall times in milliseconds of the actions of previous builds, by the exec path of
+   * their primary output, used to prioritize the actions waiting for local resources.
+   */
+  private final Cache<String, Long> actionDurations =
+      CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_ACTION_DURATIONS).build();
+
   private ActionKeyContext actionKeyContext;
   private CriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
   private boolean enabled;
+  private boolean prioritizeByDuration;
 
   private boolean statsSummary;
   private long commandStartMillis;
@@ -66,11 +82,14 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.actionKeyContext = env.getSkyframeExecutor().getActionKeyContext();
     commandStartMillis = env.getCommandStartTime();
     this.spawnStats = new SpawnStats();
+    // Also published in the BuildMetrics of builds that never reach the execution phase.
+    ResourceManager.instance().resetWaitTimes();
     eventBus.register(this);
   }
 
   @Override
   public void afterCommand() {
+    ResourceManager.instance().setPrioritizer(null);
     this.criticalPathComputer = null;
     this.eventBus = null;
     this.reporter = null;
@@ -79,7 +98,12 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
-    enabled = env.getOptions().getOptions(ExecutionOptions.class).enableCriticalPathProfiling;
+    ExecutionOptions options = env.getOptions().getOptions(ExecutionOptions.class);
+    enabled = options.enableCriticalPathProfiling;
+    prioritizeByDuration = enabled && options.prioritizeLocalActionsByDuration;
+    if (!prioritizeByDuration) {
+      actionDurations.invalidateAll();
+    }
   }
 
   @Subscribe
@@ -90,6 +114,15 @@ public class BuildSummaryStatsModule extends BlazeModule {
       criticalPathComputer = new CriticalPathComputer(actionKeyContext, BlazeClock.instance());
       eventBus.register(criticalPathComputer);
     }
+    if (prioritizeByDuration) {
+      ResourceManager.instance()
+          .setPrioritizer(
+              action -> {
+                Long millis =
+                    actionDurations.getIfPresent(action.getPrimaryOutput().getExecPathString());
+                return millis != null ? millis : 0;
+              });
+    }
   }
 
   @Subscribe
@@ -133,6 +166,9 @@ public class BuildSummaryStatsModule extends BlazeModule {
           logger.info(
               "Slowest actions:\n  "
                   + Joiner.on("\n  ").join(criticalPathComputer.getSlowestComponents()));
+          if (prioritizeByDuration) {
+            rememberActionDurations();
+          }
           // We reverse the critical path because the profiler expect events ordered by the time
           // when the actions were executed while critical path computation is stored in the reverse
           // way.
@@ -161,6 +197,8 @@ public class BuildSummaryStatsModule extends BlazeModule {
         }
       }
 
+      logResourceWaitTimes();
+
       String spawnSummary = spawnStats.getSummary();
       if (statsSummary) {
         reporter.handle(Event.info(spawnSummary));
@@ -196,4 +234,27 @@ public class BuildSummaryStatsModule extends BlazeModule {
       profilePath = null;
     }
   }
+
+  private void rememberActionDurations() {
+    for (CriticalPathComponent component :
+        criticalPathComputer.getCriticalPathComponentsMap().values()) {
+      long millis = component.getSpawnMetrics().executionWallTime().toMillis();
+      if (millis > 0) {
+        actionDurations.put(
+            component.getAction().getPrimaryOutput().getExecPathString(), millis);
+      }
+    }
+  }
+
+  private static void logResourceWaitTimes() {
+    Map<String, HistogramSnapshot> waitTimes = ResourceManager.instance().getWaitTimes();
+    if (waitTimes.isEmpty()) {
+      return;
+    }
+    StringBuilder message = new StringBuilder("Local resource wait times by mnemonic:");
+    for (Map.Entry<String, HistogramSnapshot> entry : waitTimes.entrySet()) {
+      message.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    logger.info(message.toString());
+  }
 }
@@ -17,10 +17,13 @@ package com.google.devtools.build.lib.runtime;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheStats;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.vfs.Path;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** Enables the caching of file digests in {@link DigestUtils}. */
 public class CacheFileDigestsModule extends BlazeModule {
@@ -36,6 +39,15 @@ public class CacheFileDigestsModule extends BlazeModule {
    */
   private Long lastKnownCacheSize;
 
+  /** The persistent cache, which is kept across commands as long as its file doesn't change. */
+  @Nullable private PersistentDigestCache persistentCache;
+
+  /** Counters of the persistent cache at the beginning of a command. */
+  private long persistentHits;
+  private long persistentMisses;
+  private long persistentPuts;
+  private long persistentRacyFiles;
+
   public CacheFileDigestsModule() {}
 
   /**
@@ -74,6 +86,39 @@ public class CacheFileDigestsModule extends BlazeModule {
       stats = DigestUtils.getCacheStats();
       logStats("Accumulated cache stats before command", stats);
     }
+
+    configurePersistentCache(
+        options.persistentFileDigestCache == null
+            ? null
+            : env.getWorkingDirectory().getRelative(options.persistentFileDigestCache));
+  }
+
+  private void configurePersistentCache(@Nullable Path file) {
+    if (persistentCache != null && persistentCache.getFile().equals(file)) {
+      persistentHits = persistentCache.getHits();
+      persistentMisses = persistentCache.getMisses();
+      persistentPuts = persistentCache.getPuts();
+      persistentRacyFiles = persistentCache.getRacyFiles();
+      return;
+    }
+    closePersistentCache();
+    if (file != null) {
+      logger.info("Using persistent digest cache " + file);
+      persistentCache = new PersistentDigestCache(file);
+      DigestUtils.configurePersistentCache(persistentCache);
+      persistentHits = 0;
+      persistentMisses = 0;
+      persistentPuts = 0;
+      persistentRacyFiles = 0;
+    }
+  }
+
+  private void closePersistentCache() {
+    if (persistentCache != null) {
+      DigestUtils.configurePersistentCache(null);
+      persistentCache.close();
+      persistentCache = null;
+    }
   }
 
   @Override
@@ -85,5 +130,21 @@ public class CacheFileDigestsModule extends BlazeModule {
       logStats("Cache stats for finished command", newStats.minus(stats));
       stats = null; // Silence stats until next command that uses the executor.
     }
+    if (persistentCache != null) {
+      logger.info(
+          "Persistent cache stats for finished command: hit count="
+              + (persistentCache.getHits() - persistentHits)
+              + ", miss count="
+              + (persistentCache.getMisses() - persistentMisses)
+              + ", put count="
+              + (persistentCache.getPuts() - persistentPuts)
+              + ", recently modified files="
+              + (persistentCache.getRacyFiles() - persistentRacyFiles));
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    closePersistentCache();
   }
 }
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.runtime;
 import static com.google.common.base.Strings.isNullOrEmpty;
 
 import com.google.devtools.build.lib.profiler.MemoryProfiler.MemoryProfileStableHeapParameters;
+import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.runtime.CommandLineEvent.ToolCommandLineEvent;
 import com.google.devtools.build.lib.util.OptionsUtils;
@@ -312,6 +313,41 @@ public class CommonCommandOptions extends OptionsBase {
               + " too large.")
   public boolean enableJsonProfileDiet;
 
+  @Option(
+      name = "experimental_profile_buffer_size",
+      converter = ProfilerBufferSizeConverter.class,
+      defaultValue = "8192",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "The number of completed profiler tasks each thread can buffer before they are written "
+              + "to the profile. Bounds the memory used by the profiler if the profile writer "
+              + "cannot keep up.")
+  public int profileBufferSize;
+
+  @Option(
+      name = "experimental_profile_overflow_policy",
+      converter = ProfilerOverflowPolicyConverter.class,
+      defaultValue = "block",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "What to do with completed profiler tasks when the buffer of a thread is full. 'block' "
+              + "waits for the profile writer, 'drop' leaves the task out of the profile.")
+  public Profiler.OverflowPolicy profileOverflowPolicy;
+
+  @Option(
+      name = "experimental_collect_queue_visitor_stats",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "If enabled, Bazel records how long the tasks of its internal thread pools, e.g. the "
+              + "Skyframe evaluator, wait to be run, run, and wait on locks. The histograms are "
+              + "written to the profile and to the BuildMetrics event of the build event "
+              + "protocol.")
+  public boolean collectQueueVisitorStats;
+
   @Option(
       name = "experimental_announce_profile_path",
       defaultValue = "false",
@@ -523,4 +559,19 @@ public class CommonCommandOptions extends OptionsBase {
       super(ProfilerTask.class, "profiler task");
     }
   }
+
+  /** Converter for the number of tasks buffered per thread by the profiler. */
+  public static class ProfilerBufferSizeConverter extends Converters.RangeConverter {
+    public ProfilerBufferSizeConverter() {
+      super(1, 1 << 20);
+    }
+  }
+
+  /** Converter for {@link Profiler.OverflowPolicy}. */
+  public static class ProfilerOverflowPolicyConverter
+      extends EnumConverter<Profiler.OverflowPolicy> {
+    public ProfilerOverflowPolicyConverter() {
+      super(Profiler.OverflowPolicy.class, "profiler overflow policy");
+    }
+  }
 }
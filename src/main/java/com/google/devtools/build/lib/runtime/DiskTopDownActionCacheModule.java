@@ -0,0 +1,120 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.skyframe.DiskTopDownActionCache;
+import com.google.devtools.build.lib.skyframe.TopDownActionCache;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionMetadataTag;
+import com.google.devtools.common.options.OptionsBase;
+import java.io.IOException;
+
+/** Provides a {@link DiskTopDownActionCache} to builds if a directory is given for it. */
+public class DiskTopDownActionCacheModule extends BlazeModule {
+
+  /** Options for the local top-down action cache. */
+  public static final class Options extends OptionsBase {
+    @Option(
+        name = "experimental_disk_top_down_action_cache",
+        defaultValue = "null",
+        converter = OptionsUtils.PathFragmentConverter.class,
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.EXECUTION},
+        metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+        help =
+            "A directory in which to cache the outputs of actions by the transitive hash of their "
+                + "inputs and keys. An action found in this cache is not executed, and neither "
+                + "are the actions it depends on, unless their outputs are needed otherwise. "
+                + "If the directory does not exist, it will be created.")
+    public PathFragment diskTopDownActionCache;
+
+    @Option(
+        name = "experimental_disk_top_down_action_cache_max_size_mb",
+        defaultValue = "10240",
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.EXECUTION},
+        metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+        help =
+            "The size in megabytes above which the least recently used entries of "
+                + "--experimental_disk_top_down_action_cache are evicted.")
+    public long diskTopDownActionCacheMaxSizeMb;
+  }
+
+  private DiskTopDownActionCache cache;
+  private Path cacheDir;
+  private long maxSizeBytes;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds() ? ImmutableList.of(Options.class) : ImmutableList.of();
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) throws AbruptExitException {
+    Options options = env.getOptions().getOptions(Options.class);
+    if (options == null || options.diskTopDownActionCache == null) {
+      cache = null;
+      cacheDir = null;
+      return;
+    }
+    if (options.diskTopDownActionCacheMaxSizeMb <= 0) {
+      throw new AbruptExitException(
+          "--experimental_disk_top_down_action_cache_max_size_mb must be positive",
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+    Path dir = env.getWorkingDirectory().getRelative(options.diskTopDownActionCache);
+    long maxSize = options.diskTopDownActionCacheMaxSizeMb << 20;
+    if (cache != null && dir.equals(cacheDir) && maxSize == maxSizeBytes) {
+      return;
+    }
+    try {
+      cache = new DiskTopDownActionCache(dir, maxSize);
+      cacheDir = dir;
+      maxSizeBytes = maxSize;
+    } catch (IOException e) {
+      throw new AbruptExitException(
+          "Failed to create top-down action cache directory " + dir + ": " + e.getMessage(),
+          ExitCode.LOCAL_ENVIRONMENTAL_ERROR,
+          e);
+    }
+  }
+
+  @Override
+  public void afterCommand() throws AbruptExitException {
+    if (cache == null) {
+      return;
+    }
+    try {
+      // Entries are stored in the background; finish them before the outputs are touched again.
+      cache.awaitPendingPuts();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbruptExitException(
+          "Interrupted while storing top-down action cache entries", ExitCode.INTERRUPTED, e);
+    }
+  }
+
+  @Override
+  public TopDownActionCache getTopDownActionCache() {
+    return cache;
+  }
+}
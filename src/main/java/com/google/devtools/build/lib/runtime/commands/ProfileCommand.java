@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.output.HtmlCreator;
+import com.google.devtools.build.lib.profiler.output.JsonTraceConverter;
 import com.google.devtools.build.lib.profiler.output.PhaseText;
 import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
 import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
@@ -47,7 +48,9 @@ import com.google.devtools.common.options.OptionsParsingResult;
 import com.google.devtools.common.options.RegexPatternOption;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.EnumMap;
 import java.util.regex.Pattern;
 
@@ -65,7 +68,7 @@ public final class ProfileCommand implements BlazeCommand {
 
   public static class DumpConverter extends Converters.StringSetConverter {
     public DumpConverter() {
-      super("text", "raw", "text-unsorted", "raw-unsorted");
+      super("text", "raw", "text-unsorted", "raw-unsorted", "json");
     }
   }
 
@@ -102,7 +105,8 @@ public final class ProfileCommand implements BlazeCommand {
       effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
       help =
           "output full profile data dump either in human-readable 'text' format or"
-              + " script-friendly 'raw' format, either sorted or unsorted."
+              + " script-friendly 'raw' format, either sorted or unsorted, or convert it to the"
+              + " 'json' trace format that can be loaded into chrome://tracing."
     )
     public String dumpMode;
 
@@ -267,6 +271,11 @@ public final class ProfileCommand implements BlazeCommand {
           try {
             ProfileInfo info = ProfileInfo.loadProfileVerbosely(profileFile, getInfoListener(env));
 
+            if (opts.dumpMode != null && opts.dumpMode.equals("json")) {
+              JsonTraceConverter.write(info, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+              continue;
+            }
+
             if (opts.dumpMode == null || !opts.dumpMode.contains("unsorted")) {
               ProfileInfo.aggregateProfile(info, getInfoListener(env));
             }
@@ -19,11 +19,15 @@ import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.exec.TreeDeleter;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.FileSystemUtils.MoveResult;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +56,7 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
   private final Set<Path> writableDirs;
   private final TreeDeleter treeDeleter;
   private final Path statisticsPath;
+  @Nullable private final SandboxPool sandboxPool;
 
   public AbstractContainerizingSandboxedSpawn(
       Path sandboxPath,
@@ -63,6 +68,34 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
       Set<Path> writableDirs,
       TreeDeleter treeDeleter,
       @Nullable Path statisticsPath) {
+    this(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        treeDeleter,
+        statisticsPath,
+        /*sandboxPool=*/ null);
+  }
+
+  /**
+   * Creates a spawn that, if {@code sandboxPool} is not null, may run in a directory left behind by
+   * a previous spawn and returns its directory to the pool instead of deleting it.
+   */
+  public AbstractContainerizingSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      SandboxInputs inputs,
+      SandboxOutputs outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter,
+      @Nullable Path statisticsPath,
+      @Nullable SandboxPool sandboxPool) {
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxExecRoot;
     this.arguments = arguments;
@@ -72,6 +105,7 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
     this.writableDirs = writableDirs;
     this.treeDeleter = treeDeleter;
     this.statisticsPath = statisticsPath;
+    this.sandboxPool = sandboxPool;
   }
 
   @Override
@@ -97,8 +131,80 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
 
   @Override
   public void createFileSystem() throws IOException {
-    createDirectories();
-    createInputs(inputs);
+    LinkedHashSet<PathFragment> dirsToCreate = getDirectoriesToCreate();
+    if (sandboxPool == null) {
+      createDirectories(dirsToCreate);
+      createInputs(inputs);
+      return;
+    }
+
+    Set<PathFragment> dirsToKeep = new HashSet<>(dirsToCreate);
+    for (Path dir : writableDirs) {
+      if (dir.startsWith(sandboxExecRoot)) {
+        PathFragment path = dir.relativeTo(sandboxExecRoot);
+        for (int i = 0; i <= path.segmentCount(); i++) {
+          dirsToKeep.add(path.subFragment(0, i));
+        }
+      }
+    }
+    Set<PathFragment> upToDateInputs = new HashSet<>();
+    deleteStaleEntries(sandboxExecRoot, dirsToKeep, upToDateInputs);
+    createDirectories(dirsToCreate);
+
+    SandboxInputs inputsToCreate = inputs;
+    if (!upToDateInputs.isEmpty()) {
+      Map<PathFragment, Path> files = new HashMap<>(inputs.getFiles());
+      Map<PathFragment, PathFragment> symlinks = new HashMap<>(inputs.getSymlinks());
+      files.keySet().removeAll(upToDateInputs);
+      symlinks.keySet().removeAll(upToDateInputs);
+      inputsToCreate = new SandboxInputs(files, symlinks);
+    }
+    createInputs(inputsToCreate);
+    sandboxPool.recordInputs(
+        inputsToCreate.getFiles().size() + inputsToCreate.getSymlinks().size(),
+        upToDateInputs.size());
+  }
+
+  /**
+   * Deletes everything below {@code dir} that the spawn does not need, which is everything except
+   * the directories in {@code dirsToKeep} and the inputs that are already what they should be.
+   * Adds the latter to {@code upToDateInputs}.
+   *
+   * <p>This is what makes a directory of a previous spawn look like a fresh one to this spawn: the
+   * previous spawn's outputs have been moved out, but it may have left files behind, and its
+   * inputs may differ from ours.
+   */
+  private void deleteStaleEntries(
+      Path dir, Set<PathFragment> dirsToKeep, Set<PathFragment> upToDateInputs)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path path = dir.getChild(dirent.getName());
+      PathFragment execPath = path.relativeTo(sandboxExecRoot);
+      if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        if (dirsToKeep.contains(execPath)) {
+          deleteStaleEntries(path, dirsToKeep, upToDateInputs);
+        } else {
+          path.deleteTree();
+        }
+        continue;
+      }
+      if (isUpToDateInput(path, execPath)) {
+        upToDateInputs.add(execPath);
+      } else {
+        path.delete();
+      }
+    }
+  }
+
+  private boolean isUpToDateInput(Path path, PathFragment execPath) throws IOException {
+    Path source = inputs.getFiles().get(execPath);
+    if (source != null) {
+      return isCopyOf(path, source);
+    }
+    PathFragment symlinkTarget = inputs.getSymlinks().get(execPath);
+    return symlinkTarget != null
+        && path.isSymbolicLink()
+        && path.readSymbolicLink().equals(symlinkTarget);
   }
 
   /**
@@ -113,8 +219,8 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
    * directories, too, because we'll get an IOException with EEXIST if inputs happen to be nested
    * once we start creating the symlinks for all inputs.
    */
-  private void createDirectories() throws IOException {
-    LinkedHashSet<Path> dirsToCreate = new LinkedHashSet<>();
+  private LinkedHashSet<PathFragment> getDirectoriesToCreate() {
+    LinkedHashSet<PathFragment> dirsToCreate = new LinkedHashSet<>();
 
     for (PathFragment path :
         Iterables.concat(
@@ -125,15 +231,16 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
       Preconditions.checkArgument(!path.isAbsolute());
       Preconditions.checkArgument(!path.containsUplevelReferences());
       for (int i = 0; i < path.segmentCount(); i++) {
-        dirsToCreate.add(sandboxExecRoot.getRelative(path.subFragment(0, i)));
+        dirsToCreate.add(path.subFragment(0, i));
       }
     }
-    for (PathFragment path : outputs.dirs()) {
-      dirsToCreate.add(sandboxExecRoot.getRelative(path));
-    }
+    dirsToCreate.addAll(outputs.dirs());
+    return dirsToCreate;
+  }
 
-    for (Path path : dirsToCreate) {
-      path.createDirectory();
+  private void createDirectories(Set<PathFragment> dirsToCreate) throws IOException {
+    for (PathFragment path : dirsToCreate) {
+      sandboxExecRoot.getRelative(path).createDirectory();
     }
 
     for (Path dir : writableDirs) {
@@ -163,6 +270,15 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
 
   protected abstract void copyFile(Path source, Path target) throws IOException;
 
+  /**
+   * Returns whether {@code target}, which a previous spawn left behind, already makes {@code
+   * source} available the way {@link #copyFile} would, so that it need not be created again. Only
+   * called for spawns that have a {@link SandboxPool}.
+   */
+  protected boolean isCopyOf(Path target, Path source) throws IOException {
+    return false;
+  }
+
   /**
    * Moves all given outputs from a root to another.
    *
@@ -213,6 +329,10 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
 
   @Override
   public void delete() {
+    if (sandboxPool != null) {
+      sandboxPool.release(sandboxPath);
+      return;
+    }
     try {
       treeDeleter.deleteTree(sandboxPath);
     } catch (IOException e) {
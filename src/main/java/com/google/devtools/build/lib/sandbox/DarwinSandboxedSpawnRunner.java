@@ -114,6 +114,7 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   private final @Nullable SandboxfsProcess sandboxfsProcess;
   private final boolean sandboxfsMapSymlinkTargets;
   private final TreeDeleter treeDeleter;
+  @Nullable private final SandboxPool sandboxPool;
 
   /**
    * The set of directories that always should be writable, independent of the Spawn itself.
@@ -133,6 +134,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param sandboxfsProcess instance of the sandboxfs process to use; may be null for none, in
    *     which case the runner uses a symlinked sandbox
    * @param sandboxfsMapSymlinkTargets map the targets of symlinks within the sandbox if true
+   * @param sandboxPool pool of symlinked sandbox directories to reuse; may be null to create a new
+   *     directory for every spawn and delete it afterwards
    */
   DarwinSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
@@ -140,7 +143,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       Duration timeoutKillDelay,
       @Nullable SandboxfsProcess sandboxfsProcess,
       boolean sandboxfsMapSymlinkTargets,
-      TreeDeleter treeDeleter)
+      TreeDeleter treeDeleter,
+      @Nullable SandboxPool sandboxPool)
       throws IOException {
     super(cmdEnv);
     this.execRoot = cmdEnv.getExecRoot();
@@ -153,6 +157,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     this.sandboxfsProcess = sandboxfsProcess;
     this.sandboxfsMapSymlinkTargets = sandboxfsMapSymlinkTargets;
     this.treeDeleter = treeDeleter;
+    // Only symlinked sandboxes are reused; sandboxfs mounts a new tree for every spawn anyway.
+    this.sandboxPool = sandboxfsProcess == null ? sandboxPool : null;
   }
 
   private static void addPathToSetIfExists(FileSystem fs, Set<Path> paths, String path)
@@ -218,14 +224,18 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     // Each invocation of "exec" gets its own sandbox base.
     // Note that the value returned by context.getId() is only unique inside one given SpawnRunner,
     // so we have to prefix our name to turn it into a globally unique value.
-    Path sandboxPath =
-        sandboxBase.getRelative(getName()).getRelative(Integer.toString(context.getId()));
+    Path sandboxPath = sandboxPool == null ? null : sandboxPool.take();
+    if (sandboxPath == null) {
+      sandboxPath =
+          sandboxBase.getRelative(getName()).getRelative(Integer.toString(context.getId()));
+    }
     sandboxPath.getParentDirectory().createDirectory();
     sandboxPath.createDirectory();
 
     // b/64689608: The execroot of the sandboxed process must end with the workspace name, just like
     // the normal execroot does.
-    Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
+    Path sandboxExecRoot =
+        sandboxPath.getRelative(SandboxPool.EXEC_ROOT).getRelative(execRoot.getBaseName());
     sandboxExecRoot.getParentDirectory().createDirectory();
     sandboxExecRoot.createDirectory();
 
@@ -307,7 +317,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
           outputs,
           writableDirs,
           treeDeleter,
-          statisticsPath) {
+          statisticsPath,
+          sandboxPool) {
         @Override
         public void createFileSystem() throws IOException {
           super.createFileSystem();
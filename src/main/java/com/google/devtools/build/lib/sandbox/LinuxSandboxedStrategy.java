@@ -58,7 +58,8 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
       Duration timeoutKillDelay,
       @Nullable SandboxfsProcess sandboxfsProcess,
       boolean sandboxfsMapSymlinkTargets,
-      TreeDeleter treeDeleter)
+      TreeDeleter treeDeleter,
+      @Nullable SandboxPool sandboxPool)
       throws IOException {
     Path inaccessibleHelperFile = sandboxBase.getRelative("inaccessibleHelperFile");
     FileSystemUtils.touchFile(inaccessibleHelperFile);
@@ -80,6 +81,7 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
         timeoutKillDelay,
         sandboxfsProcess,
         sandboxfsMapSymlinkTargets,
-        treeDeleter);
+        treeDeleter,
+        sandboxPool);
   }
 }
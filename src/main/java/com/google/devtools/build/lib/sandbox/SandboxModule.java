@@ -50,9 +50,11 @@ import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.TriState;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
@@ -60,6 +62,8 @@ import javax.annotation.Nullable;
  */
 public final class SandboxModule extends BlazeModule {
 
+  private static final Logger logger = Logger.getLogger(SandboxModule.class.getName());
+
   /** Tracks whether we are issuing the very first build within this Bazel server instance. */
   private static boolean firstBuild = true;
 
@@ -91,6 +95,12 @@ public final class SandboxModule extends BlazeModule {
    */
   @Nullable private TreeDeleter treeDeleter;
 
+  /**
+   * Sandbox directories that finished spawns left for later spawns of the same build, if
+   * {@code --experimental_reuse_sandbox_directories} is set.
+   */
+  @Nullable private SandboxPool sandboxPool;
+
   /**
    * Whether to remove the sandbox worker directories after a build or not. Useful for debugging
    * to inspect the state of files on failures.
@@ -258,6 +268,8 @@ public final class SandboxModule extends BlazeModule {
     Duration timeoutKillDelay =
         cmdEnv.getOptions().getOptions(LocalExecutionOptions.class).getLocalSigkillGraceSeconds();
 
+    sandboxPool = options.reuseSandboxDirectories ? new SandboxPool() : null;
+
     boolean processWrapperSupported = ProcessWrapperSandboxedSpawnRunner.isSupported(cmdEnv);
     boolean linuxSandboxSupported = LinuxSandboxedSpawnRunner.isSupported(cmdEnv);
     boolean darwinSandboxSupported = DarwinSandboxedSpawnRunner.isSupported(cmdEnv);
@@ -273,7 +285,8 @@ public final class SandboxModule extends BlazeModule {
                   sandboxBase,
                   cmdEnv.getRuntime().getProductName(),
                   timeoutKillDelay,
-                  treeDeleter));
+                  treeDeleter,
+                  sandboxPool));
       spawnRunners.add(spawnRunner);
       builder.addActionContext(
           new ProcessWrapperSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
@@ -320,7 +333,8 @@ public final class SandboxModule extends BlazeModule {
                   timeoutKillDelay,
                   sandboxfsProcess,
                   options.sandboxfsMapSymlinkTargets,
-                  treeDeleter));
+                  treeDeleter,
+                  sandboxPool));
       spawnRunners.add(spawnRunner);
       builder.addActionContext(new LinuxSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
@@ -336,7 +350,8 @@ public final class SandboxModule extends BlazeModule {
                   timeoutKillDelay,
                   sandboxfsProcess,
                   options.sandboxfsMapSymlinkTargets,
-                  treeDeleter));
+                  treeDeleter,
+                  sandboxPool));
       spawnRunners.add(spawnRunner);
       builder.addActionContext(new DarwinSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
@@ -471,8 +486,26 @@ public final class SandboxModule extends BlazeModule {
   }
 
   @Subscribe
-  public void buildComplete(@SuppressWarnings("unused") BuildCompleteEvent event) {
+  public void buildComplete(BuildCompleteEvent event) {
     unmountSandboxfs();
+    if (sandboxPool != null) {
+      String stats =
+          String.format(
+              "Sandbox directories: %d created, %d reused; inputs: %d created, %d reused",
+              sandboxPool.getSandboxesCreated(),
+              sandboxPool.getSandboxesReused(),
+              sandboxPool.getInputsCreated(),
+              sandboxPool.getInputsReused());
+      logger.info(stats);
+      event
+          .getResult()
+          .getBuildToolLogCollection()
+          .addDirectValue("sandbox reuse stats", stats.getBytes(StandardCharsets.UTF_8));
+      SandboxOptions options = env.getOptions().getOptions(SandboxOptions.class);
+      if (options != null && options.sandboxDebug) {
+        env.getReporter().handle(Event.info(stats));
+      }
+    }
   }
 
   @Subscribe
@@ -495,6 +528,9 @@ public final class SandboxModule extends BlazeModule {
       treeDeleter.setThreads(asyncTreeDeleteThreads);
     }
 
+    // The pooled directories are deleted with the rest of the sandbox base below.
+    sandboxPool = null;
+
     if (shouldCleanupSandboxBase) {
       try {
         checkNotNull(sandboxBase, "shouldCleanupSandboxBase implies sandboxBase has been set");
@@ -355,6 +355,19 @@ public class SandboxOptions extends OptionsBase {
               + " grows to the size specified by this flag when the server is idle.")
   public int asyncTreeDeleteIdleThreads;
 
+  @Option(
+      name = "experimental_reuse_sandbox_directories",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, the directories of symlinked sandboxes are not deleted when an action "
+              + "completes but reused by later actions of the same build. Only the inputs that "
+              + "differ between the actions are created and deleted, which helps actions with "
+              + "many inputs in common, like C++ compiles that share their headers.")
+  public boolean reuseSandboxDirectories;
+
   /** Converter for the number of threads used for asynchronous tree deletion. */
   public static final class AsyncTreeDeletesConverter extends ResourceConverter {
     public AsyncTreeDeletesConverter() {
@@ -0,0 +1,99 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Sandbox directories of finished spawns that later spawns can run in instead of creating a new
+ * one.
+ *
+ * <p>A spawn that runs in a reused directory only deletes the entries that it does not need and
+ * creates the inputs that are not already there, so consecutive spawns with mostly the same inputs
+ * (like the compiles of a C++ library, which share their headers) create few symlinks. A directory
+ * is returned to the pool when its spawn is done, so the pool never holds more directories than
+ * there were spawns running at the same time. The most recently returned directory is handed out
+ * first, as its inputs are the most likely to resemble those of the next spawn.
+ *
+ * <p>Only the {@link #EXEC_ROOT} directory of a sandbox is reused. Everything else that the previous
+ * spawn left in the sandbox, like its execution statistics, is deleted when the sandbox is handed
+ * out again.
+ */
+final class SandboxPool {
+
+  /** The name of the directory of a sandbox that holds its execroot. */
+  static final String EXEC_ROOT = "execroot";
+
+  private final Deque<Path> idleSandboxes = new ConcurrentLinkedDeque<>();
+
+  private final LongAdder sandboxesCreated = new LongAdder();
+  private final LongAdder sandboxesReused = new LongAdder();
+  private final LongAdder inputsCreated = new LongAdder();
+  private final LongAdder inputsReused = new LongAdder();
+
+  /**
+   * Returns the path of an idle sandbox, which the caller now owns, or null if there is none and
+   * the caller should create a new one.
+   */
+  @Nullable
+  Path take() throws IOException {
+    Path sandboxPath = idleSandboxes.pollFirst();
+    if (sandboxPath == null) {
+      sandboxesCreated.increment();
+      return null;
+    }
+    for (Dirent entry : sandboxPath.readdir(Symlinks.NOFOLLOW)) {
+      if (!entry.getName().equals(EXEC_ROOT)) {
+        sandboxPath.getChild(entry.getName()).deleteTree();
+      }
+    }
+    sandboxesReused.increment();
+    return sandboxPath;
+  }
+
+  /** Makes the sandbox at {@code sandboxPath}, whose spawn is done, available to other spawns. */
+  void release(Path sandboxPath) {
+    idleSandboxes.offerFirst(sandboxPath);
+  }
+
+  /** Records how many inputs a spawn had to create and how many were left by a previous one. */
+  void recordInputs(int created, int reused) {
+    inputsCreated.add(created);
+    inputsReused.add(reused);
+  }
+
+  long getSandboxesCreated() {
+    return sandboxesCreated.sum();
+  }
+
+  long getSandboxesReused() {
+    return sandboxesReused.sum();
+  }
+
+  long getInputsCreated() {
+    return inputsCreated.sum();
+  }
+
+  long getInputsReused() {
+    return inputsReused.sum();
+  }
+}
@@ -172,7 +172,8 @@ public class ActionExecutionFunction implements SkyFunction {
       if (sketch == null) {
         return null;
       }
-      ActionExecutionValue actionExecutionValue = topDownActionCache.get(sketch);
+      ActionExecutionValue actionExecutionValue =
+          topDownActionCache.get(sketch, action.getOutputs());
       if (actionExecutionValue != null) {
         return actionExecutionValue.transformForSharedAction(action.getOutputs());
       }
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -54,6 +55,32 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    /** Like {@link #createNewValue}, but from the given stat of the path of {@code key}. */
+    @Nullable
+    SkyValue createNewValueWithStat(
+        SkyKey key,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      if (statNoFollow == null) {
+        return FileStateValue.NONEXISTENT_FILE_STATE_NODE;
+      }
+      try {
+        return FileStateValue.createWithStatNoFollow(
+            (RootedPath) key.argument(), statNoFollow, tsgm);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public DirtyResult checkWithStat(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return compare(oldValue, createNewValueWithStat(key, statNoFollow, tsgm));
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -90,6 +117,26 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    /** Like {@link #createNewValue}, but uses {@code statNoFollow} for file state keys. */
+    @Nullable
+    SkyValue createNewValueWithStat(
+        SkyKey key,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return fdc.applies(key)
+          ? fdc.createNewValueWithStat(key, statNoFollow, tsgm)
+          : checker.createNewValue(key, tsgm);
+    }
+
+    @Override
+    public DirtyResult checkWithStat(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return compare(oldValue, createNewValueWithStat(key, statNoFollow, tsgm));
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -139,7 +186,20 @@ public class DirtinessCheckerUtils {
     @Override
     public SkyValueDirtinessChecker.DirtyResult check(
         SkyKey skyKey, SkyValue oldValue, @Nullable TimestampGranularityMonitor tsgm) {
-      SkyValue newValue = super.createNewValue(skyKey, tsgm);
+      return compareExternal(skyKey, oldValue, super.createNewValue(skyKey, tsgm));
+    }
+
+    @Override
+    public DirtyResult checkWithStat(
+        SkyKey skyKey,
+        @Nullable SkyValue oldValue,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return compareExternal(skyKey, oldValue, createNewValueWithStat(skyKey, statNoFollow, tsgm));
+    }
+
+    private DirtyResult compareExternal(
+        SkyKey skyKey, @Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
       if (Objects.equal(newValue, oldValue)) {
         return SkyValueDirtinessChecker.DirtyResult.notDirty(oldValue);
       }
@@ -189,5 +249,15 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    @Override
+    public DirtyResult checkWithStat(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .checkWithStat(key, oldValue, statNoFollow, tsgm);
+    }
   }
 }
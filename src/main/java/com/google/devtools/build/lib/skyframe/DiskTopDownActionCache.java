@@ -0,0 +1,529 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.SpecialArtifact;
+import com.google.devtools.build.lib.actions.Artifact.TreeFileArtifact;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.FileContentsProxy;
+import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actionsketch.ActionSketch;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TopDownActionCache} that persists its entries in a local directory, so that they
+ * survive server restarts and clean output trees.
+ *
+ * <p>The directory holds an {@code ac} subdirectory with one file per action sketch, listing the
+ * exec paths, digests, sizes and {@link FileContentsProxy}s of the action's outputs, and a {@code
+ * cas} subdirectory with a copy of each output file, named by its digest. On a hit, outputs whose
+ * size or contents proxy differ from the cached ones are copied back from the {@code cas}
+ * directory, so that actions depending on them can run. Neither storing nor restoring an output
+ * digests it: the digests come from the output metadata, and a file that changes while it is
+ * copied is detected by its contents proxy.
+ *
+ * <p>Only actions whose outputs are all regular files or tree artifacts of regular files are
+ * cached. Entries are stored asynchronously on a bounded executor; if it falls behind, entries are
+ * dropped. All writes go to a temporary file that is then renamed, so the directory may be shared
+ * by concurrent servers. Once the directory grows past its maximum size, the least recently used
+ * files are evicted, by modification time, which is refreshed on every hit.
+ */
+public final class DiskTopDownActionCache implements TopDownActionCache {
+
+  private static final Logger logger = Logger.getLogger(DiskTopDownActionCache.class.getName());
+
+  private static final int VERSION = 2;
+
+  private static final int PUT_THREADS = 2;
+  private static final int MAX_QUEUED_PUTS = 1000;
+
+  /** Eviction removes entries until the directory is at most this fraction of its maximum size. */
+  private static final double EVICTION_TARGET_RATIO = 0.9;
+
+  private final Path acDir;
+  private final Path casDir;
+  private final DigestHashFunction digestFunction;
+  private final long maxSizeBytes;
+  private final AtomicLong sizeBytes = new AtomicLong();
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  private final ThreadPoolExecutor putExecutor;
+
+  private final Object pendingPutsLock = new Object();
+  private int pendingPuts = 0;
+
+  public DiskTopDownActionCache(Path cacheDir, long maxSizeBytes) throws IOException {
+    this.acDir = cacheDir.getRelative("ac");
+    this.casDir = cacheDir.getRelative("cas");
+    this.digestFunction = cacheDir.getFileSystem().getDigestFunction();
+    this.maxSizeBytes = maxSizeBytes;
+    acDir.createDirectoryAndParents();
+    casDir.createDirectoryAndParents();
+    for (CachedFile file : listCachedFiles()) {
+      sizeBytes.addAndGet(file.size);
+    }
+    this.putExecutor =
+        new ThreadPoolExecutor(
+            PUT_THREADS,
+            PUT_THREADS,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_PUTS),
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-top-down-action-cache-%d")
+                .setDaemon(true)
+                .build());
+    putExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  @Nullable
+  @Override
+  public ActionExecutionValue get(ActionSketch sketch, ImmutableSet<Artifact> outputs) {
+    Path entry = acDir.getRelative(key(sketch));
+    ActionExecutionValue value;
+    boolean[] restored = new boolean[1];
+    try (DataInputStream in = new DataInputStream(entry.getInputStream())) {
+      value = readEntry(in, outputs, restored);
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read top-down cache entry " + entry, e);
+      return null;
+    }
+    if (value != null) {
+      touch(entry);
+      if (restored[0]) {
+        // Record the contents proxies of the restored outputs, so that the next hit need not copy
+        // them again.
+        put(sketch, value);
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public void put(ActionSketch sketch, ActionExecutionValue value) {
+    if (value.getOutputSymlinks() != null || value.getDiscoveredModules() != null) {
+      return;
+    }
+    for (Map.Entry<Artifact, FileArtifactValue> output : value.getAllFileValues().entrySet()) {
+      if (!isCacheable(output.getKey(), output.getValue())) {
+        return;
+      }
+    }
+    for (TreeArtifactValue tree : value.getAllTreeArtifactValues().values()) {
+      for (Map.Entry<TreeFileArtifact, FileArtifactValue> child :
+          tree.getChildValues().entrySet()) {
+        if (!isCacheable(child.getKey(), child.getValue())) {
+          return;
+        }
+      }
+    }
+    synchronized (pendingPutsLock) {
+      pendingPuts++;
+    }
+    try {
+      putExecutor.execute(
+          () -> {
+            try {
+              store(sketch, value);
+            } finally {
+              putDone();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      putDone();
+      logger.fine("Dropped top-down cache entry for " + sketch + ": too many pending entries");
+    }
+  }
+
+  /** Waits until all entries passed to {@link #put} have been stored or dropped. */
+  public void awaitPendingPuts() throws InterruptedException {
+    synchronized (pendingPutsLock) {
+      while (pendingPuts > 0) {
+        pendingPutsLock.wait();
+      }
+    }
+  }
+
+  private void putDone() {
+    synchronized (pendingPutsLock) {
+      pendingPuts--;
+      if (pendingPuts == 0) {
+        pendingPutsLock.notifyAll();
+      }
+    }
+  }
+
+  private void store(ActionSketch sketch, ActionExecutionValue value) {
+    try {
+      for (Map.Entry<Artifact, FileArtifactValue> output : value.getAllFileValues().entrySet()) {
+        storeContents(output.getKey().getPath(), output.getValue());
+      }
+      for (TreeArtifactValue tree : value.getAllTreeArtifactValues().values()) {
+        for (Map.Entry<TreeFileArtifact, FileArtifactValue> child :
+            tree.getChildValues().entrySet()) {
+          storeContents(child.getKey().getPath(), child.getValue());
+        }
+      }
+      Path temp = acDir.getRelative(UUID.randomUUID() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(temp.getOutputStream())) {
+        writeEntry(out, value);
+      }
+      Path entry = acDir.getRelative(key(sketch));
+      long replacedSize = entry.exists() ? entry.getFileSize() : 0;
+      long size = temp.getFileSize();
+      temp.renameTo(entry);
+      sizeBytes.addAndGet(size - replacedSize);
+    } catch (IOException e) {
+      // The outputs may have been deleted or modified concurrently; the action is just not cached.
+      logger.log(Level.WARNING, "Failed to store top-down cache entry for " + sketch, e);
+    }
+    if (sizeBytes.get() > maxSizeBytes && evicting.compareAndSet(false, true)) {
+      try {
+        evict();
+      } finally {
+        evicting.set(false);
+      }
+    }
+  }
+
+  private static boolean isCacheable(Artifact artifact, FileArtifactValue metadata) {
+    return !artifact.isMiddlemanArtifact()
+        && metadata.getType() == FileStateType.REGULAR_FILE
+        && metadata.getDigest() != null
+        && !metadata.isRemote();
+  }
+
+  /** Returns the name of the entry of {@code sketch}, which depends on the digest function. */
+  private String key(ActionSketch sketch) {
+    return new Fingerprint()
+        .addString(digestFunction.toString())
+        .addBytes(sketch.toBytes())
+        .hexDigestAndReset();
+  }
+
+  private Path casPath(byte[] digest) {
+    return casDir.getRelative(BaseEncoding.base16().lowerCase().encode(digest));
+  }
+
+  @Nullable
+  private static FileContentsProxy getContentsProxy(FileArtifactValue metadata) {
+    try {
+      return metadata.getContentsProxy();
+    } catch (UnsupportedOperationException e) {
+      // Inlined file contents have no proxy.
+      return null;
+    }
+  }
+
+  /**
+   * Copies {@code file} into the {@code cas} directory under the digest from its {@code metadata}.
+   * If the metadata has a contents proxy, the file is checked against it before and after the copy
+   * instead of being digested.
+   */
+  private void storeContents(Path file, FileArtifactValue metadata) throws IOException {
+    byte[] digest = metadata.getDigest();
+    Path target = casPath(digest);
+    if (target.exists()) {
+      touch(target);
+      return;
+    }
+    FileContentsProxy proxy = getContentsProxy(metadata);
+    Path temp = casDir.getRelative(UUID.randomUUID() + ".tmp");
+    try {
+      if (proxy != null) {
+        checkUnchanged(file, metadata.getSize(), proxy);
+        try (InputStream in = file.getInputStream();
+            OutputStream out = temp.getOutputStream()) {
+          ByteStreams.copy(in, out);
+        }
+        checkUnchanged(file, metadata.getSize(), proxy);
+      } else {
+        HashCode actual;
+        try (InputStream in = file.getInputStream();
+            HashingOutputStream out =
+                new HashingOutputStream(
+                    digestFunction.getHashFunction(), temp.getOutputStream())) {
+          ByteStreams.copy(in, out);
+          actual = out.hash();
+        }
+        if (!Arrays.equals(actual.asBytes(), digest)) {
+          throw new IOException(file + " was modified after it was digested");
+        }
+      }
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    long size = temp.getFileSize();
+    temp.setWritable(false);
+    temp.renameTo(target);
+    sizeBytes.addAndGet(size);
+  }
+
+  private static void checkUnchanged(Path file, long size, FileContentsProxy proxy)
+      throws IOException {
+    FileStatus stat = file.stat(Symlinks.NOFOLLOW);
+    if (stat.getSize() != size || !proxy.equals(FileContentsProxy.create(stat))) {
+      throw new IOException(file + " was modified after it was digested");
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, ActionExecutionValue value)
+      throws IOException {
+    out.writeInt(VERSION);
+    out.writeInt(value.getAllFileValues().size());
+    for (Map.Entry<Artifact, FileArtifactValue> output : value.getAllFileValues().entrySet()) {
+      out.writeUTF(output.getKey().getExecPathString());
+      writeFile(out, output.getValue());
+    }
+    out.writeInt(value.getAllTreeArtifactValues().size());
+    for (Map.Entry<Artifact, TreeArtifactValue> tree :
+        value.getAllTreeArtifactValues().entrySet()) {
+      out.writeUTF(tree.getKey().getExecPathString());
+      ImmutableMap<TreeFileArtifact, FileArtifactValue> children = tree.getValue().getChildValues();
+      out.writeInt(children.size());
+      for (Map.Entry<TreeFileArtifact, FileArtifactValue> child : children.entrySet()) {
+        out.writeUTF(child.getKey().getParentRelativePath().getPathString());
+        writeFile(out, child.getValue());
+      }
+    }
+  }
+
+  private static void writeFile(DataOutputStream out, FileArtifactValue metadata)
+      throws IOException {
+    byte[] digest = metadata.getDigest();
+    out.writeInt(digest.length);
+    out.write(digest);
+    out.writeLong(metadata.getSize());
+    FileContentsProxy proxy = getContentsProxy(metadata);
+    out.writeBoolean(proxy != null);
+    if (proxy != null) {
+      out.writeLong(proxy.getCTime());
+      out.writeLong(proxy.getNodeId());
+    }
+  }
+
+  /**
+   * Reads an entry and restores the outputs it lists. Returns null if the entry does not match
+   * {@code outputs} or if an output cannot be restored. Sets {@code restored[0]} if any output was
+   * copied from the {@code cas} directory.
+   */
+  @Nullable
+  private ActionExecutionValue readEntry(
+      DataInputStream in, ImmutableSet<Artifact> outputs, boolean[] restored) throws IOException {
+    if (in.readInt() != VERSION) {
+      return null;
+    }
+    Map<String, Artifact> outputsByExecPath = new HashMap<>();
+    for (Artifact output : outputs) {
+      outputsByExecPath.put(output.getExecPathString(), output);
+    }
+
+    int numFiles = in.readInt();
+    Map<Artifact, FileArtifactValue> artifactData = new LinkedHashMap<>();
+    for (int i = 0; i < numFiles; i++) {
+      Artifact artifact = outputsByExecPath.get(in.readUTF());
+      if (artifact == null || artifact.isTreeArtifact()) {
+        return null;
+      }
+      FileArtifactValue metadata = restoreFile(in, artifact.getPath(), restored);
+      if (metadata == null) {
+        return null;
+      }
+      artifactData.put(artifact, metadata);
+    }
+
+    int numTrees = in.readInt();
+    Map<Artifact, TreeArtifactValue> treeArtifactData = new LinkedHashMap<>();
+    for (int i = 0; i < numTrees; i++) {
+      Artifact artifact = outputsByExecPath.get(in.readUTF());
+      if (artifact == null || !artifact.isTreeArtifact()) {
+        return null;
+      }
+      SpecialArtifact parent = (SpecialArtifact) artifact;
+      Path treeDir = parent.getPath();
+      if (treeDir.exists(Symlinks.NOFOLLOW) && !treeDir.isDirectory(Symlinks.NOFOLLOW)) {
+        treeDir.delete();
+      }
+      treeDir.createDirectoryAndParents();
+      int numChildren = in.readInt();
+      Map<TreeFileArtifact, FileArtifactValue> children = new LinkedHashMap<>();
+      for (int j = 0; j < numChildren; j++) {
+        TreeFileArtifact child =
+            ActionInputHelper.treeFileArtifact(parent, PathFragment.create(in.readUTF()));
+        FileArtifactValue metadata = restoreFile(in, child.getPath(), restored);
+        if (metadata == null) {
+          return null;
+        }
+        children.put(child, metadata);
+      }
+      treeArtifactData.put(artifact, TreeArtifactValue.create(children));
+    }
+
+    if (artifactData.size() + treeArtifactData.size() != outputs.size()) {
+      // The action has outputs that the cached one did not have.
+      return null;
+    }
+    return ActionExecutionValue.create(
+        artifactData,
+        treeArtifactData,
+        /*outputSymlinks=*/ null,
+        /*discoveredModules=*/ null,
+        /*actionDependsOnBuildId=*/ false);
+  }
+
+  /**
+   * Reads the digest, size and contents proxy of a file and makes sure that {@code path} has these
+   * contents. A file whose size and proxy match is trusted; any other file is replaced by the copy
+   * in the {@code cas} directory. Returns null if that copy does not exist.
+   */
+  @Nullable
+  private FileArtifactValue restoreFile(DataInputStream in, Path path, boolean[] restored)
+      throws IOException {
+    byte[] digest = new byte[in.readInt()];
+    in.readFully(digest);
+    long size = in.readLong();
+    FileContentsProxy proxy =
+        in.readBoolean() ? new FileContentsProxy(in.readLong(), in.readLong()) : null;
+
+    Path cached = casPath(digest);
+    FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+    if (proxy != null
+        && stat != null
+        && stat.isFile()
+        && stat.getSize() == size
+        && proxy.equals(FileContentsProxy.create(stat))) {
+      touch(cached);
+      return FileArtifactValue.createForNormalFile(digest, proxy, size, /*isShareable=*/ true);
+    }
+    if (!cached.exists()) {
+      return null;
+    }
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.copyFile(cached, path);
+    touch(cached);
+    // Outputs of executed actions are made read-only and executable as well.
+    path.chmod(0555);
+    restored[0] = true;
+    return FileArtifactValue.createForNormalFile(
+        digest,
+        FileContentsProxy.create(path.stat(Symlinks.NOFOLLOW)),
+        size,
+        /*isShareable=*/ true);
+  }
+
+  /** Marks {@code path} as recently used. */
+  private static void touch(Path path) {
+    try {
+      path.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // The file was evicted concurrently; it is only used less recently than it should be.
+    }
+  }
+
+  private static final class CachedFile {
+    final Path path;
+    final long lastModified;
+    final long size;
+
+    CachedFile(Path path, long lastModified, long size) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  }
+
+  private List<CachedFile> listCachedFiles() throws IOException {
+    List<CachedFile> files = new ArrayList<>();
+    for (Path dir : new Path[] {acDir, casDir}) {
+      for (Path path : dir.getDirectoryEntries()) {
+        FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+        if (stat != null && stat.isFile()) {
+          files.add(new CachedFile(path, stat.getLastModifiedTime(), stat.getSize()));
+        }
+      }
+    }
+    return files;
+  }
+
+  /** Deletes the least recently used files until the directory is below its target size. */
+  private void evict() {
+    List<CachedFile> files;
+    try {
+      files = listCachedFiles();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to list top-down cache files for eviction", e);
+      return;
+    }
+    files.sort(Comparator.comparingLong(file -> file.lastModified));
+    long size = 0;
+    for (CachedFile file : files) {
+      size += file.size;
+    }
+    // Resynchronize with the directory, which concurrent servers may also write to.
+    sizeBytes.set(size);
+    long targetSize = (long) (maxSizeBytes * EVICTION_TARGET_RATIO);
+    for (CachedFile file : files) {
+      if (sizeBytes.get() <= targetSize) {
+        break;
+      }
+      try {
+        if (file.path.delete()) {
+          sizeBytes.addAndGet(-file.size);
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to evict top-down cache file " + file.path, e);
+      }
+    }
+  }
+}
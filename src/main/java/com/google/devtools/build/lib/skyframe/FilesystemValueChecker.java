@@ -27,6 +27,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.concurrent.ExecutorUtil;
 import com.google.devtools.build.lib.concurrent.Sharder;
 import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
@@ -43,6 +44,7 @@ import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.FunctionHermeticity;
@@ -51,6 +53,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -101,8 +104,25 @@ public class FilesystemValueChecker {
   // WalkableGraph.
   Differencer.DiffWithDelta getDirtyKeys(Map<SkyKey, SkyValue> valuesMap,
       SkyValueDirtinessChecker dirtinessChecker) throws InterruptedException {
-    return getDirtyValues(new MapBackedValueFetcher(valuesMap), valuesMap.keySet(),
-        dirtinessChecker, /*checkMissingValues=*/false);
+    return getDirtyKeys(valuesMap, dirtinessChecker, /*batchStatter=*/ null);
+  }
+
+  /**
+   * Like {@link #getDirtyKeys(Map, SkyValueDirtinessChecker)}, but if {@code batchStatter} is not
+   * null, the paths of the {@link FileStateValue} keys are stat-ed with it, one batch per
+   * directory, instead of one at a time.
+   */
+  Differencer.DiffWithDelta getDirtyKeys(
+      Map<SkyKey, SkyValue> valuesMap,
+      SkyValueDirtinessChecker dirtinessChecker,
+      @Nullable BatchStat batchStatter)
+      throws InterruptedException {
+    return getDirtyValues(
+        new MapBackedValueFetcher(valuesMap),
+        valuesMap.keySet(),
+        dirtinessChecker,
+        /*checkMissingValues=*/ false,
+        batchStatter);
   }
 
   /**
@@ -113,7 +133,7 @@ public class FilesystemValueChecker {
       Iterable<SkyKey> keys, SkyValueDirtinessChecker dirtinessChecker)
           throws InterruptedException {
     return getDirtyValues(new MapBackedValueFetcher(valuesMap), keys,
-        dirtinessChecker, /*checkMissingValues=*/true);
+        dirtinessChecker, /*checkMissingValues=*/true, /*batchStatter=*/ null);
   }
 
   /**
@@ -124,7 +144,7 @@ public class FilesystemValueChecker {
       Iterable<SkyKey> keys, SkyValueDirtinessChecker dirtinessChecker)
           throws InterruptedException {
     return getDirtyValues(new WalkableGraphBackedValueFetcher(walkableGraph), keys,
-        dirtinessChecker, /*checkMissingValues=*/true);
+        dirtinessChecker, /*checkMissingValues=*/true, /*batchStatter=*/ null);
   }
 
   private interface ValueFetcher {
@@ -480,7 +500,8 @@ public class FilesystemValueChecker {
 
   private BatchDirtyResult getDirtyValues(ValueFetcher fetcher,
       Iterable<SkyKey> keys, final SkyValueDirtinessChecker checker,
-      final boolean checkMissingValues) throws InterruptedException {
+      final boolean checkMissingValues, @Nullable BatchStat batchStatter)
+      throws InterruptedException {
     ExecutorService executor =
         Executors.newFixedThreadPool(
             DIRTINESS_CHECK_THREADS,
@@ -503,6 +524,8 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      // The file state keys to stat with batchStatter, by the directory that contains them.
+      Map<Path, List<SkyKey>> fileStateKeysByDirectory = new HashMap<>();
       for (final SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
@@ -512,6 +535,13 @@ public class FilesystemValueChecker {
             key.functionName().getHermeticity() == FunctionHermeticity.NONHERMETIC,
             "Only non-hermetic keys can be dirty roots: %s",
             key);
+        if (batchStatter != null && key.functionName().equals(FileStateValue.FILE_STATE)) {
+          Path directory = ((RootedPath) key.argument()).asPath().getParentDirectory();
+          if (directory != null) {
+            fileStateKeysByDirectory.computeIfAbsent(directory, k -> new ArrayList<>()).add(key);
+            continue;
+          }
+        }
         executor.execute(
             wrapper.wrap(
                 () -> {
@@ -533,6 +563,24 @@ public class FilesystemValueChecker {
                   }
                 }));
       }
+      for (List<SkyKey> directoryKeys : fileStateKeysByDirectory.values()) {
+        executor.execute(
+            wrapper.wrap(
+                () -> {
+                  try {
+                    checkFileStatesWithBatchStat(
+                        fetcher,
+                        directoryKeys,
+                        checker,
+                        checkMissingValues,
+                        batchStatter,
+                        batchResult,
+                        numKeysChecked);
+                  } catch (InterruptedException e) {
+                    // Exit fast. Interrupt is handled below on the main thread.
+                  }
+                }));
+      }
 
       boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
       Throwables.propagateIfPossible(wrapper.getFirstThrownError());
@@ -543,6 +591,56 @@ public class FilesystemValueChecker {
     return batchResult;
   }
 
+  /**
+   * Checks {@code keys}, which are {@link FileStateValue} keys of the files of one directory,
+   * with a single call to {@code batchStatter}. If that fails, they are checked one at a time.
+   */
+  private void checkFileStatesWithBatchStat(
+      ValueFetcher fetcher,
+      List<SkyKey> keys,
+      SkyValueDirtinessChecker checker,
+      boolean checkMissingValues,
+      BatchStat batchStatter,
+      BatchDirtyResult batchResult,
+      AtomicInteger numKeysChecked)
+      throws InterruptedException {
+    List<SkyKey> keysToCheck = new ArrayList<>(keys.size());
+    List<SkyValue> values = new ArrayList<>(keys.size());
+    List<PathFragment> paths = new ArrayList<>(keys.size());
+    for (SkyKey key : keys) {
+      SkyValue value = fetcher.get(key);
+      if (!checkMissingValues && value == null) {
+        continue;
+      }
+      keysToCheck.add(key);
+      values.add(value);
+      paths.add(((RootedPath) key.argument()).asPath().asFragment());
+    }
+    if (keysToCheck.isEmpty()) {
+      return;
+    }
+    List<FileStatusWithDigest> stats;
+    try {
+      stats =
+          batchStatter.batchStat(/*includeDigest=*/ false, /*includeLinks=*/ true, paths);
+    } catch (IOException e) {
+      // Stat-ing the files one at a time tells which of them failed.
+      stats = null;
+    }
+    for (int i = 0; i < keysToCheck.size(); i++) {
+      SkyKey key = keysToCheck.get(i);
+      SkyValue value = values.get(i);
+      numKeysChecked.incrementAndGet();
+      DirtyResult result =
+          stats == null
+              ? checker.check(key, value, tsgm)
+              : checker.checkWithStat(key, value, stats.get(i), tsgm);
+      if (result.isDirty()) {
+        batchResult.add(key, value, result.getNewValue());
+      }
+    }
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
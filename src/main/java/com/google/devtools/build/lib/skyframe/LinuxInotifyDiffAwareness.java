@@ -0,0 +1,492 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.UnixJniLoader;
+import com.google.devtools.build.lib.unix.ErrnoFileStatus;
+import com.google.devtools.build.lib.unix.NativePosixFiles;
+import com.google.devtools.build.lib.unix.NativePosixFiles.Dirents;
+import com.google.devtools.build.lib.unix.NativePosixFiles.ReadTypes;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * File system watcher for local filesystems on Linux, which uses inotify directly through JNI. It's
+ * able to provide a list of changed files between two consecutive calls.
+ *
+ * <p>Unlike {@link WatchServiceDiffAwareness}, which hands every directory to the WatchService
+ * thread one at a time, this adds the watches of a whole level of the directory tree in a single
+ * JNI call. Events are read when a view is requested, so the view contains every change made
+ * before; in between builds, a thread reads them as they arrive so that the kernel's event queue
+ * does not overflow. If it overflows nonetheless, the next view reports everything as modified, but
+ * only the directories that changed since they were last listed are listed again to repair the
+ * watches, instead of starting over.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+  private static final Logger logger = Logger.getLogger(LinuxInotifyDiffAwareness.class.getName());
+
+  // Event flags from <sys/inotify.h>, which are part of the kernel ABI.
+  private static final int IN_MODIFY = 0x00000002;
+  private static final int IN_ATTRIB = 0x00000004;
+  private static final int IN_MOVED_FROM = 0x00000040;
+  private static final int IN_MOVED_TO = 0x00000080;
+  private static final int IN_CREATE = 0x00000100;
+  private static final int IN_DELETE = 0x00000200;
+  private static final int IN_MOVE_SELF = 0x00000800;
+  private static final int IN_Q_OVERFLOW = 0x00004000;
+  private static final int IN_IGNORED = 0x00008000;
+  private static final int IN_ONLYDIR = 0x01000000;
+  private static final int IN_DONT_FOLLOW = 0x02000000;
+  private static final int IN_EXCL_UNLINK = 0x04000000;
+  private static final int IN_ISDIR = 0x40000000;
+
+  private static final int WATCH_MASK =
+      IN_MODIFY
+          | IN_ATTRIB
+          | IN_MOVED_FROM
+          | IN_MOVED_TO
+          | IN_CREATE
+          | IN_DELETE
+          | IN_MOVE_SELF
+          | IN_ONLYDIR
+          | IN_DONT_FOLLOW
+          | IN_EXCL_UNLINK;
+
+  /** The size of a {@code struct inotify_event} without its name. */
+  private static final int EVENT_HEADER_SIZE = 16;
+
+  /** How long the event thread waits for events before checking whether it should stop. */
+  private static final int POLL_TIMEOUT_MILLIS = 500;
+
+  private static final boolean JNI_AVAILABLE;
+
+  static {
+    boolean loadJniWorked = false;
+    try {
+      UnixJniLoader.loadJni();
+      loadJniWorked = true;
+    } catch (UnsatisfiedLinkError ignored) {
+      // The Bazel bootstrap binary has no JNI code; WatchServiceDiffAwareness is used instead.
+    }
+    JNI_AVAILABLE = loadJniWorked;
+  }
+
+  /** Returns whether the JNI code this relies on is available. */
+  static boolean isAvailable() {
+    return JNI_AVAILABLE;
+  }
+
+  /** The inotify file descriptor, or -1 if --watchfs was never enabled or inotify failed. */
+  private int fd = -1;
+
+  private boolean opened;
+
+  /** Set when this is closed; the event thread then closes the file descriptor. */
+  private boolean closed;
+
+  /** Why the event thread stopped reading events, if it failed. */
+  @Nullable private IOException eventFailure;
+
+  /** Bijection from watch descriptor to the (absolute) directory being watched. */
+  private final HashBiMap<Integer, Path> watchedDirs = HashBiMap.create();
+
+  /** The paths created since the last view, and whether they were created as directories. */
+  private final Map<Path, Boolean> createdPaths = new HashMap<>();
+
+  private final Set<Path> deletedOrModifiedPaths = new HashSet<>();
+
+  /** Watched directories moved since the last view, whose watches must be removed. */
+  private final Set<Path> movedDirectories = new HashSet<>();
+
+  /** Whether the kernel dropped events since the last view. */
+  private boolean overflowed;
+
+  private boolean rootMoved;
+
+  /**
+   * When the last complete scan of the tree started, either to watch it or to recover from an
+   * overflow. Every directory whose entries changed since was listed after that.
+   */
+  private long lastScanStartMillis;
+
+  LinuxInotifyDiffAwareness(String watchRoot) {
+    super(watchRoot);
+  }
+
+  private void init() {
+    Preconditions.checkState(!opened);
+    opened = true;
+    try {
+      fd = NativePosixFiles.inotifyInit();
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warning("Failed to initialize inotify, so --watchfs has no effect: " + e);
+      return;
+    }
+    Thread eventThread = new Thread(this::readEventsUntilClosed, "inotify-events");
+    eventThread.setDaemon(true);
+    eventThread.start();
+  }
+
+  @Override
+  public synchronized View getCurrentView(OptionsProvider options)
+      throws BrokenDiffAwarenessException {
+    // See WatchServiceDiffAwareness#getCurrentView for an explanation of this logic.
+    boolean watchFs = options.getOptions(Options.class).watchFS;
+    if (watchFs && !opened) {
+      init();
+    } else if (!watchFs && opened) {
+      close();
+      throw new BrokenDiffAwarenessException("Switched off --watchfs again");
+    }
+    // If init() failed, then this if also applies.
+    if (fd == -1) {
+      return EVERYTHING_MODIFIED;
+    }
+    Preconditions.checkState(!closed);
+    if (eventFailure != null) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + eventFailure);
+    }
+    Set<Path> modifiedAbsolutePaths;
+    try {
+      if (isFirstCall()) {
+        lastScanStartMillis = System.currentTimeMillis();
+        watchDirectoriesAndCollectContents(ImmutableList.of(watchRootPath), null);
+        checkRootWatched();
+        modifiedAbsolutePaths = ImmutableSet.of();
+      } else {
+        readEvents();
+        checkRootWatched();
+        if (overflowed) {
+          recoverFromOverflow();
+          return newViewAfterLostChanges();
+        }
+        modifiedAbsolutePaths = collectChanges();
+      }
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    }
+    return newView(modifiedAbsolutePaths);
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+  }
+
+  /** Reads events as they arrive, so that the kernel's queue doesn't fill up between builds. */
+  private void readEventsUntilClosed() {
+    try {
+      while (true) {
+        boolean hasEvents = NativePosixFiles.inotifyPoll(fd, POLL_TIMEOUT_MILLIS);
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          if (hasEvents) {
+            readEvents();
+          }
+        }
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        eventFailure = e;
+      }
+    } finally {
+      // Only this thread closes the file descriptor, so it is never closed while being read.
+      try {
+        NativePosixFiles.close(fd, this);
+      } catch (IOException ignored) {
+        // Nothing we can do here.
+      }
+    }
+  }
+
+  private void checkRootWatched() throws IOException {
+    if (rootMoved || !watchedDirs.containsValue(watchRootPath)) {
+      throw new IOException("Root directory " + watchRootPath + " became inaccessible.");
+    }
+  }
+
+  /** Reads the queued events and records the paths they change. */
+  private void readEvents() throws IOException {
+    ByteBuffer events = ByteBuffer.wrap(NativePosixFiles.inotifyRead(fd));
+    events.order(ByteOrder.nativeOrder());
+    while (events.remaining() >= EVENT_HEADER_SIZE) {
+      int wd = events.getInt();
+      int mask = events.getInt();
+      events.getInt(); // The cookie, which pairs the two events of a move.
+      int nameLength = events.getInt();
+      // The name is padded with NULs.
+      int nameStart = events.position();
+      int nameEnd = nameStart;
+      while (nameEnd < nameStart + nameLength && events.get(nameEnd) != 0) {
+        nameEnd++;
+      }
+      String name =
+          new String(events.array(), nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+      events.position(nameStart + nameLength);
+      handleEvent(wd, mask, name);
+    }
+  }
+
+  private void handleEvent(int wd, int mask, String name) {
+    if ((mask & IN_Q_OVERFLOW) != 0) {
+      overflowed = true;
+      return;
+    }
+    if ((mask & IN_IGNORED) != 0) {
+      // The directory was deleted, or we removed its watch.
+      watchedDirs.remove(wd);
+      return;
+    }
+    Path dir = watchedDirs.get(wd);
+    if (dir == null) {
+      // An event queued before we removed the watch.
+      return;
+    }
+    if (name.isEmpty()) {
+      // An event about the watched directory itself; its parent reports it as well, except for the
+      // root directory.
+      if ((mask & IN_MOVE_SELF) != 0 && dir.equals(watchRootPath)) {
+        rootMoved = true;
+      }
+      return;
+    }
+    Path path = dir.resolve(name);
+    if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+      createdPaths.put(path, (mask & IN_ISDIR) != 0);
+      deletedOrModifiedPaths.remove(path);
+    } else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+      createdPaths.remove(path);
+      deletedOrModifiedPaths.add(path);
+      if ((mask & IN_MOVED_FROM) != 0 && (mask & IN_ISDIR) != 0) {
+        // Unlike the watches of a deleted directory, those of a moved directory stay, and would
+        // report the changes to its new location under its old path.
+        movedDirectories.add(path);
+      }
+    } else if (!createdPaths.containsKey(path)) {
+      // If a file was created and then modified, then the net diff is that it was created.
+      deletedOrModifiedPaths.add(path);
+    }
+  }
+
+  /** Returns the paths changed since the last view and watches the new directories among them. */
+  private Set<Path> collectChanges() throws IOException {
+    if (!movedDirectories.isEmpty()) {
+      unwatchMovedDirectories();
+    }
+    Set<Path> changedPaths = new HashSet<>(deletedOrModifiedPaths);
+    List<Path> createdDirectories = new ArrayList<>();
+    for (Map.Entry<Path, Boolean> created : createdPaths.entrySet()) {
+      if (created.getValue()) {
+        // Changes to a new directory since its creation have not been watched, so we watch it and
+        // report all of its contents.
+        createdDirectories.add(created.getKey());
+      } else {
+        changedPaths.add(created.getKey());
+      }
+    }
+    watchDirectoriesAndCollectContents(createdDirectories, changedPaths);
+    createdPaths.clear();
+    deletedOrModifiedPaths.clear();
+    return changedPaths;
+  }
+
+  private void unwatchMovedDirectories() throws IOException {
+    Iterator<Map.Entry<Integer, Path>> watches = watchedDirs.entrySet().iterator();
+    while (watches.hasNext()) {
+      Map.Entry<Integer, Path> watch = watches.next();
+      for (Path dir = watch.getValue(); dir != null; dir = dir.getParent()) {
+        if (movedDirectories.contains(dir)) {
+          NativePosixFiles.inotifyRemoveWatch(fd, watch.getKey());
+          watches.remove();
+          break;
+        }
+      }
+    }
+    movedDirectories.clear();
+  }
+
+  /**
+   * Watches the given directories and all directories below them. If {@code contents} is not null,
+   * adds all the paths traversed (as absolute paths) to it.
+   *
+   * <p>The tree is traversed one level at a time, adding the watches of all directories of a level
+   * in one JNI call.
+   */
+  private void watchDirectoriesAndCollectContents(
+      Collection<Path> dirs, @Nullable Set<Path> contents) throws IOException {
+    List<Path> level = new ArrayList<>(dirs);
+    while (!level.isEmpty()) {
+      // It's important that we watch the directories before listing them. This way we are
+      // guaranteed to see new entries either in the listing or as events.
+      int[] wds = addWatches(level);
+      List<Path> nextLevel = new ArrayList<>();
+      for (int i = 0; i < level.size(); i++) {
+        Path dir = level.get(i);
+        if (contents != null) {
+          contents.add(dir);
+        }
+        if (wds[i] == -1) {
+          // It was deleted or replaced by a file since it was listed; its parent reports that.
+          continue;
+        }
+        watch(wds[i], dir);
+        Dirents dirents;
+        try {
+          dirents = NativePosixFiles.readdir(dir.toString(), ReadTypes.NOFOLLOW);
+        } catch (FileNotFoundException e) {
+          continue;
+        }
+        for (int j = 0; j < dirents.size(); j++) {
+          Path child = dir.resolve(dirents.getName(j));
+          Preconditions.checkState(child.isAbsolute(), child);
+          if (contents != null) {
+            contents.add(child);
+          }
+          // Note that this does not follow symlinks.
+          if (dirents.getType(j) == Dirents.Type.DIRECTORY) {
+            nextLevel.add(child);
+          }
+        }
+      }
+      level = nextLevel;
+    }
+  }
+
+  private int[] addWatches(List<Path> dirs) throws IOException {
+    String[] paths = new String[dirs.size()];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = dirs.get(i).toString();
+    }
+    return NativePosixFiles.inotifyAddWatches(fd, paths, WATCH_MASK);
+  }
+
+  private void watch(int wd, Path dir) throws IOException {
+    Integer previous = watchedDirs.inverse().get(dir);
+    if (previous != null && previous != wd) {
+      // The directory was replaced by another one; stop watching the old one.
+      NativePosixFiles.inotifyRemoveWatch(fd, previous);
+    }
+    watchedDirs.forcePut(wd, dir);
+  }
+
+  /**
+   * Repairs the watches after the kernel dropped events because its queue overflowed: stops
+   * watching the directories that are gone and watches those created since the last scan. All
+   * watched directories are stat-ed, but only those whose entries changed since the last scan are
+   * listed again.
+   */
+  private void recoverFromOverflow() throws IOException {
+    long scanStartMillis = System.currentTimeMillis();
+    logger.info("The inotify event queue overflowed, rescanning the changed directories");
+    overflowed = false;
+    // The next view reports everything as modified anyway.
+    createdPaths.clear();
+    deletedOrModifiedPaths.clear();
+    movedDirectories.clear();
+
+    // Directory change times are truncated to seconds, and lag slightly behind the wall clock.
+    long changedSinceSeconds = lastScanStartMillis / 1000 - 1;
+    ListMultimap<Path, Integer> watchesByParent = ArrayListMultimap.create();
+    for (Map.Entry<Integer, Path> watch : watchedDirs.entrySet()) {
+      watchesByParent.put(watch.getValue().getParent(), watch.getKey());
+    }
+    List<Path> changedDirectories = new ArrayList<>();
+    for (Path parent : watchesByParent.keySet()) {
+      List<Integer> wds = watchesByParent.get(parent);
+      String[] names = new String[wds.size()];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = watchedDirs.get(wds.get(i)).getFileName().toString();
+      }
+      ErrnoFileStatus[] statuses =
+          NativePosixFiles.batchStat(parent.toString(), names, /*followSymlinks=*/ false);
+      for (int i = 0; i < names.length; i++) {
+        int wd = wds.get(i);
+        if (statuses[i].hasError() || !statuses[i].isDirectory()) {
+          NativePosixFiles.inotifyRemoveWatch(fd, wd);
+          watchedDirs.remove(wd);
+        } else if (statuses[i].getLastChangeTime() >= changedSinceSeconds) {
+          changedDirectories.add(watchedDirs.get(wd));
+        }
+      }
+    }
+
+    // A changed directory may have been replaced, so watch it again; if it's the same directory,
+    // this returns its current watch descriptor.
+    int[] wds = addWatches(changedDirectories);
+    List<Path> newDirectories = new ArrayList<>();
+    for (int i = 0; i < wds.length; i++) {
+      Path dir = changedDirectories.get(i);
+      if (wds[i] == -1) {
+        continue;
+      }
+      watch(wds[i], dir);
+      Dirents dirents;
+      try {
+        dirents = NativePosixFiles.readdir(dir.toString(), ReadTypes.NOFOLLOW);
+      } catch (FileNotFoundException e) {
+        continue;
+      }
+      for (int j = 0; j < dirents.size(); j++) {
+        Path child = dir.resolve(dirents.getName(j));
+        if (dirents.getType(j) == Dirents.Type.DIRECTORY
+            && !watchedDirs.containsValue(child)) {
+          newDirectories.add(child);
+        }
+      }
+    }
+    watchDirectoriesAndCollectContents(newDirectories, null);
+    lastScanStartMillis = scanStartMillis;
+    logger.info(
+        String.format(
+            "Rescanned %d changed directories out of %d and watched %d new ones in %dms",
+            changedDirectories.size(),
+            watchesByParent.size(),
+            newDirectories.size(),
+            System.currentTimeMillis() - scanStartMillis));
+  }
+
+  @VisibleForTesting
+  synchronized int getWatchCount() {
+    return watchedDirs.size();
+  }
+}
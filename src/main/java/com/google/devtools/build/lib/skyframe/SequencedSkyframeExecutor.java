@@ -82,6 +82,7 @@ import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -257,7 +258,11 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
         tsgm,
         options);
     long startTime = System.nanoTime();
-    handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles, options);
+    handleDiffs(
+        eventHandler,
+        packageCacheOptions.checkOutputFiles,
+        packageCacheOptions.nativeBatchStat,
+        options);
     long stopTime = System.nanoTime();
     Profiler.instance().logSimpleTask(startTime, stopTime, ProfilerTask.INFO, "handleDiffs");
     long duration = stopTime - startTime;
@@ -326,11 +331,18 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       dropConfiguredTargetsNow(eventHandler);
       super.lastAnalysisDiscarded = false;
     }
-    handleDiffs(eventHandler, /*checkOutputFiles=*/false, OptionsProvider.EMPTY);
+    handleDiffs(
+        eventHandler,
+        /*checkOutputFiles=*/ false,
+        /*nativeBatchStat=*/ false,
+        OptionsProvider.EMPTY);
   }
 
   private void handleDiffs(
-      ExtendedEventHandler eventHandler, boolean checkOutputFiles, OptionsProvider options)
+      ExtendedEventHandler eventHandler,
+      boolean checkOutputFiles,
+      boolean nativeBatchStat,
+      OptionsProvider options)
       throws InterruptedException, AbruptExitException {
     TimestampGranularityMonitor tsgm = this.tsgm.get();
     modifiedFiles = 0;
@@ -361,6 +373,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
         tsgm,
         pathEntriesWithoutDiffInformation,
         checkOutputFiles,
+        nativeBatchStat,
         managedDirectoriesChanged);
     handleClientEnvironmentChanges();
   }
@@ -449,6 +462,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       TimestampGranularityMonitor tsgm,
       Set<Pair<Root, ProcessableModifiedFileSet>> pathEntriesWithoutDiffInformation,
       boolean checkOutputFiles,
+      boolean nativeBatchStat,
       boolean managedDirectoriesChanged)
       throws InterruptedException {
     ExternalFilesKnowledge externalFilesKnowledge =
@@ -503,6 +517,10 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     logger.info(
         "About to scan skyframe graph checking for filesystem nodes of types "
             + Iterables.toString(fileTypesToCheck));
+    // The paths of the checked keys are absolute, so any base path will do.
+    Path workspace = directories.getWorkspace();
+    BatchStat batchStatter =
+        nativeBatchStat ? workspace.getFileSystem().getBatchStatter(workspace) : null;
     Differencer.Diff diff;
     try (SilentCloseable c = Profiler.instance().profile("fsvc.getDirtyKeys")) {
       diff =
@@ -513,7 +531,8 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
                       customDirtinessCheckers,
                       ImmutableList.<SkyValueDirtinessChecker>of(
                           new ExternalDirtinessChecker(tmpExternalFilesHelper, fileTypesToCheck),
-                          new MissingDiffDirtinessChecker(diffPackageRootsUnderWhichToCheck)))));
+                          new MissingDiffDirtinessChecker(diffPackageRootsUnderWhichToCheck)))),
+              batchStatter);
     }
     handleChangedFiles(diffPackageRootsUnderWhichToCheck, diff, managedDirectoriesChanged);
 
@@ -695,12 +714,17 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
 
   @Override
   public void detectModifiedOutputFiles(
-      ModifiedFileSet modifiedOutputFiles, @Nullable Range<Long> lastExecutionTimeRange)
+      ModifiedFileSet modifiedOutputFiles,
+      @Nullable Range<Long> lastExecutionTimeRange,
+      @Nullable BatchStat fileSystemBatchStatter)
       throws InterruptedException {
     long startTime = System.nanoTime();
     FilesystemValueChecker fsvc =
         new FilesystemValueChecker(Preconditions.checkNotNull(tsgm.get()), lastExecutionTimeRange);
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
+    if (batchStatter == null) {
+      batchStatter = fileSystemBatchStatter;
+    }
     recordingDiffer.invalidate(
         fsvc.getDirtyActionValues(
             memoizingEvaluator.getValues(), batchStatter, modifiedOutputFiles));
@@ -976,6 +1000,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     private MutableArtifactFactorySupplier mutableArtifactFactorySupplier =
         new MutableArtifactFactorySupplier();
     private Consumer<SkyframeExecutor> skyframeExecutorConsumerOnInit = skyframeExecutor -> {};
+    private EvaluatorSupplier evaluatorSupplier = InMemoryMemoizingEvaluator.SUPPLIER;
 
     private Builder() {}
 
@@ -995,7 +1020,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       SequencedSkyframeExecutor skyframeExecutor =
           new SequencedSkyframeExecutor(
               skyframeExecutorConsumerOnInit,
-              InMemoryMemoizingEvaluator.SUPPLIER,
+              evaluatorSupplier,
               pkgFactory,
               fileSystem,
               directories,
@@ -1104,6 +1129,11 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       return this;
     }
 
+    public Builder setEvaluatorSupplier(EvaluatorSupplier evaluatorSupplier) {
+      this.evaluatorSupplier = evaluatorSupplier;
+      return this;
+    }
+
     public Builder setManagedDirectoriesKnowledge(
         @Nullable ManagedDirectoriesKnowledge managedDirectoriesKnowledge) {
       this.managedDirectoriesKnowledge = managedDirectoriesKnowledge;
@@ -1115,7 +1145,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
    * Listener class to subscribe for WORKSPACE file header refreshes.
    *
    * <p>Changes to WORKSPACE file header are computed before the files difference is computed in
-   * {@link #handleDiffs(ExtendedEventHandler, boolean, OptionsProvider)}
+   * {@link #handleDiffs(ExtendedEventHandler, boolean, boolean, OptionsProvider)}
    */
   public interface WorkspaceFileHeaderListener {
     boolean workspaceHeaderReloaded(
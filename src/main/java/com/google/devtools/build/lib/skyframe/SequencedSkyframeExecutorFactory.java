@@ -21,6 +21,8 @@ import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.rules.repository.ManagedDirectoriesKnowledge;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.skyframe.CompactInMemoryGraph;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import javax.annotation.Nullable;
@@ -31,9 +33,20 @@ import javax.annotation.Nullable;
 public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory {
 
   private final BuildOptions defaultBuildOptions;
+  private final boolean compactSkyframeGraph;
 
   public SequencedSkyframeExecutorFactory(BuildOptions defaultBuildOptions) {
+    this(defaultBuildOptions, /*compactSkyframeGraph=*/ false);
+  }
+
+  /**
+   * Creates a factory whose executors store the Skyframe graph in a {@link CompactInMemoryGraph}
+   * if {@code compactSkyframeGraph} is true.
+   */
+  public SequencedSkyframeExecutorFactory(
+      BuildOptions defaultBuildOptions, boolean compactSkyframeGraph) {
     this.defaultBuildOptions = defaultBuildOptions;
+    this.compactSkyframeGraph = compactSkyframeGraph;
   }
 
   @Override
@@ -58,6 +71,10 @@ public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory
         .setExtraSkyFunctions(extraSkyFunctions)
         .setCustomDirtinessCheckers(customDirtinessCheckers)
         .setManagedDirectoriesKnowledge(managedDirectoriesKnowledge)
+        .setEvaluatorSupplier(
+            compactSkyframeGraph
+                ? InMemoryMemoizingEvaluator.COMPACT_GRAPH_SUPPLIER
+                : InMemoryMemoizingEvaluator.SUPPLIER)
         .build();
   }
 }
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import javax.annotation.Nullable;
@@ -42,7 +43,27 @@ public abstract class SkyValueDirtinessChecker {
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compare(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * Like {@link #check}, for a {@link com.google.devtools.build.lib.actions.FileStateValue} key
+   * whose path was already stat-ed without following symlinks. {@code statNoFollow} is the result,
+   * or null if the path does not exist. Checkers that can't make use of it stat the path again.
+   */
+  public DirtyResult checkWithStat(
+      SkyKey key,
+      @Nullable SkyValue oldValue,
+      @Nullable FileStatusWithDigest statNoFollow,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return check(key, oldValue, tsgm);
+  }
+
+  /**
+   * Returns whether {@code newValue}, or null if no new value could be created, differs from
+   * {@code oldValue}.
+   */
+  static DirtyResult compare(@Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
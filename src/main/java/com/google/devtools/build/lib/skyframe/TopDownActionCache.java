@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actionsketch.ActionSketch;
 import javax.annotation.Nullable;
 
@@ -24,9 +26,13 @@ import javax.annotation.Nullable;
  */
 public interface TopDownActionCache {
 
-  /** Retrieves the cached value for the given action sketch, or null. */
+  /**
+   * Retrieves the cached value for the given action sketch, or null. {@code outputs} are the
+   * outputs of the action, which a cache that does not keep {@link ActionExecutionValue} instances
+   * needs to rebuild the value.
+   */
   @Nullable
-  ActionExecutionValue get(ActionSketch sketch);
+  ActionExecutionValue get(ActionSketch sketch, ImmutableSet<Artifact> outputs);
 
   /** Puts the sketch into the top-down cache. May complete asynchronously. */
   void put(ActionSketch sketch, ActionExecutionValue value);
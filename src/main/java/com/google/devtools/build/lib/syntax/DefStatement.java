@@ -13,7 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import javax.annotation.Nullable;
 
 /** Syntax node for a 'def' statement, which defines a function. */
 public final class DefStatement extends Statement {
@@ -22,6 +24,8 @@ public final class DefStatement extends Statement {
   private final FunctionSignature signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter> parameters;
+  // The names of the frame slots of the function's local variables, set by ValidationEnvironment.
+  @Nullable private ImmutableList<String> locals;
 
   DefStatement(
       Identifier identifier,
@@ -59,6 +63,21 @@ public final class DefStatement extends Statement {
     return signature;
   }
 
+  /**
+   * Returns the names of the local variables of the function, indexed by their slot, or null if
+   * the function body was not resolved. Parameters come first, in the order of {@link
+   * FunctionSignature#getParameterNames}.
+   */
+  @Nullable
+  ImmutableList<String> getLocals() {
+    return locals;
+  }
+
+  void setLocals(ImmutableList<String> locals) {
+    Preconditions.checkState(this.locals == null);
+    this.locals = locals;
+  }
+
   @Override
   public void accept(NodeVisitor visitor) {
     visitor.visit(this);
@@ -160,7 +160,8 @@ final class Eval {
             sig,
             defaults,
             node.getStatements(),
-            thread.getGlobals()));
+            thread.getGlobals(),
+            node.getLocals()));
   }
 
   private TokenKind execIf(IfStatement node) throws EvalException, InterruptedException {
@@ -295,6 +296,10 @@ final class Eval {
   /** Binds a variable to the given value in the environment. */
   private static void assignIdentifier(Identifier ident, Object value, StarlarkThread thread)
       throws EvalException {
+    if (ident.getSlot() >= 0) {
+      thread.localUpdate(ident.getSlot(), value);
+      return;
+    }
     thread.updateAndExport(ident.getName(), value);
   }
 
@@ -609,7 +614,8 @@ final class Eval {
           Object result;
           switch (id.getScope()) {
             case Local:
-              result = thread.localLookup(name);
+              result =
+                  id.getSlot() >= 0 ? thread.localLookup(id.getSlot()) : thread.localLookup(name);
               break;
             case Module:
               result = thread.moduleLookup(name);
@@ -717,13 +723,18 @@ final class Eval {
     final ArrayList<Object> list = comp.isDict() ? null : new ArrayList<>();
 
     // Save values of all variables bound in a 'for' clause
-    // so we can restore them later.
+    // so we can restore them later. Variables resolved to slots of a function frame
+    // don't shadow anything: they only need to be unbound afterwards.
     // TODO(adonovan) throw all this away when we implement flat environments.
     List<Object> saved = new ArrayList<>(); // alternating keys and values
     for (Comprehension.Clause clause : comp.getClauses()) {
       if (clause instanceof Comprehension.For) {
         for (Identifier ident :
             Identifier.boundIdentifiers(((Comprehension.For) clause).getVars())) {
+          if (ident.getSlot() >= 0) {
+            saved.add(ident);
+            continue;
+          }
           String name = ident.getName();
           Object value = thread.localLookup(ident.getName());
           saved.add(name);
@@ -784,7 +795,12 @@ final class Eval {
     // Restore outer scope variables.
     // This loop implicitly undefines comprehension variables.
     for (int i = 0; i != saved.size(); ) {
-      String name = (String) saved.get(i++);
+      Object key = saved.get(i++);
+      if (key instanceof Identifier) {
+        thread.localUpdate(((Identifier) key).getSlot(), null);
+        continue;
+      }
+      String name = (String) key;
       Object value = saved.get(i++);
       thread.updateInternal(name, value);
     }
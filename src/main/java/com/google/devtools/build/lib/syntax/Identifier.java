@@ -18,9 +18,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import javax.annotation.Nullable;
 
-// TODO(bazel-team): For performance, avoid doing HashMap lookups at runtime, and compile local
-// variable access into array reference with a constant index. Variable lookups are currently a
-// speed bottleneck, as previously measured in an experiment.
 /**
  * Syntax node for an identifier.
  */
@@ -30,6 +27,9 @@ public final class Identifier extends Expression {
   // The scope of the variable. The value is set when the AST has been analysed by
   // ValidationEnvironment.
   @Nullable private ValidationEnvironment.Scope scope;
+  // The index of a local variable of a function in its frame, or -1 if the variable is not
+  // resolved to a slot. The value is set by ValidationEnvironment together with the scope.
+  private int slot = -1;
 
   Identifier(String name) {
     this.name = name;
@@ -55,6 +55,15 @@ public final class Identifier extends Expression {
     this.scope = scope;
   }
 
+  int getSlot() {
+    return slot;
+  }
+
+  void setSlot(int slot) {
+    Preconditions.checkState(this.slot == -1);
+    this.slot = slot;
+  }
+
   @Override
   public void accept(NodeVisitor visitor) {
     visitor.visit(this);
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
+import javax.annotation.Nullable;
 
 /** A StarlarkFunction is the function value created by a Starlark {@code def} statement. */
 public final class StarlarkFunction extends BaseFunction {
@@ -25,6 +26,8 @@ public final class StarlarkFunction extends BaseFunction {
   private final ImmutableList<Statement> statements;
   private final Module module; // a function closes over its defining module
   private final Tuple<Object> defaultValues;
+  // The names of the frame slots of the local variables, or null if the body was not resolved.
+  @Nullable private final ImmutableList<String> locals;
 
   // TODO(adonovan): make this private. The CodecTests should go through interpreter to instantiate
   // such things.
@@ -35,12 +38,24 @@ public final class StarlarkFunction extends BaseFunction {
       Tuple<Object> defaultValues,
       ImmutableList<Statement> statements,
       Module module) {
+    this(name, location, signature, defaultValues, statements, module, /*locals=*/ null);
+  }
+
+  StarlarkFunction(
+      String name,
+      Location location,
+      FunctionSignature signature,
+      Tuple<Object> defaultValues,
+      ImmutableList<Statement> statements,
+      Module module,
+      @Nullable ImmutableList<String> locals) {
     this.name = name;
     this.signature = signature;
     this.location = location;
     this.statements = statements;
     this.module = module;
     this.defaultValues = defaultValues;
+    this.locals = locals;
   }
 
   @Override
@@ -74,6 +89,12 @@ public final class StarlarkFunction extends BaseFunction {
     return module;
   }
 
+  /** Returns the names of the frame slots of the local variables, or null if not resolved. */
+  @Nullable
+  ImmutableList<String> getLocals() {
+    return locals;
+  }
+
   @Override
   public Object fastcall(StarlarkThread thread, Location loc, Object[] positional, Object[] named)
       throws EvalException, InterruptedException {
@@ -90,8 +111,15 @@ public final class StarlarkFunction extends BaseFunction {
         Starlark.matchSignature(
             getSignature(), this, getDefaultValues(), thread.mutability(), positional, named);
     ImmutableList<String> names = getSignature().getParameterNames();
-    for (int i = 0; i < names.size(); ++i) {
-      thread.update(names.get(i), arguments[i]);
+    if (locals != null) {
+      // The parameters are the first slots.
+      for (int i = 0; i < names.size(); ++i) {
+        thread.localUpdate(i, arguments[i]);
+      }
+    } else {
+      for (int i = 0; i < names.size(); ++i) {
+        thread.update(names.get(i), arguments[i]);
+      }
     }
 
     return Eval.execStatements(thread, statements);
@@ -252,6 +252,101 @@ public final class StarlarkThread implements Freezable {
     }
   }
 
+  /**
+   * The frame of a call to a {@link StarlarkFunction} whose local variables were resolved to slots
+   * by {@link ValidationEnvironment}. The evaluator accesses the variables by slot; the name-based
+   * methods serve the debugger and any code that was not resolved.
+   */
+  private static final class ResolvedLexicalFrame implements LexicalFrame {
+    private final Mutability mutability;
+    private final ImmutableList<String> names;
+    private final Object[] values;
+    // Bindings of names without a slot, created lazily.
+    @Nullable private LinkedHashMap<String, Object> extraBindings;
+
+    private ResolvedLexicalFrame(Mutability mutability, ImmutableList<String> names) {
+      this.mutability = mutability;
+      this.names = names;
+      this.values = new Object[names.size()];
+    }
+
+    @Override
+    public Mutability mutability() {
+      return mutability;
+    }
+
+    /**
+     * Returns the slot bound to {@code varname}, or -1. A name can have several slots when a
+     * comprehension shadows a variable of the function; the innermost bound one is preferred.
+     */
+    private int slotOf(String varname) {
+      int unbound = -1;
+      for (int i = names.size() - 1; i >= 0; i--) {
+        if (names.get(i).equals(varname)) {
+          if (values[i] != null) {
+            return i;
+          }
+          unbound = i;
+        }
+      }
+      return unbound;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String varname) {
+      int slot = slotOf(varname);
+      if (slot >= 0) {
+        return values[slot];
+      }
+      return extraBindings != null ? extraBindings.get(varname) : null;
+    }
+
+    @Override
+    public void put(String varname, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, mutability());
+      int slot = slotOf(varname);
+      if (slot >= 0) {
+        values[slot] = value;
+        return;
+      }
+      if (extraBindings == null) {
+        extraBindings = new LinkedHashMap<>();
+      }
+      extraBindings.put(varname, value);
+    }
+
+    @Override
+    public void remove(String varname) throws MutabilityException {
+      Mutability.checkMutable(this, mutability());
+      int slot = slotOf(varname);
+      if (slot >= 0) {
+        values[slot] = null;
+      } else if (extraBindings != null) {
+        extraBindings.remove(varname);
+      }
+    }
+
+    @Override
+    public Map<String, Object> getTransitiveBindings() {
+      LinkedHashMap<String, Object> bindings = Maps.newLinkedHashMapWithExpectedSize(names.size());
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) {
+          bindings.put(names.get(i), values[i]);
+        }
+      }
+      if (extraBindings != null) {
+        bindings.putAll(extraBindings);
+      }
+      return bindings;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("<ResolvedLexicalFrame%s>", mutability());
+    }
+  }
+
   // The mutability of the StarlarkThread comes from its initial global frame.
   private final Mutability mutability;
 
@@ -519,9 +614,12 @@ public final class StarlarkThread implements Freezable {
     ProfilerTask taskKind;
     if (fn instanceof StarlarkFunction) {
       StarlarkFunction sfn = (StarlarkFunction) fn;
+      ImmutableList<String> locals = sfn.getLocals();
       this.lexicalFrame =
-          new MutableLexicalFrame(
-              this.mutability(), /*initialCapacity=*/ sfn.getSignature().numParameters());
+          locals != null
+              ? new ResolvedLexicalFrame(this.mutability(), locals)
+              : new MutableLexicalFrame(
+                  this.mutability(), /*initialCapacity=*/ sfn.getSignature().numParameters());
       this.globalFrame = sfn.getModule();
       taskKind = ProfilerTask.STARLARK_USER_FN;
     } else {
@@ -819,6 +917,22 @@ public final class StarlarkThread implements Freezable {
     return lexicalFrame.get(varname);
   }
 
+  /**
+   * Returns the value of the local variable in the given slot of the current function call, whose
+   * variables were resolved by {@link ValidationEnvironment}.
+   */
+  Object localLookup(int slot) {
+    return ((ResolvedLexicalFrame) lexicalFrame).values[slot];
+  }
+
+  /**
+   * Binds the local variable in the given slot of the current function call, or unbinds it if
+   * {@code value} is null. The call checked that the thread is mutable.
+   */
+  void localUpdate(int slot, @Nullable Object value) {
+    ((ResolvedLexicalFrame) lexicalFrame).values[slot] = value;
+  }
+
   /**
    * Returns the value of a variable defined in the Module scope (e.g. global variables, functions).
    */
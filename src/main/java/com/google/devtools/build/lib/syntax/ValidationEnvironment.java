@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.util.SpellChecker;
@@ -37,9 +38,11 @@ import javax.annotation.Nullable;
  * (even on the lines before its first assignment).
  *
  * <p>Validation is a mutation of the syntax tree, as it attaches scope information to Identifier
- * nodes. (In the future, it will attach additional information to functions to support lexical
- * scope, and even compilation of the trees to bytecode.) Validation errors are reported in the
- * analogous manner to scan/parse errors: for a StarlarkFile, they are appended to {@code
+ * nodes. The local variables of a function are also resolved to slots of its frame: each
+ * Identifier of a local variable records its slot and each DefStatement the names of its slots, so
+ * that the evaluator accesses them by index instead of by name. (In the future, it will attach
+ * additional information to functions to support lexical scope.) Validation errors are reported in
+ * the analogous manner to scan/parse errors: for a StarlarkFile, they are appended to {@code
  * StarlarkFile.errors}; for an expression they will be [TODO(adonovan): implement] reported by an
  * SyntaxError exception. It is legal to validate a file that already contains scan/parse errors,
  * though it may lead to secondary validation errors.
@@ -87,12 +90,26 @@ public final class ValidationEnvironment extends NodeVisitor {
 
   private static class Block {
     private final Map<String, Identifier> variables = new HashMap<>();
+    // The slots of the variables declared in this block, if it belongs to a function.
+    private final Map<String, Integer> slots = new HashMap<>();
     private final Scope scope;
     @Nullable private final Block parent;
+    // The slot names of the enclosing function, shared by its nested blocks. Null outside
+    // functions and in BUILD files.
+    @Nullable private final List<String> locals;
 
-    Block(Scope scope, @Nullable Block parent) {
+    Block(Scope scope, @Nullable Block parent, @Nullable List<String> locals) {
       this.scope = scope;
       this.parent = parent;
+      this.locals = locals;
+    }
+
+    /** Allocates a new slot for {@code name}, unless this block already has one. */
+    void allocateSlot(String name) {
+      if (locals != null && !slots.containsKey(name)) {
+        slots.put(name, locals.size());
+        locals.add(name);
+      }
     }
   }
 
@@ -116,7 +133,7 @@ public final class ValidationEnvironment extends NodeVisitor {
     this.module = module;
     this.semantics = semantics;
     this.isBuildFile = isBuildFile;
-    block = new Block(Scope.Universe, null);
+    block = new Block(Scope.Universe, null, null);
     for (String name : module.getNames()) {
       block.variables.put(name, PREDECLARED);
     }
@@ -195,7 +212,7 @@ public final class ValidationEnvironment extends NodeVisitor {
   private void assign(Expression lhs) {
     if (lhs instanceof Identifier) {
       if (!isBuildFile) {
-        ((Identifier) lhs).setScope(block.scope);
+        setScope((Identifier) lhs, block);
       }
       // no-op
     } else if (lhs instanceof IndexExpression) {
@@ -227,7 +244,15 @@ public final class ValidationEnvironment extends NodeVisitor {
     // TODO(laurentlb): In BUILD files, calling setScope will throw an exception. This happens
     // because some AST nodes are shared across multipe ASTs (due to the prelude file).
     if (!isBuildFile) {
-      node.setScope(b.scope);
+      setScope(node, b);
+    }
+  }
+
+  private static void setScope(Identifier id, Block b) {
+    id.setScope(b.scope);
+    Integer slot = b.slots.get(id.getName());
+    if (slot != null) {
+      id.setSlot(slot);
     }
   }
 
@@ -343,7 +368,12 @@ public final class ValidationEnvironment extends NodeVisitor {
         visit(param.getDefaultValue());
       }
     }
-    openBlock(Scope.Local);
+    List<String> locals = isBuildFile ? null : new ArrayList<>();
+    block = new Block(Scope.Local, block, locals);
+    // The parameters take the first slots, in the order in which the arguments are matched.
+    for (String name : node.getSignature().getParameterNames()) {
+      block.allocateSlot(name);
+    }
     for (Parameter param : node.getParameters()) {
       if (param.getIdentifier() != null) {
         declare(param.getIdentifier());
@@ -352,6 +382,9 @@ public final class ValidationEnvironment extends NodeVisitor {
     collectDefinitions(node.getStatements());
     visitAll(node.getStatements());
     closeBlock();
+    if (locals != null) {
+      node.setLocals(ImmutableList.copyOf(locals));
+    }
   }
 
   @Override
@@ -382,6 +415,7 @@ public final class ValidationEnvironment extends NodeVisitor {
   /** Declare a variable and add it to the environment. */
   private void declare(Identifier id) {
     Identifier prev = block.variables.putIfAbsent(id.getName(), id);
+    block.allocateSlot(id.getName());
 
     // Symbols defined in the module scope cannot be reassigned.
     // TODO(laurentlb): Forbid reassignment in BUILD files too.
@@ -503,7 +537,8 @@ public final class ValidationEnvironment extends NodeVisitor {
 
   /** Open a new lexical block that will contain the future declarations. */
   private void openBlock(Scope scope) {
-    block = new Block(scope, block);
+    // A local block nested in a function, such as a comprehension, allocates its own slots.
+    block = new Block(scope, block, scope == Scope.Local ? block.locals : null);
   }
 
   /** Close a lexical block (and lose all declarations it contained). */
@@ -128,6 +128,19 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX fstatat(2), called for each of several entries of one directory.
+   * The directory is opened only once, so its path is not resolved again for every entry.
+   *
+   * @param dir the directory containing the entries.
+   * @param names the names of the entries to stat, which must not contain slashes.
+   * @param followSymlinks whether to stat the target of symlinks instead of the symlinks.
+   * @return an ErrnoFileStatus for each name, in the same order. If the directory could not be
+   *   opened, every status has the error of opening it.
+   */
+  public static native ErrnoFileStatus[] batchStat(
+      String dir, String[] names, boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -375,4 +388,58 @@ public final class NativePosixFiles {
    * reference alive.
    */
   public static native int close(int fd, Object ignored) throws IOException;
+
+  /********************************************************************
+   *                                                                  *
+   *                          Linux inotify                           *
+   *                                                                  *
+   ********************************************************************/
+
+  /**
+   * Native wrapper around Linux inotify_init1(2), with IN_NONBLOCK and IN_CLOEXEC.
+   *
+   * <p>The caller is responsible for calling {@link #close} on the returned file descriptor.
+   *
+   * @return an inotify file descriptor.
+   * @throws UnsupportedOperationException if inotify is not available on this platform.
+   * @throws IOException if the call failed for any other reason.
+   */
+  public static native int inotifyInit() throws IOException;
+
+  /**
+   * Native wrapper around Linux inotify_add_watch(2), called for each of several directories. The
+   * watches of all directories are added in a single call, which is much faster than adding them
+   * one by one for large trees.
+   *
+   * @param fd an inotify file descriptor returned by {@link #inotifyInit}.
+   * @param paths the directories to watch.
+   * @param mask the events to watch for, as in {@code <sys/inotify.h>}.
+   * @return the watch descriptor of each path, in the same order, or -1 for paths that no longer
+   *   exist or are no longer directories (ENOENT, ENOTDIR).
+   * @throws IOException if a watch could not be added for any other reason, in particular when
+   *   the limit on the number of watches is reached (ENOSPC).
+   */
+  public static native int[] inotifyAddWatches(int fd, String[] paths, int mask)
+      throws IOException;
+
+  /**
+   * Native wrapper around Linux inotify_rm_watch(2). Watches that the kernel already removed are
+   * ignored.
+   */
+  public static native void inotifyRemoveWatch(int fd, int wd) throws IOException;
+
+  /**
+   * Native wrapper around POSIX poll(2) for an inotify file descriptor.
+   *
+   * @return whether events can be read before {@code timeoutMillis} elapsed.
+   */
+  public static native boolean inotifyPoll(int fd, int timeoutMillis) throws IOException;
+
+  /**
+   * Reads all events queued on an inotify file descriptor, without blocking.
+   *
+   * @return the consecutive {@code struct inotify_event} records in native byte order, or an empty
+   *   array if no events are queued.
+   */
+  public static native byte[] inotifyRead(int fd) throws IOException;
 }
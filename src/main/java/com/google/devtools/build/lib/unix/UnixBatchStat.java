@@ -0,0 +1,100 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.unix.UnixFileSystem.UnixFileStatus;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BatchStat} that groups the paths by their parent directory and stats the entries of
+ * each directory with a single native call.
+ *
+ * <p>The directory is opened once and its entries are stat-ed relative to it with fstatat(2), so
+ * the kernel resolves the path of the directory once instead of once per entry, and there is one
+ * JNI transition per directory instead of one per path. Digests are never computed.
+ */
+final class UnixBatchStat implements BatchStat {
+
+  private final Path execRoot;
+
+  UnixBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(
+      boolean includeDigest, boolean includeLinks, Iterable<PathFragment> paths)
+      throws IOException, InterruptedException {
+    Map<Path, List<Integer>> indicesByDir = new LinkedHashMap<>();
+    List<String> names = new ArrayList<>();
+    for (PathFragment fragment : paths) {
+      Path path = execRoot.getRelative(fragment);
+      Path dir = path.getParentDirectory();
+      if (dir == null) {
+        // The root directory itself, which has no name to stat relative to a parent.
+        dir = path;
+      }
+      indicesByDir.computeIfAbsent(dir, k -> new ArrayList<>()).add(names.size());
+      names.add(dir == path ? "." : path.getBaseName());
+    }
+
+    FileStatusWithDigest[] result = new FileStatusWithDigest[names.size()];
+    for (Map.Entry<Path, List<Integer>> entry : indicesByDir.entrySet()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      String dir = entry.getKey().getPathString();
+      List<Integer> indices = entry.getValue();
+      String[] dirNames = new String[indices.size()];
+      for (int i = 0; i < dirNames.length; i++) {
+        dirNames[i] = names.get(indices.get(i));
+      }
+      long startTime = Profiler.nanoTimeMaybe();
+      ErrnoFileStatus[] stats;
+      try {
+        stats = NativePosixFiles.batchStat(dir, dirNames, /*followSymlinks=*/ !includeLinks);
+      } finally {
+        Profiler.instance().logSimpleTask(startTime, ProfilerTask.VFS_STAT, dir);
+      }
+      for (int i = 0; i < stats.length; i++) {
+        result[indices.get(i)] = toFileStatus(stats[i], dir, dirNames[i]);
+      }
+    }
+    return Arrays.asList(result);
+  }
+
+  private static FileStatusWithDigest toFileStatus(ErrnoFileStatus stat, String dir, String name)
+      throws IOException {
+    if (!stat.hasError()) {
+      return FileStatusWithDigestAdapter.adapt(new UnixFileStatus(stat));
+    }
+    int errno = stat.getErrno();
+    if (errno == ErrnoFileStatus.ENOENT || errno == ErrnoFileStatus.ENOTDIR) {
+      return null;
+    }
+    throw new IOException(String.format("Cannot stat %s/%s: errno %d", dir, name, errno));
+  }
+}
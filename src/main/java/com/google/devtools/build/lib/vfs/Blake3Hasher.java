@@ -0,0 +1,312 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An incremental implementation of the BLAKE3 hash function in its default (unkeyed) mode, with a
+ * 32-byte output.
+ *
+ * <p>BLAKE3 splits its input into 1024-byte chunks, which are the leaves of a binary tree. Besides
+ * hashing a whole input, this class can compute the chaining value of any subtree of that tree, so
+ * that independent subtrees can be hashed concurrently and combined with {@link
+ * #parentChainingValue} and {@link #rootOfParent}, see {@link Blake3TreeHasher}.
+ *
+ * <p>Not thread-safe.
+ */
+final class Blake3Hasher {
+
+  static final int OUT_LEN = 32;
+  static final int BLOCK_LEN = 64;
+  static final int CHUNK_LEN = 1024;
+
+  private static final int CHUNK_START = 1 << 0;
+  private static final int CHUNK_END = 1 << 1;
+  private static final int PARENT = 1 << 2;
+  private static final int ROOT = 1 << 3;
+
+  private static final int[] IV = {
+    0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+  };
+
+  private static final int[] MSG_PERMUTATION = {
+    2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8
+  };
+
+  /** For every round, the indices of the message words in the order in which they are used. */
+  private static final int[][] MSG_SCHEDULE = new int[7][16];
+
+  static {
+    for (int i = 0; i < 16; i++) {
+      MSG_SCHEDULE[0][i] = i;
+    }
+    for (int round = 1; round < 7; round++) {
+      for (int i = 0; i < 16; i++) {
+        MSG_SCHEDULE[round][i] = MSG_SCHEDULE[round - 1][MSG_PERMUTATION[i]];
+      }
+    }
+  }
+
+  /** Enough for 2^54 chunks, which is more than any input whose length fits into a long. */
+  private static final int MAX_DEPTH = 54;
+
+  /** The counter of the first chunk, non-zero if this hasher computes a subtree. */
+  private final long chunkCounterOffset;
+
+  // State of the current chunk.
+  private int[] chunkChainingValue = IV.clone();
+  private long chunksCompleted = 0;
+  private final byte[] block = new byte[BLOCK_LEN];
+  private int blockLen = 0;
+  private int blocksCompressed = 0;
+
+  // Chaining values of completed subtrees, see addChunkChainingValue.
+  private final int[][] chainingValueStack = new int[MAX_DEPTH][];
+  private int chainingValueStackSize = 0;
+
+  // Scratch space, to avoid allocations when converting blocks.
+  private final int[] blockWords = new int[16];
+
+  /** Creates a hasher for a whole input. */
+  Blake3Hasher() {
+    this(0);
+  }
+
+  /**
+   * Creates a hasher for the subtree of an input that starts at chunk {@code chunkCounterOffset}.
+   * The subtree must be a complete subtree of the BLAKE3 tree of that input, and its chaining value
+   * must be retrieved with {@link #finalizeChainingValue}.
+   */
+  Blake3Hasher(long chunkCounterOffset) {
+    Preconditions.checkArgument(
+        chunkCounterOffset >= 0, "negative chunk counter: %s", chunkCounterOffset);
+    this.chunkCounterOffset = chunkCounterOffset;
+  }
+
+  /** Returns an independent copy of this hasher. */
+  Blake3Hasher copy() {
+    Blake3Hasher copy = new Blake3Hasher(chunkCounterOffset);
+    copy.chunkChainingValue = chunkChainingValue.clone();
+    copy.chunksCompleted = chunksCompleted;
+    System.arraycopy(block, 0, copy.block, 0, BLOCK_LEN);
+    copy.blockLen = blockLen;
+    copy.blocksCompressed = blocksCompressed;
+    for (int i = 0; i < chainingValueStackSize; i++) {
+      copy.chainingValueStack[i] = chainingValueStack[i].clone();
+    }
+    copy.chainingValueStackSize = chainingValueStackSize;
+    return copy;
+  }
+
+  /** Resets this hasher to its initial state. */
+  void reset() {
+    chunkChainingValue = IV.clone();
+    chunksCompleted = 0;
+    blockLen = 0;
+    blocksCompressed = 0;
+    chainingValueStackSize = 0;
+  }
+
+  void update(byte b) {
+    if (blockLen == BLOCK_LEN) {
+      compressFullBlock();
+    }
+    block[blockLen++] = b;
+  }
+
+  void update(byte[] input, int offset, int len) {
+    Preconditions.checkPositionIndexes(offset, offset + len, input.length);
+    int end = offset + len;
+    while (offset < end) {
+      // Only compress a full block once more input arrives: the last block of a chunk is
+      // compressed with different flags, and so is the last block of the input.
+      if (blockLen == BLOCK_LEN) {
+        compressFullBlock();
+      }
+      int take = Math.min(BLOCK_LEN - blockLen, end - offset);
+      System.arraycopy(input, offset, block, blockLen, take);
+      blockLen += take;
+      offset += take;
+    }
+  }
+
+  /** Writes the 32-byte hash of the input to {@code out} at {@code offset}. */
+  void finalizeRoot(byte[] out, int offset) {
+    int[] inputChainingValue = chunkChainingValue;
+    int flags = chunkFlags() | CHUNK_END;
+    int blockLen = this.blockLen;
+    long counter = chunkCounterOffset + chunksCompleted;
+    blockToWords(block, 0, blockLen, blockWords);
+    for (int i = chainingValueStackSize - 1; i >= 0; i--) {
+      int[] chunkOrParentChainingValue =
+          compress(inputChainingValue, blockWords, counter, blockLen, flags);
+      inputChainingValue = IV;
+      flags = PARENT;
+      blockLen = BLOCK_LEN;
+      counter = 0;
+      parentBlockWords(chainingValueStack[i], chunkOrParentChainingValue, blockWords);
+    }
+    int[] output = compress(inputChainingValue, blockWords, counter, blockLen, flags | ROOT);
+    wordsToBytes(output, out, offset);
+  }
+
+  /** Returns the chaining value of the subtree hashed by this hasher. */
+  int[] finalizeChainingValue() {
+    int[] chainingValue =
+        compress(
+            chunkChainingValue,
+            blockToWords(block, 0, blockLen, blockWords),
+            chunkCounterOffset + chunksCompleted,
+            blockLen,
+            chunkFlags() | CHUNK_END);
+    for (int i = chainingValueStackSize - 1; i >= 0; i--) {
+      chainingValue = parentChainingValue(chainingValueStack[i], chainingValue);
+    }
+    return chainingValue;
+  }
+
+  /** Returns the chaining value of the parent node of two subtrees. */
+  static int[] parentChainingValue(int[] left, int[] right) {
+    return compress(IV, parentBlockWords(left, right, new int[16]), 0, BLOCK_LEN, PARENT);
+  }
+
+  /** Writes the 32-byte hash of an input whose root node has the two given children. */
+  static void rootOfParent(int[] left, int[] right, byte[] out, int offset) {
+    int[] output =
+        compress(IV, parentBlockWords(left, right, new int[16]), 0, BLOCK_LEN, PARENT | ROOT);
+    wordsToBytes(output, out, offset);
+  }
+
+  private int chunkFlags() {
+    return blocksCompressed == 0 ? CHUNK_START : 0;
+  }
+
+  private void compressFullBlock() {
+    if (blocksCompressed == CHUNK_LEN / BLOCK_LEN - 1) {
+      // This is the last block of the chunk.
+      int[] chunkChainingValue =
+          compress(
+              this.chunkChainingValue,
+              blockToWords(block, 0, BLOCK_LEN, blockWords),
+              chunkCounterOffset + chunksCompleted,
+              BLOCK_LEN,
+              chunkFlags() | CHUNK_END);
+      chunksCompleted++;
+      addChunkChainingValue(chunkChainingValue, chunksCompleted);
+      this.chunkChainingValue = IV.clone();
+      blocksCompressed = 0;
+    } else {
+      chunkChainingValue =
+          compress(
+              chunkChainingValue,
+              blockToWords(block, 0, BLOCK_LEN, blockWords),
+              chunkCounterOffset + chunksCompleted,
+              BLOCK_LEN,
+              chunkFlags());
+      blocksCompressed++;
+    }
+    blockLen = 0;
+  }
+
+  /**
+   * Pushes the chaining value of a completed chunk onto the stack, after merging it with the
+   * completed subtrees on the stack. The number of trailing zero bits of {@code totalChunks} is the
+   * number of subtrees that are complete once this chunk is added. The chunks are counted
+   * relative to the start of the subtree, because merging stops at the root of the subtree.
+   */
+  private void addChunkChainingValue(int[] chainingValue, long totalChunks) {
+    while ((totalChunks & 1) == 0) {
+      chainingValueStackSize--;
+      chainingValue =
+          parentChainingValue(chainingValueStack[chainingValueStackSize], chainingValue);
+      totalChunks >>= 1;
+    }
+    chainingValueStack[chainingValueStackSize++] = chainingValue;
+  }
+
+  private static int[] parentBlockWords(int[] left, int[] right, int[] words) {
+    System.arraycopy(left, 0, words, 0, 8);
+    System.arraycopy(right, 0, words, 8, 8);
+    return words;
+  }
+
+  private static int[] blockToWords(byte[] block, int offset, int len, int[] words) {
+    for (int i = 0; i < 16; i++) {
+      int word = 0;
+      for (int j = 0; j < 4; j++) {
+        int pos = 4 * i + j;
+        if (pos < len) {
+          word |= (block[offset + pos] & 0xFF) << (8 * j);
+        }
+      }
+      words[i] = word;
+    }
+    return words;
+  }
+
+  private static void wordsToBytes(int[] words, byte[] out, int offset) {
+    for (int i = 0; i < OUT_LEN / 4; i++) {
+      int word = words[i];
+      out[offset + 4 * i] = (byte) word;
+      out[offset + 4 * i + 1] = (byte) (word >>> 8);
+      out[offset + 4 * i + 2] = (byte) (word >>> 16);
+      out[offset + 4 * i + 3] = (byte) (word >>> 24);
+    }
+  }
+
+  /** The BLAKE3 compression function, returning the first 8 words of the output. */
+  private static int[] compress(
+      int[] chainingValue, int[] blockWords, long counter, int blockLen, int flags) {
+    int[] s = new int[16];
+    System.arraycopy(chainingValue, 0, s, 0, 8);
+    System.arraycopy(IV, 0, s, 8, 4);
+    s[12] = (int) counter;
+    s[13] = (int) (counter >>> 32);
+    s[14] = blockLen;
+    s[15] = flags;
+    for (int[] schedule : MSG_SCHEDULE) {
+      round(s, blockWords, schedule);
+    }
+    int[] result = new int[8];
+    for (int i = 0; i < 8; i++) {
+      result[i] = s[i] ^ s[i + 8];
+    }
+    return result;
+  }
+
+  private static void round(int[] s, int[] m, int[] schedule) {
+    // Mix the columns.
+    g(s, 0, 4, 8, 12, m[schedule[0]], m[schedule[1]]);
+    g(s, 1, 5, 9, 13, m[schedule[2]], m[schedule[3]]);
+    g(s, 2, 6, 10, 14, m[schedule[4]], m[schedule[5]]);
+    g(s, 3, 7, 11, 15, m[schedule[6]], m[schedule[7]]);
+    // Mix the diagonals.
+    g(s, 0, 5, 10, 15, m[schedule[8]], m[schedule[9]]);
+    g(s, 1, 6, 11, 12, m[schedule[10]], m[schedule[11]]);
+    g(s, 2, 7, 8, 13, m[schedule[12]], m[schedule[13]]);
+    g(s, 3, 4, 9, 14, m[schedule[14]], m[schedule[15]]);
+  }
+
+  private static void g(int[] s, int a, int b, int c, int d, int mx, int my) {
+    s[a] = s[a] + s[b] + mx;
+    s[d] = Integer.rotateRight(s[d] ^ s[a], 16);
+    s[c] = s[c] + s[d];
+    s[b] = Integer.rotateRight(s[b] ^ s[c], 12);
+    s[a] = s[a] + s[b] + my;
+    s[d] = Integer.rotateRight(s[d] ^ s[a], 8);
+    s[c] = s[c] + s[d];
+    s[b] = Integer.rotateRight(s[b] ^ s[c], 7);
+  }
+}
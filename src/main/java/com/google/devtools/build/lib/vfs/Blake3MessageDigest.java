@@ -0,0 +1,88 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.Provider;
+
+/**
+ * The BLAKE3 {@link MessageDigest}, made available under the name "BLAKE3" by {@link
+ * Blake3Provider}. The provider is not installed globally; {@link DigestHashFunction#BLAKE3} asks
+ * it for instances explicitly.
+ */
+public final class Blake3MessageDigest extends MessageDigest implements Cloneable {
+
+  private Blake3Hasher hasher = new Blake3Hasher();
+
+  public Blake3MessageDigest() {
+    super("BLAKE3");
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return Blake3Hasher.OUT_LEN;
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    hasher.update(input);
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    hasher.update(input, offset, len);
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    byte[] digest = new byte[Blake3Hasher.OUT_LEN];
+    hasher.finalizeRoot(digest, 0);
+    engineReset();
+    return digest;
+  }
+
+  @Override
+  protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+    if (len < Blake3Hasher.OUT_LEN) {
+      throw new DigestException("partial digests not returned");
+    }
+    hasher.finalizeRoot(buf, offset);
+    engineReset();
+    return Blake3Hasher.OUT_LEN;
+  }
+
+  @Override
+  protected void engineReset() {
+    hasher.reset();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    Blake3MessageDigest clone = (Blake3MessageDigest) super.clone();
+    clone.hasher = hasher.copy();
+    return clone;
+  }
+
+  /**
+   * A security provider for {@link Blake3MessageDigest}, which the JDK does not provide. It only
+   * serves explicit requests, so that it can't affect how other algorithms are looked up.
+   */
+  static final class Blake3Provider extends Provider {
+    Blake3Provider() {
+      super("BazelBlake3", 1.0, "BLAKE3 message digest");
+      put("MessageDigest.BLAKE3", Blake3MessageDigest.class.getName());
+    }
+  }
+}
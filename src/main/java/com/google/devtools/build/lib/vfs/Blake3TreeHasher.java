@@ -0,0 +1,162 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.devtools.build.lib.vfs.Blake3Hasher.CHUNK_LEN;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes BLAKE3 digests of large inputs on multiple threads.
+ *
+ * <p>BLAKE3 hashes the 1024-byte chunks of its input as the leaves of a binary tree, whose left
+ * subtrees always cover a power-of-two number of chunks. Independent subtrees are read and hashed
+ * in parallel, each from its own slice of the input, and their chaining values are combined
+ * bottom-up. The result is identical to hashing the input sequentially.
+ */
+final class Blake3TreeHasher {
+
+  /** Inputs up to this size are hashed sequentially, as are subtrees up to this size. */
+  @VisibleForTesting static final long DEFAULT_LEAF_SIZE = 1 << 20;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum number of threads that hash subtrees, shared by all files being hashed. */
+  private static final int MAX_THREADS = 8;
+
+  /**
+   * Holds the threads that hash subtrees, which are only started once a file larger than {@link
+   * #DEFAULT_LEAF_SIZE} is hashed. Each thread reads its own slice of the file, and the disk rather
+   * than the CPU limits how many of them help, hence {@link #MAX_THREADS}.
+   */
+  private static final class PoolHolder {
+    static final ForkJoinPool POOL =
+        new ForkJoinPool(
+            Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()),
+            pool -> {
+              ForkJoinWorkerThread thread =
+                  ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+              thread.setName("blake3-hasher-" + thread.getPoolIndex());
+              thread.setDaemon(true);
+              return thread;
+            },
+            /*handler=*/ null,
+            /*asyncMode=*/ false);
+  }
+
+  private Blake3TreeHasher() {}
+
+  /** Returns the BLAKE3 digest of {@code source}, which must contain exactly {@code size} bytes. */
+  static byte[] hash(ByteSource source, long size) throws IOException {
+    return hash(source, size, PoolHolder.POOL, DEFAULT_LEAF_SIZE);
+  }
+
+  @VisibleForTesting
+  static byte[] hash(ByteSource source, long size, ForkJoinPool pool, long leafSize)
+      throws IOException {
+    Preconditions.checkArgument(size >= 0, "negative size: %s", size);
+    Preconditions.checkArgument(leafSize >= CHUNK_LEN, "leaf size too small: %s", leafSize);
+    byte[] digest = new byte[Blake3Hasher.OUT_LEN];
+    if (size <= leafSize) {
+      Blake3Hasher hasher = new Blake3Hasher();
+      readInto(hasher, source, 0, size);
+      hasher.finalizeRoot(digest, 0);
+      return digest;
+    }
+    long leftLen = leftSubtreeLength(size);
+    SubtreeTask left = new SubtreeTask(source, 0, leftLen, leafSize);
+    SubtreeTask right = new SubtreeTask(source, leftLen, size - leftLen, leafSize);
+    try {
+      pool.execute(right);
+      int[] leftChainingValue = pool.invoke(left);
+      Blake3Hasher.rootOfParent(leftChainingValue, right.join(), digest, 0);
+    } catch (IORuntimeException e) {
+      // The exception may have been re-created by ForkJoinTask#join, wrapping the original.
+      for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+      }
+      throw e;
+    }
+    return digest;
+  }
+
+  /**
+   * Returns the number of bytes covered by the left subtree of an input of {@code len > CHUNK_LEN}
+   * bytes: the largest power-of-two number of chunks that leaves at least one byte on the right.
+   */
+  private static long leftSubtreeLength(long len) {
+    long fullChunks = (len - 1) / CHUNK_LEN;
+    return Long.highestOneBit(fullChunks) * CHUNK_LEN;
+  }
+
+  private static void readInto(Blake3Hasher hasher, ByteSource source, long offset, long len)
+      throws IOException {
+    byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(len, 1))];
+    long remaining = len;
+    try (InputStream in = source.slice(offset, len).openStream()) {
+      int read;
+      while (remaining > 0 && (read = in.read(buffer)) != -1) {
+        hasher.update(buffer, 0, read);
+        remaining -= read;
+      }
+    }
+    if (remaining != 0) {
+      throw new IOException(
+          String.format("Unexpected end of input at offset %d", offset + len - remaining));
+    }
+  }
+
+  /** Computes the chaining value of the subtree covering {@code len} bytes at {@code offset}. */
+  private static final class SubtreeTask extends RecursiveTask<int[]> {
+    private final ByteSource source;
+    private final long offset;
+    private final long len;
+    private final long leafSize;
+
+    SubtreeTask(ByteSource source, long offset, long len, long leafSize) {
+      this.source = source;
+      this.offset = offset;
+      this.len = len;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected int[] compute() {
+      if (len <= leafSize) {
+        Blake3Hasher hasher = new Blake3Hasher(offset / CHUNK_LEN);
+        try {
+          readInto(hasher, source, offset, len);
+        } catch (IOException e) {
+          throw new IORuntimeException(e);
+        }
+        return hasher.finalizeChainingValue();
+      }
+      long leftLen = leftSubtreeLength(len);
+      SubtreeTask left = new SubtreeTask(source, offset, leftLen, leafSize);
+      SubtreeTask right = new SubtreeTask(source, offset + leftLen, len - leftLen, leafSize);
+      right.fork();
+      int[] leftChainingValue = left.invoke();
+      return Blake3Hasher.parentChainingValue(leftChainingValue, right.join());
+    }
+  }
+}
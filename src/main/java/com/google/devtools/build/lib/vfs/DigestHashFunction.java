@@ -26,9 +26,11 @@ import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.OptionsParsingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import javax.annotation.Nullable;
 
 /**
  * Type of hash function to use for digesting files.
@@ -70,21 +72,38 @@ public class DigestHashFunction {
   public static final DigestHashFunction SHA1 = register(Hashing.sha1(), "SHA-1", "SHA1");
   public static final DigestHashFunction SHA256 = register(Hashing.sha256(), "SHA-256", "SHA256");
 
+  /**
+   * BLAKE3, whose tree mode allows {@link FileSystem#getDigest} to hash large files on multiple
+   * cores. The JDK does not provide it, so its MessageDigest comes from a provider that is only
+   * used here rather than installed for the whole server.
+   */
+  public static final DigestHashFunction BLAKE3 =
+      register(
+          Blake3HashFunction.INSTANCE,
+          new DigestLengthImpl(Blake3HashFunction.INSTANCE),
+          new Blake3MessageDigest.Blake3Provider(),
+          "BLAKE3");
+
   private static DigestHashFunction defaultHash;
 
   private final HashFunction hashFunction;
   private final DigestLength digestLength;
   private final String name;
+  @Nullable private final Provider provider;
   private final MessageDigest messageDigestPrototype;
   private final boolean messageDigestPrototypeSupportsClone;
   private final ImmutableList<String> names;
 
   private DigestHashFunction(
-      HashFunction hashFunction, DigestLength digestLength, ImmutableList<String> names) {
+      HashFunction hashFunction,
+      DigestLength digestLength,
+      @Nullable Provider provider,
+      ImmutableList<String> names) {
     this.hashFunction = hashFunction;
     this.digestLength = digestLength;
     checkArgument(!names.isEmpty());
     this.name = names.get(0);
+    this.provider = provider;
     this.names = names;
     this.messageDigestPrototype = getMessageDigestInstance();
     this.messageDigestPrototypeSupportsClone = supportsClone(messageDigestPrototype);
@@ -108,8 +127,21 @@ public class DigestHashFunction {
    */
   public static DigestHashFunction register(
       HashFunction hash, DigestLength digestLength, String hashName, String... altNames) {
+    return register(hash, digestLength, /*provider=*/ null, hashName, altNames);
+  }
+
+  /**
+   * Like {@link #register(HashFunction, DigestLength, String, String...)}, but takes the
+   * MessageDigest from {@code provider} if it is not null.
+   */
+  private static DigestHashFunction register(
+      HashFunction hash,
+      DigestLength digestLength,
+      @Nullable Provider provider,
+      String hashName,
+      String... altNames) {
     try {
-      MessageDigest.getInstance(hashName);
+      getMessageDigest(hashName, provider);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalArgumentException(
           "The hash function name provided does not correspond to a valid MessageDigest: "
@@ -119,7 +151,7 @@ public class DigestHashFunction {
 
     ImmutableList<String> names =
         ImmutableList.<String>builder().add(hashName).add(altNames).build();
-    DigestHashFunction hashFunction = new DigestHashFunction(hash, digestLength, names);
+    DigestHashFunction hashFunction = new DigestHashFunction(hash, digestLength, provider, names);
     synchronized (hashFunctionRegistry) {
       for (String name : names) {
         if (hashFunctionRegistry.containsKey(name)) {
@@ -249,7 +281,7 @@ public class DigestHashFunction {
 
   private MessageDigest getMessageDigestInstance() {
     try {
-      return MessageDigest.getInstance(name);
+      return getMessageDigest(name, provider);
     } catch (NoSuchAlgorithmException e) {
       // We check when we register() this digest function that the message digest exists. This
       // should never happen.
@@ -257,6 +289,13 @@ public class DigestHashFunction {
     }
   }
 
+  private static MessageDigest getMessageDigest(String name, @Nullable Provider provider)
+      throws NoSuchAlgorithmException {
+    return provider == null
+        ? MessageDigest.getInstance(name)
+        : MessageDigest.getInstance(name, provider);
+  }
+
   private static boolean supportsClone(MessageDigest toCheck) {
     try {
       toCheck.clone();
@@ -85,4 +85,12 @@ public interface FileStatus {
    * ought to cause the node ID of b to change, but appending / modifying b should not.
    */
   long getNodeId() throws IOException;
+
+  /**
+   * Returns the id of the device that holds this file, or -1 if it is not known. Together with
+   * {@link #getNodeId}, it identifies the file across the file systems of the machine.
+   */
+  default long getDeviceId() throws IOException {
+    return -1;
+  }
 }
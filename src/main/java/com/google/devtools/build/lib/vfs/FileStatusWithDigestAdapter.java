@@ -76,4 +76,9 @@ public class FileStatusWithDigestAdapter implements FileStatusWithDigest {
   public long getNodeId() throws IOException {
     return stat.getNodeId();
   }
+
+  @Override
+  public long getDeviceId() throws IOException {
+    return stat.getDeviceId();
+  }
 }
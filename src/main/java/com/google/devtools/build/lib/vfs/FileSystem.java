@@ -33,6 +33,7 @@ import java.nio.file.FileAlreadyExistsException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * This interface models a file system using UNIX the naming scheme.
@@ -139,6 +140,16 @@ public abstract class FileSystem {
    */
   public abstract boolean isFilePathCaseSensitive();
 
+  /**
+   * Returns a {@link BatchStat} for paths relative to {@code execRoot} that is faster than
+   * stat-ing the paths one at a time, or null if this file system has none. The returned statter
+   * does not compute digests.
+   */
+  @Nullable
+  public BatchStat getBatchStatter(Path execRoot) {
+    return null;
+  }
+
   /**
    * Returns the type of the file system path belongs to.
    *
@@ -316,12 +327,18 @@ public abstract class FileSystem {
    * @throws IOException if the digest could not be computed for any reason
    */
   protected byte[] getDigest(final Path path) throws IOException {
-    return new ByteSource() {
-      @Override
-      public InputStream openStream() throws IOException {
-        return getInputStream(path);
-      }
-    }.hash(digestFunction.getHashFunction()).asBytes();
+    ByteSource source =
+        new ByteSource() {
+          @Override
+          public InputStream openStream() throws IOException {
+            return getInputStream(path);
+          }
+        };
+    if (digestFunction == DigestHashFunction.BLAKE3) {
+      // Large files are hashed on multiple threads, by independently reading slices of the file.
+      return Blake3TreeHasher.hash(source, getFileSize(path, /*followSymlinks=*/ true));
+    }
+    return source.hash(digestFunction.getHashFunction()).asBytes();
   }
 
   /**
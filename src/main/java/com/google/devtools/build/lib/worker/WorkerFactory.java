@@ -69,7 +69,9 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
               workerId,
               key.getExecRoot(),
               logFile,
-              WorkerMultiplexerManager.getInstance(key.hashCode()));
+              WorkerMultiplexerManager.getInstance(
+                  key.hashCode(), workerOptions.workerMultiplexRequestsPerProcess),
+              workerOptions.workerMultiplexRequestsPerProcess);
     } else {
       worker = new Worker(key, workerId, key.getExecRoot(), logFile);
     }
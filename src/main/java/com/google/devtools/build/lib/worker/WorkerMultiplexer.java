@@ -14,69 +14,75 @@
 
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.shell.Subprocess;
 import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
-/** An intermediate worker that sends request and receives response from the worker process. */
+/**
+ * An intermediate worker that sends requests to and receives responses from a worker process on
+ * behalf of any number of {@link WorkerProxy}s.
+ *
+ * <p>Requests are pipelined: a proxy queues its request and waits for the future of its response
+ * without waiting for the requests of other proxies to be answered. A sender thread writes the
+ * queued requests to the worker process, flushing once per batch, and this thread reads the
+ * responses and completes the future registered under their request id. No lock is held while a
+ * request is sent or a response is awaited.
+ */
 public class WorkerMultiplexer extends Thread {
   private static final Logger logger = Logger.getLogger(WorkerMultiplexer.class.getName());
-  /**
-   * WorkerMultiplexer is running as a thread on its own. When worker process returns the
-   * WorkResponse, it is stored in this map and wait for WorkerProxy to retrieve the response.
-   */
-  private Map<Integer, InputStream> workerProcessResponse;
-  /** A semaphore to protect workerProcessResponse object. */
-  private Semaphore semWorkerProcessResponse;
-  /**
-   * After sending the WorkRequest, WorkerProxy will wait on a semaphore to be released.
-   * WorkerMultiplexer is responsible to release the corresponding semaphore in order to signal
-   * WorkerProxy that the WorkerResponse has been received.
-   */
-  private Map<Integer, Semaphore> responseChecker;
-  /** A semaphore to protect responseChecker object. */
-  private Semaphore semResponseChecker;
+
+  /** Futures of the responses to the requests that were sent, keyed by request id. */
+  private final ConcurrentMap<Integer, SettableFuture<WorkResponse>> pendingResponses =
+      new ConcurrentHashMap<>();
+  /** Requests waiting to be written to the worker process. */
+  private final BlockingQueue<WorkRequest> pendingRequests = new LinkedBlockingQueue<>();
   /** The worker process that this WorkerMultiplexer should be talking to. */
-  private Subprocess process;
-  /**
-   * If one of the worker processes returns unparseable response, discard all the responses from
-   * other worker processes.
-   */
-  private boolean isUnparseable;
+  private volatile Subprocess process;
+  /** The thread writing {@link #pendingRequests} to the worker process. */
+  private Thread sender;
   /** InputStream from worker process. */
   private RecordingInputStream recordingStream;
-  /** If worker process returns null, return null to WorkerProxy and discard all the responses. */
-  private boolean isNull;
+  /**
+   * Set once no more responses will be read from the worker process, either because it closed its
+   * output or because it returned an unparseable response. Requests sent after that fail at once.
+   */
+  private volatile boolean isFinished;
+  /** Why no more responses will be read, or null if the worker process closed its output. */
+  @Nullable private volatile IOException failure;
   /** A flag to stop multiplexer thread. */
-  private boolean isInterrupted;
+  private volatile boolean isInterrupted;
 
   WorkerMultiplexer() {
-    semWorkerProcessResponse = new Semaphore(1);
-    semResponseChecker = new Semaphore(1);
-    responseChecker = new HashMap<>();
-    workerProcessResponse = new HashMap<>();
-    isUnparseable = false;
-    isNull = false;
-    isInterrupted = false;
+    setDaemon(true);
   }
 
   /** Only start one worker process for each WorkerMultiplexer, if it hasn't. */
-  public synchronized void createProcess(WorkerKey workerKey, Path workDir, Path logFile)
-      throws IOException {
-    if (this.process == null) {
+  public void createProcess(WorkerKey workerKey, Path workDir, Path logFile) throws IOException {
+    // This is called before every request, so avoid locking once the process is running.
+    if (process != null) {
+      return;
+    }
+    synchronized (this) {
+      if (process != null) {
+        return;
+      }
       List<String> args = workerKey.getArgs();
       File executable = new File(args.get(0));
       if (!executable.isAbsolute() && executable.getParent() != null) {
@@ -88,18 +94,29 @@ public class WorkerMultiplexer extends Thread {
       processBuilder.setWorkingDirectory(workDir.getPathFile());
       processBuilder.setStderr(logFile.getPathFile());
       processBuilder.setEnv(workerKey.getEnv());
-      this.process = processBuilder.start();
-    }
-    if (!this.isAlive()) {
-      this.start();
+      startWithProcess(processBuilder.start());
     }
   }
 
+  /** Starts talking to {@code process}, which must be the only process of this multiplexer. */
+  @VisibleForTesting
+  synchronized void startWithProcess(Subprocess process) {
+    this.process = process;
+    sender = new Thread(this::sendRequests, getName() + "-sender");
+    sender.setDaemon(true);
+    sender.start();
+    start();
+  }
+
   public synchronized void destroyMultiplexer() {
+    isInterrupted = true;
+    if (sender != null) {
+      sender.interrupt();
+    }
     if (this.process != null) {
       destroyProcess(this.process);
     }
-    isInterrupted = true;
+    finish(new IOException("The worker multiplexer was destroyed."));
   }
 
   private void destroyProcess(Subprocess process) {
@@ -126,113 +143,138 @@ public class WorkerMultiplexer extends Thread {
     return !this.process.finished();
   }
 
-  /** Send the WorkRequest to worker process. */
-  public synchronized void putRequest(WorkRequest request) throws IOException {
-    request.writeDelimitedTo(process.getOutputStream());
-    process.getOutputStream().flush();
+  /** Returns the number of requests that were sent but whose response was not retrieved yet. */
+  public int getPendingRequestCount() {
+    return pendingResponses.size();
   }
 
-  /** Wait on a semaphore for the WorkResponse returned from worker process. */
-  public InputStream getResponse(Integer workerId) throws IOException, InterruptedException {
-    semResponseChecker.acquire();
-    Semaphore waitForResponse = responseChecker.get(workerId);
-    semResponseChecker.release();
-
-    if (waitForResponse == null) {
-      /**
-       * If multiplexer is interrupted when WorkerProxy is trying to send request, request is not
-       * sent so no need to wait for response.
-       */
-      return null;
+  /**
+   * Queues the WorkRequest to be sent to the worker process. Its response must be retrieved with
+   * {@link #getResponse}.
+   */
+  public void putRequest(WorkRequest request) {
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    pendingResponses.put(request.getRequestId(), response);
+    if (isFinished) {
+      // The response reader has stopped and may not have seen this request; complete it here.
+      completeFinished(response);
+      return;
     }
+    pendingRequests.add(request);
+  }
 
-    // The semaphore will throw InterruptedException when the multiplexer is terminated.
-    waitForResponse.acquire();
-
-    if (isNull) {
+  /**
+   * Waits for the WorkResponse returned from worker process for the request with id {@code
+   * requestId}. Returns null if the worker process closed its output before answering it.
+   */
+  @Nullable
+  public WorkResponse getResponse(Integer requestId) throws IOException, InterruptedException {
+    SettableFuture<WorkResponse> response = pendingResponses.get(requestId);
+    if (response == null) {
+      // The request was never sent, so there's no response to wait for.
       return null;
     }
-
-    if (isUnparseable) {
-      recordingStream.readRemaining();
-      throw new IOException(recordingStream.getRecordedDataAsString());
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pendingResponses.remove(requestId, response);
     }
-
-    semWorkerProcessResponse.acquire();
-    InputStream response = workerProcessResponse.get(workerId);
-    semWorkerProcessResponse.release();
-    return response;
   }
 
-  /** Reset the semaphore map before sending request to worker process. */
-  public void resetResponseChecker(Integer workerId) throws InterruptedException {
-    semResponseChecker.acquire();
-    responseChecker.put(workerId, new Semaphore(0));
-    semResponseChecker.release();
+  /**
+   * Writes the queued requests to the worker process until the multiplexer is destroyed or writing
+   * fails. Requests queued after that would never be sent, so all pending requests are failed when
+   * it returns.
+   */
+  private void sendRequests() {
+    OutputStream out = process.getOutputStream();
+    List<WorkRequest> batch = new ArrayList<>();
+    IOException failure = new IOException("The worker multiplexer was destroyed.");
+    try {
+      while (!isInterrupted) {
+        batch.add(pendingRequests.take());
+        pendingRequests.drainTo(batch);
+        for (WorkRequest request : batch) {
+          request.writeDelimitedTo(out);
+        }
+        out.flush();
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // The multiplexer was destroyed.
+    } catch (IOException e) {
+      logger.warning("IOException was caught while sending worker request: " + e.getMessage());
+      failure = e;
+    } finally {
+      finish(failure);
+    }
   }
 
   /**
-   * When it gets a WorkResponse from worker process, put that WorkResponse in workerProcessResponse
-   * and signal responseChecker.
+   * Reads a WorkResponse from worker process and completes the future of its request. Returns false
+   * if no more responses can be read.
    */
-  private void waitResponse() throws InterruptedException, IOException {
-    recordingStream = new RecordingInputStream(process.getInputStream());
-    recordingStream.startRecording(4096);
-    WorkResponse parsedResponse = WorkResponse.parseDelimitedFrom(recordingStream);
+  private boolean readResponse() {
+    WorkResponse parsedResponse;
+    try {
+      recordingStream.startRecording(4096);
+      parsedResponse = WorkResponse.parseDelimitedFrom(recordingStream);
+    } catch (IOException e) {
+      logger.warning(
+          "IOException was caught while waiting for worker response. "
+              + "It could because the worker returned unparseable response.");
+      recordingStream.readRemaining();
+      finish(new IOException(recordingStream.getRecordedDataAsString(), e));
+      return false;
+    }
 
     if (parsedResponse == null) {
-      isNull = true;
-      releaseAllSemaphores();
-      return;
+      finish(null);
+      return false;
     }
 
-    Integer workerId = parsedResponse.getRequestId();
-    ByteArrayOutputStream tempOs = new ByteArrayOutputStream();
-    parsedResponse.writeDelimitedTo(tempOs);
+    SettableFuture<WorkResponse> response = pendingResponses.get(parsedResponse.getRequestId());
+    if (response == null) {
+      logger.warning(
+          "Worker returned a response for unknown request " + parsedResponse.getRequestId());
+    } else {
+      response.set(parsedResponse);
+    }
+    return true;
+  }
 
-    semWorkerProcessResponse.acquire();
-    workerProcessResponse.put(workerId, new ByteArrayInputStream(tempOs.toByteArray()));
-    semWorkerProcessResponse.release();
+  /**
+   * Stops accepting requests and completes all pending ones with {@code failure}, or null. Only the
+   * first call has an effect.
+   */
+  private synchronized void finish(@Nullable IOException failure) {
+    if (isFinished) {
+      return;
+    }
+    this.failure = failure;
+    isFinished = true;
+    for (SettableFuture<WorkResponse> response : pendingResponses.values()) {
+      completeFinished(response);
+    }
+  }
 
-    semResponseChecker.acquire();
-    responseChecker.get(workerId).release();
-    semResponseChecker.release();
+  private void completeFinished(SettableFuture<WorkResponse> response) {
+    IOException failure = this.failure;
+    if (failure != null) {
+      response.setException(failure);
+    } else {
+      response.set(null);
+    }
   }
 
   /** A multiplexer thread that listens to the WorkResponse from worker process. */
   @Override
   public void run() {
-    while (!isInterrupted) {
-      try {
-        waitResponse();
-      } catch (IOException e) {
-        isUnparseable = true;
-        releaseAllSemaphores();
-        logger.warning(
-            "IOException was caught while waiting for worker response. "
-                + "It could because the worker returned unparseable response.");
-      } catch (InterruptedException e) {
-        logger.warning(
-            "InterruptedException was caught while waiting for worker response. "
-                + "It could because the multiplexer was interrupted.");
-      }
-    }
-    logger.warning(
-        "Multiplexer thread has been terminated. It could because the memory is running low on"
-            + " your machine. There may be other reasons.");
-  }
-
-  /** Release all the semaphores */
-  private void releaseAllSemaphores() {
-    try {
-      semResponseChecker.acquire();
-      for (Integer workerId : responseChecker.keySet()) {
-        responseChecker.get(workerId).release();
-      }
-    } catch (InterruptedException e) {
-      // Do nothing
-    } finally {
-      semResponseChecker.release();
-    }
+    recordingStream = new RecordingInputStream(process.getInputStream());
+    while (!isInterrupted && readResponse()) {}
   }
 }
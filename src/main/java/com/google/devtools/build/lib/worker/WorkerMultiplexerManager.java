@@ -15,18 +15,22 @@
 package com.google.devtools.build.lib.worker;
 
 import com.google.devtools.build.lib.actions.UserExecException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import javax.annotation.Nullable;
 
 /** A manager to instantiate and distroy multiplexers. */
 public class WorkerMultiplexerManager {
   /**
-   * There should only be one WorkerMultiplexer corresponding to workers with the same mnemonic. If
-   * the WorkerMultiplexer has been constructed, other workers should point to the same one. The
-   * hash of WorkerKey is used as key.
+   * WorkerProxies of workers with the same mnemonic talk to the same WorkerMultiplexers. The
+   * WorkerMultiplexers are created on demand: a new one, with its own worker process, is only
+   * started when the existing ones already have as many requests in flight as they may. The hash
+   * of WorkerKey is used as key.
    */
-  private static Map<Integer, InstanceInfo> multiplexerInstance;
+  private static Map<Integer, List<InstanceInfo>> multiplexerInstance;
 
   /** A semaphore to protect multiplexerInstance and multiplexerRefCount objects. */
   private static Semaphore semMultiplexer;
@@ -44,32 +48,122 @@ public class WorkerMultiplexerManager {
    * WorkerMultiplexer.
    */
   public static WorkerMultiplexer getInstance(Integer workerHash) throws InterruptedException {
+    return getInstance(workerHash, 0);
+  }
+
+  /**
+   * Returns a WorkerMultiplexer instance to WorkerProxy. The WorkerMultiplexer with the fewest
+   * requests in flight is chosen, or of those the one with the fewest WorkerProxies. If it already
+   * has {@code maxRequestsPerProcess} requests in flight, a new WorkerMultiplexer is created
+   * instead; if that is 0, there is only ever one. Also, record how many WorkerProxies are talking
+   * to this WorkerMultiplexer.
+   *
+   * <p>WorkerProxies are only created when all existing ones are busy, so the queue depth of the
+   * existing WorkerMultiplexers at that point tells whether their processes keep up. Once created,
+   * WorkerProxies move to another WorkerMultiplexer with {@link #rebind} when theirs falls behind.
+   */
+  public static WorkerMultiplexer getInstance(Integer workerHash, int maxRequestsPerProcess)
+      throws InterruptedException {
+    semMultiplexer.acquire();
+    try {
+      List<InstanceInfo> instances =
+          multiplexerInstance.computeIfAbsent(workerHash, k -> new ArrayList<>());
+      InstanceInfo instance = acquireLeastLoaded(instances, null, maxRequestsPerProcess);
+      return instance.getWorkerMultiplexer();
+    } finally {
+      semMultiplexer.release();
+    }
+  }
+
+  /**
+   * Returns the WorkerMultiplexer that a WorkerProxy talking to {@code workerMultiplexer} should
+   * send its next request to, and moves its reference there. It stays with {@code
+   * workerMultiplexer} unless that already has {@code maxRequestsPerProcess} requests in flight. It
+   * then moves to the WorkerMultiplexer with the fewest requests in flight, or to a new one if they
+   * are all as busy. The WorkerProxy must not have a request in flight itself.
+   *
+   * <p>This lets the number of worker processes follow the number of requests in flight while the
+   * WorkerProxies are reused, not only when they are created.
+   */
+  public static WorkerMultiplexer rebind(
+      Integer workerHash, WorkerMultiplexer workerMultiplexer, int maxRequestsPerProcess)
+      throws InterruptedException {
+    if (maxRequestsPerProcess <= 0
+        || workerMultiplexer.getPendingRequestCount() < maxRequestsPerProcess) {
+      return workerMultiplexer;
+    }
     semMultiplexer.acquire();
-    if (!multiplexerInstance.containsKey(workerHash)) {
-      multiplexerInstance.put(workerHash, new InstanceInfo());
-    }
-    multiplexerInstance.get(workerHash).increaseRefCount();
-    WorkerMultiplexer workerMultiplexer =
-        multiplexerInstance.get(workerHash).getWorkerMultiplexer();
-    semMultiplexer.release();
-    return workerMultiplexer;
+    try {
+      List<InstanceInfo> instances = multiplexerInstance.get(workerHash);
+      InstanceInfo current =
+          instances == null ? null : findInstanceInfo(instances, workerMultiplexer);
+      if (current == null) {
+        // The WorkerMultiplexer was destroyed already; the WorkerProxy fails with it.
+        return workerMultiplexer;
+      }
+      InstanceInfo instance = acquireLeastLoaded(instances, current, maxRequestsPerProcess);
+      current.decreaseRefCount();
+      if (current.getRefCount() == 0) {
+        releaseInstance(workerHash, instances, current);
+      }
+      return instance.getWorkerMultiplexer();
+    } finally {
+      semMultiplexer.release();
+    }
   }
 
-  /** Remove the WorkerMultiplexer instance and reference count since it is no longer in use. */
-  public static void removeInstance(Integer workerHash)
+  /**
+   * Increases and returns the reference count of the instance with the fewest requests in flight,
+   * or of those the one with the fewest WorkerProxies, other than {@code excluded}. A new instance
+   * is added if there is none or if that one already has {@code maxRequestsPerProcess} requests in
+   * flight. Must be called with {@link #semMultiplexer} held.
+   */
+  private static InstanceInfo acquireLeastLoaded(
+      List<InstanceInfo> instances, @Nullable InstanceInfo excluded, int maxRequestsPerProcess) {
+    InstanceInfo leastLoaded = null;
+    int leastPending = 0;
+    for (InstanceInfo instance : instances) {
+      if (instance == excluded) {
+        continue;
+      }
+      int pending = instance.getWorkerMultiplexer().getPendingRequestCount();
+      if (leastLoaded == null
+          || pending < leastPending
+          || (pending == leastPending && instance.getRefCount() < leastLoaded.getRefCount())) {
+        leastLoaded = instance;
+        leastPending = pending;
+      }
+    }
+    if (leastLoaded == null
+        || (maxRequestsPerProcess > 0 && leastPending >= maxRequestsPerProcess)) {
+      leastLoaded = new InstanceInfo();
+      instances.add(leastLoaded);
+    }
+    leastLoaded.increaseRefCount();
+    return leastLoaded;
+  }
+
+  /**
+   * Records that a WorkerProxy no longer talks to {@code workerMultiplexer}, and destroys it if it
+   * was the last one.
+   */
+  public static void removeInstance(Integer workerHash, WorkerMultiplexer workerMultiplexer)
       throws InterruptedException, UserExecException {
     semMultiplexer.acquire();
     try {
-      multiplexerInstance.get(workerHash).decreaseRefCount();
-      if (multiplexerInstance.get(workerHash).getRefCount() == 0) {
-        multiplexerInstance.get(workerHash).getWorkerMultiplexer().interrupt();
-        multiplexerInstance.get(workerHash).getWorkerMultiplexer().destroyMultiplexer();
-        multiplexerInstance.remove(workerHash);
+      List<InstanceInfo> instances = multiplexerInstance.get(workerHash);
+      if (instances == null) {
+        throw new IllegalStateException("No multiplexer for worker hash " + workerHash);
+      }
+      InstanceInfo instance = getInstanceInfo(instances, workerMultiplexer);
+      instance.decreaseRefCount();
+      if (instance.getRefCount() == 0) {
+        releaseInstance(workerHash, instances, instance);
       }
-    } catch (Exception e) {
+    } catch (IllegalStateException e) {
       throw new UserExecException(
           ErrorMessage.builder()
-              .message("NullPointerException while accessing non-existent multiplexer instance.")
+              .message("Error while accessing non-existent multiplexer instance.")
               .exception(e)
               .build()
               .toString());
@@ -78,9 +172,42 @@ public class WorkerMultiplexerManager {
     }
   }
 
+  /** Destroys the WorkerMultiplexer of {@code instance}, which no WorkerProxy talks to anymore. */
+  private static void releaseInstance(
+      Integer workerHash, List<InstanceInfo> instances, InstanceInfo instance) {
+    WorkerMultiplexer workerMultiplexer = instance.getWorkerMultiplexer();
+    workerMultiplexer.interrupt();
+    workerMultiplexer.destroyMultiplexer();
+    instances.remove(instance);
+    if (instances.isEmpty()) {
+      multiplexerInstance.remove(workerHash);
+    }
+  }
+
+  private static InstanceInfo getInstanceInfo(
+      List<InstanceInfo> instances, WorkerMultiplexer workerMultiplexer) {
+    InstanceInfo instance = findInstanceInfo(instances, workerMultiplexer);
+    if (instance == null) {
+      throw new IllegalStateException("Multiplexer is not managed: " + workerMultiplexer);
+    }
+    return instance;
+  }
+
+  @Nullable
+  private static InstanceInfo findInstanceInfo(
+      List<InstanceInfo> instances, WorkerMultiplexer workerMultiplexer) {
+    for (InstanceInfo instance : instances) {
+      if (instance.getWorkerMultiplexer() == workerMultiplexer) {
+        return instance;
+      }
+    }
+    return null;
+  }
+
+  /** Returns the least recently created WorkerMultiplexer for {@code workerHash}. */
   public static WorkerMultiplexer getMultiplexer(Integer workerHash) throws UserExecException {
     try {
-      return multiplexerInstance.get(workerHash).getWorkerMultiplexer();
+      return multiplexerInstance.get(workerHash).get(0).getWorkerMultiplexer();
     } catch (NullPointerException e) {
       throw new UserExecException(
           ErrorMessage.builder()
@@ -91,9 +218,14 @@ public class WorkerMultiplexerManager {
     }
   }
 
+  /** Returns how many WorkerProxies talk to the WorkerMultiplexers for {@code workerHash}. */
   public static Integer getRefCount(Integer workerHash) throws UserExecException {
     try {
-      return multiplexerInstance.get(workerHash).getRefCount();
+      int refCount = 0;
+      for (InstanceInfo instance : multiplexerInstance.get(workerHash)) {
+        refCount += instance.getRefCount();
+      }
+      return refCount;
     } catch (NullPointerException e) {
       throw new UserExecException(
           ErrorMessage.builder()
@@ -104,6 +236,12 @@ public class WorkerMultiplexerManager {
     }
   }
 
+  /** Returns how many WorkerMultiplexers, hence worker processes, exist for {@code workerHash}. */
+  public static int getProcessCount(Integer workerHash) {
+    List<InstanceInfo> instances = multiplexerInstance.get(workerHash);
+    return instances == null ? 0 : instances.size();
+  }
+
   public static Integer getInstanceCount() {
     return multiplexerInstance.keySet().size();
   }
@@ -149,4 +149,16 @@ public class WorkerOptions extends OptionsBase {
   )
   public boolean workerSandboxing;
 
+  @Option(
+      name = "experimental_worker_multiplex_requests_per_process",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "How many concurrent requests a multiplex worker process is sent at most. Once all "
+              + "processes of a worker have that many requests in flight, another process is "
+              + "started, up to --worker_max_instances requests in total. 0 means that all "
+              + "requests are sent to a single process.")
+  public int workerMultiplexRequestsPerProcess;
+
 }
@@ -22,7 +22,6 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -30,6 +29,7 @@ import java.util.logging.Logger;
 final class WorkerProxy extends Worker {
   private static final Logger logger = Logger.getLogger(WorkerProxy.class.getName());
   private WorkerMultiplexer workerMultiplexer;
+  private final int maxRequestsPerProcess;
   private String recordingStreamMessage;
 
   WorkerProxy(
@@ -37,9 +37,11 @@ final class WorkerProxy extends Worker {
       int workerId,
       Path workDir,
       Path logFile,
-      WorkerMultiplexer workerMultiplexer) {
+      WorkerMultiplexer workerMultiplexer,
+      int maxRequestsPerProcess) {
     super(workerKey, workerId, workDir, logFile);
     this.workerMultiplexer = workerMultiplexer;
+    this.maxRequestsPerProcess = maxRequestsPerProcess;
   }
 
   @Override
@@ -56,6 +58,15 @@ final class WorkerProxy extends Worker {
   public void prepareExecution(
       SandboxInputs inputFiles, SandboxOutputs outputs, Set<PathFragment> workerFiles)
       throws IOException {
+    try {
+      // Move to a less busy process, or start one, if this one has fallen behind.
+      workerMultiplexer =
+          WorkerMultiplexerManager.rebind(
+              workerKey.hashCode(), workerMultiplexer, maxRequestsPerProcess);
+    } catch (InterruptedException e) {
+      // Keep the current process; the interruption is noticed while waiting for the response.
+      Thread.currentThread().interrupt();
+    }
     createProcess();
   }
 
@@ -63,7 +74,7 @@ final class WorkerProxy extends Worker {
   synchronized void destroy() throws IOException {
     super.destroy();
     try {
-      WorkerMultiplexerManager.removeInstance(workerKey.hashCode());
+      WorkerMultiplexerManager.removeInstance(workerKey.hashCode(), workerMultiplexer);
     } catch (InterruptedException e) {
       logger.warning(
           "InterruptedException was caught while destroying multiplexer. "
@@ -76,30 +87,16 @@ final class WorkerProxy extends Worker {
   /** Send the WorkRequest to multiplexer. */
   @Override
   void putRequest(WorkRequest request) throws IOException {
-    try {
-      workerMultiplexer.resetResponseChecker(workerId);
-      workerMultiplexer.putRequest(request);
-    } catch (InterruptedException e) {
-      /**
-       * We can't throw InterruptedException to WorkerSpawnRunner because of the principle of
-       * override. InterruptedException will happen when Bazel is waiting for semaphore but user
-       * terminates the process, so we do nothing here.
-       */
-      logger.warning(
-          "InterruptedException was caught while sending worker request. "
-              + "It could because the multiplexer was interrupted.");
-    }
+    workerMultiplexer.putRequest(request);
   }
 
   /** Wait for WorkResponse from multiplexer. */
   @Override
   WorkResponse getResponse() throws IOException {
     try {
-      InputStream inputStream = workerMultiplexer.getResponse(workerId);
-      if (inputStream == null) {
-        return null;
-      }
-      return WorkResponse.parseDelimitedFrom(inputStream);
+      // response can be null when the worker has already closed stdout at this point and thus
+      // the InputStream is at EOF.
+      return workerMultiplexer.getResponse(workerId);
     } catch (IOException e) {
       recordingStreamMessage = e.toString();
       throw new IOException(
@@ -115,8 +112,6 @@ final class WorkerProxy extends Worker {
           "InterruptedException was caught while waiting for work response. "
               + "It could because the multiplexer was interrupted.");
     }
-    // response can be null when the worker has already closed stdout at this point and thus
-    // the InputStream is at EOF.
     return null;
   }
 
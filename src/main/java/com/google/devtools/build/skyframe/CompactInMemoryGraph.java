@@ -0,0 +1,74 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InMemoryGraph} whose done nodes store their direct deps as primitive arrays of interned
+ * key ids, see {@link CompactInMemoryNodeEntry}. Trades some CPU when deps are read for a smaller
+ * heap footprint of large, long-lived graphs.
+ *
+ * <p>Every node is assigned an id when it is created, and the id is released when the node is
+ * removed. A done node may still refer to a removed dep while the nodes of a deleted subgraph are
+ * visited in arbitrary order, but once the deletion is complete, no done node refers to it: a
+ * deleted node's reverse deps are deleted as well, and a node that depends on a dirty node is
+ * dirty itself. Since nodes are only created after deletions are complete, {@link SkyKeyIdTable}
+ * keeps released ids resolvable until the next node is created.
+ */
+public class CompactInMemoryGraph extends InMemoryGraphImpl {
+
+  private final SkyKeyIdTable ids = new SkyKeyIdTable();
+
+  public CompactInMemoryGraph() {
+    super(/*keepEdges=*/ true);
+  }
+
+  @Override
+  protected NodeEntry newNodeEntry(SkyKey key) {
+    return new CompactInMemoryNodeEntry(this, ids.assign(key));
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof CompactInMemoryNodeEntry) {
+      ids.release(((CompactInMemoryNodeEntry) entry).getId());
+    }
+  }
+
+  /** Returns the id of the node for {@code key}, or -1 if there is no such node. */
+  int getIdOfExistingNode(SkyKey key) {
+    NodeEntry entry = nodeMap.get(key);
+    return entry instanceof CompactInMemoryNodeEntry
+        ? ((CompactInMemoryNodeEntry) entry).getId()
+        : -1;
+  }
+
+  @Nullable
+  SkyKey getKeyForId(int id) {
+    return ids.get(id);
+  }
+
+  @VisibleForTesting
+  int numAssignedIds() {
+    return ids.size();
+  }
+
+  @VisibleForTesting
+  int idCapacity() {
+    return ids.capacity();
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.List;
+
+/**
+ * {@link InMemoryNodeEntry} of a {@link CompactInMemoryGraph} which stores the direct deps of a
+ * done node as a single {@code int[]} of dep ids instead of a compressed {@link GroupedList}.
+ *
+ * <p>A compressed {@link GroupedList} with more than one element is an {@code Object[]} holding one
+ * reference per single-element group and one list object per larger group, each with its own
+ * header and backing array. The encoding used here flattens all of that into one primitive array:
+ * a single-element group is stored as the id of its element, and a group of {@code n > 1}
+ * elements is stored as {@code -n} followed by the ids of its elements. Without compressed oops,
+ * the ids are also half the size of references.
+ *
+ * <p>Deps are decoded back into a compressed {@link GroupedList} every time they are requested,
+ * which happens when the node is dirtied, checked for changes or deleted, but not on the hot path
+ * of a clean incremental build.
+ */
+public class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+
+  private final CompactInMemoryGraph graph;
+  private final int id;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  /** The id of this node's key in {@link #graph}. */
+  int getId() {
+    return id;
+  }
+
+  @Override
+  protected Object encodeDirectDepsForDoneEntry(@GroupedList.Compressed Object compressedDeps) {
+    if (!compressedDeps.getClass().isArray()) {
+      // The empty list and single deps have no cheaper representation.
+      return compressedDeps;
+    }
+    Object[] groups = (Object[]) compressedDeps;
+    int length = 0;
+    for (Object group : groups) {
+      if (group instanceof List) {
+        int size = ((List<?>) group).size();
+        if (size == 0) {
+          return compressedDeps;
+        }
+        length += size == 1 ? 1 : size + 1;
+      } else {
+        length++;
+      }
+    }
+    int[] encoded = new int[length];
+    int pos = 0;
+    for (Object group : groups) {
+      if (group instanceof List && ((List<?>) group).size() > 1) {
+        List<?> elements = (List<?>) group;
+        encoded[pos++] = -elements.size();
+        for (Object element : elements) {
+          int depId = graph.getIdOfExistingNode((SkyKey) element);
+          if (depId < 0) {
+            return compressedDeps;
+          }
+          encoded[pos++] = depId;
+        }
+      } else {
+        Object element = group instanceof List ? ((List<?>) group).get(0) : group;
+        int depId = graph.getIdOfExistingNode((SkyKey) element);
+        if (depId < 0) {
+          return compressedDeps;
+        }
+        encoded[pos++] = depId;
+      }
+    }
+    return encoded;
+  }
+
+  @Override
+  protected @GroupedList.Compressed Object decodeDirectDepsForDoneEntry(Object encodedDeps) {
+    if (!(encodedDeps instanceof int[])) {
+      return super.decodeDirectDepsForDoneEntry(encodedDeps);
+    }
+    int[] encoded = (int[]) encodedDeps;
+    int numGroups = 0;
+    for (int pos = 0; pos < encoded.length; pos++) {
+      if (encoded[pos] < 0) {
+        pos -= encoded[pos];
+      }
+      numGroups++;
+    }
+    Object[] groups = new Object[numGroups];
+    int pos = 0;
+    for (int i = 0; i < numGroups; i++) {
+      int value = encoded[pos++];
+      if (value >= 0) {
+        groups[i] = keyForId(value);
+      } else {
+        SkyKey[] group = new SkyKey[-value];
+        for (int j = 0; j < group.length; j++) {
+          group[j] = keyForId(encoded[pos++]);
+        }
+        groups[i] = ImmutableList.copyOf(group);
+      }
+    }
+    return GroupedList.castAsCompressed(groups);
+  }
+
+  private SkyKey keyForId(int depId) {
+    return Preconditions.checkNotNull(
+        graph.getKeyForId(depId), "Unknown dep id %s of node %s", depId, id);
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    return cloneNodeEntry(new CompactInMemoryNodeEntry(graph, id));
+  }
+}
@@ -104,12 +104,37 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       EventFilter eventFilter,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        eventFilter,
+        emittedEventState,
+        keepEdges,
+        /*compactGraph=*/ false);
+  }
+
+  /**
+   * Creates an evaluator which, if {@code compactGraph} is true and edges are kept, stores its
+   * nodes in a {@link CompactInMemoryGraph}.
+   */
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      GraphInconsistencyReceiver graphInconsistencyReceiver,
+      EventFilter eventFilter,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean compactGraph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
     this.graphInconsistencyReceiver = Preconditions.checkNotNull(graphInconsistencyReceiver);
     this.eventFilter = eventFilter;
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph =
+        keepEdges && compactGraph ? new CompactInMemoryGraph() : new InMemoryGraphImpl(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
   }
@@ -416,4 +441,23 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       };
 
   public static final EvaluatorSupplier SUPPLIER = InMemoryMemoizingEvaluator::new;
+
+  /** Supplies evaluators backed by a {@link CompactInMemoryGraph}. */
+  public static final EvaluatorSupplier COMPACT_GRAPH_SUPPLIER =
+      (skyFunctions,
+          differencer,
+          progressReceiver,
+          graphInconsistencyReceiver,
+          eventFilter,
+          emittedEventState,
+          keepEdges) ->
+          new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              progressReceiver,
+              graphInconsistencyReceiver,
+              eventFilter,
+              emittedEventState,
+              keepEdges,
+              /*compactGraph=*/ true);
 }
@@ -220,7 +220,23 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepDeps();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
     Preconditions.checkNotNull(directDeps, "deps can't be null: %s", this);
-    return GroupedList.castAsCompressed(directDeps);
+    return decodeDirectDepsForDoneEntry(directDeps);
+  }
+
+  /**
+   * Converts the compressed direct deps of an entry that just finished evaluating into the
+   * representation stored in {@link #directDeps} while it is done. The default implementation
+   * stores the compressed {@link GroupedList} unchanged.
+   *
+   * <p>Subclasses that override this must also override {@link #decodeDirectDepsForDoneEntry}.
+   */
+  protected Object encodeDirectDepsForDoneEntry(@GroupedList.Compressed Object compressedDeps) {
+    return compressedDeps;
+  }
+
+  /** Inverse of {@link #encodeDirectDepsForDoneEntry}. */
+  protected @GroupedList.Compressed Object decodeDirectDepsForDoneEntry(Object encodedDeps) {
+    return GroupedList.castAsCompressed(encodedDeps);
   }
 
   public int getNumDirectDeps() {
@@ -251,7 +267,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   protected final synchronized Set<SkyKey> setStateFinishedAndReturnReverseDepsToSignal() {
     Set<SkyKey> reverseDepsToSignal =
         ReverseDepsUtility.consolidateDataAndReturnNewElements(this, getOpToStoreBare());
-    this.directDeps = getTemporaryDirectDeps().compress();
+    this.directDeps = encodeDirectDepsForDoneEntry(getTemporaryDirectDeps().compress());
 
     markDone();
     postProcessAfterDone();
@@ -0,0 +1,146 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Assigns dense int ids to {@link SkyKey}s and maps them back.
+ *
+ * <p>Keys are stored in fixed-size chunks so that growing the table never copies existing entries
+ * and lookups never take a lock.
+ *
+ * <p>Released ids are reused, but only from the next call to {@link #assign} on: until then, their
+ * keys can still be looked up. This lets a graph release the ids of the nodes it removes while the
+ * done nodes that depend on them are still being visited and removed as well.
+ */
+final class SkyKeyIdTable {
+
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /** Chunks of the table. Replaced by a larger copy when full, under {@link #lock}. */
+  private volatile AtomicReferenceArray<SkyKey>[] chunks = newChunkArray(16);
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private int nextId = 0;
+
+  /** Ids released since the last call to {@link #assign}, whose keys can still be looked up. */
+  @GuardedBy("lock")
+  private int[] released = new int[16];
+
+  @GuardedBy("lock")
+  private int numReleased = 0;
+
+  /** Ids that can be assigned again. Their slots have been cleared. */
+  @GuardedBy("lock")
+  private int[] free = new int[16];
+
+  @GuardedBy("lock")
+  private int numFree = 0;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static AtomicReferenceArray<SkyKey>[] newChunkArray(int size) {
+    return new AtomicReferenceArray[size];
+  }
+
+  /** Returns an id for {@code key}, which is either fresh or has been released before. */
+  int assign(SkyKey key) {
+    int id;
+    synchronized (lock) {
+      recycleReleasedIds();
+      if (numFree > 0) {
+        id = free[--numFree];
+      } else {
+        Preconditions.checkState(nextId < Integer.MAX_VALUE, "Out of SkyKey ids");
+        id = nextId++;
+        ensureChunk(id >>> CHUNK_BITS);
+      }
+    }
+    chunks[id >>> CHUNK_BITS].set(id & CHUNK_MASK, key);
+    return id;
+  }
+
+  /**
+   * Releases {@code id}. Its key can still be looked up until the next call to {@link #assign},
+   * which may then reuse the id for another key.
+   */
+  void release(int id) {
+    synchronized (lock) {
+      if (numReleased == released.length) {
+        released = Arrays.copyOf(released, released.length * 2);
+      }
+      released[numReleased++] = id;
+    }
+  }
+
+  /** Clears the slots of the released ids and makes them available for reuse. */
+  @GuardedBy("lock")
+  private void recycleReleasedIds() {
+    if (numReleased == 0) {
+      return;
+    }
+    if (numFree + numReleased > free.length) {
+      free = Arrays.copyOf(free, Math.max(free.length * 2, numFree + numReleased));
+    }
+    AtomicReferenceArray<SkyKey>[] current = chunks;
+    for (int i = 0; i < numReleased; i++) {
+      int id = released[i];
+      current[id >>> CHUNK_BITS].set(id & CHUNK_MASK, null);
+      free[numFree++] = id;
+    }
+    numReleased = 0;
+    released = new int[16];
+  }
+
+  @GuardedBy("lock")
+  private void ensureChunk(int chunkIndex) {
+    AtomicReferenceArray<SkyKey>[] current = chunks;
+    if (chunkIndex >= current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+    if (current[chunkIndex] == null) {
+      current[chunkIndex] = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+    // Publish the chunk, and the possibly new array, with a volatile write.
+    chunks = current;
+  }
+
+  /** Returns the key for {@code id}, or {@code null} if the id has not been assigned yet. */
+  @Nullable
+  SkyKey get(int id) {
+    return chunks[id >>> CHUNK_BITS].get(id & CHUNK_MASK);
+  }
+
+  /** Returns the number of ids that are assigned and not released. */
+  int size() {
+    synchronized (lock) {
+      return nextId - numFree - numReleased;
+    }
+  }
+
+  /** Returns the number of slots of the table, which is the largest number of ids ever in use. */
+  int capacity() {
+    synchronized (lock) {
+      return nextId;
+    }
+  }
+}
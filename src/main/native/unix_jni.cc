@@ -19,6 +19,7 @@
 #include <fcntl.h>
 #include <jni.h>
 #include <limits.h>
+#include <poll.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/resource.h>
@@ -396,6 +397,68 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    batchStat
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;Z)
+ *            [Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_batchStat(
+    JNIEnv *env, jclass clazz, jstring dir, jobjectArray names,
+    jboolean follow_symlinks) {
+  static jclass errno_file_status_class = NULL;
+  if (errno_file_status_class == NULL) {  // note: harmless race condition
+    jclass local =
+        env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+    CHECK(local != NULL);
+    errno_file_status_class = static_cast<jclass>(env->NewGlobalRef(local));
+  }
+
+  jsize len = env->GetArrayLength(names);
+  jobjectArray result =
+      env->NewObjectArray(len, errno_file_status_class, NULL);
+  if (result == NULL) {
+    return NULL;  // async exception!
+  }
+
+  // Resolve the directory once, then stat every entry relative to it.
+  const char *dir_chars = GetStringLatin1Chars(env, dir);
+  int dir_fd;
+  while ((dir_fd = ::open(dir_chars, O_RDONLY | PORTABLE_O_DIRECTORY)) == -1 &&
+         errno == EINTR) { }
+  int dir_errno = dir_fd == -1 ? errno : 0;
+  ReleaseStringLatin1Chars(dir_chars);
+
+  int flags = follow_symlinks ? 0 : AT_SYMLINK_NOFOLLOW;
+  portable_stat_struct statbuf;
+  for (jsize i = 0; i < len; ++i) {
+    int saved_errno = dir_errno;
+    if (dir_fd != -1) {
+      jstring name = static_cast<jstring>(env->GetObjectArrayElement(names, i));
+      const char *name_chars = GetStringLatin1Chars(env, name);
+      int r;
+      while ((r = portable_fstatat(dir_fd, const_cast<char *>(name_chars),
+                                   &statbuf, flags)) == -1 &&
+             errno == EINTR) { }
+      saved_errno = r == -1 ? errno : 0;
+      ReleaseStringLatin1Chars(name_chars);
+      env->DeleteLocalRef(name);
+    }
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      break;  // async exception!
+    }
+    env->SetObjectArrayElement(result, i, status);
+    env->DeleteLocalRef(status);
+  }
+
+  if (dir_fd != -1) {
+    ::close(dir_fd);
+  }
+  return env->ExceptionCheck() ? NULL : result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
@@ -1082,6 +1145,134 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_write(
   free(buf);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    inotifyInit
+ * Signature: ()I
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_inotifyInit(
+    JNIEnv *env, jclass clazz) {
+  int fd = portable_inotify_init();
+  if (fd == -1) {
+    PostException(env, errno, "inotify_init1 (" + ErrorMessage(errno) + ")");
+  }
+  return fd;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    inotifyAddWatches
+ * Signature: (I[Ljava/lang/String;I)[I
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_inotifyAddWatches(
+    JNIEnv *env, jclass clazz, jint fd, jobjectArray paths, jint mask) {
+  jsize len = env->GetArrayLength(paths);
+  std::vector<jint> wds(len);
+  for (jsize i = 0; i < len; ++i) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    const char *path_chars = GetStringLatin1Chars(env, path);
+    int wd = portable_inotify_add_watch(fd, path_chars,
+                                        static_cast<uint32_t>(mask));
+    if (wd == -1 && errno != ENOENT && errno != ENOTDIR) {
+      // Most likely ENOSPC: the limit on the number of watches was reached.
+      PostFileException(env, errno, path_chars);
+      ReleaseStringLatin1Chars(path_chars);
+      return NULL;
+    }
+    // The directory was removed or replaced since it was listed.
+    wds[i] = wd;
+    ReleaseStringLatin1Chars(path_chars);
+    env->DeleteLocalRef(path);
+  }
+  jintArray result = env->NewIntArray(len);
+  if (result == NULL) {
+    return NULL;  // async exception!
+  }
+  env->SetIntArrayRegion(result, 0, len, wds.data());
+  return result;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    inotifyRemoveWatch
+ * Signature: (II)V
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_inotifyRemoveWatch(
+    JNIEnv *env, jclass clazz, jint fd, jint wd) {
+  // EINVAL means that the kernel already removed the watch.
+  if (portable_inotify_rm_watch(fd, wd) == -1 && errno != EINVAL) {
+    PostException(env, errno, "inotify_rm_watch (" + ErrorMessage(errno) + ")");
+  }
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    inotifyPoll
+ * Signature: (II)Z
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_inotifyPoll(
+    JNIEnv *env, jclass clazz, jint fd, jint timeout_millis) {
+  struct pollfd pfd;
+  pfd.fd = fd;
+  pfd.events = POLLIN;
+  pfd.revents = 0;
+  int r;
+  while ((r = ::poll(&pfd, 1, timeout_millis)) == -1 && errno == EINTR) { }
+  if (r == -1) {
+    PostException(env, errno, "poll (" + ErrorMessage(errno) + ")");
+    return false;
+  }
+  return r > 0;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    inotifyRead
+ * Signature: (I)[B
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_inotifyRead(
+    JNIEnv *env, jclass clazz, jint fd) {
+  // Large enough for many events; read(2) fails with EINVAL if the buffer
+  // cannot hold the next event, which is at most 16 + NAME_MAX + 1 bytes.
+  char buf[64 * 1024];
+  std::vector<char> events;
+  while (true) {
+    ssize_t r = ::read(fd, buf, sizeof buf);
+    if (r == -1) {
+      if (errno == EINTR) {
+        continue;
+      }
+      if (errno == EAGAIN || errno == EWOULDBLOCK) {
+        break;  // No more events queued.
+      }
+      PostException(env, errno,
+                    "reading inotify events (" + ErrorMessage(errno) + ")");
+      return NULL;
+    }
+    if (r == 0) {
+      break;
+    }
+    events.insert(events.end(), buf, buf + r);
+  }
+  jbyteArray result = env->NewByteArray(events.size());
+  if (result == NULL) {
+    return NULL;  // async exception!
+  }
+  env->SetByteArrayRegion(result, 0, events.size(),
+                          reinterpret_cast<const jbyte *>(events.data()));
+  return result;
+}
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_com_google_devtools_build_lib_unix_NativePosixSystem_sysctlbynameGetLong(
     JNIEnv *env, jclass clazz, jstring name) {
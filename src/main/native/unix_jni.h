@@ -19,6 +19,7 @@
 
 #include <errno.h>
 #include <jni.h>
+#include <stdint.h>
 #include <sys/stat.h>
 
 #include <string>
@@ -105,6 +106,16 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
 // Run sysctlbyname(3), only available on darwin
 int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep);
 
+// Runs inotify_init1(2) with IN_NONBLOCK and IN_CLOEXEC, only available on
+// Linux. Elsewhere, returns -1 and sets errno to ENOSYS.
+int portable_inotify_init();
+
+// Runs inotify_add_watch(2), only available on Linux.
+int portable_inotify_add_watch(int fd, const char *path, uint32_t mask);
+
+// Runs inotify_rm_watch(2), only available on Linux.
+int portable_inotify_rm_watch(int fd, int wd);
+
 // Used to surround an region that we want sleep disabled for.
 // push_disable_sleep to start the area.
 // pop_disable_sleep to end the area.
@@ -118,6 +118,22 @@ int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep) {
 #endif
 }
 
+int portable_inotify_init() {
+  // inotify is Linux-only.
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_add_watch(int fd, const char *path, uint32_t mask) {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  errno = ENOSYS;
+  return -1;
+}
+
 int portable_push_disable_sleep() {
   // Currently not supported.
   // https://wiki.freebsd.org/SuspendResume
@@ -166,6 +166,22 @@ static int g_sleep_state_stack = 0;
 // Our assertion for disabling sleep.
 static IOPMAssertionID g_sleep_state_assertion = kIOPMNullAssertionID;
 
+int portable_inotify_init() {
+  // inotify is Linux-only.
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_add_watch(int fd, const char *path, uint32_t mask) {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  errno = ENOSYS;
+  return -1;
+}
+
 int portable_push_disable_sleep() {
   std::lock_guard<std::mutex> lock(*g_sleep_state_mutex);
   assert(g_sleep_state_stack >= 0);
@@ -17,6 +17,7 @@
 #include <errno.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/inotify.h>
 #include <sys/stat.h>
 #include <sys/xattr.h>
 
@@ -94,6 +95,18 @@ int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep) {
   return -1;
 }
 
+int portable_inotify_init() {
+  return ::inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+}
+
+int portable_inotify_add_watch(int fd, const char *path, uint32_t mask) {
+  return ::inotify_add_watch(fd, path, mask);
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  return ::inotify_rm_watch(fd, wd);
+}
+
 int portable_push_disable_sleep() {
   // Currently not supported.
   return -1;
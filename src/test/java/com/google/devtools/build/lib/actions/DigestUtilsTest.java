@@ -18,12 +18,16 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.base.Strings;
 import com.google.common.cache.CacheStats;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import java.io.IOException;
@@ -210,4 +214,107 @@ public class DigestUtilsTest {
 
     assertThat(digest3).isEqualTo(digest1);
   }
+
+  @Test
+  public void testPersistentCache() throws Exception {
+    AtomicInteger getDigestCounter = new AtomicInteger(0);
+    // Files modified long ago, so that their digests are not considered racy.
+    ManualClock clock = new ManualClock();
+    FileSystem tracingFileSystem =
+        new InMemoryFileSystem(clock) {
+          @Override
+          protected byte[] getFastDigest(Path path) throws IOException {
+            return null;
+          }
+
+          @Override
+          protected byte[] getDigest(Path path) throws IOException {
+            getDigestCounter.incrementAndGet();
+            return super.getDigest(path);
+          }
+
+          @Override
+          public FileStatus stat(Path path, boolean followSymlinks) throws IOException {
+            return withDeviceId(super.stat(path, followSymlinks));
+          }
+        };
+    Path file = tracingFileSystem.getPath("/1.txt");
+    FileSystemUtils.writeContentAsLatin1(file, "some contents");
+    Path cacheFile =
+        new JavaIoFileSystem(DigestHashFunction.SHA256)
+            .getPath(TestUtils.makeTempDir().getPath())
+            .getChild("digests");
+
+    try {
+      DigestUtils.configurePersistentCache(new PersistentDigestCache(cacheFile));
+      byte[] digest1 = DigestUtils.getDigestOrFail(file, file.getFileSize());
+      assertThat(getDigestCounter.get()).isEqualTo(1);
+
+      // A cache opened on the same file, e.g. by a new server, knows the digest.
+      PersistentDigestCache reopened = new PersistentDigestCache(cacheFile);
+      DigestUtils.configurePersistentCache(reopened);
+      byte[] digest2 = DigestUtils.getDigestOrFail(file, file.getFileSize());
+      assertThat(getDigestCounter.get()).isEqualTo(1);
+      assertThat(reopened.getHits()).isEqualTo(1);
+      assertThat(digest2).isEqualTo(digest1);
+
+      // A modified file is digested again.
+      clock.advanceMillis(1);
+      FileSystemUtils.writeContentAsLatin1(file, "other contents");
+      byte[] digest3 = DigestUtils.getDigestOrFail(file, file.getFileSize());
+      assertThat(getDigestCounter.get()).isEqualTo(2);
+      assertThat(digest3).isNotEqualTo(digest1);
+    } finally {
+      DigestUtils.configurePersistentCache(null);
+    }
+  }
+
+  private static FileStatus withDeviceId(FileStatus status) {
+    return new FileStatus() {
+      @Override
+      public boolean isFile() {
+        return status.isFile();
+      }
+
+      @Override
+      public boolean isDirectory() {
+        return status.isDirectory();
+      }
+
+      @Override
+      public boolean isSymbolicLink() {
+        return status.isSymbolicLink();
+      }
+
+      @Override
+      public boolean isSpecialFile() {
+        return status.isSpecialFile();
+      }
+
+      @Override
+      public long getSize() throws IOException {
+        return status.getSize();
+      }
+
+      @Override
+      public long getLastModifiedTime() throws IOException {
+        return status.getLastModifiedTime();
+      }
+
+      @Override
+      public long getLastChangeTime() throws IOException {
+        return status.getLastChangeTime();
+      }
+
+      @Override
+      public long getNodeId() throws IOException {
+        return status.getNodeId();
+      }
+
+      @Override
+      public long getDeviceId() {
+        return 1;
+      }
+    };
+  }
 }
@@ -389,6 +389,97 @@ public class ResourceManagerTest {
     assertThat(rm.inUse()).isFalse();
   }
 
+  @Test
+  public void testWaitingThreadsAreServedByPriority() throws Exception {
+    ActionExecutionMetadata low = new ResourceOwnerStub();
+    ActionExecutionMetadata high = new ResourceOwnerStub();
+    rm.setPrioritizer(owner -> owner == high ? 2 : 1);
+
+    acquire(1000, 1, 0);
+    TestThread lowThread =
+        new TestThread(
+            () -> {
+              rm.acquireResources(low, ResourceSet.create(600, 0, 0)).close();
+              validate(2);
+            });
+    lowThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    TestThread highThread =
+        new TestThread(
+            () -> {
+              try (ResourceHandle handle =
+                  rm.acquireResources(high, ResourceSet.create(600, 0, 0))) {
+                validate(1);
+              }
+            });
+    highThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+
+    // Only one of the waiting threads fits, and the one with the higher priority goes first.
+    release(1000, 1, 0);
+    highThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    lowThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertThat(rm.inUse()).isFalse();
+  }
+
+  @Test
+  public void testLargeRequestIsOvertakenOnlyBoundedNumberOfTimes() throws Exception {
+    acquire(500, 0, 0);
+    TestThread largeThread =
+        new TestThread(
+            () -> {
+              acquire(900, 0, 0);
+              validate(1);
+              release(900, 0, 0);
+            });
+    largeThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+
+    // Small requests fit and may go first, but only up to a limit.
+    TestThread smallThread =
+        new TestThread(
+            () -> {
+              for (int i = 0; i < ResourceManager.MAX_OVERTAKES; i++) {
+                acquire(100, 0, 0);
+                release(100, 0, 0);
+              }
+              // Doesn't fit next to the large request.
+              acquire(200, 0, 0);
+              validate(2);
+              release(200, 0, 0);
+            });
+    smallThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+
+    release(500, 0, 0);
+    largeThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    smallThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertThat(rm.inUse()).isFalse();
+  }
+
+  @Test
+  public void testRecordsWaitTimesByMnemonic() throws Exception {
+    acquire(100, 0, 0);
+    release(100, 0, 0);
+    acquire(100, 0, 0);
+    release(100, 0, 0);
+
+    assertThat(rm.getWaitTimes().keySet()).containsExactly("ResourceOwnerStub");
+    assertThat(rm.getWaitTimes().get("ResourceOwnerStub").getCount()).isEqualTo(2);
+    rm.resetResourceUsage();
+    assertThat(rm.getWaitTimes()).isNotEmpty();
+    rm.resetWaitTimes();
+    assertThat(rm.getWaitTimes()).isEmpty();
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
 
     @Override
@@ -414,7 +505,7 @@ public class ResourceManagerTest {
 
     @Override
     public String getMnemonic() {
-      throw new IllegalStateException();
+      return "ResourceOwnerStub";
     }
 
     @Override
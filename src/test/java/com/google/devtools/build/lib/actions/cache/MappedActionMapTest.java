@@ -0,0 +1,304 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedActionMap}. */
+@RunWith(JUnit4.class)
+public class MappedActionMapTest {
+
+  private Path cacheRoot;
+  private Path indexFile;
+
+  @Before
+  public final void createCacheRoot() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    cacheRoot = fs.getPath(TestUtils.makeTempDir().getPath());
+    indexFile = CompactPersistentActionCache.mappedIndexFile(cacheRoot);
+  }
+
+  private static byte[] value(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] bytes) {
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void putGetAndRemoveBeforeSave() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+
+    map.put(1, value("one"));
+    map.put(2, value("two"));
+    map.remove(1);
+
+    assertThat(map.get(1)).isNull();
+    assertThat(string(map.get(2))).isEqualTo("two");
+    assertThat(map).hasSize(1);
+  }
+
+  @Test
+  public void savedEntriesAreVisibleAfterReopening() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.put(2, value("two"));
+    map.put(-10, value("validation"));
+    map.save();
+
+    map.put(2, value("second two"));
+    map.remove(1);
+    map.put(3, value("three"));
+    map.save();
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened.get(1)).isNull();
+    assertThat(string(reopened.get(2))).isEqualTo("second two");
+    assertThat(string(reopened.get(3))).isEqualTo("three");
+    assertThat(string(reopened.get(-10))).isEqualTo("validation");
+    assertThat(reopened).hasSize(3);
+  }
+
+  @Test
+  public void journaledChangesAreRecovered() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.put(2, value("two"));
+    map.save();
+    map.put(2, value("second two"));
+    map.remove(1);
+    map.put(3, value("three"));
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened.get(1)).isNull();
+    assertThat(string(reopened.get(2))).isEqualTo("second two");
+    assertThat(string(reopened.get(3))).isEqualTo("three");
+    assertThat(reopened).hasSize(2);
+  }
+
+  @Test
+  public void recoveryStopsAtTornRecord() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.save();
+    map.put(2, value("two"));
+    map.put(3, value("three"));
+    Path segment = cacheRoot.getChild(indexFile.getBaseName() + ".1");
+    long size = segment.getFileSize();
+    try (FileChannel channel =
+        FileChannel.open(segment.getPathFile().toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(size - 1);
+    }
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened.keySet()).containsExactly(1, 2);
+    reopened.put(4, value("four"));
+    reopened.save();
+    assertThat(new MappedActionMap(indexFile).keySet()).containsExactly(1, 2, 4);
+  }
+
+  @Test
+  public void unjournaledChangesAreLost() throws Exception {
+    MappedActionMap map =
+        new MappedActionMap(indexFile) {
+          @Override
+          protected boolean updateJournal() {
+            return false;
+          }
+        };
+    map.put(1, value("one"));
+    map.save();
+    map.put(2, value("two"));
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened.keySet()).containsExactly(1);
+  }
+
+  @Test
+  public void segmentsGrowWithLiveData() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile, /*maxSegmentSize=*/ 100);
+    // Far more live data than MAX_SEGMENTS segments of the configured size hold.
+    int numEntries = 50 * MappedActionMap.MAX_SEGMENTS;
+    for (int i = 0; i < numEntries; i++) {
+      map.put(i, value("value of " + i));
+      if (i % 10 == 0) {
+        map.save();
+      }
+    }
+    map.save();
+
+    assertThat(map.numSegments()).isLessThan(MappedActionMap.MAX_SEGMENTS);
+    MappedActionMap reopened = new MappedActionMap(indexFile, /*maxSegmentSize=*/ 100);
+    assertThat(reopened).hasSize(numEntries);
+    assertThat(string(reopened.get(numEntries - 1))).isEqualTo("value of " + (numEntries - 1));
+  }
+
+  @Test
+  public void entrySetMergesIndexAndPendingChanges() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.put(2, value("two"));
+    map.save();
+    map.put(2, value("new two"));
+    map.put(3, value("three"));
+    map.remove(1);
+
+    Map<Integer, String> contents = new HashMap<>();
+    for (Map.Entry<Integer, byte[]> entry : map.entrySet()) {
+      contents.put(entry.getKey(), string(entry.getValue()));
+    }
+    assertThat(contents).containsExactly(2, "new two", 3, "three");
+  }
+
+  @Test
+  public void indexGrowsBeyondInitialCapacity() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    for (int i = 0; i < 10000; i++) {
+      map.put(i, value(Integer.toString(i)));
+      if (i % 1000 == 0) {
+        map.save();
+      }
+    }
+    map.save();
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened).hasSize(10000);
+    for (int i = 0; i < 10000; i++) {
+      assertThat(string(reopened.get(i))).isEqualTo(Integer.toString(i));
+    }
+  }
+
+  @Test
+  public void mostlyGarbageSegmentsAreCompacted() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile, /*maxSegmentSize=*/ 100);
+    for (int i = 0; i < 20; i++) {
+      map.put(i, value("first value of " + i));
+      map.save();
+    }
+    int segmentsAfterInsertion = map.numSegments();
+    assertThat(segmentsAfterInsertion).isGreaterThan(2);
+
+    for (int i = 0; i < 20; i++) {
+      map.put(i, value("second value of " + i));
+    }
+    for (int i = 0; i < 2 * segmentsAfterInsertion; i++) {
+      map.save();
+    }
+
+    // The segments holding the first values have been deleted one by one.
+    assertThat(map.numSegments()).isLessThan(segmentsAfterInsertion + 2);
+    MappedActionMap reopened = new MappedActionMap(indexFile, /*maxSegmentSize=*/ 100);
+    for (int i = 0; i < 20; i++) {
+      assertThat(string(reopened.get(i))).isEqualTo("second value of " + i);
+    }
+  }
+
+  @Test
+  public void corruptIndexIsRejected() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.save();
+    indexFile.getOutputStream().close();
+
+    assertThrows(IOException.class, () -> new MappedActionMap(indexFile));
+  }
+
+  @Test
+  public void clearRemovesAllEntries() throws Exception {
+    MappedActionMap map = new MappedActionMap(indexFile);
+    map.put(1, value("one"));
+    map.save();
+
+    map.clear();
+    map.put(2, value("two"));
+    map.save();
+
+    MappedActionMap reopened = new MappedActionMap(indexFile);
+    assertThat(reopened.keySet()).containsExactly(2);
+  }
+
+  @Test
+  public void actionCacheRoundTrip() throws Exception {
+    ManualClock clock = new ManualClock();
+    CompactPersistentActionCache cache =
+        new CompactPersistentActionCache(cacheRoot, clock, /*mapped=*/ true);
+    ActionCache.Entry entry =
+        new ActionCache.Entry("key", ImmutableMap.of("k", "v"), /*discoversInputs=*/ false);
+    entry.getFileDigest();
+    cache.put("key", entry);
+    cache.save();
+
+    assertThat(CompactPersistentActionCache.cacheFile(cacheRoot).exists()).isFalse();
+    CompactPersistentActionCache reloaded =
+        new CompactPersistentActionCache(cacheRoot, clock, /*mapped=*/ true);
+    assertThat(reloaded.get("key").toString()).isEqualTo(entry.toString());
+    assertThat(reloaded.get("other")).isNull();
+  }
+
+  @Test
+  public void actionCacheResetsWhenFilenameIndexIsCorrupted() throws Exception {
+    ManualClock clock = new ManualClock();
+    CompactPersistentActionCache cache =
+        new CompactPersistentActionCache(cacheRoot, clock, /*mapped=*/ true);
+    ActionCache.Entry entry =
+        new ActionCache.Entry("key", ImmutableMap.of("k", "v"), /*discoversInputs=*/ false);
+    entry.getFileDigest();
+    cache.put("key", entry);
+    cache.save();
+
+    Path filenameIndex = null;
+    for (Path path : cacheRoot.getDirectoryEntries()) {
+      if (path.getBaseName().startsWith("filename_index_")) {
+        filenameIndex = path;
+      }
+    }
+    assertThat(filenameIndex).isNotNull();
+    try (FileChannel channel =
+        FileChannel.open(filenameIndex.getPathFile().toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(3);
+    }
+
+    // Opening the cache doesn't load the filename index, so the corruption only shows once the
+    // cache is used. It then starts out empty.
+    CompactPersistentActionCache reloaded =
+        new CompactPersistentActionCache(cacheRoot, clock, /*mapped=*/ true);
+    assertThat(reloaded.get("key")).isNull();
+    assertThat(cacheRoot.getChild(filenameIndex.getBaseName() + ".bad").exists()).isTrue();
+
+    reloaded.put("key", entry);
+    reloaded.save();
+    CompactPersistentActionCache reopened =
+        new CompactPersistentActionCache(cacheRoot, clock, /*mapped=*/ true);
+    assertThat(reopened.get("key").toString()).isEqualTo(entry.toString());
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentDigestCache}. */
+@RunWith(JUnit4.class)
+public class PersistentDigestCacheTest {
+
+  private static final long NOW = 1_000_000_000L;
+  private static final long LONG_AGO = NOW - 60_000;
+
+  private Path cacheFile;
+
+  @Before
+  public final void createCacheFile() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    cacheFile = fs.getPath(TestUtils.makeTempDir().getPath()).getChild("digests");
+  }
+
+  private static byte[] digest(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static FileStatus status(long device, long inode, long size, long mtime, long ctime) {
+    return new FileStatus() {
+      @Override
+      public boolean isFile() {
+        return true;
+      }
+
+      @Override
+      public boolean isDirectory() {
+        return false;
+      }
+
+      @Override
+      public boolean isSymbolicLink() {
+        return false;
+      }
+
+      @Override
+      public boolean isSpecialFile() {
+        return false;
+      }
+
+      @Override
+      public long getSize() {
+        return size;
+      }
+
+      @Override
+      public long getLastModifiedTime() {
+        return mtime;
+      }
+
+      @Override
+      public long getLastChangeTime() {
+        return ctime;
+      }
+
+      @Override
+      public long getNodeId() {
+        return inode;
+      }
+
+      @Override
+      public long getDeviceId() {
+        return device;
+      }
+    };
+  }
+
+  private static FileStatus status(long inode) {
+    return status(1, inode, 100, LONG_AGO, LONG_AGO);
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+
+    assertThat(cache.get(status(1), DigestHashFunction.SHA256)).isNull();
+    cache.put(status(1), DigestHashFunction.SHA256, digest("one"), NOW);
+
+    assertThat(cache.get(status(1), DigestHashFunction.SHA256)).isEqualTo(digest("one"));
+    assertThat(cache.get(status(2), DigestHashFunction.SHA256)).isNull();
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getPuts()).isEqualTo(1);
+  }
+
+  @Test
+  public void entriesSurviveReopening() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    cache.put(status(1), DigestHashFunction.SHA256, digest("one"), NOW);
+    cache.close();
+
+    // The capacity of the existing file is kept.
+    PersistentDigestCache reopened = new PersistentDigestCache(cacheFile, 1024);
+    assertThat(reopened.get(status(1), DigestHashFunction.SHA256)).isEqualTo(digest("one"));
+    assertThat(cacheFile.getFileSize()).isEqualTo(4096 + 64 * 96);
+  }
+
+  @Test
+  public void anyChangeOfTheKeyIsAMiss() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    cache.put(status(1, 2, 100, LONG_AGO, LONG_AGO), DigestHashFunction.SHA256, digest("a"), NOW);
+
+    assertThat(cache.get(status(1, 2, 100, LONG_AGO, LONG_AGO), DigestHashFunction.SHA256))
+        .isEqualTo(digest("a"));
+    assertThat(cache.get(status(3, 2, 100, LONG_AGO, LONG_AGO), DigestHashFunction.SHA256))
+        .isNull();
+    assertThat(cache.get(status(1, 2, 101, LONG_AGO, LONG_AGO), DigestHashFunction.SHA256))
+        .isNull();
+    assertThat(cache.get(status(1, 2, 100, LONG_AGO + 1, LONG_AGO), DigestHashFunction.SHA256))
+        .isNull();
+    assertThat(cache.get(status(1, 2, 100, LONG_AGO, LONG_AGO + 1), DigestHashFunction.SHA256))
+        .isNull();
+    assertThat(cache.get(status(1, 2, 100, LONG_AGO, LONG_AGO), DigestHashFunction.SHA1)).isNull();
+  }
+
+  @Test
+  public void newerEntryOfTheSameFileReplacesOlderOne() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    FileStatus before = status(1, 2, 100, LONG_AGO, LONG_AGO);
+    FileStatus after = status(1, 2, 100, LONG_AGO + 1, LONG_AGO + 1);
+    cache.put(before, DigestHashFunction.SHA256, digest("before"), NOW);
+    cache.put(after, DigestHashFunction.SHA256, digest("after"), NOW);
+
+    assertThat(cache.get(before, DigestHashFunction.SHA256)).isNull();
+    assertThat(cache.get(after, DigestHashFunction.SHA256)).isEqualTo(digest("after"));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotCached() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    FileStatus recent = status(1, 2, 100, LONG_AGO, NOW - 10);
+    cache.put(recent, DigestHashFunction.SHA256, digest("recent"), NOW);
+
+    assertThat(cache.get(recent, DigestHashFunction.SHA256)).isNull();
+    assertThat(cache.getRacyFiles()).isEqualTo(1);
+    assertThat(cache.getPuts()).isEqualTo(0);
+  }
+
+  @Test
+  public void filesWithoutDeviceIdAreNotCached() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    FileStatus noDevice = status(-1, 2, 100, LONG_AGO, LONG_AGO);
+    cache.put(noDevice, DigestHashFunction.SHA256, digest("a"), NOW);
+
+    assertThat(cache.get(noDevice, DigestHashFunction.SHA256)).isNull();
+    assertThat(cacheFile.exists()).isFalse();
+  }
+
+  @Test
+  public void fullBucketsKeepTheMostRecentEntries() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 4);
+    for (int i = 0; i < 100; i++) {
+      cache.put(status(i), DigestHashFunction.SHA256, digest("d" + i), NOW);
+    }
+
+    assertThat(cache.get(status(99), DigestHashFunction.SHA256)).isEqualTo(digest("d99"));
+    int hits = 0;
+    for (int i = 0; i < 100; i++) {
+      if (cache.get(status(i), DigestHashFunction.SHA256) != null) {
+        hits++;
+      }
+    }
+    assertThat(hits).isAtMost(4);
+  }
+
+  @Test
+  public void corruptFileIsReplaced() throws Exception {
+    FileSystemUtils.writeContent(cacheFile, digest("not a digest cache"));
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 64);
+    cache.put(status(1), DigestHashFunction.SHA256, digest("one"), NOW);
+
+    assertThat(cache.get(status(1), DigestHashFunction.SHA256)).isEqualTo(digest("one"));
+    assertThat(cacheFile.getFileSize()).isEqualTo(4096 + 64 * 96);
+  }
+
+  @Test
+  public void tornSlotIsAMiss() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(cacheFile, 4);
+    cache.put(status(1), DigestHashFunction.SHA256, digest("one"), NOW);
+    cache.close();
+
+    // Flip a byte of the digest in the only bucket.
+    byte[] content = FileSystemUtils.readContent(cacheFile);
+    for (int slot = 0; slot < 4; slot++) {
+      content[4096 + slot * 96 + 56] ^= 1;
+    }
+    FileSystemUtils.writeContent(cacheFile, content);
+
+    PersistentDigestCache reopened = new PersistentDigestCache(cacheFile, 4);
+    assertThat(reopened.get(status(1), DigestHashFunction.SHA256)).isNull();
+  }
+}
@@ -14,14 +14,24 @@
 
 package com.google.devtools.build.lib.bazel.repository;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.INNER_FOLDER_NAME;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.ROOT_FOLDER_NAME;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
+import com.google.common.base.Strings;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -64,6 +74,87 @@ public class CompressedTarFunctionTest {
     archiveDescriptor.assertOutputFiles(outputDir, INNER_FOLDER_NAME);
   }
 
+  @Test
+  public void testDecompressManyFilesInParallel() throws Exception {
+    String large = Strings.repeat("0123456789abcdef", 512 * 1024);
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tar = new TarArchiveOutputStream(archive)) {
+      tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      tar.putArchiveEntry(new TarArchiveEntry("root/"));
+      tar.closeArchiveEntry();
+      for (int i = 0; i < 100; i++) {
+        addFile(tar, "root/dir" + (i % 7) + "/file" + i, "contents" + i);
+      }
+      addFile(tar, "root/large", large);
+      addFile(tar, "root/dir3/file3", "replaced");
+      TarArchiveEntry hardLink = new TarArchiveEntry("root/link", TarArchiveEntry.LF_LINK);
+      hardLink.setLinkName("root/dir5/file5");
+      tar.putArchiveEntry(hardLink);
+      tar.closeArchiveEntry();
+    }
+
+    Path repositoryPath = new InMemoryFileSystem().getPath("/out");
+    Path outputDir =
+        decompress(
+            DecompressorDescriptor.builder()
+                .setArchivePath(repositoryPath.getRelative("archive.tar"))
+                .setRepositoryPath(repositoryPath)
+                .setPrefix("root"),
+            archive.toByteArray());
+
+    for (int i = 0; i < 100; i++) {
+      Path file = outputDir.getRelative("dir" + (i % 7) + "/file" + i);
+      assertThat(FileSystemUtils.readContent(file, ISO_8859_1))
+          .isEqualTo(i == 3 ? "replaced" : "contents" + i);
+    }
+    assertThat(FileSystemUtils.readContent(outputDir.getRelative("large"), ISO_8859_1))
+        .isEqualTo(large);
+    assertThat(FileSystemUtils.readContent(outputDir.getRelative("link"), ISO_8859_1))
+        .isEqualTo("contents5");
+  }
+
+  @Test
+  public void testDecompressionFailureIsReported() throws Exception {
+    Path repositoryPath = new InMemoryFileSystem().getPath("/out");
+    DecompressorDescriptor descriptor =
+        DecompressorDescriptor.builder()
+            .setArchivePath(repositoryPath.getRelative("archive.tar.gz"))
+            .setRepositoryPath(repositoryPath)
+            .setDecompressor(TarGzFunction.INSTANCE)
+            .build();
+    CompressedTarFunction function =
+        new CompressedTarFunction() {
+          @Override
+          protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+              throws IOException {
+            return new GZIPInputStream(new ByteArrayInputStream(new byte[] {0x1f, (byte) 0x8b}));
+          }
+        };
+
+    assertThrows(IOException.class, () -> function.decompress(descriptor));
+  }
+
+  private static void addFile(TarArchiveOutputStream tar, String name, String contents)
+      throws IOException {
+    byte[] bytes = contents.getBytes(ISO_8859_1);
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(bytes.length);
+    tar.putArchiveEntry(entry);
+    tar.write(bytes);
+    tar.closeArchiveEntry();
+  }
+
+  private Path decompress(DecompressorDescriptor.Builder descriptorBuilder, byte[] archive)
+      throws Exception {
+    descriptorBuilder.setDecompressor(TarFunction.INSTANCE);
+    return new CompressedTarFunction() {
+      @Override
+      protected InputStream getDecompressorStream(DecompressorDescriptor descriptor) {
+        return new ByteArrayInputStream(archive);
+      }
+    }.decompress(descriptorBuilder.build());
+  }
+
   private Path decompress(DecompressorDescriptor.Builder descriptorBuilder) throws Exception {
     descriptorBuilder.setDecompressor(TarGzFunction.INSTANCE);
     return new CompressedTarFunction() {
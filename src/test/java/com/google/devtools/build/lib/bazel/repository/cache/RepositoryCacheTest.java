@@ -19,10 +19,18 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.base.Strings;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -204,4 +212,84 @@ public class RepositoryCacheTest {
     Path lookupNoId = repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256);
     assertThat(lookupNoId).isEqualTo(targetPath);
   }
+
+  @Test
+  public void testPutKeepsExistingValue() throws Exception {
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256);
+    Path cacheValue =
+        KeyType.SHA256
+            .getCachePath(contentAddressableCachePath)
+            .getChild(downloadedFileSha256)
+            .getChild(RepositoryCache.DEFAULT_CACHE_FILENAME);
+    long nodeId = cacheValue.stat().getNodeId();
+
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256, "fooid");
+
+    assertThat(cacheValue.stat().getNodeId()).isEqualTo(nodeId);
+    Path targetPath = scratch.dir("/external").getChild(downloadedFile.getBaseName());
+    assertThat(repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256, "fooid"))
+        .isEqualTo(targetPath);
+  }
+
+  @Test
+  public void testHardlinkReplacesExistingTarget() throws Exception {
+    repositoryCache.setHardlink(true);
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256);
+    Path targetPath = scratch.file("/external/file.tmp", "stale");
+
+    assertThat(repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256))
+        .isEqualTo(targetPath);
+
+    assertThat(FileSystemUtils.readContent(targetPath, Charset.defaultCharset()))
+        .isEqualTo(FileSystemUtils.readContent(downloadedFile, Charset.defaultCharset()));
+  }
+
+  @Test
+  public void testConcurrentPutsAndGetsOnRealFileSystem() throws Exception {
+    Path root =
+        new JavaIoFileSystem(DigestHashFunction.getDefaultUnchecked())
+            .getPath(TestUtils.tmpDir())
+            .getRelative("concurrent_repository_cache");
+    root.deleteTree();
+    root.createDirectoryAndParents();
+    RepositoryCache cache = new RepositoryCache();
+    cache.setRepositoryCachePath(root.getRelative("cache"));
+    List<Path> sources = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Path source = root.getRelative("source" + i);
+      FileSystemUtils.writeContentAsLatin1(source, "contents" + i);
+      sources.add(source);
+      keys.add(RepositoryCache.getChecksum(KeyType.SHA256, source));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      int index = i % sources.size();
+      Path target = root.getRelative("target" + i);
+      futures.add(
+          executor.submit(
+              () -> {
+                cache.put(keys.get(index), sources.get(index), KeyType.SHA256, "id" + index);
+                assertThat(cache.get(keys.get(index), target, KeyType.SHA256, "id" + index))
+                    .isEqualTo(target);
+                assertThat(FileSystemUtils.readContent(target, Charset.defaultCharset()))
+                    .isEqualTo("contents" + index);
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    Path cacheEntry =
+        KeyType.SHA256.getCachePath(cache.getContentAddressableCachePath()).getChild(keys.get(0));
+    assertThat(cacheEntry.getChild(RepositoryCache.LOCK_FILENAME).exists()).isTrue();
+    for (Path child : cacheEntry.getDirectoryEntries()) {
+      assertThat(child.getBaseName()).doesNotMatch(RepositoryCache.TMP_PREFIX + ".*");
+    }
+    root.deleteTree();
+  }
 }
@@ -0,0 +1,321 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
+import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.util.JavaSleeper;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RangeDownloader}. */
+@RunWith(JUnit4.class)
+public class RangeDownloaderTest {
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  @Rule public final TemporaryFolder workingDir = new TemporaryFolder();
+
+  @Rule public final Timeout timeout = new Timeout(30, SECONDS);
+
+  private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+  private final ExecutorService rangeExecutor = Executors.newFixedThreadPool(4);
+  private final ExtendedEventHandler eventHandler = mock(ExtendedEventHandler.class);
+  private final ProxyHelper proxyHelper = mock(ProxyHelper.class);
+  private RangeDownloader downloader;
+
+  private final byte[] content = new byte[1000];
+  private Path repositoryDir;
+  private Path destination;
+
+  /** A local HTTP server serving {@link #content}. */
+  private final class RangeServer implements AutoCloseable {
+    final ServerSocket socket;
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    final AtomicLong bytesServed = new AtomicLong();
+    volatile boolean supportsRanges = true;
+    volatile int maxBytesPerResponse = Integer.MAX_VALUE;
+
+    RangeServer() throws IOException {
+      socket = new ServerSocket(0, 50, InetAddress.getByName(null));
+      serverExecutor.submit(this::serve);
+    }
+
+    URL getUrl() throws IOException {
+      return new URL(String.format("http://localhost:%d/file.bin", socket.getLocalPort()));
+    }
+
+    private Void serve() throws IOException {
+      while (true) {
+        Socket client;
+        try {
+          client = socket.accept();
+        } catch (SocketException e) {
+          // The server was closed.
+          return null;
+        }
+        serverExecutor.submit(
+            () -> {
+              try (Socket s = client) {
+                respond(s);
+              }
+              return null;
+            });
+      }
+    }
+
+    private void respond(Socket client) throws IOException {
+      Map<String, String> headers = new HashMap<>();
+      readHttpRequest(client.getInputStream(), headers);
+      OutputStream out = client.getOutputStream();
+      String range = headers.get("range");
+      if (!supportsRanges || range == null) {
+        sendLines(
+            client,
+            "HTTP/1.1 200 OK",
+            "Connection: close",
+            "Content-Length: " + content.length,
+            "",
+            "");
+        out.write(content);
+        return;
+      }
+      Matcher matcher = RANGE.matcher(range);
+      assertThat(matcher.matches()).isTrue();
+      int start = Integer.parseInt(matcher.group(1));
+      int end = Integer.parseInt(matcher.group(2));
+      int length = end - start + 1;
+      sendLines(
+          client,
+          "HTTP/1.1 206 Partial Content",
+          "Connection: close",
+          "ETag: \"v1\"",
+          String.format("Content-Range: bytes %d-%d/%d", start, end, content.length),
+          "Content-Length: " + length,
+          "",
+          "");
+      int sent = Math.min(length, maxBytesPerResponse);
+      out.write(content, start, sent);
+      if (!range.equals("bytes=0-0")) {
+        ranges.add(range);
+        bytesServed.addAndGet(sent);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    when(proxyHelper.createProxyIfNeeded(any(URL.class))).thenReturn(Proxy.NO_PROXY);
+    new Random(42).nextBytes(content);
+    Path root =
+        new JavaIoFileSystem(DigestHashFunction.SHA256)
+            .getPath(workingDir.getRoot().getAbsolutePath());
+    repositoryDir = root.getRelative("external/repo");
+    repositoryDir.createDirectoryAndParents();
+    destination = repositoryDir.getRelative("file.bin");
+    downloader =
+        new RangeDownloader(
+            new HttpConnector(Locale.US, eventHandler, proxyHelper, new JavaSleeper(), 0.1f),
+            rangeExecutor,
+            Locale.US,
+            eventHandler,
+            new JavaClock(),
+            /* connections= */ 4,
+            /* minSegmentSize= */ 100,
+            root.getRelative("partial_downloads"));
+  }
+
+  @After
+  public void after() {
+    serverExecutor.shutdownNow();
+    rangeExecutor.shutdownNow();
+  }
+
+  private Optional<Checksum> checksum() {
+    return Optional.of(
+        Checksum.fromString(KeyType.SHA256, Hashing.sha256().hashBytes(content).toString()));
+  }
+
+  @Test
+  public void downloadsRangesOverSeveralConnections() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      assertThat(downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination))
+          .isTrue();
+
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(server.ranges)
+          .containsExactly("bytes=0-249", "bytes=250-499", "bytes=500-749", "bytes=750-999");
+      assertThat(downloader.getPartialDir(server.getUrl(), destination).exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void serverWithoutRangesIsLeftToTheCaller() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      server.supportsRanges = false;
+
+      assertThat(downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination))
+          .isFalse();
+      assertThat(destination.exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void lostConnectionsAreResumed() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      // Each range needs three connections.
+      server.maxBytesPerResponse = 100;
+
+      assertThat(downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination))
+          .isTrue();
+
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(server.ranges)
+          .containsAtLeast("bytes=0-249", "bytes=100-249", "bytes=200-249");
+      assertThat(server.bytesServed.get()).isEqualTo((long) content.length);
+    }
+  }
+
+  @Test
+  public void failedDownloadIsResumedByTheNextOne() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      // Four connections only get 200 bytes of a range.
+      server.maxBytesPerResponse = 50;
+
+      assertThrows(
+          IOException.class,
+          () -> downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination));
+      assertThat(downloader.getPartialDir(server.getUrl(), destination).exists()).isTrue();
+
+      server.maxBytesPerResponse = Integer.MAX_VALUE;
+      server.bytesServed.set(0);
+      assertThat(downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination))
+          .isTrue();
+
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      // At least the range that failed kept what it had downloaded.
+      assertThat(server.bytesServed.get()).isAtMost(content.length - 200L);
+    }
+  }
+
+  @Test
+  public void checksumMismatchDiscardsTheRanges() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      Optional<Checksum> wrongChecksum =
+          Optional.of(
+              Checksum.fromString(KeyType.SHA256, Hashing.sha256().hashInt(0).toString()));
+
+      assertThrows(
+          UnrecoverableHttpException.class,
+          () ->
+              downloader.download(server.getUrl(), wrongChecksum, ImmutableMap.of(), destination));
+      assertThat(downloader.getPartialDir(server.getUrl(), destination).exists()).isFalse();
+      assertThat(destination.exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void failedDownloadIsResumedAfterTheRepositoryIsDeleted() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      server.maxBytesPerResponse = 50;
+
+      assertThrows(
+          IOException.class,
+          () -> downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination));
+
+      // Repositories are deleted and recreated before they are fetched again.
+      repositoryDir.deleteTree();
+      repositoryDir.createDirectoryAndParents();
+      server.maxBytesPerResponse = Integer.MAX_VALUE;
+      server.bytesServed.set(0);
+      assertThat(downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination))
+          .isTrue();
+
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(server.bytesServed.get()).isAtMost(content.length - 200L);
+      assertThat(downloader.getPartialDir(server.getUrl(), destination).exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void stalePartialDownloadsAreDeleted() throws Exception {
+    try (RangeServer server = new RangeServer()) {
+      server.maxBytesPerResponse = 50;
+      assertThrows(
+          IOException.class,
+          () -> downloader.download(server.getUrl(), checksum(), ImmutableMap.of(), destination));
+      Path partialDir = downloader.getPartialDir(server.getUrl(), destination);
+      Path partialDownloadsDir = partialDir.getParentDirectory();
+      long lastUsed = partialDir.getRelative("manifest").getLastModifiedTime();
+
+      RangeDownloader.deleteStalePartialDownloads(
+          partialDownloadsDir, lastUsed + RangeDownloader.MAX_PARTIAL_DOWNLOAD_AGE.toMillis());
+      assertThat(partialDir.exists()).isTrue();
+
+      RangeDownloader.deleteStalePartialDownloads(
+          partialDownloadsDir,
+          lastUsed + RangeDownloader.MAX_PARTIAL_DOWNLOAD_AGE.toMillis() + 1);
+      assertThat(partialDir.exists()).isFalse();
+    }
+  }
+}
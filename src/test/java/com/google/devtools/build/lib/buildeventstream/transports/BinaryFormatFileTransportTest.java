@@ -45,14 +45,18 @@ import com.google.devtools.common.options.Options;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
 import org.junit.After;
 import org.junit.Before;
@@ -375,6 +379,106 @@ public class BinaryFormatFileTransportTest {
     verify(uploader).shutdown();
   }
 
+  @Test
+  public void testSendBlocksWhileQueueIsFull() throws Exception {
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    FileTransport.SequentialWriter writer =
+        new FileTransport.SequentialWriter(
+            outputStream,
+            (event, out) -> event.writeDelimitedTo(out),
+            new LocalFilesArtifactUploader(),
+            Executors.newSingleThreadScheduledExecutor(),
+            /*queueCapacity=*/ 2);
+
+    BuildEventStreamProtos.BuildEvent progress =
+        BuildEventStreamProtos.BuildEvent.newBuilder().setProgress(Progress.newBuilder()).build();
+    SettableFuture<BuildEventStreamProtos.BuildEvent> first = SettableFuture.create();
+    assertThat(writer.enqueue(first)).isTrue();
+    assertThat(writer.enqueue(Futures.immediateFuture(progress))).isTrue();
+
+    // The writer waits for the first event, so the queue stays full and the third send blocks.
+    CountDownLatch sent = new CountDownLatch(1);
+    Thread producer =
+        new Thread(
+            () -> {
+              writer.enqueue(Futures.immediateFuture(progress));
+              sent.countDown();
+            });
+    producer.start();
+    assertThat(sent.await(500, TimeUnit.MILLISECONDS)).isFalse();
+
+    first.set(progress);
+    assertThat(sent.await(10, TimeUnit.SECONDS)).isTrue();
+    writer.close().get();
+    producer.join();
+
+    assertThat(writer.getMaxQueueDepth()).isEqualTo(2);
+    assertThat(writer.getBytesWritten()).isEqualTo(output.length());
+    try (InputStream in = new FileInputStream(output)) {
+      for (int i = 0; i < 3; i++) {
+        assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(progress);
+      }
+      assertThat(in.available()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testBlockedSendReturnsWhenWriterExits() throws Exception {
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    FileTransport.SequentialWriter writer =
+        new FileTransport.SequentialWriter(
+            outputStream,
+            (event, out) -> event.writeDelimitedTo(out),
+            new LocalFilesArtifactUploader(),
+            Executors.newSingleThreadScheduledExecutor(),
+            /*queueCapacity=*/ 1);
+
+    SettableFuture<BuildEventStreamProtos.BuildEvent> first = SettableFuture.create();
+    assertThat(writer.enqueue(first)).isTrue();
+    Future<Boolean> blocked =
+        Executors.newSingleThreadExecutor()
+            .submit(() -> writer.enqueue(SettableFuture.create()));
+
+    // Writing the first event fails, which makes the writer exit and releases the producer.
+    first.setException(new IOException("upload failed"));
+    assertThat(blocked.get(10, TimeUnit.SECONDS)).isFalse();
+    assertThrows(ExecutionException.class, () -> writer.close().get());
+  }
+
+  @Test
+  public void testSendAfterWriterExitsDoesNotBlock() throws Exception {
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    FileTransport.SequentialWriter writer =
+        new FileTransport.SequentialWriter(
+            outputStream,
+            (event, out) -> event.writeDelimitedTo(out),
+            new LocalFilesArtifactUploader(),
+            Executors.newSingleThreadScheduledExecutor(),
+            /*queueCapacity=*/ 1);
+
+    SettableFuture<BuildEventStreamProtos.BuildEvent> first = SettableFuture.create();
+    assertThat(writer.enqueue(first)).isTrue();
+    first.setException(new IOException("upload failed"));
+    assertThrows(ExecutionException.class, () -> writer.close().get());
+
+    // None of these calls may wait for room in the queue of the failed writer.
+    Future<?> sends =
+        Executors.newSingleThreadExecutor()
+            .submit(
+                () -> {
+                  for (int i = 0; i < 1000; i++) {
+                    assertThat(writer.enqueue(SettableFuture.create())).isFalse();
+                  }
+                });
+    sends.get(10, TimeUnit.SECONDS);
+  }
+
   private static class WithLocalFilesEvent implements BuildEvent {
 
     int id;
@@ -0,0 +1,129 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats.Histogram;
+import com.google.devtools.build.lib.concurrent.QueueVisitorStats.HistogramSnapshot;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link QueueVisitorStats}. */
+@RunWith(JUnit4.class)
+public class QueueVisitorStatsTest {
+
+  @After
+  public final void disableStats() {
+    QueueVisitorStats.instance().disable();
+    QueueVisitorStats.instance().reset();
+  }
+
+  @Test
+  public void histogramBuckets() {
+    Histogram histogram = new Histogram();
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(2);
+    histogram.record(3);
+    histogram.record(1000);
+    histogram.record(-5);
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertThat(snapshot.getCount()).isEqualTo(6);
+    assertThat(snapshot.getSumNanos()).isEqualTo(1006);
+    assertThat(snapshot.getBucketCounts())
+        .containsExactly(3L, 2L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 1L)
+        .inOrder();
+    assertThat(snapshot.getPercentileUpperBoundNanos(50)).isEqualTo(2);
+    assertThat(snapshot.getPercentileUpperBoundNanos(80)).isEqualTo(4);
+    assertThat(snapshot.getPercentileUpperBoundNanos(100)).isEqualTo(1024);
+
+    histogram.reset();
+    assertThat(histogram.snapshot().getCount()).isEqualTo(0);
+    assertThat(histogram.snapshot().getBucketCounts()).isEmpty();
+    assertThat(histogram.snapshot().getPercentileUpperBoundNanos(99)).isEqualTo(0);
+  }
+
+  @Test
+  public void nothingIsRecordedWhenDisabled() throws Exception {
+    runTasks(newVisitor(), 10, () -> {});
+
+    assertThat(QueueVisitorStats.instance().snapshot().getRunTime().getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void everyTaskIsRecorded() throws Exception {
+    QueueVisitorStats.instance().enable();
+
+    runTasks(newVisitor(), 100, () -> {});
+    runTasks(
+        ForkJoinQuiescingExecutor.newBuilder().withOwnershipOf(new ForkJoinPool(4)).build(),
+        50,
+        () -> {});
+
+    QueueVisitorStats.Snapshot snapshot = QueueVisitorStats.instance().snapshot();
+    assertThat(snapshot.getQueueWait().getCount()).isEqualTo(150);
+    assertThat(snapshot.getRunTime().getCount()).isEqualTo(150);
+  }
+
+  @Test
+  public void lockWaitIsRecorded() throws Exception {
+    QueueVisitorStats.instance().enable();
+    Object lock = new Object();
+    AbstractQueueVisitor visitor = newVisitor();
+
+    synchronized (lock) {
+      visitor.execute(
+          () -> {
+            synchronized (lock) {
+              // Only acquire the lock.
+            }
+          });
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    visitor.awaitQuiescence(/*interruptWorkers=*/ false);
+
+    QueueVisitorStats.Snapshot snapshot = QueueVisitorStats.instance().snapshot();
+    assertThat(snapshot.getRunTime().getSumNanos()).isAtLeast(TimeUnit.MILLISECONDS.toNanos(40));
+    if (ManagementFactory.getThreadMXBean().isThreadContentionMonitoringSupported()) {
+      assertThat(snapshot.getLockWait().getCount()).isEqualTo(1);
+      assertThat(snapshot.getLockWait().getSumNanos())
+          .isAtLeast(TimeUnit.MILLISECONDS.toNanos(40));
+    }
+  }
+
+  private static AbstractQueueVisitor newVisitor() {
+    return new AbstractQueueVisitor(
+        /*parallelism=*/ 4,
+        /*keepAliveTime=*/ 1,
+        TimeUnit.SECONDS,
+        /*failFastOnException=*/ true,
+        "queue-visitor-stats-test",
+        ErrorClassifier.DEFAULT);
+  }
+
+  private static void runTasks(AbstractQueueVisitor visitor, int numTasks, Runnable task)
+      throws InterruptedException {
+    for (int i = 0; i < numTasks; i++) {
+      visitor.execute(task);
+    }
+    visitor.awaitQuiescence(/*interruptWorkers=*/ false);
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SymlinkTreeMaterializer}. */
+@RunWith(JUnit4.class)
+public final class SymlinkTreeMaterializerTest {
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final Path root = fs.getPath("/out/foo.runfiles");
+
+  private static PathFragment fragment(String path) {
+    return PathFragment.create(path);
+  }
+
+  private void assertSymlink(String path, String target) throws Exception {
+    Path p = root.getRelative(path);
+    assertThat(p.isSymbolicLink()).isTrue();
+    assertThat(p.readSymbolicLink()).isEqualTo(fragment(target));
+  }
+
+  private void assertEmptyFile(String path) throws Exception {
+    Path p = root.getRelative(path);
+    assertThat(p.isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(p.getFileSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void createsNewTree() throws Exception {
+    Map<PathFragment, PathFragment> entries = new HashMap<>();
+    entries.put(fragment("ws/a/b"), fragment("/src/b"));
+    entries.put(fragment("ws/c"), fragment("/src/c"));
+    entries.put(fragment("ws/a/__init__.py"), null);
+
+    SymlinkTreeMaterializer.Stats stats = SymlinkTreeMaterializer.materialize(root, entries);
+
+    assertSymlink("ws/a/b", "/src/b");
+    assertSymlink("ws/c", "/src/c");
+    assertEmptyFile("ws/a/__init__.py");
+    assertThat(stats.getCreated()).isEqualTo(3);
+    assertThat(stats.getReplaced()).isEqualTo(0);
+    assertThat(stats.getDeleted()).isEqualTo(0);
+    assertThat(stats.getUnchanged()).isEqualTo(0);
+  }
+
+  @Test
+  public void onlyTouchesChangedEntries() throws Exception {
+    Map<PathFragment, PathFragment> entries = new HashMap<>();
+    entries.put(fragment("ws/a/b"), fragment("/src/b"));
+    entries.put(fragment("ws/c"), fragment("/src/c"));
+    entries.put(fragment("ws/d/e"), fragment("/src/e"));
+    entries.put(fragment("ws/empty"), null);
+    SymlinkTreeMaterializer.materialize(root, entries);
+    long unchangedMtime = root.getRelative("ws/a/b").getLastModifiedTime(Symlinks.NOFOLLOW);
+
+    entries.put(fragment("ws/c"), fragment("/src/other_c"));
+    entries.remove(fragment("ws/d/e"));
+    entries.put(fragment("ws/f"), fragment("/src/f"));
+    SymlinkTreeMaterializer.Stats stats = SymlinkTreeMaterializer.materialize(root, entries);
+
+    assertSymlink("ws/a/b", "/src/b");
+    assertSymlink("ws/c", "/src/other_c");
+    assertSymlink("ws/f", "/src/f");
+    assertEmptyFile("ws/empty");
+    assertThat(root.getRelative("ws/d").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(root.getRelative("ws/a/b").getLastModifiedTime(Symlinks.NOFOLLOW))
+        .isEqualTo(unchangedMtime);
+    assertThat(stats.getCreated()).isEqualTo(1);
+    assertThat(stats.getReplaced()).isEqualTo(1);
+    // The directory that only contained the removed entry is deleted as a whole.
+    assertThat(stats.getDeleted()).isEqualTo(1);
+    assertThat(stats.getUnchanged()).isEqualTo(2);
+  }
+
+  @Test
+  public void replacesEntriesOfTheWrongKind() throws Exception {
+    root.getRelative("ws/was_dir").createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("ws/was_file"), "content");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("ws/was_dir/child"), "content");
+    root.getRelative("ws/dir_was_symlink").createSymbolicLink(fragment("/src/dir"));
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("ws/non_empty"), "content");
+
+    SymlinkTreeMaterializer.Stats stats =
+        SymlinkTreeMaterializer.materialize(
+            root,
+            ImmutableMap.of(
+                fragment("ws/was_file"), fragment("/src/was_file"),
+                fragment("ws/was_dir"), fragment("/src/was_dir"),
+                fragment("ws/dir_was_symlink/x"), fragment("/src/x"),
+                fragment("ws/non_empty"), fragment("/src/non_empty")));
+
+    assertSymlink("ws/was_file", "/src/was_file");
+    assertSymlink("ws/was_dir", "/src/was_dir");
+    assertThat(root.getRelative("ws/dir_was_symlink").isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    assertSymlink("ws/dir_was_symlink/x", "/src/x");
+    assertSymlink("ws/non_empty", "/src/non_empty");
+    assertThat(stats.getDeleted()).isEqualTo(2);
+    assertThat(stats.getReplaced()).isEqualTo(2);
+    assertThat(stats.getCreated()).isEqualTo(2);
+  }
+
+  @Test
+  public void replacesRootThatIsNotADirectory() throws Exception {
+    root.getParentDirectory().createDirectoryAndParents();
+    root.createSymbolicLink(fragment("/elsewhere"));
+
+    SymlinkTreeMaterializer.materialize(root, ImmutableMap.of(fragment("a"), fragment("/src/a")));
+
+    assertThat(root.isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    assertSymlink("a", "/src/a");
+  }
+
+  @Test
+  public void largeTreesAreUpdatedInBatches() throws Exception {
+    Map<PathFragment, PathFragment> entries = new HashMap<>();
+    for (int i = 0; i < 5 * SymlinkTreeMaterializer.BATCH_SIZE; i++) {
+      entries.put(fragment("ws/dir" + (i % 50) + "/file" + i), fragment("/src/file" + i));
+    }
+    assertThat(SymlinkTreeMaterializer.materialize(root, entries).getCreated())
+        .isEqualTo(entries.size());
+
+    entries.put(fragment("ws/dir0/file0"), fragment("/src/changed"));
+    SymlinkTreeMaterializer.Stats stats = SymlinkTreeMaterializer.materialize(root, entries);
+
+    assertSymlink("ws/dir0/file0", "/src/changed");
+    assertSymlink("ws/dir49/file4999", "/src/file4999");
+    assertThat(stats.getReplaced()).isEqualTo(1);
+    assertThat(stats.getUnchanged()).isEqualTo(entries.size() - 1);
+  }
+}
@@ -143,6 +143,8 @@ public final class SymlinkTreeStrategyTest extends BuildViewTestCase {
             /*enableRunfiles=*/ true,
             /*inprocessSymlinkCreation=*/ true,
             /*skipRunfilesManifests*/ false);
+    inputManifest.getPath().getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(inputManifest.getPath(), "manifest content");
 
     action.execute(context);
     // Check that the OutputService is not used.
@@ -155,5 +157,8 @@ public final class SymlinkTreeStrategyTest extends BuildViewTestCase {
     Path q = outputManifest.getPath().getParentDirectory().getRelative("TESTING/dir/empty");
     assertWithMessage("Path %s expected to be a file", q).that(q.isFile()).isTrue();
     assertThat(FileSystemUtils.readContent(q)).isEmpty();
+    // The output manifest is a copy of the input manifest.
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(outputManifest.getPath())))
+        .isEqualTo("manifest content");
   }
 }
@@ -0,0 +1,189 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.includescanning.IncludeParser.GrepIncludesFileType;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IncludeIndex}. */
+@RunWith(JUnit4.class)
+public class IncludeIndexTest {
+
+  private static final DigestHashFunction DIGEST_FUNCTION = DigestHashFunction.SHA256;
+
+  private static final ImmutableList<Inclusion> INCLUSIONS =
+      ImmutableList.of(
+          new Inclusion("foo/bar.h", Kind.QUOTE),
+          new Inclusion("vector", Kind.ANGLE),
+          new Inclusion("limits.h", Kind.NEXT_ANGLE));
+
+  private Path indexDir;
+
+  @Before
+  public final void createIndexDir() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DIGEST_FUNCTION);
+    indexDir = fs.getPath(TestUtils.makeTempDir().getPath()).getChild("include_index");
+  }
+
+  private List<Path> segmentFiles() throws Exception {
+    List<Path> segments = new ArrayList<>();
+    for (Path path : indexDir.getDirectoryEntries()) {
+      if (path.getBaseName().endsWith(".idx")) {
+        segments.add(path);
+      }
+    }
+    return segments;
+  }
+
+  private static byte[] digest(int i) {
+    return new byte[] {(byte) i, 2, 3, 4};
+  }
+
+  @Test
+  public void returnsStoredInclusions() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNull();
+
+      index.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP))
+          .containsExactlyElementsIn(INCLUSIONS)
+          .inOrder();
+      assertThat(index.getHits()).isEqualTo(1);
+      assertThat(index.getMisses()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void returnedListIsMutable() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      index.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+
+      // The parser appends hinted inclusions to the returned list.
+      List<Inclusion> inclusions = index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP);
+      inclusions.add(new Inclusion("hinted.h", Kind.QUOTE));
+
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).hasSize(3);
+    }
+  }
+
+  @Test
+  public void entriesAreSeparatedByParserAndDigestFunction() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      index.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.SWIG)).isNull();
+      assertThat(index.get(digest(1), DigestHashFunction.SHA1, GrepIncludesFileType.CPP))
+          .isNull();
+    }
+  }
+
+  @Test
+  public void closedSegmentsAreCompactedIntoTheNextIndex() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      index.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+    }
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      index.put(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS.subList(0, 1));
+    }
+
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      assertThat(index.getSegmentCount()).isEqualTo(1);
+      assertThat(segmentFiles()).hasSize(1);
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP))
+          .containsExactlyElementsIn(INCLUSIONS)
+          .inOrder();
+      assertThat(index.get(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP))
+          .containsExactly(INCLUSIONS.get(0));
+    }
+  }
+
+  @Test
+  public void segmentsOfOpenIndicesAreMapped() throws Exception {
+    try (IncludeIndex first = new IncludeIndex(indexDir)) {
+      first.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+
+      try (IncludeIndex second = new IncludeIndex(indexDir)) {
+        assertThat(second.getSegmentCount()).isEqualTo(2);
+        assertThat(second.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP))
+            .containsExactlyElementsIn(INCLUSIONS)
+            .inOrder();
+        // Entries added to the first index later are not seen by the second one.
+        first.put(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+        assertThat(second.get(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNull();
+      }
+    }
+  }
+
+  @Test
+  public void ignoresTruncatedRecord() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      index.put(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+      index.put(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+    }
+    Path segment = segmentFiles().get(0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.getPathFile(), "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    try (IncludeIndex index = new IncludeIndex(indexDir)) {
+      assertThat(index.get(digest(1), DIGEST_FUNCTION, GrepIncludesFileType.CPP))
+          .containsExactlyElementsIn(INCLUSIONS);
+      assertThat(index.get(digest(2), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNull();
+    }
+  }
+
+  @Test
+  public void fullIndexDropsNewEntries() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir, 200)) {
+      for (int i = 0; i < 10; i++) {
+        index.put(digest(i), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+      }
+
+      assertThat(index.get(digest(0), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNotNull();
+      assertThat(index.get(digest(9), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNull();
+      assertThat(segmentFiles().get(0).getFileSize()).isAtMost(200L);
+    }
+  }
+
+  @Test
+  public void compactionKeepsTheMostRecentEntries() throws Exception {
+    try (IncludeIndex index = new IncludeIndex(indexDir, 1000)) {
+      for (int i = 0; i < 10; i++) {
+        index.put(digest(i), DIGEST_FUNCTION, GrepIncludesFileType.CPP, INCLUSIONS);
+      }
+    }
+
+    try (IncludeIndex index = new IncludeIndex(indexDir, 1000)) {
+      assertThat(segmentFiles().get(0).getFileSize()).isAtMost(500L);
+      assertThat(index.get(digest(0), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNull();
+      assertThat(index.get(digest(9), DIGEST_FUNCTION, GrepIncludesFileType.CPP)).isNotNull();
+    }
+  }
+}
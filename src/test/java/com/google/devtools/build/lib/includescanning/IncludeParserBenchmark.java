@@ -0,0 +1,128 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.includescanning.IncludeParser.GrepIncludesFileType;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for extracting the inclusions of a synthetic tree of headers: by reading each header
+ * into the heap, by reading large headers through memory mapping, and by looking the inclusions up
+ * in a populated {@link IncludeIndex}, as after a server restart.
+ */
+public class IncludeParserBenchmark {
+  /** How the inclusions of a header are obtained. */
+  enum Source {
+    READ,
+    READ_OR_MAP,
+    INDEX
+  }
+
+  @Param({"100000"})
+  int headers;
+
+  @Param({"READ", "READ_OR_MAP", "INDEX"})
+  Source source;
+
+  private static final DigestHashFunction DIGEST_FUNCTION = DigestHashFunction.SHA256;
+
+  private final IncludeParser parser = new IncludeParser(/*hints=*/ null);
+  private final List<Path> files = new ArrayList<>();
+  private final List<byte[]> digests = new ArrayList<>();
+  private Path root;
+  private IncludeIndex index;
+
+  @BeforeExperiment
+  void createHeaders() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DIGEST_FUNCTION);
+    root = fs.getPath(TestUtils.makeTempDir().getPath());
+    for (int h = 0; h < headers; h++) {
+      Path file = root.getRelative("dir" + (h % 1000)).getChild("header" + h + ".h");
+      file.getParentDirectory().createDirectoryAndParents();
+      FileSystemUtils.writeContent(file, headerContents(h).getBytes(ISO_8859_1));
+      files.add(file);
+      digests.add(file.getDigest());
+    }
+    // The index is populated by a previous server, and compacted when it is opened again.
+    try (IncludeIndex previous = new IncludeIndex(root.getChild("index"))) {
+      for (int h = 0; h < headers; h++) {
+        previous.put(
+            digests.get(h),
+            DIGEST_FUNCTION,
+            GrepIncludesFileType.CPP,
+            parser.extractInclusions(IncludeParser.readContents(files.get(h))));
+      }
+    }
+    index = new IncludeIndex(root.getChild("index"));
+  }
+
+  /**
+   * Returns a header with a few inclusions and declarations. One in a hundred headers is large
+   * enough to be memory-mapped, like generated or amalgamated headers.
+   */
+  private static String headerContents(int h) {
+    StringBuilder contents = new StringBuilder("#pragma once\n");
+    for (int i = 0; i < 10; i++) {
+      contents.append("#include \"dir").append((h + i) % 1000).append("/header").append(i);
+      contents.append(".h\"\n");
+    }
+    contents.append("#include <vector>\n#include <string>\n");
+    int declarations = h % 100 == 0 ? 4000 : 40;
+    for (int i = 0; i < declarations; i++) {
+      contents.append("std::vector<std::string> function").append(i).append("(int argument);\n");
+    }
+    return contents.toString();
+  }
+
+  @AfterExperiment
+  void deleteHeaders() throws Exception {
+    index.close();
+    root.deleteTree();
+  }
+
+  @Benchmark
+  int extractInclusions(int reps) throws Exception {
+    int inclusions = 0;
+    for (int i = 0; i < reps; i++) {
+      for (int h = 0; h < headers; h++) {
+        switch (source) {
+          case READ:
+            inclusions +=
+                parser.extractInclusions(FileSystemUtils.readContent(files.get(h))).size();
+            break;
+          case READ_OR_MAP:
+            inclusions += parser.extractInclusions(IncludeParser.readContents(files.get(h))).size();
+            break;
+          case INDEX:
+            inclusions +=
+                index.get(digests.get(h), DIGEST_FUNCTION, GrepIncludesFileType.CPP).size();
+            break;
+        }
+      }
+    }
+    return inclusions;
+  }
+}
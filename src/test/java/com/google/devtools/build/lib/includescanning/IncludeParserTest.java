@@ -0,0 +1,96 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IncludeParser}. */
+@RunWith(JUnit4.class)
+public class IncludeParserTest {
+
+  private final IncludeParser parser = new IncludeParser(/*hints=*/ null);
+
+  @Test
+  public void extractsInclusions() {
+    String contents =
+        "#include \"foo/bar.h\"\n"
+            + "  #  include <vector>\n"
+            + "#include_next <limits.h>\n"
+            + "#import \"objc.h\"\n"
+            + "#if __has_include(<optional>)\n"
+            + "#include \"/absolute.h\"\n"
+            + "int x; // #include \"not_an_include.h\"\n";
+
+    assertThat(parser.extractInclusions(contents.getBytes(ISO_8859_1)))
+        .containsExactly(
+            new Inclusion("foo/bar.h", Kind.QUOTE),
+            new Inclusion("vector", Kind.ANGLE),
+            new Inclusion("limits.h", Kind.NEXT_ANGLE),
+            new Inclusion("objc.h", Kind.QUOTE),
+            new Inclusion("optional", Kind.ANGLE))
+        .inOrder();
+  }
+
+  @Test
+  public void toleratesBackslashAtEndOfFile() {
+    assertThat(parser.extractInclusions("#include \"a.h\"\n#define X \\".getBytes(ISO_8859_1)))
+        .containsExactly(new Inclusion("a.h", Kind.QUOTE));
+  }
+
+  @Test
+  public void readsSmallAndInMemoryFilesIntoTheHeap() throws Exception {
+    Path file = new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/a.h");
+    FileSystemUtils.writeContent(file, "#include \"b.h\"\n".getBytes(ISO_8859_1));
+
+    ByteBuffer contents = IncludeParser.readContents(file);
+
+    assertThat(contents.isDirect()).isFalse();
+    assertThat(parser.extractInclusions(contents))
+        .containsExactly(new Inclusion("b.h", Kind.QUOTE));
+  }
+
+  @Test
+  public void mapsLargeNativeFiles() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    Path file = fs.getPath(TestUtils.makeTempDir().getPath()).getChild("large.h");
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; contents.length() < 256 * 1024; i++) {
+      contents.append("#include \"dir/header").append(i).append(".h\"\n");
+      contents.append("int function").append(i).append("(int argument);\n");
+    }
+    FileSystemUtils.writeContent(file, contents.toString().getBytes(ISO_8859_1));
+
+    ByteBuffer mapped = IncludeParser.readContents(file);
+
+    assertThat(mapped.isDirect()).isTrue();
+    assertThat(parser.extractInclusions(mapped))
+        .containsExactlyElementsIn(
+            parser.extractInclusions(contents.toString().getBytes(ISO_8859_1)))
+        .inOrder();
+  }
+}
@@ -72,6 +72,47 @@ public class AttributeContainerTest {
     assertThat(container.isAttributeValueExplicitlySpecified(attribute2)).isFalse();
   }
 
+  @Test
+  public void testDefaultValuesAreNotStored() throws Exception {
+    Object someValue = new Object();
+    assertThat(container.getAttr(attribute1.getName()))
+        .isSameInstanceAs(attribute1.getDefaultValueUnchecked());
+
+    container.setAttributeValue(attribute1, someValue, false);
+    container.setAttributeValue(attribute2, attribute2.getDefaultValueUnchecked(), true);
+    assertThat(container.getStoredValueCount()).isEqualTo(1);
+    assertThat(container.getAttr(attribute1.getName())).isSameInstanceAs(someValue);
+    assertThat(container.getAttr(attribute2.getName()))
+        .isSameInstanceAs(attribute2.getDefaultValueUnchecked());
+    assertThat(container.isAttributeValueExplicitlySpecified(attribute2)).isTrue();
+
+    container.setAttributeValue(attribute1, attribute1.getDefaultValueUnchecked(), false);
+    assertThat(container.getStoredValueCount()).isEqualTo(0);
+    assertThat(container.getAttr(attribute1.getName()))
+        .isSameInstanceAs(attribute1.getDefaultValueUnchecked());
+  }
+
+  @Test
+  public void testStoredValues() throws Exception {
+    int numAttributes = ruleClass.getAttributeCount();
+    Object[] values = new Object[numAttributes];
+    // Set every other attribute, then reset some of them to their default value.
+    for (int i = 0; i < numAttributes; i += 2) {
+      values[i] = new Object();
+      container.setAttributeValue(ruleClass.getAttribute(i), values[i], false);
+    }
+    for (int i = 0; i < numAttributes; i += 6) {
+      values[i] = null;
+      container.setAttributeValue(
+          ruleClass.getAttribute(i), ruleClass.getAttribute(i).getDefaultValueUnchecked(), false);
+    }
+    for (int i = 0; i < numAttributes; ++i) {
+      Object expected =
+          values[i] != null ? values[i] : ruleClass.getAttribute(i).getDefaultValueUnchecked();
+      assertThat(container.getAttributeValue(i)).isSameInstanceAs(expected);
+    }
+  }
+
   @Test
   public void testPackedState() throws Exception {
     Random rng = new Random();
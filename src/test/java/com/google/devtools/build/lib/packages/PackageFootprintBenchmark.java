@@ -0,0 +1,94 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.packages;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.api.Footprint;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the heap footprint of the rules of a synthetic set of packages, and for the time
+ * it takes to load them. Each package defines libraries, binaries and tests with the kind of
+ * attribute values that repeat across a large repository: tags, visibility, copts and
+ * dependencies on common targets.
+ */
+public class PackageFootprintBenchmark {
+
+  @Param({"100"})
+  int packages;
+
+  @Param({"50"})
+  int rulesPerPackage;
+
+  private final Scratch scratch =
+      new Scratch(new InMemoryFileSystem(DigestHashFunction.SHA256), "/workspace");
+  private final PackageFactoryApparatus factory =
+      new PackageFactoryApparatus(new EventCollectionApparatus().reporter());
+  private final List<RootedPath> buildFiles = new ArrayList<>();
+
+  @BeforeExperiment
+  void writeBuildFiles() throws Exception {
+    Root root = Root.fromPath(scratch.dir(""));
+    for (int p = 0; p < packages; p++) {
+      StringBuilder content = new StringBuilder();
+      for (int r = 0; r < rulesPerPackage; r++) {
+        String kind = r % 10 == 0 ? "cc_test" : r % 5 == 0 ? "cc_binary" : "cc_library";
+        content
+            .append(kind)
+            .append("(name = 'r")
+            .append(r)
+            .append("', srcs = ['r")
+            .append(r)
+            .append(".cc'], deps = ['//base', '//base:logging'")
+            .append(r > 0 ? ", ':r" + (r - 1) + "'" : "")
+            .append("], copts = ['-Wall', '-Werror'], tags = ['manual'],")
+            .append(" visibility = ['//visibility:public'])\n");
+      }
+      Path buildFile = scratch.file("pkg" + p + "/BUILD", content.toString());
+      buildFiles.add(RootedPath.toRootedPath(root, buildFile));
+    }
+  }
+
+  private List<Package> loadPackages() throws Exception {
+    List<Package> result = new ArrayList<>();
+    for (int p = 0; p < packages; p++) {
+      result.add(factory.createPackage("pkg" + p, buildFiles.get(p)));
+    }
+    return result;
+  }
+
+  @Benchmark
+  void loadPackages(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      loadPackages();
+    }
+  }
+
+  @Footprint
+  public List<Package> packageFootprint() throws Exception {
+    return loadPackages();
+  }
+}
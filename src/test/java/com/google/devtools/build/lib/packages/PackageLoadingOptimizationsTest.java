@@ -55,6 +55,42 @@ public class PackageLoadingOptimizationsTest extends PackageLoadingTestCase {
     }
   }
 
+  @Test
+  public void attributeListValuesAreDedupedAcrossPackages() throws Exception {
+    scratch.file("foo/BUILD", "sh_library(name = 't', deps = ['//other:a'], tags = ['manual'])");
+    scratch.file("bar/BUILD", "sh_library(name = 't', deps = ['//other:a'], tags = ['manual'])");
+
+    Rule foo =
+        getPackageManager()
+            .getPackage(NullEventHandler.INSTANCE, PackageIdentifier.createInMainRepo("foo"))
+            .getRule("t");
+    Rule bar =
+        getPackageManager()
+            .getPackage(NullEventHandler.INSTANCE, PackageIdentifier.createInMainRepo("bar"))
+            .getRule("t");
+
+    assertThat(bar.getAttributeContainer().getAttr("deps"))
+        .isSameInstanceAs(foo.getAttributeContainer().getAttr("deps"));
+    assertThat(bar.getAttributeContainer().getAttr("tags"))
+        .isSameInstanceAs(foo.getAttributeContainer().getAttr("tags"));
+  }
+
+  @Test
+  public void defaultAttributeValuesAreNotStoredPerRule() throws Exception {
+    scratch.file("foo/BUILD", "sh_library(name = 't', deps = ['//other:a'])");
+
+    Rule rule =
+        getPackageManager()
+            .getPackage(NullEventHandler.INSTANCE, PackageIdentifier.createInMainRepo("foo"))
+            .getRule("t");
+
+    AttributeContainer attributes = rule.getAttributeContainer();
+    // Only the attributes that were set, or whose default depends on the package, are stored.
+    assertThat(attributes.getStoredValueCount())
+        .isLessThan(rule.getRuleClassObject().getAttributeCount() / 2);
+    assertThat(attributes.getAttr("srcs")).isEqualTo(ImmutableList.of());
+  }
+
   @Test
   public void testRuntimeListValueIsDedupedAcrossRuleClasses() throws Exception {
     scratch.file(
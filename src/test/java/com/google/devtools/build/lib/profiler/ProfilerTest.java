@@ -26,19 +26,25 @@ import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.profiler.Profiler.SlowTask;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
+import com.google.devtools.build.lib.profiler.output.JsonTraceConverter;
 import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
 import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -422,6 +428,109 @@ public class ProfilerTest {
     assertThat(info.allTasksById).hasSize(4 + 10000 + 10000); // total number of tasks
   }
 
+  private ByteArrayOutputStream startWithBuffer(int bufferSize, Profiler.OverflowPolicy policy)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    profiler.start(
+        getAllProfilerTasks(),
+        buffer,
+        BINARY_BAZEL_FORMAT,
+        "test",
+        "dummy_output_base",
+        UUID.randomUUID(),
+        false,
+        BlazeClock.instance(),
+        BlazeClock.nanoTime(),
+        /* enabledCpuUsageProfiling= */ false,
+        /* slimProfile= */ false,
+        /* enableActionCountProfile= */ false,
+        bufferSize,
+        policy);
+    return buffer;
+  }
+
+  private static Thread logEventsInNewThread(int count) {
+    Thread thread =
+        new Thread(
+            () -> {
+              for (int i = 0; i < count; i++) {
+                Profiler.instance().logEvent(ProfilerTask.INFO, "event");
+              }
+            });
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testBlockingOverflowPolicyKeepsAllTasks() throws Exception {
+    ByteArrayOutputStream buffer = startWithBuffer(2, Profiler.OverflowPolicy.BLOCK);
+    Thread thread1 = logEventsInNewThread(1000);
+    Thread thread2 = logEventsInNewThread(1000);
+    thread1.join();
+    thread2.join();
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(new ByteArrayInputStream(buffer.toByteArray()));
+    info.calculateStats();
+    assertThat(info.allTasksById).hasSize(1000 + 1000 + 1); // total number of tasks
+  }
+
+  @Test
+  public void testDroppingOverflowPolicyWritesValidProfile() throws Exception {
+    ByteArrayOutputStream buffer = startWithBuffer(2, Profiler.OverflowPolicy.DROP);
+    Thread thread = logEventsInNewThread(10000);
+    thread.join();
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(new ByteArrayInputStream(buffer.toByteArray()));
+    info.calculateStats();
+    assertThat(info.isCorruptedOrIncomplete()).isFalse();
+    // How many tasks are dropped depends on scheduling, but the finalization task is never
+    // dropped because the main thread has not logged anything else.
+    assertThat(info.allTasksById.size()).isAtMost(10000 + 1);
+    assertThat(info.allTasksById.stream().anyMatch(t -> t.getDescription().equals("Finishing")))
+        .isTrue();
+  }
+
+  @Test
+  public void testBuffersOfFinishedThreadsAreRetired() throws Exception {
+    startWithBuffer(16, Profiler.OverflowPolicy.BLOCK);
+    for (int i = 0; i < 50; i++) {
+      logEventsInNewThread(10).join();
+    }
+
+    // The writer retires the buffers when it looks for the next task after this one.
+    profiler.logEvent(ProfilerTask.INFO, "wake up the writer");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (profiler.getProfileBufferCount() > 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    // Only the buffer of this thread is left.
+    assertThat(profiler.getProfileBufferCount()).isEqualTo(1);
+    profiler.stop();
+  }
+
+  @Test
+  public void testConvertBinaryProfileToJsonTrace() throws Exception {
+    ByteArrayOutputStream buffer = start(getAllProfilerTasks(), BINARY_BAZEL_FORMAT);
+    profiler.logSimpleTask(10000, 20000, ProfilerTask.ACTION, "action task");
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(new ByteArrayInputStream(buffer.toByteArray()));
+    StringWriter json = new StringWriter();
+    JsonTraceConverter.write(info, json);
+
+    JsonObject trace = new JsonParser().parse(json.toString()).getAsJsonObject();
+    JsonArray events = trace.getAsJsonArray("traceEvents");
+    assertThat(events).hasSize(info.allTasksById.size());
+    JsonObject event = events.get(0).getAsJsonObject();
+    assertThat(event.get("name").getAsString()).isEqualTo("action task");
+    assertThat(event.get("cat").getAsString()).isEqualTo(ProfilerTask.ACTION.description);
+    assertThat(event.get("ph").getAsString()).isEqualTo("X");
+    assertThat(event.get("dur").getAsLong()).isEqualTo(10);
+    assertThat(event.get("tid").getAsLong()).isEqualTo(Thread.currentThread().getId());
+  }
+
   @Test
   public void testPhaseTasks() throws Exception {
     ByteArrayOutputStream buffer = start(getAllProfilerTasks(), BINARY_BAZEL_FORMAT);
@@ -0,0 +1,83 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SingleProducerRingBuffer}. */
+@RunWith(JUnit4.class)
+public class SingleProducerRingBufferTest {
+
+  @Test
+  public void capacityIsRoundedUpToPowerOfTwo() {
+    assertThat(new SingleProducerRingBuffer<Integer>(1).capacity()).isEqualTo(1);
+    assertThat(new SingleProducerRingBuffer<Integer>(5).capacity()).isEqualTo(8);
+    assertThat(new SingleProducerRingBuffer<Integer>(8).capacity()).isEqualTo(8);
+  }
+
+  @Test
+  public void offerFailsWhenFull() {
+    SingleProducerRingBuffer<Integer> buffer = new SingleProducerRingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertThat(buffer.offer(i)).isTrue();
+    }
+    assertThat(buffer.offer(4)).isFalse();
+    assertThat(buffer.size()).isEqualTo(4);
+
+    assertThat(buffer.poll()).isEqualTo(0);
+    assertThat(buffer.offer(4)).isTrue();
+    assertThat(buffer.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void elementsArePolledInOrder() {
+    SingleProducerRingBuffer<Integer> buffer = new SingleProducerRingBuffer<>(2);
+    for (int i = 0; i < 10; i++) {
+      assertThat(buffer.offer(i)).isTrue();
+      assertThat(buffer.poll()).isEqualTo(i);
+    }
+    assertThat(buffer.poll()).isNull();
+    assertThat(buffer.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void producerAndConsumerInDifferentThreads() throws Exception {
+    SingleProducerRingBuffer<Integer> buffer = new SingleProducerRingBuffer<>(16);
+    int count = 100000;
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < count; i++) {
+                while (!buffer.offer(i)) {
+                  Thread.yield();
+                }
+              }
+            });
+    producer.start();
+    for (int expected = 0; expected < count; ) {
+      Integer element = buffer.poll();
+      if (element == null) {
+        Thread.yield();
+      } else {
+        assertThat(element).isEqualTo(expected++);
+      }
+    }
+    producer.join();
+    assertThat(buffer.poll()).isNull();
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2015 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.devtools.build.lib.remote.ContentDefinedChunker.Chunk;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentDefinedChunker}. */
+@RunWith(JUnit4.class)
+public class ContentDefinedChunkerTest {
+
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+  private static final int AVERAGE_SIZE = 4096;
+
+  private final ContentDefinedChunker chunker =
+      new ContentDefinedChunker(DIGEST_UTIL, AVERAGE_SIZE);
+
+  private static byte[] randomContents(int size) {
+    byte[] contents = new byte[size];
+    new Random(42).nextBytes(contents);
+    return contents;
+  }
+
+  private ImmutableList<Chunk> chunk(byte[] contents) throws IOException {
+    return chunker.chunk(new ByteArrayInputStream(contents));
+  }
+
+  private static List<Digest> digests(List<Chunk> chunks) {
+    List<Digest> digests = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      digests.add(chunk.getDigest());
+    }
+    return digests;
+  }
+
+  @Test
+  public void emptyInputHasNoChunks() throws Exception {
+    assertThat(chunk(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void smallInputIsOneChunk() throws Exception {
+    byte[] contents = randomContents(AVERAGE_SIZE / 8);
+    ImmutableList<Chunk> chunks = chunk(contents);
+    assertThat(chunks).hasSize(1);
+    assertThat(chunks.get(0).getOffset()).isEqualTo(0);
+    assertThat(chunks.get(0).getDigest()).isEqualTo(DIGEST_UTIL.compute(contents));
+  }
+
+  @Test
+  public void chunksCoverInputWithinSizeBounds() throws Exception {
+    byte[] contents = randomContents(100 * AVERAGE_SIZE + 17);
+    ImmutableList<Chunk> chunks = chunk(contents);
+
+    long offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      Chunk chunk = chunks.get(i);
+      long size = chunk.getDigest().getSizeBytes();
+      assertThat(chunk.getOffset()).isEqualTo(offset);
+      assertThat(size).isAtMost(4L * AVERAGE_SIZE);
+      if (i < chunks.size() - 1) {
+        assertThat(size).isAtLeast(AVERAGE_SIZE / 4L);
+      }
+      byte[] data = Arrays.copyOfRange(contents, (int) offset, (int) (offset + size));
+      assertThat(chunk.getDigest()).isEqualTo(DIGEST_UTIL.compute(data));
+      offset += size;
+    }
+    assertThat(offset).isEqualTo(contents.length);
+    // Sizes cluster around the average.
+    assertThat(chunks.size()).isIn(Range.closed(50, 200));
+  }
+
+  @Test
+  public void chunksDoNotDependOnReadSizes() throws Exception {
+    byte[] contents = randomContents(50 * AVERAGE_SIZE);
+    InputStream trickle =
+        new ByteArrayInputStream(contents) {
+          @Override
+          public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 7));
+          }
+        };
+    assertThat(chunker.chunk(trickle)).hasSize(chunk(contents).size());
+    assertThat(digests(chunker.chunk(new ByteArrayInputStream(contents))))
+        .isEqualTo(digests(chunk(contents)));
+  }
+
+  @Test
+  public void maximumSizeChunksForUniformInput() throws Exception {
+    ImmutableList<Chunk> chunks = chunk(new byte[10 * AVERAGE_SIZE]);
+    // The gear hash of a run of zeros never matches the mask, so all chunks have the maximum size.
+    assertThat(chunks).hasSize(3);
+    assertThat(chunks.get(0).getDigest()).isEqualTo(chunks.get(1).getDigest());
+    assertThat(chunks.get(2).getDigest().getSizeBytes()).isEqualTo(2 * AVERAGE_SIZE);
+  }
+
+  @Test
+  public void localEditsOnlyChangeNearbyChunks() throws Exception {
+    byte[] contents = randomContents(100 * AVERAGE_SIZE);
+    Set<Digest> original = new HashSet<>(digests(chunk(contents)));
+
+    byte[] modified = contents.clone();
+    modified[modified.length / 2]++;
+    assertThat(countNew(digests(chunk(modified)), original)).isAtMost(2);
+
+    byte[] inserted = new byte[contents.length + 100];
+    System.arraycopy(contents, 0, inserted, 0, contents.length / 3);
+    System.arraycopy(
+        contents,
+        contents.length / 3,
+        inserted,
+        contents.length / 3 + 100,
+        contents.length - contents.length / 3);
+    assertThat(countNew(digests(chunk(inserted)), original)).isAtMost(2);
+  }
+
+  private static int countNew(List<Digest> digests, Set<Digest> original) {
+    int count = 0;
+    for (Digest digest : digests) {
+      if (!original.contains(digest)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
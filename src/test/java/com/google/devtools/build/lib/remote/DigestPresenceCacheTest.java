@@ -0,0 +1,156 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DigestPresenceCache}. */
+@RunWith(JUnit4.class)
+public class DigestPresenceCacheTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  private final Digest a = DIGEST_UTIL.computeAsUtf8("a");
+  private final Digest b = DIGEST_UTIL.computeAsUtf8("b");
+  private final Digest c = DIGEST_UTIL.computeAsUtf8("c");
+
+  /** Records the lookups and lets the test complete them. */
+  private static final class FakeFinder implements MissingDigestsFinder {
+    final List<ImmutableList<Digest>> lookups = new ArrayList<>();
+    final List<SettableFuture<ImmutableSet<Digest>>> results = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(Iterable<Digest> digests) {
+      lookups.add(ImmutableList.copyOf(digests));
+      SettableFuture<ImmutableSet<Digest>> result = SettableFuture.create();
+      results.add(result);
+      return result;
+    }
+  }
+
+  private static final class ManualTicker extends Ticker {
+    long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  @Test
+  public void presentDigestsAreNotLookedUpAgain() throws Exception {
+    DigestPresenceCache cache = new DigestPresenceCache(100, Duration.ofMinutes(1));
+    FakeFinder finder = new FakeFinder();
+
+    ListenableFuture<ImmutableSet<Digest>> first =
+        cache.findMissingDigests(ImmutableList.of(a, b, a), finder);
+    finder.results.get(0).set(ImmutableSet.of(b));
+    assertThat(first.get()).containsExactly(b);
+
+    ListenableFuture<ImmutableSet<Digest>> second =
+        cache.findMissingDigests(ImmutableList.of(a, b, c), finder);
+    finder.results.get(1).set(ImmutableSet.of(b));
+    assertThat(second.get()).containsExactly(b);
+
+    assertThat(finder.lookups)
+        .containsExactly(ImmutableList.of(a, b), ImmutableList.of(b, c))
+        .inOrder();
+    assertThat(cache.getLookedUpDigests()).isEqualTo(4);
+    assertThat(cache.getSavedDigests()).isEqualTo(1);
+  }
+
+  @Test
+  public void concurrentLookupsAreShared() throws Exception {
+    DigestPresenceCache cache = new DigestPresenceCache(100, Duration.ofMinutes(1));
+    FakeFinder finder = new FakeFinder();
+
+    ListenableFuture<ImmutableSet<Digest>> first =
+        cache.findMissingDigests(ImmutableList.of(a, b), finder);
+    ListenableFuture<ImmutableSet<Digest>> second =
+        cache.findMissingDigests(ImmutableList.of(b, c), finder);
+    assertThat(finder.lookups)
+        .containsExactly(ImmutableList.of(a, b), ImmutableList.of(c))
+        .inOrder();
+
+    finder.results.get(1).set(ImmutableSet.of());
+    // The second lookup waits for the first one to learn about b.
+    assertThat(second.isDone()).isFalse();
+    finder.results.get(0).set(ImmutableSet.of(b));
+    assertThat(first.get()).containsExactly(b);
+    assertThat(second.get()).containsExactly(b);
+    assertThat(cache.getSavedDigests()).isEqualTo(1);
+  }
+
+  @Test
+  public void failedLookupsAreShared() throws Exception {
+    DigestPresenceCache cache = new DigestPresenceCache(100, Duration.ofMinutes(1));
+    FakeFinder finder = new FakeFinder();
+
+    ListenableFuture<ImmutableSet<Digest>> first =
+        cache.findMissingDigests(ImmutableList.of(a), finder);
+    ListenableFuture<ImmutableSet<Digest>> second =
+        cache.findMissingDigests(ImmutableList.of(a), finder);
+    IOException failure = new IOException("unavailable");
+    finder.results.get(0).setException(failure);
+
+    assertThat(assertThrows(ExecutionException.class, first::get))
+        .hasCauseThat()
+        .isSameInstanceAs(failure);
+    assertThat(assertThrows(ExecutionException.class, second::get))
+        .hasCauseThat()
+        .isSameInstanceAs(failure);
+
+    // The next caller looks the digest up again.
+    cache.findMissingDigests(ImmutableList.of(a), finder);
+    assertThat(finder.lookups).hasSize(2);
+  }
+
+  @Test
+  public void expiredAndInvalidatedDigestsAreLookedUpAgain() throws Exception {
+    ManualTicker ticker = new ManualTicker();
+    DigestPresenceCache cache = new DigestPresenceCache(100, Duration.ofMinutes(1), ticker);
+    FakeFinder finder = new FakeFinder();
+    cache.findMissingDigests(ImmutableList.of(a, b), finder);
+    finder.results.get(0).set(ImmutableSet.of());
+
+    cache.invalidateAll(ImmutableList.of(a));
+    cache.findMissingDigests(ImmutableList.of(a, b), finder);
+    finder.results.get(1).set(ImmutableSet.of());
+    ticker.nanos += Duration.ofMinutes(2).toNanos();
+    cache.findMissingDigests(ImmutableList.of(a, b), finder);
+
+    assertThat(finder.lookups)
+        .containsExactly(ImmutableList.of(a, b), ImmutableList.of(a), ImmutableList.of(a, b))
+        .inOrder();
+  }
+}
@@ -49,6 +49,7 @@ import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -59,9 +60,13 @@ import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.RemoteRetrier.ExponentialBackoff;
 import com.google.devtools.build.lib.remote.Retrier.Backoff;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
+import com.google.devtools.build.lib.remote.splice.RemoteSplice.SpliceBlobRequest;
+import com.google.devtools.build.lib.remote.splice.RemoteSplice.SpliceBlobResponse;
+import com.google.devtools.build.lib.remote.splice.SpliceGrpc.SpliceImplBase;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.StringActionInput;
 import com.google.devtools.build.lib.remote.util.TestUtils;
@@ -76,6 +81,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.common.options.Options;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
 import io.grpc.BindableService;
 import io.grpc.CallCredentials;
 import io.grpc.CallOptions;
@@ -98,11 +104,18 @@ import io.grpc.util.MutableHandlerRegistry;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -201,6 +214,14 @@ public class GrpcCacheClientTest {
 
   private GrpcCacheClient newClient(RemoteOptions remoteOptions, Supplier<Backoff> backoffSupplier)
       throws IOException {
+    return newClient(remoteOptions, backoffSupplier, /* chunkIndex= */ null);
+  }
+
+  private GrpcCacheClient newClient(
+      RemoteOptions remoteOptions,
+      Supplier<Backoff> backoffSupplier,
+      @Nullable ChunkIndex chunkIndex)
+      throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.useGoogleDefaultCredentials = true;
     authTlsOptions.googleCredentials = "/exec/root/creds.json";
@@ -235,7 +256,13 @@ public class GrpcCacheClientTest {
             remoteOptions.remoteTimeout,
             retrier);
     return new GrpcCacheClient(
-        channel.retain(), creds, remoteOptions, retrier, DIGEST_UTIL, uploader);
+        channel.retain(),
+        creds,
+        remoteOptions,
+        retrier,
+        DIGEST_UTIL,
+        uploader,
+        chunkIndex);
   }
 
   private static byte[] downloadBlob(GrpcCacheClient cacheClient, Digest digest)
@@ -1149,6 +1176,278 @@ public class GrpcCacheClientTest {
     assertThat(downloadBlob(client, digest)).isEqualTo(downloadContents.toByteArray());
   }
 
+  /** A CAS that stores blobs in memory and supports splicing them from chunks. */
+  private static class FakeSplicingCas extends ContentAddressableStorageImplBase {
+    private final Map<Digest, ByteString> blobs;
+    final List<Digest> requestedDigests = Collections.synchronizedList(new ArrayList<>());
+    final List<SpliceBlobRequest> spliceRequests = Collections.synchronizedList(new ArrayList<>());
+    final SpliceImplBase splice =
+        new SpliceImplBase() {
+          @Override
+          public void spliceBlob(
+              SpliceBlobRequest request, StreamObserver<SpliceBlobResponse> responseObserver) {
+            FakeSplicingCas.this.spliceBlob(request, responseObserver);
+          }
+        };
+
+    FakeSplicingCas(Map<Digest, ByteString> blobs) {
+      this.blobs = blobs;
+    }
+
+    @Override
+    public void findMissingBlobs(
+        FindMissingBlobsRequest request,
+        StreamObserver<FindMissingBlobsResponse> responseObserver) {
+      FindMissingBlobsResponse.Builder response = FindMissingBlobsResponse.newBuilder();
+      for (Digest digest : request.getBlobDigestsList()) {
+        requestedDigests.add(digest);
+        if (!blobs.containsKey(digest)) {
+          response.addMissingBlobDigests(digest);
+        }
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+
+    private void spliceBlob(
+        SpliceBlobRequest request, StreamObserver<SpliceBlobResponse> responseObserver) {
+      spliceRequests.add(request);
+      ByteString blob = ByteString.EMPTY;
+      for (Digest chunkDigest : request.getChunkDigestsList()) {
+        ByteString chunk = blobs.get(chunkDigest);
+        if (chunk == null) {
+          responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+          return;
+        }
+        blob = blob.concat(chunk);
+      }
+      if (!DIGEST_UTIL.compute(blob.toByteArray()).equals(request.getBlobDigest())) {
+        responseObserver.onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        return;
+      }
+      blobs.put(request.getBlobDigest(), blob);
+      responseObserver.onNext(
+          SpliceBlobResponse.newBuilder().setBlobDigest(request.getBlobDigest()).build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  /** A byte stream that stores all written blobs in memory. */
+  private static class FakeByteStreamWrites extends ByteStreamImplBase {
+    private final Map<Digest, ByteString> blobs;
+    final AtomicInteger numWrites = new AtomicInteger();
+
+    FakeByteStreamWrites(Map<Digest, ByteString> blobs) {
+      this.blobs = blobs;
+    }
+
+    @Override
+    public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> responseObserver) {
+      numWrites.incrementAndGet();
+      return new StreamObserver<WriteRequest>() {
+        private ByteString data = ByteString.EMPTY;
+
+        @Override
+        public void onNext(WriteRequest request) {
+          data = data.concat(request.getData());
+        }
+
+        @Override
+        public void onCompleted() {
+          blobs.put(DIGEST_UTIL.compute(data.toByteArray()), data);
+          responseObserver.onNext(WriteResponse.newBuilder().setCommittedSize(data.size()).build());
+          responseObserver.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          fail("An error occurred: " + t);
+        }
+      };
+    }
+  }
+
+  private GrpcCacheClient newChunkingClient(ChunkIndex chunkIndex) throws IOException {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.remoteCacheChunkingThreshold = 1;
+    Chunker.setDefaultChunkSizeForTesting(64 * 1024);
+    return newClient(
+        remoteOptions,
+        () -> new ExponentialBackoff(remoteOptions),
+        chunkIndex);
+  }
+
+  private static byte[] randomContents(int size) {
+    byte[] contents = new byte[size];
+    new Random(42).nextBytes(contents);
+    return contents;
+  }
+
+  @Test
+  public void testUploadFileInChunksOnlyUploadsChangedChunks() throws Exception {
+    Map<Digest, ByteString> blobs = new ConcurrentHashMap<>();
+    FakeSplicingCas cas = new FakeSplicingCas(blobs);
+    FakeByteStreamWrites byteStream = new FakeByteStreamWrites(blobs);
+    serviceRegistry.addService(cas);
+    serviceRegistry.addService(cas.splice);
+    serviceRegistry.addService(byteStream);
+    GrpcCacheClient client = newChunkingClient(new ChunkIndex(1000));
+
+    byte[] contents = randomContents(8 * ContentDefinedChunker.DEFAULT_AVERAGE_CHUNK_SIZE);
+    Path file = execRoot.getRelative("large");
+    FileSystemUtils.writeContent(file, contents);
+    Digest digest = DIGEST_UTIL.compute(contents);
+    getFromFuture(client.uploadFile(digest, file));
+
+    assertThat(blobs.get(digest)).isEqualTo(ByteString.copyFrom(contents));
+    assertThat(cas.spliceRequests).hasSize(1);
+    List<Digest> chunkDigests = cas.spliceRequests.get(0).getChunkDigestsList();
+    assertThat(chunkDigests.size()).isGreaterThan(1);
+    assertThat(byteStream.numWrites.get()).isEqualTo(chunkDigests.size());
+
+    // Change a single byte in the middle of the file.
+    cas.requestedDigests.clear();
+    byteStream.numWrites.set(0);
+    contents[contents.length / 2]++;
+    FileSystemUtils.writeContent(file, contents);
+    Digest newDigest = DIGEST_UTIL.compute(contents);
+    getFromFuture(client.uploadFile(newDigest, file));
+
+    assertThat(blobs.get(newDigest)).isEqualTo(ByteString.copyFrom(contents));
+    assertThat(cas.spliceRequests).hasSize(2);
+    // The chunk index knows the unchanged chunks, so only the changed ones are looked up.
+    assertThat(cas.requestedDigests.size()).isAtMost(2);
+    assertThat(cas.requestedDigests).containsNoneIn(chunkDigests);
+    assertThat(byteStream.numWrites.get()).isEqualTo(cas.requestedDigests.size());
+  }
+
+  @Test
+  public void testUploadFileInChunksFallsBackWhenChunksWereEvicted() throws Exception {
+    Map<Digest, ByteString> blobs = new ConcurrentHashMap<>();
+    FakeSplicingCas cas = new FakeSplicingCas(blobs);
+    FakeByteStreamWrites byteStream = new FakeByteStreamWrites(blobs);
+    serviceRegistry.addService(cas);
+    serviceRegistry.addService(cas.splice);
+    serviceRegistry.addService(byteStream);
+    ChunkIndex chunkIndex = new ChunkIndex(1000);
+    GrpcCacheClient client = newChunkingClient(chunkIndex);
+
+    byte[] contents = randomContents(4 * ContentDefinedChunker.DEFAULT_AVERAGE_CHUNK_SIZE);
+    Path file = execRoot.getRelative("large");
+    FileSystemUtils.writeContent(file, contents);
+    Digest digest = DIGEST_UTIL.compute(contents);
+    getFromFuture(client.uploadFile(digest, file));
+    List<Digest> chunkDigests = cas.spliceRequests.get(0).getChunkDigestsList();
+
+    // The remote cache evicts everything, but the chunk index still believes the chunks exist.
+    blobs.clear();
+    byteStream.numWrites.set(0);
+    getFromFuture(client.uploadFile(digest, file));
+
+    assertThat(blobs.get(digest)).isEqualTo(ByteString.copyFrom(contents));
+    assertThat(byteStream.numWrites.get()).isEqualTo(1);
+    for (Digest chunkDigest : chunkDigests) {
+      assertThat(chunkIndex.contains(chunkDigest)).isFalse();
+    }
+  }
+
+  @Test
+  public void testUploadFileInChunksFallsBackWhenSplicingIsUnimplemented() throws Exception {
+    Map<Digest, ByteString> blobs = new ConcurrentHashMap<>();
+    FakeSplicingCas cas = new FakeSplicingCas(blobs);
+    FakeByteStreamWrites byteStream = new FakeByteStreamWrites(blobs);
+    // The Splice service is not registered.
+    serviceRegistry.addService(cas);
+    serviceRegistry.addService(byteStream);
+    ChunkIndex chunkIndex = new ChunkIndex(1000);
+    GrpcCacheClient client = newChunkingClient(chunkIndex);
+
+    byte[] contents = randomContents(4 * ContentDefinedChunker.DEFAULT_AVERAGE_CHUNK_SIZE);
+    Path file = execRoot.getRelative("large");
+    FileSystemUtils.writeContent(file, contents);
+    Digest digest = DIGEST_UTIL.compute(contents);
+    getFromFuture(client.uploadFile(digest, file));
+
+    assertThat(blobs.get(digest)).isEqualTo(ByteString.copyFrom(contents));
+    assertThat(chunkIndex.isSpliceSupported()).isFalse();
+
+    // Later uploads don't try to chunk the file.
+    cas.requestedDigests.clear();
+    byteStream.numWrites.set(0);
+    contents[0]++;
+    FileSystemUtils.writeContent(file, contents);
+    Digest newDigest = DIGEST_UTIL.compute(contents);
+    getFromFuture(client.uploadFile(newDigest, file));
+
+    assertThat(blobs.get(newDigest)).isEqualTo(ByteString.copyFrom(contents));
+    assertThat(cas.requestedDigests).isEmpty();
+    assertThat(byteStream.numWrites.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEnsureInputsPresentOnlyLooksUpUnknownInputs() throws Exception {
+    Command present = Command.newBuilder().addArguments("present").build();
+    Command missing = Command.newBuilder().addArguments("missing").build();
+    Digest presentDigest = DIGEST_UTIL.compute(present);
+    Digest missingDigest = DIGEST_UTIL.compute(missing);
+    Map<Digest, ByteString> blobs = new ConcurrentHashMap<>();
+    blobs.put(presentDigest, present.toByteString());
+    List<List<Digest>> requests = Collections.synchronizedList(new ArrayList<>());
+    serviceRegistry.addService(
+        new ContentAddressableStorageImplBase() {
+          @Override
+          public void findMissingBlobs(
+              FindMissingBlobsRequest request,
+              StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            requests.add(request.getBlobDigestsList());
+            FindMissingBlobsResponse.Builder response = FindMissingBlobsResponse.newBuilder();
+            for (Digest digest : request.getBlobDigestsList()) {
+              if (!blobs.containsKey(digest)) {
+                response.addMissingBlobDigests(digest);
+              }
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+          }
+        });
+    serviceRegistry.addService(
+        new FakeByteStreamWrites(blobs) {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            // The remote cache evicted every blob.
+            responseObserver.onError(Status.NOT_FOUND.asException());
+          }
+        });
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    GrpcCacheClient client = newClient(remoteOptions);
+    DigestPresenceCache presenceCache = new DigestPresenceCache(1000, Duration.ofMinutes(10));
+    RemoteExecutionCache cache =
+        new RemoteExecutionCache(client, remoteOptions, DIGEST_UTIL, presenceCache);
+    MerkleTree emptyTree =
+        MerkleTree.build(ImmutableSortedMap.of(), fakeFileCache, execRoot, DIGEST_UTIL);
+    ImmutableMap<Digest, Message> inputs =
+        ImmutableMap.of(presentDigest, present, missingDigest, missing);
+
+    cache.ensureInputsPresent(emptyTree, inputs);
+    assertThat(blobs).containsKey(missingDigest);
+    requests.clear();
+    cache.ensureInputsPresent(emptyTree, inputs);
+    // The input that was present is not looked up again.
+    assertThat(Iterables.concat(requests)).doesNotContain(presentDigest);
+
+    // Digests are always looked up for uploads of outputs.
+    requests.clear();
+    getFromFuture(client.findMissingDigests(ImmutableList.of(presentDigest)));
+    assertThat(requests).containsExactly(ImmutableList.of(presentDigest));
+
+    // A download that finds a blob missing makes inputs look it up again.
+    assertThrows(
+        CacheNotFoundException.class, () -> getFromFuture(cache.downloadBlob(presentDigest)));
+    requests.clear();
+    cache.ensureInputsPresent(emptyTree, inputs);
+    assertThat(Iterables.concat(requests)).contains(presentDigest);
+  }
+
   @Test
   public void isRemoteCacheOptionsWhenGrpcEnabled() {
     RemoteOptions options = Options.getDefaults(RemoteOptions.class);
@@ -257,7 +257,8 @@ public class GrpcRemoteExecutionClientTest {
             retryService,
             DIGEST_UTIL,
             logDir,
-            /* filesToDownload= */ ImmutableSet.of());
+            /* filesToDownload= */ ImmutableSet.of(),
+            /* merkleTreeCache= */ null);
 
     inputDigest = fakeFileCache.createScratchInput(simpleSpawn.getInputFiles().get(0), "xyz");
     command =
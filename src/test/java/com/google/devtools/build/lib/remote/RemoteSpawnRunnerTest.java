@@ -818,7 +818,8 @@ public class RemoteSpawnRunnerTest {
             retryService,
             digestUtil,
             logDir,
-            /* filesToDownload= */ ImmutableSet.of());
+            /* filesToDownload= */ ImmutableSet.of(),
+            /* merkleTreeCache= */ null);
 
     ExecuteResponse succeeded =
         ExecuteResponse.newBuilder()
@@ -1015,6 +1016,7 @@ public class RemoteSpawnRunnerTest {
         retryService,
         digestUtil,
         logDir,
-        topLevelOutputs);
+        topLevelOutputs,
+        /* merkleTreeCache= */ null);
   }
 }
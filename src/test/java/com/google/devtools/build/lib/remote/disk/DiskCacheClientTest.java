@@ -0,0 +1,221 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.Utils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheClient} and {@link DiskCacheIndex}. */
+@RunWith(JUnit4.class)
+public class DiskCacheClientTest {
+
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  private Path root;
+
+  @Before
+  public final void setUp() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(new JavaClock(), DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  private DiskCacheClient newBoundedCache(long maxSizeBytes) throws IOException {
+    DiskCacheIndex index =
+        DiskCacheIndex.load(root, maxSizeBytes, MoreExecutors.directExecutor());
+    return new DiskCacheClient(root, /* verifyDownloads= */ true, DIGEST_UTIL, index);
+  }
+
+  private static ByteString blob(char c, int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) c);
+    return ByteString.copyFrom(data);
+  }
+
+  private static ByteString download(DiskCacheClient cache, Digest digest) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utils.getFromFuture(cache.downloadBlob(digest, out));
+    return ByteString.copyFrom(out.toByteArray());
+  }
+
+  @Test
+  public void unboundedCacheHasNoIndex() throws Exception {
+    DiskCacheClient cache = new DiskCacheClient(root, /* verifyDownloads= */ true, DIGEST_UTIL);
+    ByteString data = blob('a', 100);
+    Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+
+    Utils.getFromFuture(cache.uploadBlob(digest, data));
+
+    assertThat(cache.getIndex()).isNull();
+    assertThat(download(cache, digest)).isEqualTo(data);
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString a = blob('a', 400);
+    ByteString b = blob('b', 400);
+    ByteString c = blob('c', 400);
+    Digest digestA = DIGEST_UTIL.compute(a.toByteArray());
+    Digest digestB = DIGEST_UTIL.compute(b.toByteArray());
+    Digest digestC = DIGEST_UTIL.compute(c.toByteArray());
+
+    Utils.getFromFuture(cache.uploadBlob(digestA, a));
+    Utils.getFromFuture(cache.uploadBlob(digestB, b));
+    // Reading a makes b the least recently used entry.
+    assertThat(download(cache, digestA)).isEqualTo(a);
+    Utils.getFromFuture(cache.uploadBlob(digestC, c));
+
+    assertThat(cache.contains(digestA)).isTrue();
+    assertThat(cache.contains(digestB)).isFalse();
+    assertThat(cache.contains(digestC)).isTrue();
+    DiskCacheIndex index = cache.getIndex();
+    assertThat(index.getTotalSizeBytes()).isEqualTo(800);
+    assertThat(index.getEvictedEntries()).isEqualTo(1);
+    assertThat(index.getEvictedBytes()).isEqualTo(400);
+  }
+
+  @Test
+  public void countsHitsAndMisses() throws Exception {
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString data = blob('a', 10);
+    Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+    Digest missing = DIGEST_UTIL.computeAsUtf8("missing");
+
+    Utils.getFromFuture(cache.uploadBlob(digest, data));
+    download(cache, digest);
+    assertThrows(CacheNotFoundException.class, () -> download(cache, missing));
+
+    assertThat(cache.getIndex().getHits()).isEqualTo(1);
+    assertThat(cache.getIndex().getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void indexIsPersistedOnClose() throws Exception {
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString a = blob('a', 400);
+    ByteString b = blob('b', 400);
+    Digest digestA = DIGEST_UTIL.compute(a.toByteArray());
+    Digest digestB = DIGEST_UTIL.compute(b.toByteArray());
+    Utils.getFromFuture(cache.uploadBlob(digestA, a));
+    Utils.getFromFuture(cache.uploadBlob(digestB, b));
+    download(cache, digestA);
+    cache.close();
+    assertThat(root.getChild(DiskCacheIndex.JOURNAL_FILE_NAME).exists()).isTrue();
+    assertThat(root.getChild(DiskCacheIndex.DIRTY_MARKER_FILE_NAME).exists()).isFalse();
+
+    DiskCacheClient reloaded = newBoundedCache(/* maxSizeBytes= */ 1000);
+    assertThat(reloaded.getIndex().getTotalSizeBytes()).isEqualTo(800);
+    ByteString c = blob('c', 400);
+    Utils.getFromFuture(reloaded.uploadBlob(DIGEST_UTIL.compute(c.toByteArray()), c));
+
+    // The access order survived the restart, so b is evicted rather than a.
+    assertThat(reloaded.contains(digestA)).isTrue();
+    assertThat(reloaded.contains(digestB)).isFalse();
+  }
+
+  @Test
+  public void journalIsAppendedTo() throws Exception {
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString a = blob('a', 400);
+    Utils.getFromFuture(cache.uploadBlob(DIGEST_UTIL.compute(a.toByteArray()), a));
+    cache.close();
+    long journalSize = root.getChild(DiskCacheIndex.JOURNAL_FILE_NAME).getFileSize();
+
+    DiskCacheClient reloaded = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString b = blob('b', 400);
+    Utils.getFromFuture(reloaded.uploadBlob(DIGEST_UTIL.compute(b.toByteArray()), b));
+    reloaded.close();
+
+    // The second instance only appended the record of b.
+    assertThat(root.getChild(DiskCacheIndex.JOURNAL_FILE_NAME).getFileSize())
+        .isEqualTo(2 * journalSize - Integer.BYTES);
+    assertThat(newBoundedCache(/* maxSizeBytes= */ 1000).getIndex().getTotalSizeBytes())
+        .isEqualTo(800);
+  }
+
+  @Test
+  public void unsavedIndexIsRebuilt() throws Exception {
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+    ByteString a = blob('a', 400);
+    Digest digestA = DIGEST_UTIL.compute(a.toByteArray());
+    Utils.getFromFuture(cache.uploadBlob(digestA, a));
+    // Not closed, as if the server crashed. The file is deleted behind the index's back.
+    root.getChild(digestA.getHash()).delete();
+
+    DiskCacheClient reloaded = newBoundedCache(/* maxSizeBytes= */ 1000);
+
+    assertThat(reloaded.getIndex().getTotalSizeBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void saveCancelsPendingEviction() throws Exception {
+    List<Runnable> evictions = new ArrayList<>();
+    DiskCacheIndex index = DiskCacheIndex.load(root, /* maxSizeBytes= */ 1000, evictions::add);
+    DiskCacheClient cache =
+        new DiskCacheClient(root, /* verifyDownloads= */ true, DIGEST_UTIL, index);
+    List<Digest> digests = new ArrayList<>();
+    for (char c = 'a'; c < 'd'; c++) {
+      ByteString data = blob(c, 400);
+      Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+      Utils.getFromFuture(cache.uploadBlob(digest, data));
+      digests.add(digest);
+    }
+    assertThat(evictions).hasSize(1);
+
+    cache.close();
+    evictions.get(0).run();
+
+    for (Digest digest : digests) {
+      assertThat(cache.contains(digest)).isTrue();
+    }
+    assertThat(index.getEvictedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void indexIsRebuiltFromDirectoryContents() throws Exception {
+    DiskCacheClient unbounded =
+        new DiskCacheClient(root, /* verifyDownloads= */ true, DIGEST_UTIL);
+    for (char c = 'a'; c < 'e'; c++) {
+      ByteString data = blob(c, 300);
+      Utils.getFromFuture(unbounded.uploadBlob(DIGEST_UTIL.compute(data.toByteArray()), data));
+    }
+
+    DiskCacheClient cache = newBoundedCache(/* maxSizeBytes= */ 1000);
+
+    // Loading an over-sized cache evicts down to the low water mark right away.
+    assertThat(cache.getIndex().getTotalSizeBytes()).isEqualTo(900);
+    assertThat(cache.getIndex().getEvictedEntries()).isEqualTo(1);
+  }
+}
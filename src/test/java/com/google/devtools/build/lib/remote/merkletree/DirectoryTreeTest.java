@@ -41,8 +41,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
@@ -106,6 +109,34 @@ public class DirectoryTreeTest {
     assertThat(fileNodesAtDepth(tree, 2)).containsExactly(expectedBuzzNode);
   }
 
+  @Test
+  public void visitInParallelVisitsSubdirectoriesFirst() throws Exception {
+    SortedMap<PathFragment, ActionInput> sortedInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      addFile("srcs/dir" + i + "/file.cc", "file", sortedInputs, metadata);
+      addFile("srcs/dir" + i + "/sub/file.cc", "file", sortedInputs, metadata);
+    }
+    DirectoryTree tree =
+        DirectoryTreeBuilder.fromActionInputs(
+            sortedInputs, new StaticMetadataProvider(metadata), execRoot, digestUtil);
+
+    Set<PathFragment> visited = ConcurrentHashMap.newKeySet();
+    tree.visitInParallel(
+        (PathFragment dirname, List<FileNode> files, List<DirectoryNode> dirs) -> {
+          assertThat(files).isStrictlyOrdered();
+          assertThat(dirs).isStrictlyOrdered();
+          for (DirectoryNode dir : dirs) {
+            assertThat(visited).contains(dirname.getRelative(dir.getPathSegment()));
+          }
+          assertThat(visited.add(dirname)).isTrue();
+        },
+        new ForkJoinPool(4));
+
+    // The root, srcs, and dir<i> and dir<i>/sub for every i.
+    assertThat(visited).hasSize(1 + 1 + 10 + 10);
+  }
+
   @Test
   public void virtualActionInputShouldWork() throws Exception {
     SortedMap<PathFragment, ActionInput> sortedInputs = new TreeMap<>();
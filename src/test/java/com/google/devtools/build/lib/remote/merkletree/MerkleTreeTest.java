@@ -23,10 +23,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.StaticMetadataProvider;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
@@ -38,7 +42,9 @@ import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import org.junit.Before;
@@ -50,6 +56,11 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public class MerkleTreeTest {
 
+  private static final ArtifactExpander NO_EXPANSION =
+      (artifact, output) -> {
+        throw new IllegalStateException("unexpected expansion of " + artifact);
+      };
+
   private Path execRoot;
   private ArtifactRoot artifactRoot;
   private DigestUtil digestUtil;
@@ -137,6 +148,142 @@ public class MerkleTreeTest {
     assertThat(allDigests).asList().containsAllIn(inputDigests);
   }
 
+  @Test
+  public void buildWideMerkleTreeInParallel() throws IOException {
+    SortedMap<PathFragment, ActionInput> sortedInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    // Enough directories to build the tree in parallel.
+    for (int i = 0; i < 100; i++) {
+      addFile("srcs/dir" + i + "/file.cc", "content" + i, sortedInputs, metadata);
+      addFile("srcs/dir" + i + "/sub/same.cc", "same", sortedInputs, metadata);
+    }
+
+    MerkleTree tree =
+        MerkleTree.build(sortedInputs, new StaticMetadataProvider(metadata), execRoot, digestUtil);
+
+    // Every "sub" directory has the same contents, so there are 100 "dir" directories, one "sub"
+    // directory, "srcs" and the root.
+    int numDirectories = 0;
+    for (Digest digest : tree.getAllDigests()) {
+      Directory dir = tree.getDirectoryByDigest(digest);
+      if (dir != null) {
+        assertThat(digestUtil.compute(dir)).isEqualTo(digest);
+        numDirectories++;
+      }
+    }
+    assertThat(numDirectories).isEqualTo(100 + 1 + 1 + 1);
+    Directory rootDir = tree.getDirectoryByDigest(tree.getRootDigest());
+    Directory srcsDir = tree.getDirectoryByDigest(rootDir.getDirectories(0).getDigest());
+    assertThat(srcsDir.getDirectoriesCount()).isEqualTo(100);
+    assertThat(srcsDir.getDirectories(0).getName()).isEqualTo("dir0");
+    assertThat(srcsDir.getDirectories(1).getName()).isEqualTo("dir1");
+    assertThat(srcsDir.getDirectories(2).getName()).isEqualTo("dir10");
+  }
+
+  @Test
+  public void merkleTreeCacheReusesTheTreesOfNestedSetNodes() throws IOException {
+    SortedMap<PathFragment, ActionInput> inputs1 = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> inputs2 = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Artifact cc = addFile("srcs/toolchain/bin/cc", "cc", inputs1, metadata);
+    Artifact libc = addFile("srcs/toolchain/lib/libc.a", "libc", inputs1, metadata);
+    Artifact foo = addFile("srcs/foo.cc", "foo", inputs1, metadata);
+    inputs2.putAll(inputs1.tailMap(PathFragment.create("srcs/toolchain")));
+    Artifact bar = addFile("srcs/bar.cc", "bar", inputs2, metadata);
+    NestedSet<Artifact> toolchain =
+        NestedSetBuilder.<Artifact>stableOrder().add(cc).add(libc).build();
+    NestedSet<Artifact> actionInputs1 =
+        NestedSetBuilder.<Artifact>stableOrder().addTransitive(toolchain).add(foo).build();
+    NestedSet<Artifact> actionInputs2 =
+        NestedSetBuilder.<Artifact>stableOrder().addTransitive(toolchain).add(bar).build();
+    Set<ActionInput> lookedUp = new HashSet<>();
+    MetadataProvider metadataProvider = recordingMetadataProvider(metadata, lookedUp);
+    MerkleTreeCache cache = new MerkleTreeCache(/* maxSizeBytes= */ 1 << 20);
+
+    MerkleTree tree1 =
+        cache.build(
+            actionInputs1, inputs1, NO_EXPANSION, metadataProvider, execRoot, digestUtil);
+    // The toolchain and both action inputs.
+    assertThat(cache.size()).isEqualTo(2);
+    lookedUp.clear();
+    MerkleTree tree2 =
+        cache.build(
+            actionInputs2, inputs2, NO_EXPANSION, metadataProvider, execRoot, digestUtil);
+
+    // The files of the toolchain are not looked up again.
+    assertThat(lookedUp).containsExactly(bar);
+    assertThat(cache.size()).isEqualTo(3);
+    MerkleTree uncachedTree1 = MerkleTree.build(inputs1, metadataProvider, execRoot, digestUtil);
+    MerkleTree uncachedTree2 = MerkleTree.build(inputs2, metadataProvider, execRoot, digestUtil);
+    assertThat(tree1.getRootDigest()).isEqualTo(uncachedTree1.getRootDigest());
+    assertThat(tree2.getRootDigest()).isEqualTo(uncachedTree2.getRootDigest());
+    assertThat(tree2.getRootDigest()).isNotEqualTo(tree1.getRootDigest());
+    for (Digest digest : uncachedTree2.getAllDigests()) {
+      assertThat(
+              tree2.getDirectoryByDigest(digest) != null || tree2.getFileByDigest(digest) != null)
+          .isTrue();
+    }
+  }
+
+  @Test
+  public void merkleTreeCacheAppliesSpawnInputsThatAreNotActionInputs() throws IOException {
+    SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> ignored = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Artifact foo = addFile("srcs/foo.cc", "foo", inputs, metadata);
+    Artifact manifest = addFile("srcs/dir/MANIFEST", "manifest", ignored, metadata);
+    Artifact runfile = addFile("srcs/lib/runfile", "runfile", ignored, metadata);
+    inputs.put(PathFragment.create("srcs/bin.runfiles/lib/runfile"), runfile);
+    NestedSet<Artifact> actionInputs =
+        NestedSetBuilder.<Artifact>stableOrder().add(foo).add(manifest).build();
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    MerkleTreeCache cache = new MerkleTreeCache(/* maxSizeBytes= */ 1 << 20);
+
+    MerkleTree tree =
+        cache.build(actionInputs, inputs, NO_EXPANSION, metadataProvider, execRoot, digestUtil);
+
+    MerkleTree uncachedTree = MerkleTree.build(inputs, metadataProvider, execRoot, digestUtil);
+    assertThat(tree.getRootDigest()).isEqualTo(uncachedTree.getRootDigest());
+    assertThat(tree.getFileByDigest(digestUtil.computeAsUtf8("runfile"))).isNotNull();
+  }
+
+  @Test
+  public void merkleTreeCacheIsBoundedBySize() throws IOException {
+    SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Artifact foo = addFile("srcs/foo.cc", "foo", inputs, metadata);
+    Artifact bar = addFile("srcs/bar.cc", "bar", inputs, metadata);
+    NestedSet<Artifact> actionInputs =
+        NestedSetBuilder.<Artifact>stableOrder().add(foo).add(bar).build();
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    // Too small to hold even a single directory.
+    MerkleTreeCache cache = new MerkleTreeCache(/* maxSizeBytes= */ 1);
+
+    MerkleTree tree =
+        cache.build(actionInputs, inputs, NO_EXPANSION, metadataProvider, execRoot, digestUtil);
+
+    assertThat(cache.size()).isEqualTo(0);
+    MerkleTree uncachedTree = MerkleTree.build(inputs, metadataProvider, execRoot, digestUtil);
+    assertThat(tree.getRootDigest()).isEqualTo(uncachedTree.getRootDigest());
+  }
+
+  private static MetadataProvider recordingMetadataProvider(
+      Map<ActionInput, FileArtifactValue> metadata, Set<ActionInput> lookedUp) {
+    MetadataProvider delegate = new StaticMetadataProvider(metadata);
+    return new MetadataProvider() {
+      @Override
+      public FileArtifactValue getMetadata(ActionInput input) throws IOException {
+        lookedUp.add(input);
+        return delegate.getMetadata(input);
+      }
+
+      @Override
+      public ActionInput getInput(String execPath) {
+        return delegate.getInput(execPath);
+      }
+    };
+  }
+
   private Artifact addFile(
       String path,
       String content,
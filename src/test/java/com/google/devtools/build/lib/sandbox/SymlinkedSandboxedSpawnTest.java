@@ -112,4 +112,102 @@ public class SymlinkedSandboxedSpawnTest {
 
     assertThat(outputsDir.getRelative("very/output.txt").isFile(Symlinks.NOFOLLOW)).isTrue();
   }
+
+  @Test
+  public void reusedSandboxOnlyChangesDifferingInputs() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    Path worldTxt = workspaceDir.getRelative("world.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    FileSystemUtils.createEmptyFile(worldTxt);
+    SandboxPool sandboxPool = new SandboxPool();
+    SandboxOutputs outputs =
+        SandboxOutputs.create(
+            ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of());
+
+    SymlinkedSandboxedSpawn first =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("such/input.txt"), helloTxt,
+                    PathFragment.create("such/other.txt"), worldTxt),
+                ImmutableMap.of()),
+            outputs,
+            ImmutableSet.of(execRoot.getRelative("wow/writable")),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            sandboxPool);
+    first.createFileSystem();
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("very/output.txt"));
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("wow/writable/temp.txt"));
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("such/stray.txt"));
+    outputsDir.getRelative("very").createDirectory();
+    first.copyOutputs(outputsDir);
+    first.delete();
+
+    assertThat(sandboxDir.exists()).isTrue();
+    assertThat(sandboxPool.take()).isEqualTo(sandboxDir);
+    SymlinkedSandboxedSpawn second =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("such/input.txt"), helloTxt,
+                    PathFragment.create("much/input.txt"), worldTxt),
+                ImmutableMap.of()),
+            outputs,
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            sandboxPool);
+    second.createFileSystem();
+
+    assertThat(execRoot.getRelative("such/input.txt").resolveSymbolicLinks()).isEqualTo(helloTxt);
+    assertThat(execRoot.getRelative("much/input.txt").resolveSymbolicLinks()).isEqualTo(worldTxt);
+    assertThat(execRoot.getRelative("such/other.txt").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(execRoot.getRelative("such/stray.txt").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(execRoot.getRelative("wow").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(execRoot.getRelative("very").isDirectory()).isTrue();
+    assertThat(sandboxPool.getInputsCreated()).isEqualTo(3);
+    assertThat(sandboxPool.getInputsReused()).isEqualTo(1);
+  }
+
+  @Test
+  public void reusedSandboxOnlyKeepsTheExecRoot() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    SandboxPool sandboxPool = new SandboxPool();
+    Path statisticsPath = sandboxDir.getRelative("stats.out");
+    SymlinkedSandboxedSpawn spawn =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(PathFragment.create("such/input.txt"), helloTxt),
+                ImmutableMap.of()),
+            SandboxOutputs.create(ImmutableSet.of(), ImmutableSet.of()),
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter(),
+            statisticsPath,
+            sandboxPool);
+    spawn.createFileSystem();
+    // Written by the previous spawn's process wrapper and sandbox.
+    FileSystemUtils.writeContentAsLatin1(statisticsPath, "stale statistics");
+    sandboxDir.getRelative("tmp").createDirectory();
+    spawn.delete();
+
+    assertThat(sandboxPool.take()).isEqualTo(sandboxDir);
+
+    assertThat(statisticsPath.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(sandboxDir.getRelative("tmp").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(execRoot.getRelative("such/input.txt").resolveSymbolicLinks()).isEqualTo(helloTxt);
+  }
 }
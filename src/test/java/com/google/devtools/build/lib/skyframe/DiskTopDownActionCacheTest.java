@@ -0,0 +1,246 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.actionsketch.ActionSketch;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskTopDownActionCache}. */
+@RunWith(JUnit4.class)
+public class DiskTopDownActionCacheTest extends TimestampBuilderTestCase {
+
+  private Path cacheDir;
+  private DiskTopDownActionCache cache;
+  private long maxSizeBytes = 1 << 20;
+
+  @Override
+  protected TopDownActionCache initTopDownActionCache() {
+    try {
+      cacheDir = scratch.dir("/top_down_cache");
+      cache = new DiskTopDownActionCache(cacheDir, maxSizeBytes);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    // Forwards to the current cache, so that tests can reopen it with a different size.
+    return new TopDownActionCache() {
+      @Nullable
+      @Override
+      public ActionExecutionValue get(ActionSketch sketch, ImmutableSet<Artifact> outputs) {
+        return cache.get(sketch, outputs);
+      }
+
+      @Override
+      public void put(ActionSketch sketch, ActionExecutionValue value) {
+        cache.put(sketch, value);
+      }
+    };
+  }
+
+  /** A button that also writes {@code content} to {@code output} when pressed. */
+  private static class WritingButton extends Button {
+    private final Artifact output;
+    private final String content;
+
+    WritingButton(Artifact output, String content) {
+      this.output = output;
+      this.content = content;
+    }
+
+    @Override
+    public void run() {
+      super.run();
+      try {
+        output.getPath().getParentDirectory().createDirectoryAndParents();
+        FileSystemUtils.writeContentAsLatin1(output.getPath(), content);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private WritingButton createWritingAction(
+      @Nullable Artifact input, Artifact output, String content) {
+    WritingButton button = new WritingButton(output, content);
+    registerAction(
+        new TestAction(
+            button,
+            input == null ? emptyNestedSet : NestedSetBuilder.create(Order.STABLE_ORDER, input),
+            ImmutableSet.of(output)));
+    return button;
+  }
+
+  private void build(Artifact... artifacts) throws Exception {
+    buildArtifacts(amnesiacBuilder(), artifacts);
+    cache.awaitPendingPuts();
+  }
+
+  private long cacheSize() throws IOException {
+    long size = 0;
+    for (String dir : new String[] {"ac", "cas"}) {
+      for (Path path : cacheDir.getRelative(dir).getDirectoryEntries()) {
+        size += path.getFileSize();
+      }
+    }
+    return size;
+  }
+
+  /** Makes all files in the cache look as if they had not been used for a long time. */
+  private void ageCache() throws IOException {
+    for (String dir : new String[] {"ac", "cas"}) {
+      for (Path path : cacheDir.getRelative(dir).getDirectoryEntries()) {
+        path.setLastModifiedTime(0);
+      }
+    }
+  }
+
+  private void clean(Artifact... outputs) throws IOException {
+    for (Artifact output : outputs) {
+      output.getPath().delete();
+    }
+  }
+
+  @Test
+  public void restoresOutputsAfterClean() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    WritingButton button = createWritingAction(null, hello, "hello world");
+
+    build(hello);
+    assertThat(button.pressed).isTrue();
+
+    clean(hello);
+    button.pressed = false;
+    build(hello);
+    assertThat(button.pressed).isFalse();
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(hello.getPath())))
+        .isEqualTo("hello world");
+  }
+
+  @Test
+  public void culledSubgraphIsNotRestored() throws Exception {
+    Artifact source = createSourceArtifact("source");
+    source.getPath().getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(source.getPath(), "source");
+    Artifact intermediate = createDerivedArtifact("intermediate");
+    Artifact top = createDerivedArtifact("top");
+    WritingButton intermediateButton = createWritingAction(source, intermediate, "intermediate");
+    WritingButton topButton = createWritingAction(intermediate, top, "top");
+
+    build(top);
+    assertThat(intermediateButton.pressed).isTrue();
+    assertThat(topButton.pressed).isTrue();
+
+    clean(intermediate, top);
+    intermediateButton.pressed = false;
+    topButton.pressed = false;
+    build(top);
+    assertThat(intermediateButton.pressed).isFalse();
+    assertThat(topButton.pressed).isFalse();
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(top.getPath())))
+        .isEqualTo("top");
+    assertThat(intermediate.getPath().exists()).isFalse();
+  }
+
+  @Test
+  public void changedSourceMissesAndIsCachedAgain() throws Exception {
+    Artifact source = createSourceArtifact("source");
+    source.getPath().getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(source.getPath(), "content1");
+    Artifact out = createDerivedArtifact("out");
+    WritingButton button = createWritingAction(source, out, "out");
+
+    build(out);
+    assertThat(button.pressed).isTrue();
+
+    FileSystemUtils.writeContentAsLatin1(source.getPath(), "content2");
+    clean(out);
+    button.pressed = false;
+    build(out);
+    assertThat(button.pressed).isTrue();
+
+    clean(out);
+    button.pressed = false;
+    build(out);
+    assertThat(button.pressed).isFalse();
+  }
+
+  @Test
+  public void missingCasEntryIsAMiss() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    WritingButton button = createWritingAction(null, hello, "hello");
+
+    build(hello);
+    assertThat(button.pressed).isTrue();
+
+    clean(hello);
+    cacheDir.getRelative("cas").deleteTree();
+    cacheDir.getRelative("cas").createDirectoryAndParents();
+    button.pressed = false;
+    build(hello);
+    assertThat(button.pressed).isTrue();
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(hello.getPath())))
+        .isEqualTo("hello");
+  }
+
+  @Test
+  public void restoredOutputIsNotCopiedAgain() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    WritingButton button = createWritingAction(null, hello, "hello");
+
+    build(hello);
+    clean(hello);
+    build(hello);
+    long nodeId = hello.getPath().stat().getNodeId();
+
+    button.pressed = false;
+    build(hello);
+    assertThat(button.pressed).isFalse();
+    assertThat(hello.getPath().stat().getNodeId()).isEqualTo(nodeId);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFilesAboveMaxSize() throws Exception {
+    Artifact first = createDerivedArtifact("first");
+    Artifact second = createDerivedArtifact("second");
+    WritingButton firstButton = createWritingAction(null, first, "first");
+    WritingButton secondButton = createWritingAction(null, second, "second");
+
+    build(first);
+    ageCache();
+    long entrySize = cacheSize();
+    maxSizeBytes = entrySize + entrySize / 2;
+    cache = new DiskTopDownActionCache(cacheDir, maxSizeBytes);
+    build(second);
+    assertThat(cacheSize()).isAtMost(maxSizeBytes);
+
+    clean(first, second);
+    firstButton.pressed = false;
+    secondButton.pressed = false;
+    build(first, second);
+    assertThat(firstButton.pressed).isTrue();
+    assertThat(secondButton.pressed).isFalse();
+  }
+}
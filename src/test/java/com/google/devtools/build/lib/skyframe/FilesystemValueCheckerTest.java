@@ -212,6 +212,49 @@ public class FilesystemValueCheckerTest {
     assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
   }
 
+  @Test
+  public void testSimpleBatchStat() throws Exception {
+    FilesystemValueChecker checker = new FilesystemValueChecker(null, null);
+    List<PathFragment> statted = Collections.synchronizedList(new ArrayList<>());
+    BatchStat batchStatter =
+        (useDigest, includeLinks, paths) -> {
+          List<FileStatusWithDigest> stats = new ArrayList<>();
+          for (PathFragment pathFrag : paths) {
+            statted.add(pathFrag);
+            stats.add(
+                FileStatusWithDigestAdapter.adapt(
+                    fs.getPath(pathFrag).statIfFound(Symlinks.NOFOLLOW)));
+          }
+          return stats;
+        };
+
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/dir"));
+    Path foo = fs.getPath("/dir/foo");
+    Path bar = fs.getPath("/dir/bar");
+    FileSystemUtils.createEmptyFile(foo);
+    FileSystemUtils.createEmptyFile(bar);
+    SkyKey fooKey =
+        FileStateValue.key(RootedPath.toRootedPath(Root.absoluteRoot(fs), foo.asFragment()));
+    SkyKey barKey =
+        FileStateValue.key(RootedPath.toRootedPath(Root.absoluteRoot(fs), bar.asFragment()));
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(ImmutableList.of(fooKey, barKey), EVALUATION_OPTIONS);
+    assertThat(result.hasError()).isFalse();
+
+    assertEmptyDiff(
+        checker.getDirtyKeys(
+            evaluator.getValues(), new BasicFilesystemDirtinessChecker(), batchStatter));
+    assertThat(statted).containsAtLeast(foo.asFragment(), bar.asFragment());
+
+    FileSystemUtils.writeContentAsLatin1(foo, "hello");
+    bar.delete();
+    assertDiffWithNewValues(
+        checker.getDirtyKeys(
+            evaluator.getValues(), new BasicFilesystemDirtinessChecker(), batchStatter),
+        fooKey,
+        barKey);
+  }
+
   /**
    * Tests that an already-invalidated value can still be marked changed: symlink points at sym1.
    * Invalidate symlink by changing sym1 from pointing at path to point to sym2. This only dirties
@@ -0,0 +1,130 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Microbenchmarks for watching a source tree with {@link LinuxInotifyDiffAwareness} compared to
+ * {@link WatchServiceDiffAwareness}: the time it takes to arm the watches of the whole tree, and
+ * the time it takes for a modified file to show up in a view.
+ */
+public class LinuxInotifyDiffAwarenessBenchmark {
+  /** The implementations to compare. */
+  enum Watcher {
+    INOTIFY {
+      @Override
+      LocalDiffAwareness create(String watchRoot) {
+        return new LinuxInotifyDiffAwareness(watchRoot);
+      }
+    },
+    WATCH_SERVICE {
+      @Override
+      LocalDiffAwareness create(String watchRoot) {
+        return new WatchServiceDiffAwareness(watchRoot);
+      }
+    };
+
+    abstract LocalDiffAwareness create(String watchRoot);
+  }
+
+  @Param({"1000", "10000"})
+  int directories;
+
+  @Param({"INOTIFY", "WATCH_SERVICE"})
+  Watcher watcher;
+
+  private static final int FILES_PER_DIRECTORY = 5;
+
+  private final OptionsProvider watchFsEnabled =
+      new OptionsProvider() {
+        @Override
+        public <O extends OptionsBase> O getOptions(Class<O> optionsClass) {
+          LocalDiffAwareness.Options options = new LocalDiffAwareness.Options();
+          options.watchFS = true;
+          return optionsClass.cast(options);
+        }
+
+        @Override
+        public Map<String, Object> getStarlarkOptions() {
+          return ImmutableMap.of();
+        }
+      };
+
+  private Path root;
+  private LocalDiffAwareness armed;
+  private View lastView;
+
+  @BeforeExperiment
+  void createSourceTree() throws Exception {
+    root = Files.createTempDirectory("diff_awareness").toRealPath();
+    // Packages of ten directories below a hundred top-level directories.
+    for (int d = 0; d < directories; d++) {
+      Path dir = root.resolve("top" + (d % 100)).resolve("pkg" + d);
+      Files.createDirectories(dir);
+      for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+        Files.write(dir.resolve("file" + f + ".cc"), new byte[0]);
+      }
+    }
+    armed = watcher.create(root.toString());
+    lastView = armed.getCurrentView(watchFsEnabled);
+  }
+
+  @AfterExperiment
+  void deleteSourceTree() throws Exception {
+    armed.close();
+    com.google.common.io.MoreFiles.deleteRecursively(root);
+  }
+
+  @Benchmark
+  void armWatches(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      LocalDiffAwareness diffAwareness = watcher.create(root.toString());
+      diffAwareness.getCurrentView(watchFsEnabled);
+      diffAwareness.close();
+    }
+  }
+
+  @Benchmark
+  void observeModification(int reps) throws Exception {
+    PathFragment modified = PathFragment.create("top0/pkg0/file0.cc");
+    File file = root.resolve(modified.getPathString()).toFile();
+    for (int i = 0; i < reps; i++) {
+      file.setLastModified(i * 1000L);
+      // Request views until the modification shows up.
+      while (true) {
+        View view = armed.getCurrentView(watchFsEnabled);
+        boolean observed =
+            armed.getDiff(lastView, view).modifiedSourceFiles().contains(modified);
+        lastView = view;
+        if (observed) {
+          break;
+        }
+      }
+    }
+  }
+}
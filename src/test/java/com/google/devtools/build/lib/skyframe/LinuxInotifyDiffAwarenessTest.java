@@ -0,0 +1,228 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.skyframe.LocalDiffAwareness.Options;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LinuxInotifyDiffAwareness}. */
+@RunWith(JUnit4.class)
+public class LinuxInotifyDiffAwarenessTest {
+
+  private static void rmdirs(Path directory) throws IOException {
+    Files.walkFileTree(
+        directory,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            Files.delete(dir);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private LinuxInotifyDiffAwareness underTest;
+  private Path watchedPath;
+  private OptionsProvider watchFsEnabledProvider;
+
+  @Before
+  public void setUp() throws Exception {
+    watchedPath = com.google.common.io.Files.createTempDir().getCanonicalFile().toPath();
+    underTest = new LinuxInotifyDiffAwareness(watchedPath.toString());
+    LocalDiffAwareness.Options localDiffOptions = new LocalDiffAwareness.Options();
+    localDiffOptions.watchFS = true;
+    watchFsEnabledProvider = new LocalDiffAwarenessOptionsProvider(localDiffOptions);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    underTest.close();
+    rmdirs(watchedPath);
+  }
+
+  private void scratchFile(String path, String content) throws IOException {
+    Path p = watchedPath.resolve(path);
+    p.getParent().toFile().mkdirs();
+    com.google.common.io.Files.write(content.getBytes(StandardCharsets.UTF_8), p.toFile());
+  }
+
+  private void scratchFile(String path) throws IOException {
+    scratchFile(path, "");
+  }
+
+  private void assertDiff(View view1, View view2, Object... paths)
+      throws IncompatibleViewException, BrokenDiffAwarenessException {
+    ImmutableSet<PathFragment> modifiedSourceFiles =
+        underTest.getDiff(view1, view2).modifiedSourceFiles();
+    ImmutableSet<String> toStringSourceFiles = toString(modifiedSourceFiles);
+    assertThat(toStringSourceFiles).containsExactly(paths);
+  }
+
+  private static ImmutableSet<String> toString(ImmutableSet<PathFragment> modifiedSourceFiles) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (PathFragment path : modifiedSourceFiles) {
+      if (!path.toString().isEmpty()) {
+        builder.add(path.toString());
+      }
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testSimple() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    // No need to wait: the events are read when the view is requested.
+    scratchFile("a/b/c");
+    scratchFile("b/c/d");
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view1, view2, "a", "a/b", "a/b/c", "b", "b/c", "b/c/d");
+    rmdirs(watchedPath.resolve("a"));
+    rmdirs(watchedPath.resolve("b"));
+    View view3 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view2, view3, "a", "a/b", "a/b/c", "b", "b/c", "b/c/d");
+  }
+
+  @Test
+  public void testModifiedFiles() throws Exception {
+    scratchFile("pkg/BUILD");
+    scratchFile("pkg/foo.cc");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    scratchFile("pkg/foo.cc", "int main() {}");
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view1, view2, "pkg/foo.cc");
+    View view3 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view2, view3);
+  }
+
+  @Test
+  public void testEventsBetweenViewsAreKept() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    scratchFile("a/b");
+    // Give the event thread the time to read the events before the view is requested.
+    Thread.sleep(1000);
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view1, view2, "a", "a/b");
+  }
+
+  @Test
+  public void testMovedDirectory() throws Exception {
+    scratchFile("a/b/c");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertThat(underTest.getWatchCount()).isEqualTo(3);
+    Files.move(watchedPath.resolve("a"), watchedPath.resolve("x"));
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view1, view2, "a", "x", "x/b", "x/b/c");
+    assertThat(underTest.getWatchCount()).isEqualTo(3);
+
+    // Changes in the moved directory are reported under its new path.
+    scratchFile("x/b/d");
+    View view3 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view2, view3, "x/b/d");
+  }
+
+  @Test
+  public void testOverflowReportsEverythingAndKeepsWatching() throws Exception {
+    scratchFile("pkg/BUILD");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    // Keep the event thread from reading events, so that more are queued than the kernel allows.
+    synchronized (underTest) {
+      for (int i = 0; i < 20000; i++) {
+        scratchFile("pkg/file" + i);
+      }
+      scratchFile("new/dir/BUILD");
+    }
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertThat(underTest.getDiff(view1, view2).treatEverythingAsModified()).isTrue();
+    assertThat(underTest.getWatchCount()).isEqualTo(4);
+
+    // The directories created while events were dropped are watched as well.
+    scratchFile("new/dir/foo.cc");
+    scratchFile("pkg/BUILD", "# changed");
+    View view3 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertDiff(view2, view3, "new/dir/foo.cc", "pkg/BUILD");
+  }
+
+  @Test
+  public void testDeletedRootBreaksDiffAwareness() throws Exception {
+    underTest.getCurrentView(watchFsEnabledProvider);
+    rmdirs(watchedPath);
+    assertThrows(
+        BrokenDiffAwarenessException.class,
+        () -> underTest.getCurrentView(watchFsEnabledProvider));
+    watchedPath.toFile().mkdir();
+  }
+
+  @Test
+  public void testSwitchingOffWatchFsBreaksDiffAwareness() throws Exception {
+    underTest.getCurrentView(watchFsEnabledProvider);
+    LocalDiffAwareness.Options localDiffOptions = new LocalDiffAwareness.Options();
+    localDiffOptions.watchFS = false;
+    assertThrows(
+        BrokenDiffAwarenessException.class,
+        () -> underTest.getCurrentView(new LocalDiffAwarenessOptionsProvider(localDiffOptions)));
+  }
+
+  /**
+   * Only returns a fixed options class for {@link LocalDiffAwareness.Options}.
+   */
+  private static final class LocalDiffAwarenessOptionsProvider implements OptionsProvider {
+    private final Options localDiffOptions;
+
+    private LocalDiffAwarenessOptionsProvider(Options localDiffOptions) {
+      this.localDiffOptions = localDiffOptions;
+    }
+
+    @Override
+    public <O extends OptionsBase> O getOptions(Class<O> optionsClass) {
+      if (optionsClass.equals(LocalDiffAwareness.Options.class)) {
+        return optionsClass.cast(localDiffOptions);
+      }
+      return null;
+    }
+
+    @Override
+    public Map<String, Object> getStarlarkOptions() {
+      return ImmutableMap.of();
+    }
+  }
+}
@@ -177,7 +177,7 @@ public class TopDownActionCacheTest extends TimestampBuilderTestCase {
 
     @Nullable
     @Override
-    public ActionExecutionValue get(ActionSketch sketch) {
+    public ActionExecutionValue get(ActionSketch sketch, ImmutableSet<Artifact> outputs) {
       return cache.getIfPresent(sketch);
     }
 
@@ -2219,6 +2219,33 @@ public final class SkylarkEvaluationTest extends EvaluationTest {
     assertThat(lookup("x")).isEqualTo(18);
   }
 
+  @Test
+  public void testListComprehensionsShadowLocalVariable() throws Exception {
+    exec(
+        "def foo():", //
+        "  a = 18",
+        "  b = [a for a in range(3)]",
+        "  c = [a + x for x in b]",
+        "  return a, b, c",
+        "x = foo()");
+    assertThat(lookup("x"))
+        .isEqualTo(
+            Tuple.of(18, StarlarkList.of(null, 0, 1, 2), StarlarkList.of(null, 18, 19, 20)));
+  }
+
+  @Test
+  public void testLocalVariablesAreUnboundInEachCall() throws Exception {
+    new SkylarkTest()
+        .testIfErrorContains(
+            "local variable 'x' is referenced before assignment",
+            "def foo(first):",
+            "  if first:",
+            "    x = 1",
+            "  return x",
+            "foo(True)",
+            "foo(False)");
+  }
+
   @Test
   public void testAnalysisFailureInfo() throws Exception {
     AnalysisFailure cause = new AnalysisFailure(Label.create("test", "test"), "ErrorMessage");
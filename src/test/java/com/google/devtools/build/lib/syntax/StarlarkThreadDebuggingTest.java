@@ -100,6 +100,22 @@ public class StarlarkThreadDebuggingTest {
                 .build());
   }
 
+  @Test
+  public void testListFramesOfResolvedFunction() throws Exception {
+    StarlarkThread thread = newStarlarkThread();
+    EvalUtils.exec(ParserInput.fromLines("def f(a, b):", "  c = a"), thread);
+    StarlarkFunction f = (StarlarkFunction) thread.lookup("f");
+    assertThat(f.getLocals()).containsExactly("a", "b", "c").inOrder();
+    thread.push(f, Location.BUILTIN);
+    thread.localUpdate(0, 1);
+    thread.localUpdate(2, 3);
+
+    ImmutableList<DebugFrame> frames = thread.listFrames(Location.BUILTIN);
+
+    assertThat(frames.get(0).lexicalFrameBindings()).containsExactly("a", 1, "c", 3).inOrder();
+    assertThat(thread.debugEval(Expression.parse(ParserInput.fromLines("a + c")))).isEqualTo(4);
+  }
+
   @Test
   public void testStepIntoFunction() throws Exception {
     StarlarkThread thread = newStarlarkThread();
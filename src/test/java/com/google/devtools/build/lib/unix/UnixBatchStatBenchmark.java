@@ -0,0 +1,83 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for stat-ing the output files of a build one at a time compared to stat-ing them
+ * with {@link UnixBatchStat}.
+ */
+public class UnixBatchStatBenchmark {
+  @Param({"10", "100"})
+  int directories;
+
+  @Param({"1", "10", "100"})
+  int filesPerDirectory;
+
+  private Path execRoot;
+  private BatchStat batchStat;
+  private final List<PathFragment> execPaths = new ArrayList<>();
+
+  @BeforeExperiment
+  void createOutputTree() throws Exception {
+    FileSystem fs = new UnixFileSystem(DigestHashFunction.getDefaultUnchecked());
+    execRoot =
+        fs.getPath(Files.createTempDirectory("batch_stat").toString()).getRelative("execroot");
+    for (int d = 0; d < directories; d++) {
+      PathFragment dir = PathFragment.create("bazel-out/k8-fastbuild/bin/pkg" + d);
+      execRoot.getRelative(dir).createDirectoryAndParents();
+      for (int f = 0; f < filesPerDirectory; f++) {
+        PathFragment execPath = dir.getRelative("out" + f + ".o");
+        FileSystemUtils.writeContentAsLatin1(execRoot.getRelative(execPath), "content");
+        execPaths.add(execPath);
+      }
+    }
+    batchStat = fs.getBatchStatter(execRoot);
+  }
+
+  @AfterExperiment
+  void deleteOutputTree() throws Exception {
+    execRoot.getParentDirectory().deleteTree();
+  }
+
+  @Benchmark
+  void statOneByOne(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      for (PathFragment execPath : execPaths) {
+        execRoot.getRelative(execPath).statIfFound(Symlinks.NOFOLLOW);
+      }
+    }
+  }
+
+  @Benchmark
+  void batchStat(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      batchStat.batchStat(/*includeDigest=*/ true, /*includeLinks=*/ true, execPaths);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.File;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link UnixBatchStat}. */
+@RunWith(JUnit4.class)
+public class UnixBatchStatTest {
+  private FileSystem fs;
+  private Path execRoot;
+  private BatchStat batchStat;
+
+  @Before
+  public final void createFileSystem() throws Exception {
+    fs = new UnixFileSystem(DigestHashFunction.getDefaultUnchecked());
+    execRoot =
+        fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("execroot");
+    execRoot.deleteTree();
+    execRoot.createDirectoryAndParents();
+    batchStat = fs.getBatchStatter(execRoot);
+  }
+
+  @Test
+  public void statsFilesInSeveralDirectoriesInInputOrder() throws Exception {
+    Path a1 = execRoot.getRelative("out/a/1");
+    Path b1 = execRoot.getRelative("out/b/1");
+    Path a2 = execRoot.getRelative("out/a/2");
+    a1.getParentDirectory().createDirectoryAndParents();
+    b1.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(a1, "a");
+    FileSystemUtils.writeContentAsLatin1(b1, "bb");
+    FileSystemUtils.writeContentAsLatin1(a2, "aaa");
+
+    List<FileStatusWithDigest> stats =
+        batchStat.batchStat(
+            /*includeDigest=*/ true,
+            /*includeLinks=*/ true,
+            ImmutableList.of(
+                PathFragment.create("out/a/1"),
+                PathFragment.create("out/b/1"),
+                PathFragment.create("out/a/2"),
+                PathFragment.create("out/a")));
+
+    assertThat(stats).hasSize(4);
+    assertSameStat(stats.get(0), a1.stat(Symlinks.NOFOLLOW));
+    assertSameStat(stats.get(1), b1.stat(Symlinks.NOFOLLOW));
+    assertSameStat(stats.get(2), a2.stat(Symlinks.NOFOLLOW));
+    assertThat(stats.get(0).getSize()).isEqualTo(1);
+    assertThat(stats.get(1).getSize()).isEqualTo(2);
+    assertThat(stats.get(2).getSize()).isEqualTo(3);
+    assertThat(stats.get(3).isDirectory()).isTrue();
+    assertThat(stats.get(0).getDigest()).isNull();
+  }
+
+  @Test
+  public void missingFilesAndDirectoriesAreNull() throws Exception {
+    Path file = execRoot.getRelative("out/file");
+    file.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(file, "content");
+
+    List<FileStatusWithDigest> stats =
+        batchStat.batchStat(
+            /*includeDigest=*/ false,
+            /*includeLinks=*/ true,
+            ImmutableList.of(
+                PathFragment.create("out/missing"),
+                PathFragment.create("missing_dir/file"),
+                PathFragment.create("out/file/not_a_dir"),
+                PathFragment.create("out/file")));
+
+    assertThat(stats.get(0)).isNull();
+    assertThat(stats.get(1)).isNull();
+    assertThat(stats.get(2)).isNull();
+    assertThat(stats.get(3).isFile()).isTrue();
+  }
+
+  @Test
+  public void includeLinksControlsWhetherSymlinksAreFollowed() throws Exception {
+    Path target = execRoot.getRelative("target");
+    Path link = execRoot.getRelative("link");
+    FileSystemUtils.writeContentAsLatin1(target, "target");
+    link.createSymbolicLink(PathFragment.create("target"));
+    ImmutableList<PathFragment> paths = ImmutableList.of(PathFragment.create("link"));
+
+    FileStatusWithDigest noFollow =
+        batchStat.batchStat(/*includeDigest=*/ false, /*includeLinks=*/ true, paths).get(0);
+    FileStatusWithDigest follow =
+        batchStat.batchStat(/*includeDigest=*/ false, /*includeLinks=*/ false, paths).get(0);
+
+    assertThat(noFollow.isSymbolicLink()).isTrue();
+    assertThat(follow.isSymbolicLink()).isFalse();
+    assertThat(follow.isFile()).isTrue();
+    assertThat(follow.getNodeId()).isEqualTo(target.stat().getNodeId());
+  }
+
+  private static void assertSameStat(FileStatusWithDigest actual, FileStatus expected)
+      throws Exception {
+    assertThat(actual.isFile()).isEqualTo(expected.isFile());
+    assertThat(actual.isDirectory()).isEqualTo(expected.isDirectory());
+    assertThat(actual.isSymbolicLink()).isEqualTo(expected.isSymbolicLink());
+    assertThat(actual.getSize()).isEqualTo(expected.getSize());
+    assertThat(actual.getLastModifiedTime()).isEqualTo(expected.getLastModifiedTime());
+    assertThat(actual.getLastChangeTime()).isEqualTo(expected.getLastChangeTime());
+    assertThat(actual.getNodeId()).isEqualTo(expected.getNodeId());
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the BLAKE3 implementation in {@link Blake3Hasher} and {@link Blake3TreeHasher}. */
+@RunWith(JUnit4.class)
+public class Blake3HasherTest {
+
+  /** Digests from the official BLAKE3 test vectors, indexed by input length. */
+  private static final ImmutableMap<Integer, String> TEST_VECTORS =
+      ImmutableMap.<Integer, String>builder()
+          .put(0, "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262")
+          .put(1, "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213")
+          .put(1023, "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11")
+          .put(1024, "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7")
+          .put(1025, "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444")
+          .put(2048, "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a")
+          .put(2049, "5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030")
+          .put(3072, "b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2")
+          .put(3073, "7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3")
+          .put(4096, "015094013f57a5277b59d8475c0501042c0b642e531b0a1c8f58d2163229e969")
+          .put(4097, "9b4052b38f1c5fc8b1f9ff7ac7b27cd242487b3d890d15c96a1c25b8aa0fb995")
+          .put(8192, "aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63")
+          .put(8193, "bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b")
+          .put(102400, "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085")
+          .build();
+
+  /** The input of the official test vectors: a repeating sequence of the bytes 0 to 250. */
+  private static byte[] input(int length) {
+    byte[] input = new byte[length];
+    for (int i = 0; i < length; i++) {
+      input[i] = (byte) (i % 251);
+    }
+    return input;
+  }
+
+  @Test
+  public void hashFunctionMatchesTestVectors() {
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      HashCode hash = Blake3HashFunction.INSTANCE.hashBytes(input(vector.getKey()));
+      assertThat(hash.toString()).isEqualTo(vector.getValue());
+    }
+  }
+
+  @Test
+  public void messageDigestMatchesTestVectorsWhenFedByteByByte() throws Exception {
+    MessageDigest digest = DigestHashFunction.BLAKE3.cloneOrCreateMessageDigest();
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      for (byte b : input(vector.getKey())) {
+        digest.update(b);
+      }
+      assertThat(HashCode.fromBytes(digest.digest()).toString()).isEqualTo(vector.getValue());
+    }
+  }
+
+  @Test
+  public void providerIsNotInstalledGlobally() {
+    assertThat(DigestHashFunction.BLAKE3.cloneOrCreateMessageDigest().getAlgorithm())
+        .isEqualTo("BLAKE3");
+    assertThrows(NoSuchAlgorithmException.class, () -> MessageDigest.getInstance("BLAKE3"));
+  }
+
+  @Test
+  public void clonedMessageDigestIsIndependent() throws Exception {
+    byte[] input = input(3073);
+    MessageDigest digest = DigestHashFunction.BLAKE3.cloneOrCreateMessageDigest();
+    digest.update(input, 0, 2000);
+    MessageDigest clone = (MessageDigest) digest.clone();
+    digest.update(input, 2000, 1073);
+
+    assertThat(HashCode.fromBytes(digest.digest()).toString()).isEqualTo(TEST_VECTORS.get(3073));
+    clone.update(input, 2000, 1073);
+    assertThat(HashCode.fromBytes(clone.digest()).toString()).isEqualTo(TEST_VECTORS.get(3073));
+  }
+
+  @Test
+  public void treeHasherMatchesTestVectors() throws Exception {
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      byte[] input = input(vector.getKey());
+      byte[] digest =
+          Blake3TreeHasher.hash(
+              ByteSource.wrap(input), input.length, ForkJoinPool.commonPool(), /*leafSize=*/ 1024);
+      assertThat(HashCode.fromBytes(digest).toString()).isEqualTo(vector.getValue());
+    }
+  }
+
+  @Test
+  public void treeHasherAgreesWithSequentialHashing() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int length : new int[] {5 * 1024 - 1, 5 * 1024, 5 * 1024 + 1, 64 * 1024 + 17}) {
+        byte[] input = input(length);
+        for (long leafSize : new long[] {1024, 3000, 4096, 16 * 1024}) {
+          byte[] digest = Blake3TreeHasher.hash(ByteSource.wrap(input), length, pool, leafSize);
+          assertThat(HashCode.fromBytes(digest))
+              .isEqualTo(Blake3HashFunction.INSTANCE.hashBytes(input));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void treeHasherReportsTruncatedInput() {
+    ByteSource truncated =
+        new ByteSource() {
+          @Override
+          public InputStream openStream() throws IOException {
+            return ByteSource.wrap(input(4000)).slice(0, 3000).openBufferedStream();
+          }
+        };
+    assertThrows(
+        IOException.class,
+        () -> Blake3TreeHasher.hash(truncated, 4000, ForkJoinPool.commonPool(), 1024));
+  }
+
+  @Test
+  public void fileSystemDigestUsesBlake3() throws Exception {
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.BLAKE3);
+    Path file = fs.getPath(System.getenv("TEST_TMPDIR")).getRelative("blake3_input");
+    byte[] input = input(3 * (int) Blake3TreeHasher.DEFAULT_LEAF_SIZE + 1);
+    FileSystemUtils.writeContent(file, input);
+
+    assertThat(HashCode.fromBytes(file.getDigest()))
+        .isEqualTo(Blake3HashFunction.INSTANCE.hashBytes(input));
+  }
+}
@@ -18,6 +18,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
 import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -52,13 +53,13 @@ public class WorkerMultiplexerManagerTest {
     assertThat(WorkerMultiplexerManager.getInstanceCount()).isEqualTo(2);
 
     // Remove an instance. If reference count is larger than 0, instance shouldn't be destroyed.
-    WorkerMultiplexerManager.removeInstance(worker2Hash);
+    WorkerMultiplexerManager.removeInstance(worker2Hash, wm2);
 
     assertThat(WorkerMultiplexerManager.getRefCount(worker2Hash)).isEqualTo(1);
     assertThat(WorkerMultiplexerManager.getInstanceCount()).isEqualTo(2);
 
     // Remove an instance. Reference count is down to 0, instance should be destroyed.
-    WorkerMultiplexerManager.removeInstance(worker2Hash);
+    WorkerMultiplexerManager.removeInstance(worker2Hash, wm2);
 
     assertThrows(
         UserExecException.class, () -> WorkerMultiplexerManager.getMultiplexer(worker2Hash));
@@ -66,11 +67,101 @@ public class WorkerMultiplexerManagerTest {
 
     // WorkerProxy hash not found.
     assertThrows(
-        UserExecException.class, () -> WorkerMultiplexerManager.removeInstance(worker2Hash));
+        UserExecException.class, () -> WorkerMultiplexerManager.removeInstance(worker2Hash, wm2));
 
     // Remove all the instances.
-    WorkerMultiplexerManager.removeInstance(worker1Hash);
+    WorkerMultiplexerManager.removeInstance(worker1Hash, wm1);
 
     assertThat(WorkerMultiplexerManager.getInstanceCount()).isEqualTo(0);
   }
+
+  @Test
+  public void instancesScaleWithRequestsInFlight() throws Exception {
+    Integer workerHash = "scaling".hashCode();
+    WorkerMultiplexer wm1 = WorkerMultiplexerManager.getInstance(workerHash, 2);
+    WorkerMultiplexer wm1Annex = WorkerMultiplexerManager.getInstance(workerHash, 2);
+
+    // Idle proxies don't count.
+    assertThat(wm1Annex).isSameInstanceAs(wm1);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(1);
+
+    // The first multiplexer has as many requests in flight as it may, so a new proxy gets a new
+    // one.
+    wm1.putRequest(WorkRequest.newBuilder().setRequestId(1).build());
+    wm1.putRequest(WorkRequest.newBuilder().setRequestId(2).build());
+    WorkerMultiplexer wm2 = WorkerMultiplexerManager.getInstance(workerHash, 2);
+
+    assertThat(wm2).isNotSameInstanceAs(wm1);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(2);
+    assertThat(WorkerMultiplexerManager.getRefCount(workerHash)).isEqualTo(3);
+
+    // The multiplexer with the fewest requests in flight is handed out next.
+    wm2.putRequest(WorkRequest.newBuilder().setRequestId(3).build());
+
+    assertThat(WorkerMultiplexerManager.getInstance(workerHash, 2)).isSameInstanceAs(wm2);
+
+    wm2.putRequest(WorkRequest.newBuilder().setRequestId(4).build());
+    WorkerMultiplexer wm3 = WorkerMultiplexerManager.getInstance(workerHash, 2);
+
+    assertThat(wm3).isNotSameInstanceAs(wm1);
+    assertThat(wm3).isNotSameInstanceAs(wm2);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(3);
+
+    // Remove all the instances.
+    WorkerMultiplexerManager.removeInstance(workerHash, wm1);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm1);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm2);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm2);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm3);
+
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(0);
+  }
+
+  @Test
+  public void proxiesMoveWhenTheirMultiplexerFallsBehind() throws Exception {
+    Integer workerHash = "rebinding".hashCode();
+    WorkerMultiplexer wm1 = WorkerMultiplexerManager.getInstance(workerHash, 1);
+    WorkerMultiplexerManager.getInstance(workerHash, 1);
+    WorkerMultiplexerManager.getInstance(workerHash, 1);
+
+    // A proxy stays with its multiplexer while that keeps up.
+    assertThat(WorkerMultiplexerManager.rebind(workerHash, wm1, 1)).isSameInstanceAs(wm1);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(1);
+
+    // Once it has as many requests in flight as it may, the next request goes to a new process.
+    wm1.putRequest(WorkRequest.newBuilder().setRequestId(1).build());
+    WorkerMultiplexer wm2 = WorkerMultiplexerManager.rebind(workerHash, wm1, 1);
+
+    assertThat(wm2).isNotSameInstanceAs(wm1);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(2);
+    assertThat(WorkerMultiplexerManager.getRefCount(workerHash)).isEqualTo(3);
+
+    wm2.putRequest(WorkRequest.newBuilder().setRequestId(2).build());
+    WorkerMultiplexer wm3 = WorkerMultiplexerManager.rebind(workerHash, wm1, 1);
+
+    assertThat(wm3).isNotSameInstanceAs(wm1);
+    assertThat(wm3).isNotSameInstanceAs(wm2);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(3);
+    assertThat(WorkerMultiplexerManager.getRefCount(workerHash)).isEqualTo(3);
+
+    // Remove all the instances.
+    WorkerMultiplexerManager.removeInstance(workerHash, wm1);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm2);
+    WorkerMultiplexerManager.removeInstance(workerHash, wm3);
+
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(0);
+  }
+
+  @Test
+  public void removingUnmanagedMultiplexerFails() throws Exception {
+    Integer workerHash = "unmanaged".hashCode();
+    WorkerMultiplexer wm = WorkerMultiplexerManager.getInstance(workerHash);
+
+    assertThrows(
+        UserExecException.class,
+        () -> WorkerMultiplexerManager.removeInstance(workerHash, new WorkerMultiplexer()));
+    assertThat(WorkerMultiplexerManager.getRefCount(workerHash)).isEqualTo(1);
+
+    WorkerMultiplexerManager.removeInstance(workerHash, wm);
+  }
 }
@@ -0,0 +1,219 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+
+  /** A worker process whose end of the pipes is driven by the test. */
+  private static class FakeSubprocess implements Subprocess {
+    private final InputStream stdout;
+    private final OutputStream stdin;
+    /** What the worker reads from its stdin. */
+    final InputStream requests;
+    /** What the worker writes to its stdout. */
+    final OutputStream responses;
+
+    FakeSubprocess() throws IOException {
+      Pipe stdinPipe = Pipe.open();
+      Pipe stdoutPipe = Pipe.open();
+      stdin = Channels.newOutputStream(stdinPipe.sink());
+      requests = Channels.newInputStream(stdinPipe.source());
+      responses = Channels.newOutputStream(stdoutPipe.sink());
+      stdout = Channels.newInputStream(stdoutPipe.source());
+    }
+
+    @Override
+    public boolean destroy() {
+      close();
+      return true;
+    }
+
+    @Override
+    public int exitValue() {
+      return 0;
+    }
+
+    @Override
+    public boolean finished() {
+      return false;
+    }
+
+    @Override
+    public boolean timedout() {
+      return false;
+    }
+
+    @Override
+    public void waitFor() {}
+
+    @Override
+    public OutputStream getOutputStream() {
+      return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      try {
+        responses.close();
+        requests.close();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private FakeSubprocess process;
+  private WorkerMultiplexer multiplexer;
+  private ExecutorService executor;
+
+  @Before
+  public void startMultiplexer() throws IOException {
+    process = new FakeSubprocess();
+    multiplexer = new WorkerMultiplexer();
+    multiplexer.startWithProcess(process);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void stopMultiplexer() {
+    executor.shutdownNow();
+    multiplexer.destroyMultiplexer();
+  }
+
+  private static WorkRequest request(int requestId) {
+    return WorkRequest.newBuilder().setRequestId(requestId).build();
+  }
+
+  private static WorkResponse response(int requestId) {
+    return WorkResponse.newBuilder().setRequestId(requestId).setOutput("out" + requestId).build();
+  }
+
+  @Test
+  public void responsesAreDispatchedToTheirRequests() throws Exception {
+    List<Future<WorkResponse>> responses = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      int requestId = i;
+      responses.add(
+          executor.submit(
+              () -> {
+                multiplexer.putRequest(request(requestId));
+                return multiplexer.getResponse(requestId);
+              }));
+    }
+
+    // All requests are sent without waiting for any response.
+    List<Integer> requestIds = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      requestIds.add(WorkRequest.parseDelimitedFrom(process.requests).getRequestId());
+    }
+    assertThat(requestIds).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    assertThat(multiplexer.getPendingRequestCount()).isEqualTo(10);
+
+    for (int i = 9; i >= 0; i--) {
+      response(i).writeDelimitedTo(process.responses);
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(responses.get(i).get()).isEqualTo(response(i));
+    }
+    assertThat(multiplexer.getPendingRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void closedOutputCompletesRequestsWithNull() throws Exception {
+    multiplexer.putRequest(request(1));
+    WorkRequest.parseDelimitedFrom(process.requests);
+    process.responses.close();
+
+    assertThat(multiplexer.getResponse(1)).isNull();
+
+    // Requests sent afterwards are not waited for.
+    multiplexer.putRequest(request(2));
+    assertThat(multiplexer.getResponse(2)).isNull();
+  }
+
+  @Test
+  public void unparseableResponseFailsRequests() throws Exception {
+    multiplexer.putRequest(request(1));
+    multiplexer.putRequest(request(2));
+    WorkRequest.parseDelimitedFrom(process.requests);
+    WorkRequest.parseDelimitedFrom(process.requests);
+    response(1).writeDelimitedTo(process.responses);
+    // A message of three bytes holding a truncated field number.
+    process.responses.write(new byte[] {3, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+    process.responses.flush();
+
+    assertThat(multiplexer.getResponse(1)).isEqualTo(response(1));
+    assertThrows(IOException.class, () -> multiplexer.getResponse(2));
+
+    // Requests sent afterwards fail, too.
+    multiplexer.putRequest(request(3));
+    assertThrows(IOException.class, () -> multiplexer.getResponse(3));
+  }
+
+  @Test
+  public void failedSendFailsLaterRequests() throws Exception {
+    // The worker stops reading its stdin but keeps its stdout open.
+    process.requests.close();
+    multiplexer.putRequest(request(1));
+    assertThrows(IOException.class, () -> multiplexer.getResponse(1));
+
+    // Requests queued after the sender gave up are not waited for.
+    Future<WorkResponse> response =
+        executor.submit(
+            () -> {
+              multiplexer.putRequest(request(2));
+              return multiplexer.getResponse(2);
+            });
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+  }
+}
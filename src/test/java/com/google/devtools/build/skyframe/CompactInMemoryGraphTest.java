@@ -0,0 +1,119 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactInMemoryGraph}. */
+@RunWith(JUnit4.class)
+public class CompactInMemoryGraphTest extends GraphTest {
+  private CompactInMemoryGraph compactGraph;
+
+  @Override
+  protected Version getStartingVersion() {
+    return IntVersion.of(0);
+  }
+
+  @Override
+  protected Version getNextVersion(Version v) {
+    Preconditions.checkState(v instanceof IntVersion);
+    return ((IntVersion) v).next();
+  }
+
+  @Override
+  protected void makeGraph() {
+    compactGraph = new CompactInMemoryGraph();
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return compactGraph;
+  }
+
+  @Test
+  public void groupedDirectDepsSurviveEncoding() throws Exception {
+    SkyKey parent = key("parent");
+    SkyKey a = key("a");
+    SkyKey b = key("b");
+    SkyKey c = key("c");
+    SkyKey d = key("d");
+    compactGraph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(parent, a, b, c, d));
+    NodeEntry entry = compactGraph.get(null, Reason.OTHER, parent);
+    entry.addReverseDepAndCheckIfDone(null);
+    entry.markRebuilding();
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(a);
+    helper.startGroup();
+    helper.add(b);
+    helper.add(c);
+    helper.endGroup();
+    helper.add(d);
+    entry.addTemporaryDirectDeps(helper);
+    for (int i = 0; i < 4; i++) {
+      entry.signalDep(getStartingVersion(), null);
+    }
+
+    entry.setValue(new StringValue("parent"), getStartingVersion());
+
+    GroupedList<SkyKey> expected = new GroupedList<>();
+    expected.append(helper);
+    assertThat(
+            GroupedList.create(((InMemoryNodeEntry) entry).getCompressedDirectDepsForDoneEntry()))
+        .isEqualTo(expected);
+    assertThat(entry.getDirectDeps()).containsExactly(a, b, c, d).inOrder();
+    assertThat(entry.getNumberOfDirectDepGroups()).isEqualTo(3);
+  }
+
+  @Test
+  public void removedNodesReleaseTheirIds() throws Exception {
+    compactGraph.createIfAbsentBatch(
+        null, Reason.OTHER, ImmutableList.of(key("a"), key("b"), key("c")));
+    int idOfB = compactGraph.getIdOfExistingNode(key("b"));
+
+    compactGraph.remove(key("b"));
+    assertThat(compactGraph.getIdOfExistingNode(key("b"))).isEqualTo(-1);
+    assertThat(compactGraph.numAssignedIds()).isEqualTo(2);
+    // Done nodes that are being removed as well may still refer to the removed node by its id.
+    assertThat(compactGraph.getKeyForId(idOfB)).isEqualTo(key("b"));
+
+    // The id is reused once nodes are created again.
+    compactGraph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key("d")));
+    assertThat(compactGraph.getIdOfExistingNode(key("d"))).isEqualTo(idOfB);
+    assertThat(compactGraph.getKeyForId(idOfB)).isEqualTo(key("d"));
+    assertThat(compactGraph.numAssignedIds()).isEqualTo(3);
+    assertThat(compactGraph.idCapacity()).isEqualTo(3);
+  }
+
+  @Test
+  public void repeatedlyRemovedAndCreatedNodesDontGrowTheIdTable() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      compactGraph.createIfAbsentBatch(
+          null, Reason.OTHER, ImmutableList.of(key("a" + i), key("b" + i)));
+      compactGraph.remove(key("a" + i));
+      compactGraph.remove(key("b" + i));
+    }
+    assertThat(compactGraph.numAssignedIds()).isEqualTo(0);
+    assertThat(compactGraph.idCapacity()).isEqualTo(2);
+  }
+}